@@ -18,7 +18,6 @@ package rc.client;
 
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +30,7 @@ import rc.common.RcConstants;
 import rc.common.RcServerLocationService;
 import rc.common.ServerLocationTable;
 import rc.common.RcConstants.RPC_FRAMEWORK;
+import rpc.config.ThreadPools;
 
 public abstract class RcClientLib {
 
@@ -87,9 +87,9 @@ public abstract class RcClientLib {
       logger.error(e.getMessage());
       System.exit(RcConstants.INIT_FAIL_ERROR_CODE);
     }
-    THREAD_POOL = threadPoolSize > 0 ? 
-        Executors.newFixedThreadPool(threadPoolSize) :
-        Executors.newCachedThreadPool();
+    THREAD_POOL = ThreadPools.newThreadPool(config.getProperty(
+        RcConstants.CLIENT_LIB_THREAD_POOL_TYPE_PROPERTY,
+        RcConstants.DEFAULT_CLIENT_LIB_THREAD_POOL_TYPE), threadPoolSize);
   }
   
   private static synchronized void initClientRpcFacade(RPC_FRAMEWORK rpcFramework) {
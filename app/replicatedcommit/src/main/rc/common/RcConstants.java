@@ -78,6 +78,8 @@ public class RcConstants {
   public static final String CLIENT_LIB_ID_PROPERTY = "rc.client.lib.id";
   public static final String CLIENT_LIB_THREAD_POOL_SIZE_PROPERTY = "rc.client.lib.threadPool.size";
   public static final String DEFAULT_CLIENT_LIB_THREAD_POOL_SIZE = "0";
+  public static final String CLIENT_LIB_THREAD_POOL_TYPE_PROPERTY = "rc.client.lib.threadPool.type";
+  public static final String DEFAULT_CLIENT_LIB_THREAD_POOL_TYPE = "platform";
   public static final String CLIENT_LIB_SPECRPC_READ_PROXY_START_TIME_PROPERTY = "rc.client.lib.specrpc.readproxy.starttime";
   public static final String DEFAULT_CLIENT_LIB_SPECRPC_READ_PROXY_START_TIME = "500"; //ms
   
@@ -157,6 +159,9 @@ public class RcConstants {
   // Thread pool size
   public static final String TXN_COORD_THREAD_POOL_SIZE_PROPERTY = "rc.txn.coordinator.threadPool.size";
   public static final String DEFAULT_TXN_COORD_THREAD_POOL_SIZE = "0";
+  // Thread pool type, platform or virtual
+  public static final String TXN_COORD_THREAD_POOL_TYPE_PROPERTY = "rc.txn.coordinator.threadPool.type";
+  public static final String DEFAULT_TXN_COORD_THREAD_POOL_TYPE = "platform";
 
   /**
    * Database configuration
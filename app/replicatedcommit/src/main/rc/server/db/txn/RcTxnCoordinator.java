@@ -22,7 +22,6 @@ import java.util.Hashtable;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +36,7 @@ import rc.server.grpc.RcTxnCoordinatorRpcFacadeGrpc;
 import rc.server.specrpc.RcTxnCoordinatorRpcFacadeSpecRpc;
 import rc.server.tradrpc.RcTxnCoordinatorRpcFacadeTradRpc;
 import rpc.config.Constants;
+import rpc.config.ThreadPools;
 import specrpc.common.RpcConfig;
 
 public class RcTxnCoordinator {
@@ -64,9 +64,9 @@ public class RcTxnCoordinator {
       logger.error(e.getMessage());
       System.exit(RcConstants.INIT_FAIL_ERROR_CODE);
     }
-    this.threadPool = threadPoolSize > 0 ? 
-        Executors.newFixedThreadPool(threadPoolSize) :
-        Executors.newCachedThreadPool();
+    this.threadPool = ThreadPools.newThreadPool(config.getProperty(
+        RcConstants.TXN_COORD_THREAD_POOL_TYPE_PROPERTY,
+        RcConstants.DEFAULT_TXN_COORD_THREAD_POOL_TYPE), threadPoolSize);
         
     // Initializes RPC facade
     switch (rpcFramework) {
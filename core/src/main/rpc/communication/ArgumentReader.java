@@ -0,0 +1,31 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import rpc.execption.MethodNotRegisteredException;
+import specrpc.common.RpcSignature;
+
+/*
+ * Reads the arguments of a request once its method is known, in place of
+ * MessageReader.readValues(), and keeps them for the call of the method. A
+ * generated skeleton reads each one with the reader method of its type (see
+ * rpc.server.api.RpcDispatcher).
+ */
+public interface ArgumentReader {
+  public void readArguments(RpcSignature signature, MessageReader reader)
+      throws MethodNotRegisteredException, NoSuchMethodException, IllegalAccessException;
+}
@@ -0,0 +1,27 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+/*
+ * Writes the arguments of a request, in place of MessageWriter.writeValues():
+ * their count with writeCount(), then each of them. A generated stub writes
+ * each one with the writer method of its type, which boxes no primitive
+ * argument into an array.
+ */
+public interface ArgumentWriter {
+  public void writeArguments(MessageWriter writer);
+}
@@ -0,0 +1,677 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+
+import specrpc.common.RpcSignature;
+
+/*
+ * Compact encoding of the messages. A message starts with MAGIC, a byte that
+ * never starts a UTF-8 (so JSON) message, and a version byte. Then come its
+ * fields:
+ * - enums as the varint of their ordinal;
+ * - strings as the varint of their UTF-8 length plus one (0 for null), then
+ *   the bytes;
+ * - signatures as their class and method names, then the number of argument
+ *   types and their names;
+ * - method keys as varints;
+ * - values as a type tag, then the value: zigzag varints for the integral
+ *   types, IEEE bytes for float and double, length-prefixed bytes for strings,
+ *   byte arrays and enum names. Other objects fall back to Gson JSON.
+ *
+ * The value codec of a class is looked up once and cached. The tag, rather
+ * than the declared type, tells how to decode a value, and the decoded value
+ * is then converted to the declared type, as the JSON parsing does. The
+ * primitives written and read by their own methods, such as writeInt(), take
+ * the bytes of their boxes, so either side may box them or not.
+ */
+public class BinaryCodec implements MessageCodec {
+
+  public static final String NAME = "binary";
+
+  public static final byte MAGIC = (byte) 0xC1; // Never appears in UTF-8
+  public static final byte VERSION = 1;
+
+  private static final byte NULL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte SHORT = 5;
+  private static final byte BYTE = 6;
+  private static final byte CHAR = 7;
+  private static final byte FLOAT = 8;
+  private static final byte DOUBLE = 9;
+  private static final byte STRING = 10;
+  private static final byte BYTES = 11;
+  private static final byte ENUM = 12;
+  private static final byte JSON = 13;
+
+  private static final Gson gson = new Gson();
+
+  // Value codecs by class of the values, and by tag
+  private static final Map<Class<?>, ValueCodec> encoders = new ConcurrentHashMap<Class<?>, ValueCodec>();
+  private static final ValueCodec[] decoders = new ValueCodec[JSON + 1];
+  // Wrapper classes of the primitive types
+  private static final Map<Class<?>, Class<?>> boxes = new HashMap<Class<?>, Class<?>>();
+
+  static {
+    Class<?>[] primitives = { boolean.class, byte.class, short.class, char.class, int.class, long.class,
+        float.class, double.class, void.class };
+    Class<?>[] wrappers = { Boolean.class, Byte.class, Short.class, Character.class, Integer.class, Long.class,
+        Float.class, Double.class, Void.class };
+    for (int i = 0; i < primitives.length; i++) {
+      boxes.put(primitives[i], wrappers[i]);
+    }
+
+    register(Boolean.class, new ValueCodec(TRUE) {
+      void write(Writer out, Object value) {
+        out.putByte((Boolean) value ? TRUE : FALSE);
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return tag == TRUE;
+      }
+    });
+    decoders[FALSE] = decoders[TRUE];
+    register(Integer.class, new ValueCodec(INT) {
+      void write(Writer out, Object value) {
+        out.putVarLong(zigzag((Integer) value));
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return (int) unzigzag(in.getVarLong());
+      }
+    });
+    register(Long.class, new ValueCodec(LONG) {
+      void write(Writer out, Object value) {
+        out.putVarLong(zigzag((Long) value));
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return unzigzag(in.getVarLong());
+      }
+    });
+    register(Short.class, new ValueCodec(SHORT) {
+      void write(Writer out, Object value) {
+        out.putVarLong(zigzag((Short) value));
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return (short) unzigzag(in.getVarLong());
+      }
+    });
+    register(Byte.class, new ValueCodec(BYTE) {
+      void write(Writer out, Object value) {
+        out.putByte((Byte) value);
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return in.buffer.get();
+      }
+    });
+    register(Character.class, new ValueCodec(CHAR) {
+      void write(Writer out, Object value) {
+        out.putVarLong((Character) value);
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return (char) in.getVarLong();
+      }
+    });
+    register(Float.class, new ValueCodec(FLOAT) {
+      void write(Writer out, Object value) {
+        out.putInt(Float.floatToIntBits((Float) value));
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return Float.intBitsToFloat(in.buffer.getInt());
+      }
+    });
+    register(Double.class, new ValueCodec(DOUBLE) {
+      void write(Writer out, Object value) {
+        out.putLong(Double.doubleToLongBits((Double) value));
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return Double.longBitsToDouble(in.buffer.getLong());
+      }
+    });
+    register(String.class, new ValueCodec(STRING) {
+      void write(Writer out, Object value) {
+        out.putString((String) value);
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        return in.getString();
+      }
+    });
+    register(byte[].class, new ValueCodec(BYTES) {
+      void write(Writer out, Object value) {
+        byte[] bytes = (byte[]) value;
+        out.putVarLong(bytes.length);
+        out.putBytes(bytes);
+      }
+
+      Object read(Reader in, byte tag, Class<?> type) {
+        byte[] bytes = new byte[in.getLength()];
+        in.buffer.get(bytes);
+        return bytes;
+      }
+    });
+  }
+
+  // Enum constants go by name, so that the value does not depend on the
+  // order of the constants
+  private static final ValueCodec enumCodec = new ValueCodec(ENUM) {
+    void write(Writer out, Object value) {
+      out.putString(((Enum<?>) value).name());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Object read(Reader in, byte tag, Class<?> type) {
+      String name = in.getString();
+      if (type.isEnum()) {
+        return Enum.valueOf((Class) type, name);
+      }
+      return name;
+    }
+  };
+
+  private static final ValueCodec jsonCodec = new ValueCodec(JSON) {
+    void write(Writer out, Object value) {
+      out.putString(gson.toJson(value));
+    }
+
+    Object read(Reader in, byte tag, Class<?> type) {
+      return gson.fromJson(in.getString(), type);
+    }
+  };
+
+  static {
+    decoders[ENUM] = enumCodec;
+    decoders[JSON] = jsonCodec;
+  }
+
+  private static void register(Class<?> type, ValueCodec codec) {
+    encoders.put(type, codec);
+    decoders[codec.tag] = codec;
+  }
+
+  private static ValueCodec encoderOf(Class<?> type) {
+    ValueCodec codec = encoders.get(type);
+    if (codec == null) {
+      codec = Enum.class.isAssignableFrom(type) ? enumCodec : jsonCodec;
+      encoders.put(type, codec);
+    }
+    return codec;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static IllegalArgumentException malformed(RuntimeException cause) {
+    return new IllegalArgumentException("Malformed binary message", cause);
+  }
+
+  public String getName() {
+    return NAME;
+  }
+
+  public boolean accepts(ByteBuffer message) {
+    return message.remaining() > 0 && message.get(message.position()) == MAGIC;
+  }
+
+  public ByteBuffer encode(Message message) {
+    return encode(message, 0);
+  }
+
+  public ByteBuffer encode(Message message, int headroom) {
+    Writer writer = new Writer();
+    writer.size = headroom;
+    writer.putByte(MAGIC);
+    writer.putByte(VERSION);
+    message.write(writer);
+    return ByteBuffer.wrap(writer.bytes, headroom, writer.size - headroom);
+  }
+
+  public MessageReader newReader(ByteBuffer message) {
+    ByteBuffer buffer = message.duplicate();
+    if (buffer.remaining() < 2 || buffer.get() != MAGIC) {
+      throw new IllegalArgumentException("Not a binary message");
+    }
+    byte version = buffer.get();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unknown binary message version " + version);
+    }
+    return new Reader(buffer);
+  }
+
+  private abstract static class ValueCodec {
+    final byte tag;
+
+    ValueCodec(byte tag) {
+      this.tag = tag;
+    }
+
+    // Writes the value after the tag
+    abstract void write(Writer out, Object value);
+
+    // Reads the value after the tag, for a value declared of the type
+    abstract Object read(Reader in, byte tag, Class<?> type);
+  }
+
+  private static class Writer implements MessageWriter {
+    private byte[] bytes = new byte[128];
+    private int size = 0;
+
+    private void ensure(int n) {
+      if (size + n > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+      }
+    }
+
+    void putByte(byte b) {
+      ensure(1);
+      bytes[size++] = b;
+    }
+
+    void putBytes(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, bytes, size, b.length);
+      size += b.length;
+    }
+
+    void putInt(int value) {
+      ensure(4);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        bytes[size++] = (byte) (value >>> shift);
+      }
+    }
+
+    void putLong(long value) {
+      ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        bytes[size++] = (byte) (value >>> shift);
+      }
+    }
+
+    // Seven bits per byte, lowest first, the high bit set on all but the last
+    void putVarLong(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    void putString(String value) {
+      if (value == null) {
+        putVarLong(0);
+        return;
+      }
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      putVarLong(utf8.length + 1L);
+      putBytes(utf8);
+    }
+
+    public void writeEnum(Enum<?> value) {
+      putVarLong(value.ordinal());
+    }
+
+    public void writeString(String value) {
+      putString(value);
+    }
+
+    public void writeSignature(RpcSignature signature) {
+      putString(signature.hostClass);
+      putString(signature.methodName);
+      putString(signature.returnType.getName());
+      putVarLong(signature.argTypes.length);
+      for (Class<?> type : signature.argTypes) {
+        putString(type.getName());
+      }
+    }
+
+    public boolean writeMethodKey(long key) {
+      putVarLong(key);
+      return true;
+    }
+
+    public void writeValue(Object value) {
+      if (value == null) {
+        putByte(NULL);
+        return;
+      }
+      ValueCodec codec = encoderOf(value.getClass());
+      if (codec.tag != TRUE) { // Booleans write their tag as their value
+        putByte(codec.tag);
+      }
+      codec.write(this, value);
+    }
+
+    public void writeValues(Object[] values) {
+      if (values == null) {
+        putVarLong(0);
+        return;
+      }
+      putVarLong(values.length);
+      for (Object value : values) {
+        writeValue(value);
+      }
+    }
+
+    public void writeCount(int count) {
+      putVarLong(count);
+    }
+
+    // As the value codecs write the boxes, without boxing
+    public void writeBoolean(boolean value) {
+      putByte(value ? TRUE : FALSE);
+    }
+
+    public void writeByte(byte value) {
+      putByte(BYTE);
+      putByte(value);
+    }
+
+    public void writeShort(short value) {
+      putByte(SHORT);
+      putVarLong(zigzag(value));
+    }
+
+    public void writeChar(char value) {
+      putByte(CHAR);
+      putVarLong(value);
+    }
+
+    public void writeInt(int value) {
+      putByte(INT);
+      putVarLong(zigzag(value));
+    }
+
+    public void writeLong(long value) {
+      putByte(LONG);
+      putVarLong(zigzag(value));
+    }
+
+    public void writeFloat(float value) {
+      putByte(FLOAT);
+      putInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) {
+      putByte(DOUBLE);
+      putLong(Double.doubleToLongBits(value));
+    }
+  }
+
+  private static class Reader implements MessageReader {
+    private final ByteBuffer buffer;
+
+    Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    long getVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buffer.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    int getLength() {
+      long length = getVarLong();
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IllegalArgumentException("Length " + length + " beyond the message");
+      }
+      return (int) length;
+    }
+
+    String getString() {
+      long length = getVarLong() - 1;
+      if (length == -1) {
+        return null;
+      }
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IllegalArgumentException("Length " + length + " beyond the message");
+      }
+      String value;
+      if (buffer.hasArray()) {
+        value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length,
+            StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+      } else {
+        byte[] utf8 = new byte[(int) length];
+        buffer.get(utf8);
+        value = new String(utf8, StandardCharsets.UTF_8);
+      }
+      return value;
+    }
+
+    public <E extends Enum<E>> E readEnum(Class<E> type) {
+      try {
+        E[] constants = type.getEnumConstants();
+        long ordinal = getVarLong();
+        if (ordinal < 0 || ordinal >= constants.length) {
+          throw new IllegalArgumentException("No " + type.getName() + " of ordinal " + ordinal);
+        }
+        return constants[(int) ordinal];
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public String readString() {
+      try {
+        return getString();
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public RpcSignature readSignature() throws ClassNotFoundException {
+      try {
+        String hostClass = getString();
+        String methodName = getString();
+        Class<?> returnType = RpcSignature.classForName(getString());
+        Class<?>[] argTypes = new Class<?>[getLength()];
+        for (int i = 0; i < argTypes.length; i++) {
+          argTypes[i] = RpcSignature.classForName(getString());
+        }
+        return new RpcSignature(hostClass, methodName, returnType, argTypes);
+      } catch (BufferUnderflowException | NullPointerException e) {
+        throw malformed(e);
+      }
+    }
+
+    public long readMethodKey() {
+      try {
+        return getVarLong();
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public boolean takesMethodKeys() {
+      return true;
+    }
+
+    public Object readValue(Class<?> type) {
+      try {
+        byte tag = buffer.get();
+        if (tag == NULL) {
+          return null;
+        }
+        if (tag < 0 || tag >= decoders.length || decoders[tag] == null) {
+          throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+        return convert(decoders[tag].read(this, tag, type), type);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public Object[] readValues(Class<?>[] types) {
+      int count = readCount();
+      if (count != types.length) {
+        throw new IllegalArgumentException(count + " values where " + types.length + " are declared");
+      }
+      Object[] values = new Object[count];
+      for (int i = 0; i < count; i++) {
+        values[i] = readValue(types[i]);
+      }
+      return values;
+    }
+
+    private int readCount() {
+      try {
+        return getLength();
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public void readCount(int count) {
+      int written = readCount();
+      if (written != count) {
+        throw new IllegalArgumentException(written + " values where " + count + " are declared");
+      }
+    }
+
+    // Whether the next value has the tag, which is then skipped. A value of
+    // another tag is read by readValue() instead, and converted.
+    private boolean takeTag(byte tag) {
+      if (buffer.hasRemaining() && buffer.get(buffer.position()) == tag) {
+        buffer.get();
+        return true;
+      }
+      return false;
+    }
+
+    private Object readPrimitive(Class<?> type) {
+      Object value = readValue(type);
+      if (value == null) {
+        throw new IllegalArgumentException("A null where a " + type.getName() + " is declared");
+      }
+      return value;
+    }
+
+    public boolean readBoolean() {
+      if (takeTag(TRUE)) {
+        return true;
+      }
+      return takeTag(FALSE) ? false : (Boolean) readPrimitive(boolean.class);
+    }
+
+    public byte readByte() {
+      try {
+        return takeTag(BYTE) ? buffer.get() : (Byte) readPrimitive(byte.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public short readShort() {
+      try {
+        return takeTag(SHORT) ? (short) unzigzag(getVarLong()) : (Short) readPrimitive(short.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public char readChar() {
+      try {
+        return takeTag(CHAR) ? (char) getVarLong() : (Character) readPrimitive(char.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public int readInt() {
+      try {
+        return takeTag(INT) ? (int) unzigzag(getVarLong()) : (Integer) readPrimitive(int.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public long readLong() {
+      try {
+        return takeTag(LONG) ? unzigzag(getVarLong()) : (Long) readPrimitive(long.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public float readFloat() {
+      try {
+        return takeTag(FLOAT) ? Float.intBitsToFloat(buffer.getInt()) : (Float) readPrimitive(float.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public double readDouble() {
+      try {
+        return takeTag(DOUBLE) ? Double.longBitsToDouble(buffer.getLong()) : (Double) readPrimitive(double.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    public String readStringValue() {
+      try {
+        if (takeTag(STRING)) {
+          return getString();
+        }
+        return takeTag(NULL) ? null : (String) readValue(String.class);
+      } catch (BufferUnderflowException e) {
+        throw malformed(e);
+      }
+    }
+
+    // A value of another type than declared, such as an int for a long, is
+    // converted the way Gson would parse its JSON
+    private static Object convert(Object value, Class<?> type) {
+      if (value == null || type.isInstance(value) || value.getClass() == boxes.get(type)) {
+        return value;
+      }
+      return gson.fromJson(gson.toJsonTree(value), type);
+    }
+  }
+}
@@ -18,20 +18,88 @@ package rpc.communication;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
+import Waterloo.MultiSocket.BufferPool;
+import Waterloo.MultiSocket.BufferPoolStatistics;
+import Waterloo.MultiSocket.ConnectionHandler;
 import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.MultiSocketClient;
+import Waterloo.MultiSocket.MultiSocketOptions;
+import Waterloo.MultiSocket.ReactorStatistics;
+import Waterloo.MultiSocket.SocketStatistics;
+import Waterloo.MultiSocket.UnixDomainSockets;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
+import rpc.config.Constants;
 import specrpc.common.Location;
+import specrpc.common.RpcConfig;
 
 public class Communication {
 
   private final IConnection connection;
+  // The connection if it is a stream of a session, which takes the messages
+  // encoded with room for the header of its frames
+  private final SessionStream sessionStream;
+  // Codec of the messages sent. It starts as the request codec and becomes the
+  // codec of the last received message, so that a server replies in the codec
+  // of the request
+  private volatile MessageCodec codec;
+  // Codec of the first message sent, the request of a client
+  private final MessageCodec requestCodec;
+  // The first message, read by accept(), until it is read from here
+  private ByteBuffer firstMessage;
 
   public Communication(IConnection connection) {
+    this(connection, MessageCodecs.getRequestCodec());
+  }
+
+  private Communication(IConnection connection, MessageCodec requestCodec) {
     this.connection = connection;
+    this.sessionStream = connection instanceof SessionStream ? (SessionStream) connection : null;
+    this.codec = requestCodec;
+    this.requestCodec = requestCodec;
+    this.firstMessage = null;
+  }
+
+  private Communication(IConnection connection, ByteBuffer firstMessage) {
+    this(connection);
+    this.firstMessage = firstMessage;
+  }
+
+  /*
+   * Returns the communication of a connection accepted by a server, or null if
+   * the client opened a session on the connection. The session then hands the
+   * connection of each of its requests to the handler.
+   */
+  public static Communication accept(IConnection connection, ConnectionHandler sessionHandler)
+      throws InterruptedException, ConnectionCloseException {
+    ByteBuffer message = connection.readMessageBuffer();
+    if (Session.isSessionMessage(message)) {
+      Session.accept(connection, message, sessionHandler);
+      return null;
+    }
+    return new Communication(connection, message);
+  }
+
+  private ByteBuffer readMessageBuffer() throws InterruptedException, ConnectionCloseException {
+    ByteBuffer message = this.firstMessage;
+    if (message != null) {
+      this.firstMessage = null;
+      return message;
+    }
+    return this.connection.readMessageBuffer();
   }
 
   // TODO: disconnect does not need to throw close Exception if it is already closed.
@@ -39,15 +107,114 @@ public class Communication {
     this.connection.close();
   }
 
+  // Sends the last message of the connection, in the same frame as the close
+  // where the transport allows it
+  public void sendAndDisconnect(String msg) throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.connection.writeMessageAndClose(msg);
+  }
+
   public void send(String msg) throws IOException, MultiSocketValidException, ConnectionCloseException {
     this.connection.writeMessage(msg);
   }
 
+  // HIGH messages, such as speculation resolutions, go ahead of the bulk
+  // messages of the other connections to the same server
+  public void send(String msg, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.connection.writeMessage(msg, priority);
+  }
+
   public String getMessage() throws InterruptedException, ConnectionCloseException {
+    if (this.firstMessage != null) {
+      return StandardCharsets.UTF_8.decode(readMessageBuffer()).toString();
+    }
     return this.connection.readMessage();
   }
 
+  // Sends the remaining bytes of msg without copying them
+  public void send(ByteBuffer msg) throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.connection.writeMessage(msg);
+  }
+
+  public void send(ByteBuffer msg, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.connection.writeMessage(msg, priority);
+  }
+
+  public void send(Message msg) throws IOException, MultiSocketValidException, ConnectionCloseException {
+    send(msg, MessagePriority.NORMAL);
+  }
+
+  public void send(Message msg, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    if (this.sessionStream != null) {
+      this.sessionStream.writeFramed(this.codec.encode(msg, Session.HEADER_SIZE), priority);
+    } else {
+      this.connection.writeMessage(this.codec.encode(msg), priority);
+    }
+  }
+
+  public void sendAndDisconnect(Message msg) throws IOException, MultiSocketValidException, ConnectionCloseException {
+    if (this.sessionStream != null) {
+      this.sessionStream.writeFramedAndClose(this.codec.encode(msg, Session.HEADER_SIZE));
+    } else {
+      this.connection.writeMessageAndClose(this.codec.encode(msg));
+    }
+  }
+
+  // Returns a reader of the next message, in whichever codec the peer sent it
+  public MessageReader getMessageReader() throws InterruptedException, ConnectionCloseException {
+    return getMessageReader(readMessageBuffer());
+  }
+
+  // Returns a reader of a message pushed to the message listener
+  public MessageReader getMessageReader(ByteBuffer msg) {
+    MessageCodec msgCodec = MessageCodecs.forMessage(msg);
+    this.codec = msgCodec;
+    return msgCodec.newReader(msg);
+  }
+
+  // Codec of the last received message, or of the request before any
+  public MessageCodec getCodec() {
+    return this.codec;
+  }
+
+  // Sends the following messages in the codec
+  public void setCodec(MessageCodec codec) {
+    this.codec = codec;
+  }
+
+  // Whether the server replied in JSON to a request in another codec, as it
+  // does to a codec it does not take or cannot read (see MessageCodecs)
+  public boolean isCodecRejected() {
+    return this.codec == MessageCodecs.JSON && this.requestCodec != MessageCodecs.JSON;
+  }
+
+  // Returns the next message as a read-only buffer
+  public ByteBuffer getMessageBuffer() throws InterruptedException, ConnectionCloseException {
+    return readMessageBuffer();
+  }
+
+  // Pushes the following messages to the listener instead of getMessage()
+  public void setMessageListener(MessageListener listener, Executor executor) {
+    this.connection.setMessageListener(listener, executor);
+  }
+
+  // Whether this is the connection of one RPC in a session, whose messages the
+  // session's I/O thread delivers, so that no thread has to wait for them
+  public boolean isSessionStream() {
+    return this.sessionStream != null;
+  }
+
   private static MultiSocketClient clientSocket = null;
+  // Tried in order before the MultiSocket client
+  private static final List<Transport> transports = new CopyOnWriteArrayList<Transport>();
+  // The session to each server, if the RPCs share one. A session is in the map
+  // while it connects, so that a server slow to connect to only holds up the
+  // RPCs to it.
+  private static volatile boolean sessionEnabled = Boolean.parseBoolean(Constants.DEFAULT_RPC_CLIENT_SESSION_ENABLED);
+  private static final ConcurrentHashMap<Location, CompletableFuture<Session>> sessions =
+      new ConcurrentHashMap<Location, CompletableFuture<Session>>();
 
   public static synchronized void initClientCommunication() throws IOException {
     if (clientSocket == null) {
@@ -55,20 +222,229 @@ public class Communication {
     }
   }
 
+  public static synchronized void initClientCommunication(int reactorNum) throws IOException {
+    if (clientSocket == null) {
+      clientSocket = new MultiSocketClient(reactorNum);
+    }
+  }
+
+  public static synchronized void initClientCommunication(MultiSocketOptions options) throws IOException {
+    if (clientSocket == null) {
+      clientSocket = new MultiSocketClient(options);
+    }
+  }
+
+  // Sets up the client side from config, including the transports it enables
+  public static synchronized void initClientCommunication(RpcConfig config) throws IOException {
+    initClientCommunication(getSocketOptions(config, false));
+    String codecName = config
+        .get(Constants.RPC_CLIENT_REQUEST_CODEC_PROPERTY, Constants.DEFAULT_RPC_CLIENT_REQUEST_CODEC).trim();
+    MessageCodec codec = MessageCodecs.forName(codecName);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown message codec " + codecName);
+    }
+    MessageCodecs.setRequestCodec(codec);
+    setSessionEnabled(Boolean.parseBoolean(
+        config.get(Constants.RPC_CLIENT_SESSION_ENABLED_PROPERTY, Constants.DEFAULT_RPC_CLIENT_SESSION_ENABLED)));
+    if (Boolean.parseBoolean(config.get(Constants.RPC_CLIENT_TRANSPORT_LOOPBACK_PROPERTY,
+        Constants.DEFAULT_RPC_CLIENT_TRANSPORT_LOOPBACK))) {
+      addTransport(LoopbackTransport.getInstance());
+    }
+    ShmTransport shmTransport = ShmTransport.getInstance(config);
+    if (shmTransport.hasLocations()) {
+      addTransport(shmTransport);
+    }
+  }
+
+  public static void setSessionEnabled(boolean isEnabled) {
+    sessionEnabled = isEnabled;
+  }
+
+  public static boolean isSessionEnabled() {
+    return sessionEnabled;
+  }
+
+  public static synchronized void addTransport(Transport transport) {
+    if (!transports.contains(transport)) {
+      transports.add(transport);
+    }
+  }
+
+  public static synchronized void removeTransport(Transport transport) {
+    transports.remove(transport);
+  }
+
+  // Sets the codecs the servers of this process take requests in from config
+  public static void initServerCodecs(RpcConfig config) {
+    List<MessageCodec> codecs = new ArrayList<MessageCodec>();
+    for (String codecName : config
+        .get(Constants.RPC_HOST_REQUEST_CODECS_PROPERTY, Constants.DEFAULT_RPC_HOST_REQUEST_CODECS).split(",")) {
+      MessageCodec codec = MessageCodecs.forName(codecName.trim());
+      if (codec == null) {
+        throw new IllegalArgumentException("Unknown message codec " + codecName.trim());
+      }
+      codecs.add(codec);
+    }
+    MessageCodecs.setAcceptedCodecs(codecs);
+  }
+
+  // Reads the socket options of a server (isHost) or of the client from config
+  public static MultiSocketOptions getSocketOptions(RpcConfig config, boolean isHost) {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setReactorNum(Integer.parseInt(isHost
+        ? config.get(Constants.RPC_HOST_REACTOR_NUM_PROPERTY, Constants.DEFAULT_RPC_HOST_REACTOR_NUM)
+        : config.get(Constants.RPC_CLIENT_REACTOR_NUM_PROPERTY, Constants.DEFAULT_RPC_CLIENT_REACTOR_NUM)));
+    options.setMaxMessageSize(Integer
+        .parseInt(config.get(Constants.RPC_MESSAGE_MAX_SIZE_PROPERTY, Constants.DEFAULT_RPC_MESSAGE_MAX_SIZE)));
+    options.setCoalescingWindowMicros(Long.parseLong(
+        config.get(Constants.RPC_WRITE_COALESCING_WINDOW_PROPERTY, Constants.DEFAULT_RPC_WRITE_COALESCING_WINDOW)));
+    options.setChannelWindow(Integer
+        .parseInt(config.get(Constants.RPC_FLOW_CHANNEL_WINDOW_PROPERTY, Constants.DEFAULT_RPC_FLOW_CHANNEL_WINDOW)));
+    options.setSocketWindow(Integer
+        .parseInt(config.get(Constants.RPC_FLOW_SOCKET_WINDOW_PROPERTY, Constants.DEFAULT_RPC_FLOW_SOCKET_WINDOW)));
+    options.setCreditPolicy(MultiSocketOptions.CreditPolicy.valueOf(config
+        .get(Constants.RPC_FLOW_CREDIT_POLICY_PROPERTY, Constants.DEFAULT_RPC_FLOW_CREDIT_POLICY).trim().toUpperCase()));
+    options.setPollPolicy(MultiSocketOptions.PollPolicy.valueOf(
+        config.get(Constants.RPC_POLL_POLICY_PROPERTY, Constants.DEFAULT_RPC_POLL_POLICY).trim().toUpperCase()));
+    options.setSpinMicros(
+        Long.parseLong(config.get(Constants.RPC_POLL_SPIN_PROPERTY, Constants.DEFAULT_RPC_POLL_SPIN).trim()));
+    options.setCompressionThreshold(Integer.parseInt(config
+        .get(Constants.RPC_COMPRESSION_THRESHOLD_PROPERTY, Constants.DEFAULT_RPC_COMPRESSION_THRESHOLD).trim()));
+    options.setCompressionLevel(Integer.parseInt(
+        config.get(Constants.RPC_COMPRESSION_LEVEL_PROPERTY, Constants.DEFAULT_RPC_COMPRESSION_LEVEL).trim()));
+    if (!isHost) {
+      options.setStripeNum(Integer.parseInt(
+          config.get(Constants.RPC_CLIENT_SOCKET_STRIPE_NUM_PROPERTY, Constants.DEFAULT_RPC_CLIENT_SOCKET_STRIPE_NUM)));
+      options.setStripePolicy(MultiSocketOptions.StripePolicy.valueOf(config
+          .get(Constants.RPC_CLIENT_SOCKET_STRIPE_POLICY_PROPERTY, Constants.DEFAULT_RPC_CLIENT_SOCKET_STRIPE_POLICY)
+          .trim().toUpperCase()));
+    }
+    return options;
+  }
+
+  public static synchronized List<ReactorStatistics> getReactorStatistics() {
+    if (clientSocket == null) {
+      return null;
+    }
+    return clientSocket.getReactorStatistics();
+  }
+
+  public static synchronized List<SocketStatistics> getSocketStatistics() {
+    if (clientSocket == null) {
+      return null;
+    }
+    return clientSocket.getSocketStatistics();
+  }
+
+  // Direct buffers the sockets of this process borrow for their I/O
+  public static BufferPoolStatistics getBufferPoolStatistics() {
+    return BufferPool.getShared().getStatistics();
+  }
+
+  // The socket address a MultiSocket uses for the location
+  public static SocketAddress getSocketAddress(Location location) throws IOException {
+    if (location.isUnix()) {
+      return UnixDomainSockets.address(location.path);
+    }
+    return new InetSocketAddress(location.hostname, location.port);
+  }
+
   public static Communication connectTo(Location serverLocation) throws IOException, InterruptedException,
       ExecutionException, MultiSocketValidException, ConnectionCloseException {
-    IConnection connection = clientSocket
-        .connect(new InetSocketAddress(serverLocation.hostname, serverLocation.port))
-        .get();
+    for (Transport transport : transports) {
+      IConnection connection = transport.connect(serverLocation);
+      if (connection != null) {
+        return new Communication(connection, MessageCodecs.getRequestCodec(serverLocation));
+      }
+    }
+
+    if (sessionEnabled) {
+      IConnection stream = openSessionStream(serverLocation);
+      return stream == null ? null : new Communication(stream, MessageCodecs.getRequestCodec(serverLocation));
+    }
+
+    IConnection connection = clientSocket.connect(getSocketAddress(serverLocation)).get();
 
     if (connection == null) {
       return null;
     }
 
-    return new Communication(connection);
+    return new Communication(connection, MessageCodecs.getRequestCodec(serverLocation));
+  }
+
+  // Opens the connection of an RPC in the session to the server, and the
+  // session first if there is none or it has closed
+  private static IConnection openSessionStream(Location serverLocation)
+      throws IOException, InterruptedException, ExecutionException, MultiSocketValidException,
+      ConnectionCloseException {
+    while (true) {
+      CompletableFuture<Session> pending = sessions.get(serverLocation);
+      if (pending == null) {
+        CompletableFuture<Session> opening = new CompletableFuture<Session>();
+        pending = sessions.putIfAbsent(serverLocation, opening);
+        if (pending == null) {
+          pending = opening;
+          openSession(serverLocation, opening);
+        }
+      }
+      // Waits for the session if another RPC is connecting it
+      Session session = pending.get();
+      if (session == null) {
+        return null;
+      }
+      if (!session.isOpen()) {
+        sessions.remove(serverLocation, pending);
+        continue;
+      }
+      IConnection stream = session.openStream();
+      if (stream != null) {
+        return stream;
+      }
+      // The session closed meanwhile, so opens another one
+    }
+  }
+
+  // Connects the session, which the RPCs waiting for it get, or the failure
+  private static void openSession(Location serverLocation, CompletableFuture<Session> opening) throws IOException,
+      InterruptedException, ExecutionException, MultiSocketValidException, ConnectionCloseException {
+    Session session = null;
+    try {
+      IConnection connection = clientSocket.connect(getSocketAddress(serverLocation)).get();
+      if (connection != null) {
+        session = Session.open(connection);
+      }
+    } catch (Exception e) {
+      opening.completeExceptionally(e);
+      throw e;
+    } finally {
+      if (session == null) {
+        sessions.remove(serverLocation, opening);
+      }
+      opening.complete(session);
+    }
+  }
+
+  // Sessions to the servers, for monitoring
+  public static List<Session> getSessions() {
+    List<Session> opened = new ArrayList<Session>();
+    for (CompletableFuture<Session> pending : sessions.values()) {
+      Session session = pending.getNow(null);
+      if (session != null) {
+        opened.add(session);
+      }
+    }
+    return opened;
   }
 
   public static synchronized void shutdown() throws IOException {
+    for (Session session : getSessions()) {
+      session.close();
+    }
+    sessions.clear();
+    for (Transport transport : transports) {
+      transport.close();
+    }
+    transports.clear();
     if (clientSocket != null) {
       clientSocket.close();
       clientSocket = null;
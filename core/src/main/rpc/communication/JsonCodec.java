@@ -0,0 +1,277 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+
+import specrpc.common.RpcSignature;
+
+/*
+ * The original encoding of the messages: a JSON array of their fields, or the
+ * field alone for messages of one field. Kept for the peers that know no other
+ * codec. The Gson instance is shared, as it is thread-safe.
+ */
+public class JsonCodec implements MessageCodec {
+
+  public static final String NAME = "json";
+
+  private static final Gson gson = new Gson();
+
+  public String getName() {
+    return NAME;
+  }
+
+  // Messages of any other codec start with a byte that cannot start JSON
+  public boolean accepts(ByteBuffer message) {
+    return true;
+  }
+
+  public ByteBuffer encode(Message message) {
+    return StandardCharsets.UTF_8.encode(toJson(message));
+  }
+
+  // The JSON is encoded as UTF-8 after the headroom
+  public ByteBuffer encode(Message message, int headroom) {
+    byte[] json = toJson(message).getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[headroom + json.length];
+    System.arraycopy(json, 0, bytes, headroom, json.length);
+    return ByteBuffer.wrap(bytes, headroom, json.length);
+  }
+
+  public String toJson(Message message) {
+    Writer writer = new Writer();
+    message.write(writer);
+    return gson.toJson(writer.fields.size() == 1 ? writer.fields.get(0) : writer.fields);
+  }
+
+  public MessageReader newReader(ByteBuffer message) {
+    return newReader(StandardCharsets.UTF_8.decode(message.duplicate()).toString());
+  }
+
+  public MessageReader newReader(String message) {
+    JsonElement root = new JsonParser().parse(message);
+    if (root.isJsonArray()) {
+      return new Reader(root.getAsJsonArray());
+    }
+    JsonArray fields = new JsonArray();
+    fields.add(root);
+    return new Reader(fields);
+  }
+
+  private static class Writer implements MessageWriter {
+    private final JsonArray fields = new JsonArray();
+    // The array of the values a writeCount() started, and how many are left
+    private JsonArray values = null;
+    private int remaining = 0;
+
+    // Adds a value to the array of the values, or as a field after them
+    private void add(JsonElement value) {
+      if (remaining > 0) {
+        values.add(value);
+        remaining--;
+      } else {
+        fields.add(value);
+      }
+    }
+
+    public void writeEnum(Enum<?> value) {
+      fields.add(gson.toJsonTree(value));
+    }
+
+    public void writeString(String value) {
+      fields.add(gson.toJsonTree(value));
+    }
+
+    public void writeSignature(RpcSignature signature) {
+      fields.add(gson.toJsonTree(signature.toArray()));
+    }
+
+    // Keeps the format the peers knowing only JSON expect
+    public boolean writeMethodKey(long key) {
+      return false;
+    }
+
+    public void writeValue(Object value) {
+      add(gson.toJsonTree(value));
+    }
+
+    public void writeValues(Object[] values) {
+      fields.add(gson.toJsonTree(values));
+    }
+
+    public void writeCount(int count) {
+      values = new JsonArray();
+      remaining = count;
+      fields.add(values);
+    }
+
+    public void writeBoolean(boolean value) {
+      add(new JsonPrimitive(value));
+    }
+
+    public void writeByte(byte value) {
+      add(new JsonPrimitive(value));
+    }
+
+    public void writeShort(short value) {
+      add(new JsonPrimitive(value));
+    }
+
+    // Gson writes a char as a string of it
+    public void writeChar(char value) {
+      add(new JsonPrimitive(String.valueOf(value)));
+    }
+
+    public void writeInt(int value) {
+      add(new JsonPrimitive(value));
+    }
+
+    public void writeLong(long value) {
+      add(new JsonPrimitive(value));
+    }
+
+    public void writeFloat(float value) {
+      add(new JsonPrimitive(value));
+    }
+
+    public void writeDouble(double value) {
+      add(new JsonPrimitive(value));
+    }
+  }
+
+  private static class Reader implements MessageReader {
+    private final JsonArray fields;
+    private int next = 0;
+    // The array of the values a readCount() started, and the next one of them
+    private JsonArray values = null;
+    private int nextValue = 0;
+
+    // The next value of the array of the values, or the next field after them
+    private JsonElement value() {
+      if (values != null && nextValue < values.size()) {
+        return values.get(nextValue++);
+      }
+      return fields.get(next++);
+    }
+
+    // Fails as the Gson parsing of a primitive type would
+    private JsonPrimitive primitive(Class<?> type) {
+      JsonElement value = value();
+      if (!value.isJsonPrimitive()) {
+        throw new JsonSyntaxException("Expected a " + type.getName() + " but was " + value);
+      }
+      return value.getAsJsonPrimitive();
+    }
+
+    Reader(JsonArray fields) {
+      this.fields = fields;
+    }
+
+    public <E extends Enum<E>> E readEnum(Class<E> type) {
+      return gson.fromJson(fields.get(next++), type);
+    }
+
+    public String readString() {
+      return gson.fromJson(fields.get(next++), String.class);
+    }
+
+    public RpcSignature readSignature() throws ClassNotFoundException {
+      return new RpcSignature(fields.get(next++));
+    }
+
+    public long readMethodKey() {
+      return 0;
+    }
+
+    public boolean takesMethodKeys() {
+      return false;
+    }
+
+    public Object readValue(Class<?> type) {
+      JsonElement field = value();
+      // The return value of a void method is null, which Gson cannot read as void
+      return type == void.class ? null : gson.fromJson(field, type);
+    }
+
+    public Object[] readValues(Class<?>[] types) {
+      JsonArray array = fields.get(next++).getAsJsonArray();
+      Object[] values = new Object[types.length];
+      for (int i = 0; i < types.length; i++) {
+        values[i] = gson.fromJson(array.get(i), types[i]);
+      }
+      return values;
+    }
+
+    public void readCount(int count) {
+      JsonArray array = fields.get(next++).getAsJsonArray();
+      if (array.size() != count) {
+        throw new IllegalArgumentException(array.size() + " values where " + count + " are declared");
+      }
+      values = array;
+      nextValue = 0;
+    }
+
+    public boolean readBoolean() {
+      return primitive(boolean.class).getAsBoolean();
+    }
+
+    public byte readByte() {
+      return primitive(byte.class).getAsByte();
+    }
+
+    public short readShort() {
+      return primitive(short.class).getAsShort();
+    }
+
+    public char readChar() {
+      String value = primitive(char.class).getAsString();
+      if (value.length() != 1) {
+        throw new JsonSyntaxException("Expected a char but was " + value);
+      }
+      return value.charAt(0);
+    }
+
+    public int readInt() {
+      return primitive(int.class).getAsInt();
+    }
+
+    public long readLong() {
+      return primitive(long.class).getAsLong();
+    }
+
+    public float readFloat() {
+      return primitive(float.class).getAsFloat();
+    }
+
+    public double readDouble() {
+      return primitive(double.class).getAsDouble();
+    }
+
+    public String readStringValue() {
+      JsonElement value = value();
+      return value.isJsonNull() ? null : value.getAsString();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+/*
+ * One end of an in-memory connection made by LoopbackTransport. A written
+ * message goes straight into the queue of the peer end, so it is neither
+ * framed nor copied.
+ */
+class LoopbackConnection extends QueuedConnection {
+
+  private LoopbackConnection peer;
+
+  void setPeer(LoopbackConnection peer) {
+    this.peer = peer;
+  }
+
+  @Override
+  protected void sendMessage(Object message) {
+    peer.deliverMessage(message);
+  }
+
+  @Override
+  protected void sendClose(boolean closed) {
+    peer.remoteClose();
+  }
+}
@@ -0,0 +1,81 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import specrpc.common.Location;
+
+/*
+ * Connects the clients to the RPC servers running in the same JVM without
+ * going through sockets. A server binds its location while it runs, and a
+ * connection to that location hands the server end of a LoopbackConnection
+ * pair to the server's ConnectionHandler, as an accepted socket would.
+ *
+ * Locations are matched by their host name and port as the servers register
+ * them, which is also what the clients look up in the signature directory.
+ */
+public class LoopbackTransport implements Transport {
+
+  private static final LoopbackTransport instance = new LoopbackTransport();
+
+  private final ConcurrentHashMap<String, ConnectionHandler> servers;
+
+  private LoopbackTransport() {
+    servers = new ConcurrentHashMap<String, ConnectionHandler>();
+  }
+
+  public static LoopbackTransport getInstance() {
+    return instance;
+  }
+
+  @Override
+  public void bind(Location serverLocation, ConnectionHandler handler) {
+    servers.put(serverLocation.toString(), handler);
+  }
+
+  @Override
+  public void unbind(Location serverLocation, ConnectionHandler handler) {
+    servers.remove(serverLocation.toString(), handler);
+  }
+
+  // The connections are left to their users, as they close with the servers
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public IConnection connect(Location serverLocation) {
+    ConnectionHandler handler = servers.get(serverLocation.toString());
+    if (handler == null) {
+      return null;
+    }
+    LoopbackConnection clientEnd = new LoopbackConnection();
+    LoopbackConnection serverEnd = new LoopbackConnection();
+    clientEnd.setPeer(serverEnd);
+    serverEnd.setPeer(clientEnd);
+    try {
+      handler.handle(serverEnd);
+    } catch (RejectedExecutionException e) {
+      // The server is shutting down, so leaves it to TCP to report the failure
+      return null;
+    }
+    return clientEnd;
+  }
+}
@@ -18,5 +18,6 @@ package rpc.communication;
 
 public interface Message {
 
-  public String serialize();
+  // Writes the fields of the message, which the receiver reads back in the same order
+  public void write(MessageWriter writer);
 }
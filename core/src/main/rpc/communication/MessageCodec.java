@@ -0,0 +1,43 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Turns messages into the bytes sent on a connection and back. The sender of
+ * a request picks the codec, and the receiver tells the codec of a message by
+ * its first bytes (see MessageCodecs), then replies with the same one, or
+ * with JSON if it does not take the codec. The client then falls back to JSON.
+ */
+public interface MessageCodec {
+  // Name used in the configuration
+  public String getName();
+
+  // Returns true if the message was encoded by this codec
+  public boolean accepts(ByteBuffer message);
+
+  // Encodes the message into a new buffer, which is sent without copying
+  public ByteBuffer encode(Message message);
+
+  // Same, with headroom free bytes in front of the position of the buffer, for
+  // the sender to write a header there rather than copy the message
+  public ByteBuffer encode(Message message, int headroom);
+
+  // Reads the remaining bytes of the message, which must not change meanwhile
+  public MessageReader newReader(ByteBuffer message);
+}
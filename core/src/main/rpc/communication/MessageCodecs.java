@@ -0,0 +1,118 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import specrpc.common.Location;
+
+/*
+ * The codecs a process knows. Received messages are decoded by the first
+ * registered codec that accepts them, or else as JSON, so every process reads
+ * every codec it knows whatever codec it sends with.
+ *
+ * Clients send a request in the request codec (rpc.client.request.codec),
+ * and a server replies in the codec of the request it read. A server that does
+ * not take the codec (rpc.host.request.codecs) replies in JSON instead, as does
+ * a server that only knows JSON and could not read the request. A reply in
+ * JSON to a request in another codec thus tells the client to send the
+ * request again in JSON, and to send in JSON to that server from then on.
+ */
+public class MessageCodecs {
+
+  public static final JsonCodec JSON = new JsonCodec();
+  public static final BinaryCodec BINARY = new BinaryCodec();
+
+  private static final List<MessageCodec> codecs = new CopyOnWriteArrayList<MessageCodec>();
+  // Codec of the requests sent by the clients of this process
+  private static volatile MessageCodec requestCodec = BINARY;
+  // Codecs the servers of this process take requests in, all if null. JSON is
+  // always taken, as the codec the clients fall back to.
+  private static volatile Set<MessageCodec> acceptedCodecs = null;
+  // Servers that did not take the request codec, which get requests in JSON
+  private static final Set<Location> jsonServers = ConcurrentHashMap.newKeySet();
+
+  static {
+    codecs.add(BINARY);
+  }
+
+  // Adds a codec, whose messages must start with bytes that none of the other
+  // codecs accepts
+  public static void register(MessageCodec codec) {
+    if (forName(codec.getName()) != null) {
+      throw new IllegalArgumentException("Codec " + codec.getName() + " is already registered");
+    }
+    codecs.add(codec);
+  }
+
+  // Returns null if no codec has the name
+  public static MessageCodec forName(String name) {
+    if (JSON.getName().equalsIgnoreCase(name)) {
+      return JSON;
+    }
+    for (MessageCodec codec : codecs) {
+      if (codec.getName().equalsIgnoreCase(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  public static MessageCodec forMessage(ByteBuffer message) {
+    for (MessageCodec codec : codecs) {
+      if (codec.accepts(message)) {
+        return codec;
+      }
+    }
+    return JSON;
+  }
+
+  public static MessageCodec getRequestCodec() {
+    return requestCodec;
+  }
+
+  public static void setRequestCodec(MessageCodec codec) {
+    requestCodec = codec;
+  }
+
+  // Codec of the requests to the server
+  public static MessageCodec getRequestCodec(Location serverLocation) {
+    return jsonServers.contains(serverLocation) ? JSON : requestCodec;
+  }
+
+  // Sends the requests to the server in JSON, which it replied in to a request
+  // in another codec
+  public static void fallBackToJson(Location serverLocation) {
+    jsonServers.add(serverLocation);
+  }
+
+  public static boolean isAccepted(MessageCodec codec) {
+    Set<MessageCodec> accepted = acceptedCodecs;
+    return codec == JSON || accepted == null || accepted.contains(codec);
+  }
+
+  // Takes requests in the codecs and JSON only, or in every codec if null
+  public static void setAcceptedCodecs(Collection<MessageCodec> codecs) {
+    acceptedCodecs = codecs == null ? null : new HashSet<MessageCodec>(codecs);
+  }
+}
@@ -0,0 +1,69 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import specrpc.common.RpcSignature;
+
+/*
+ * Reads the fields of a received message in the order they were written.
+ * Malformed messages fail with a JsonSyntaxException from the JSON codec, or
+ * an IllegalArgumentException from the others.
+ */
+public interface MessageReader {
+  public <E extends Enum<E>> E readEnum(Class<E> type);
+
+  public String readString();
+
+  public RpcSignature readSignature() throws ClassNotFoundException;
+
+  // Returns 0 if no key was written, or if the codec does not carry keys
+  public long readMethodKey();
+
+  // Whether the peer can send method keys in this codec
+  public boolean takesMethodKeys();
+
+  // Converts the value to the declared type, as the Gson parsing did
+  public Object readValue(Class<?> type);
+
+  public Object[] readValues(Class<?>[] types);
+
+  // Starts reading a list of values, read next one by one, that
+  // MessageWriter.writeCount() started. Fails if the list has another count.
+  public void readCount(int count);
+
+  // Values of the primitive types, converted as readValue() converts them.
+  // A null fails as a malformed message does.
+  public boolean readBoolean();
+
+  public byte readByte();
+
+  public short readShort();
+
+  public char readChar();
+
+  public int readInt();
+
+  public long readLong();
+
+  public float readFloat();
+
+  public double readDouble();
+
+  // A String value, which may be null, as writeValue() writes it. Unlike
+  // readString(), which reads a string field.
+  public String readStringValue();
+}
@@ -0,0 +1,61 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import specrpc.common.RpcSignature;
+
+/*
+ * Writes the fields of a message, in order, in the format of a MessageCodec.
+ * The reader of the message reads the same fields in the same order.
+ */
+public interface MessageWriter {
+  public void writeEnum(Enum<?> value);
+
+  public void writeString(String value);
+
+  public void writeSignature(RpcSignature signature);
+
+  // Writes the key of a method on the server (see MethodTable), 0 if unknown.
+  // Returns false if the codec does not carry keys, so the signature must follow.
+  public boolean writeMethodKey(long key);
+
+  // An argument or a return value, which may be null
+  public void writeValue(Object value);
+
+  public void writeValues(Object[] values);
+
+  // Starts a list of the count values written next, as writeValues() writes
+  // an array, such as the arguments an ArgumentWriter writes one by one
+  public void writeCount(int count);
+
+  // Values of the primitive types, written as writeValue() writes their boxes
+  public void writeBoolean(boolean value);
+
+  public void writeByte(byte value);
+
+  public void writeShort(short value);
+
+  public void writeChar(char value);
+
+  public void writeInt(int value);
+
+  public void writeLong(long value);
+
+  public void writeFloat(float value);
+
+  public void writeDouble(double value);
+}
@@ -0,0 +1,313 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Waterloo.MultiSocket.CreditListener;
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
+import Waterloo.MultiSocket.MessagePriority;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+
+/*
+ * Receiving side of the connections of the transports other than MultiSocket.
+ * Received messages wait in a lock-free queue for readMessage() or the message
+ * listener, as Strings or ByteBuffers. A String is only encoded if the reader
+ * asks for a buffer.
+ *
+ * Follows the semantics of a MultiSocket connection: messages arrive in order,
+ * the reader gets the messages sent before the peer closed the connection, and
+ * writing after closing fails. Subclasses send the messages, and tell the
+ * connection about the messages and the close of the peer.
+ *
+ * Readers wait on a condition rather than the monitor, so that a virtual
+ * thread waiting for a message does not pin its carrier thread.
+ */
+abstract class QueuedConnection implements IConnection {
+
+  private enum State {
+    NORMAL, RECVED_CLOSE, SENT_CLOSE, CLOSED
+  }
+
+  private final ConcurrentLinkedQueue<Object> readQueue; // Strings and ByteBuffers
+  private volatile State state = State.NORMAL; // Changed with the lock held
+  private volatile int waiters = 0; // Readers waiting on the lock
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition(); // A message or the close arrived
+
+  private volatile MessageListener listener = null;
+  private volatile Executor listenerExecutor = null;
+  private final AtomicBoolean dispatching = new AtomicBoolean(false);
+  private volatile boolean closedByPeer = false;
+  private boolean closeNotified = false; // Only used by the dispatching thread
+
+  private final Runnable dispatchTask = new Runnable() {
+    public void run() {
+      dispatch();
+    }
+  };
+
+  QueuedConnection() {
+    readQueue = new ConcurrentLinkedQueue<Object>();
+  }
+
+  // Sends a String or the remaining bytes of a ByteBuffer to the peer
+  protected abstract void sendMessage(Object message) throws IOException, ConnectionCloseException;
+
+  // The priority only matters to the subclasses whose connections share the way
+  // to the peer, such as the streams of a session.
+  protected void sendMessage(Object message, MessagePriority priority) throws IOException, ConnectionCloseException {
+    sendMessage(message);
+  }
+
+  // Tells the peer that this end is closed, which closed the connection if the
+  // peer closed it first
+  protected abstract void sendClose(boolean closed) throws IOException;
+
+  // Sends the last message of this end and the close. The subclasses that can
+  // tell the peer both at once override it.
+  protected void sendMessageAndClose(Object message, boolean closed) throws IOException, ConnectionCloseException {
+    sendMessage(message);
+    sendClose(closed);
+  }
+
+  public String readMessage() throws InterruptedException, ConnectionCloseException {
+    return decode(takeMessage());
+  }
+
+  public ByteBuffer readMessageBuffer() throws InterruptedException, ConnectionCloseException {
+    return encode(takeMessage());
+  }
+
+  private static String decode(Object message) {
+    if (message instanceof String) {
+      return (String) message;
+    }
+    return StandardCharsets.UTF_8.decode(((ByteBuffer) message).duplicate()).toString();
+  }
+
+  private static ByteBuffer encode(Object message) {
+    if (message instanceof String) {
+      return StandardCharsets.UTF_8.encode((String) message).asReadOnlyBuffer();
+    }
+    return ((ByteBuffer) message).asReadOnlyBuffer();
+  }
+
+  private Object takeMessage() throws InterruptedException, ConnectionCloseException {
+    Object message = readQueue.poll();
+    if (message != null) {
+      return message;
+    }
+    lock.lock();
+    waiters++;
+    try {
+      while ((message = readQueue.poll()) == null && state == State.NORMAL) {
+        changed.await(); // Block until there is something to read.
+      }
+    } finally {
+      waiters--;
+      lock.unlock();
+    }
+    if (message == null) {
+      throw new ConnectionCloseException("Connection closed, connection state is " + state);
+    }
+    return message;
+  }
+
+  public void writeMessage(String message) throws IOException, ConnectionCloseException {
+    send(message);
+  }
+
+  // The buffer is not copied, so its content must not be modified after the
+  // call, as for a MultiSocket connection.
+  public void writeMessage(ByteBuffer message) throws IOException, ConnectionCloseException {
+    send(message.slice());
+  }
+
+  public void writeMessage(String message, MessagePriority priority) throws IOException, ConnectionCloseException {
+    send(message, priority);
+  }
+
+  public void writeMessage(ByteBuffer message, MessagePriority priority)
+      throws IOException, ConnectionCloseException {
+    send(message.slice(), priority);
+  }
+
+  public void writeMessageAndClose(String message) throws IOException, ConnectionCloseException {
+    sendMessageAndClose(message, closeEnd());
+  }
+
+  public void writeMessageAndClose(ByteBuffer message) throws IOException, ConnectionCloseException {
+    sendMessageAndClose(message.slice(), closeEnd());
+  }
+
+  private void send(Object message) throws IOException, ConnectionCloseException {
+    send(message, MessagePriority.NORMAL);
+  }
+
+  private void send(Object message, MessagePriority priority) throws IOException, ConnectionCloseException {
+    checkWritable();
+    sendMessage(message, priority);
+  }
+
+  // Throws if this end is closed
+  void checkWritable() throws ConnectionCloseException {
+    State s = state;
+    if (s == State.CLOSED || s == State.SENT_CLOSE) {
+      throw new ConnectionCloseException("connection is colsed, connection state is " + s);
+    }
+  }
+
+  // Messages arriving after this end closed are dropped, as the MultiSocket
+  // drops them.
+  void deliverMessage(Object message) {
+    if (state != State.NORMAL) {
+      return;
+    }
+    readQueue.add(message);
+    if (listener != null) {
+      startDispatch();
+    } else if (waiters > 0) {
+      lock.lock();
+      try {
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public void close() throws IOException, ConnectionCloseException {
+    sendClose(closeEnd());
+  }
+
+  // Closes this end, and returns true if the connection is closed on both ends
+  // now. The peer is told by the caller.
+  boolean closeEnd() throws ConnectionCloseException {
+    boolean closed;
+    lock.lock();
+    try {
+      if (state == State.CLOSED || state == State.SENT_CLOSE) {
+        throw new ConnectionCloseException("connection is colsed, connection state is " + state);
+      }
+      state = state == State.RECVED_CLOSE ? State.CLOSED : State.SENT_CLOSE;
+      changed.signalAll(); // Make sure we wake up any readers.
+      closed = state == State.CLOSED;
+    } finally {
+      lock.unlock();
+    }
+    return closed;
+  }
+
+  // Returns true if the connection is closed on both ends now.
+  boolean remoteClose() {
+    boolean closed;
+    lock.lock();
+    try {
+      state = state == State.SENT_CLOSE ? State.CLOSED : State.RECVED_CLOSE;
+      closedByPeer = true;
+      changed.signalAll(); // Make sure we wake up any readers
+      closed = state == State.CLOSED;
+    } finally {
+      lock.unlock();
+    }
+    startDispatch();
+    return closed;
+  }
+
+  // Called when the peer is gone without closing the connection
+  void forceClose() {
+    lock.lock();
+    try {
+      state = State.CLOSED;
+      closedByPeer = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    startDispatch();
+  }
+
+  // The transports bound the senders by other means than credit
+  public void setCreditListener(CreditListener listener) {
+  }
+
+  public boolean isWritable() {
+    return true;
+  }
+
+  public void setMessageListener(MessageListener listener, Executor executor) {
+    this.listenerExecutor = executor;
+    this.listener = listener;
+    startDispatch();
+  }
+
+  private boolean hasListenerEvent() {
+    return !readQueue.isEmpty() || (closedByPeer && !closeNotified);
+  }
+
+  // Starts calling the listener if there is something to tell it and no other
+  // thread is calling it.
+  private void startDispatch() {
+    if (listener == null || !hasListenerEvent() || !dispatching.compareAndSet(false, true)) {
+      return;
+    }
+    Executor executor = listenerExecutor;
+    if (executor != null) {
+      try {
+        executor.execute(dispatchTask);
+        return;
+      } catch (RejectedExecutionException e) {
+        // Falls back to the current thread rather than losing messages
+      }
+    }
+    dispatch();
+  }
+
+  private void dispatch() {
+    while (true) {
+      MessageListener l = listener;
+      Object message = l == null ? null : readQueue.poll();
+      if (message == null && (l == null || closeNotified || !closedByPeer)) {
+        dispatching.set(false);
+        // An event may have come after the check but before the flag was cleared
+        if (listener == null || !hasListenerEvent() || !dispatching.compareAndSet(false, true)) {
+          return;
+        }
+        continue;
+      }
+      try {
+        if (message != null) {
+          l.onMessage(this, encode(message));
+        } else {
+          closeNotified = true;
+          l.onClose(this);
+        }
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
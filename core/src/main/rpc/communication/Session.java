@@ -0,0 +1,253 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
+import Waterloo.MultiSocket.MessagePriority;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+import Waterloo.MultiSocket.exception.MultiSocketValidException;
+
+/*
+ * A long-lived connection between a client and a server that carries the
+ * connections of many RPCs, instead of a new MultiSocket connection for every
+ * call. Each RPC gets a SessionStream with a request ID from the client, and
+ * every message of the session is a frame of
+ *
+ * MAGIC, DATA or CLOSE with flags, the request ID (8 bytes), and for DATA the
+ * message.
+ *
+ * As with MultiSocket channels, the first frame of a stream carries OPENS, and
+ * CLOSES on a DATA frame stands for a CLOSE following it, so a call takes two
+ * frames. An end forgets a stream once it closed it, and drops the frames of
+ * the request IDs it does not know that do not open a stream.
+ *
+ * The frames are demultiplexed to the streams by the session's message
+ * listener, on the I/O thread, which only queues them, so no thread waits on
+ * the session. On the server, the first DATA frame of a request ID makes a
+ * stream, which is handed to the server's ConnectionHandler as an accepted
+ * connection would be. The MAGIC byte is neither of the codecs', which tells a
+ * server that a client opened a session rather than sent a request.
+ *
+ * Messages encoded by Communication come with HEADER_SIZE bytes free in front
+ * of them, where the header is written, so they are not copied. Others are
+ * copied into a frame.
+ *
+ * All the streams share one MultiSocket channel, whose frames are sent in
+ * order. So a HIGH message or a small one waits for the messages queued before
+ * it by the other RPCs of the session, the RPCs use one socket whatever the
+ * stripes, and the received messages are taken off the channel at once, so the
+ * channel's credit does not bound what a stream queues. Hence sessions are off
+ * unless rpc.client.session.enabled is set.
+ */
+public class Session implements MessageListener {
+
+  static final byte MAGIC = (byte) 0xC5;
+  private static final byte DATA = 0;
+  private static final byte CLOSE = 1;
+  private static final byte TYPE_MASK = 0x0F;
+  private static final byte OPENS = 0x10;
+  private static final byte CLOSES = 0x20;
+  static final int HEADER_SIZE = 10;
+
+  private final IConnection connection;
+  // Hands the streams of the server's side to the server, null on the client
+  private final ConnectionHandler handler;
+  private final ConcurrentHashMap<Long, SessionStream> streams;
+  private final AtomicLong nextRequestId;
+  private volatile boolean closed = false;
+
+  private Session(IConnection connection, ConnectionHandler handler) {
+    this.connection = connection;
+    this.handler = handler;
+    this.streams = new ConcurrentHashMap<Long, SessionStream>();
+    this.nextRequestId = new AtomicLong(0);
+  }
+
+  // Opens the client's side of a session on a new connection to a server
+  static Session open(IConnection connection) {
+    Session session = new Session(connection, null);
+    connection.setMessageListener(session, null);
+    return session;
+  }
+
+  // Takes over a connection whose first message opened a session, and hands
+  // the streams of its requests to the handler
+  static void accept(IConnection connection, ByteBuffer firstMessage, ConnectionHandler handler) {
+    Session session = new Session(connection, handler);
+    session.onMessage(connection, firstMessage);
+    connection.setMessageListener(session, null);
+  }
+
+  static boolean isSessionMessage(ByteBuffer message) {
+    return message.remaining() >= HEADER_SIZE && message.get(message.position()) == MAGIC;
+  }
+
+  public boolean isOpen() {
+    return !this.closed;
+  }
+
+  // The number of RPCs going on in the session
+  public int getStreamNum() {
+    return this.streams.size();
+  }
+
+  // Returns the connection of a new RPC, or null if the session is closed
+  IConnection openStream() {
+    SessionStream stream = new SessionStream(this, this.nextRequestId.incrementAndGet(), true);
+    this.streams.put(stream.requestId, stream);
+    // The session may have closed before the stream was added
+    if (this.closed) {
+      this.streams.remove(stream.requestId);
+      return null;
+    }
+    return stream;
+  }
+
+  // Sends a String or a ByteBuffer in a new frame, the last one of this end of
+  // the stream if last
+  void send(SessionStream stream, Object message, MessagePriority priority, boolean last)
+      throws IOException, ConnectionCloseException {
+    ByteBuffer payload = message instanceof String ? StandardCharsets.UTF_8.encode((String) message)
+        : ((ByteBuffer) message).duplicate();
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+    putHeader(frame, stream, last);
+    frame.put(payload);
+    frame.flip();
+    sendFrame(stream, frame, priority, last);
+  }
+
+  // Sends a message that has HEADER_SIZE free bytes in front of its position,
+  // which take the header of the frame
+  void sendFramed(SessionStream stream, ByteBuffer message, MessagePriority priority, boolean last)
+      throws IOException, ConnectionCloseException {
+    ByteBuffer frame = message.duplicate();
+    frame.position(message.position() - HEADER_SIZE);
+    putHeader(frame, stream, last);
+    frame.position(message.position() - HEADER_SIZE);
+    sendFrame(stream, frame, priority, last);
+  }
+
+  private void putHeader(ByteBuffer frame, SessionStream stream, boolean last) {
+    byte type = DATA;
+    if (stream.claimFirstFrame()) {
+      type |= OPENS;
+    }
+    if (last) {
+      type |= CLOSES;
+    }
+    frame.put(MAGIC).put(type).putLong(stream.requestId);
+  }
+
+  private void sendFrame(SessionStream stream, ByteBuffer frame, MessagePriority priority, boolean last)
+      throws IOException, ConnectionCloseException {
+    if (last) {
+      this.streams.remove(stream.requestId);
+    }
+    write(frame, priority);
+  }
+
+  // Closes this end of the stream. The peer is only told if it knows the stream
+  // and has not closed its end, as it forgot the stream then.
+  void sendClose(SessionStream stream, boolean closed) throws IOException {
+    this.streams.remove(stream.requestId);
+    if (closed || stream.claimFirstFrame()) {
+      return;
+    }
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE);
+    frame.put(MAGIC).put(CLOSE).putLong(stream.requestId);
+    frame.flip();
+    try {
+      write(frame, MessagePriority.NORMAL);
+    } catch (ConnectionCloseException e) {
+      // The peer is gone, and so is its end of the stream
+    }
+  }
+
+  private void write(ByteBuffer frame, MessagePriority priority) throws IOException, ConnectionCloseException {
+    try {
+      this.connection.writeMessage(frame, priority);
+    } catch (MultiSocketValidException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void onMessage(IConnection connection, ByteBuffer message) {
+    if (!isSessionMessage(message)) {
+      return;
+    }
+    message.get(); // MAGIC
+    byte flags = message.get();
+    byte type = (byte) (flags & TYPE_MASK);
+    long requestId = message.getLong();
+    SessionStream stream = this.streams.get(requestId);
+    boolean isNew = false;
+    if (stream == null) {
+      if ((flags & OPENS) == 0 || this.handler == null) {
+        // A frame of a stream this end has closed, which is dropped
+        return;
+      }
+      // The first frame of a request
+      stream = new SessionStream(this, requestId, false);
+      this.streams.put(requestId, stream);
+      isNew = true;
+    }
+    if (type == DATA) {
+      stream.deliverMessage(message.slice());
+    }
+    if ((type == CLOSE || (flags & CLOSES) != 0) && stream.remoteClose()) {
+      this.streams.remove(requestId);
+    }
+    if (isNew) {
+      try {
+        this.handler.handle(stream);
+      } catch (RejectedExecutionException e) {
+        // The server is shutting down
+        this.streams.remove(requestId);
+        stream.forceClose();
+      }
+    }
+  }
+
+  @Override
+  public void onClose(IConnection connection) {
+    close();
+  }
+
+  // Closes the session, and with it the streams still open
+  public void close() {
+    this.closed = true;
+    for (SessionStream stream : this.streams.values()) {
+      stream.forceClose();
+    }
+    this.streams.clear();
+    try {
+      this.connection.close();
+    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+      // Already closed
+    }
+  }
+}
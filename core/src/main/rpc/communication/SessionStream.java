@@ -0,0 +1,80 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Waterloo.MultiSocket.MessagePriority;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+
+/*
+ * The connection of one RPC within a session. It behaves as a connection of
+ * its own, while its messages and its close go over the session's connection
+ * with the request ID of the stream. The first message of a stream must be
+ * sent before the others, as its frame opens the stream on the server.
+ */
+class SessionStream extends QueuedConnection {
+
+  private final Session session;
+  final long requestId;
+  // Set until the frame opening the stream on the peer is sent
+  private final AtomicBoolean opening;
+
+  SessionStream(Session session, long requestId, boolean opening) {
+    this.session = session;
+    this.requestId = requestId;
+    this.opening = new AtomicBoolean(opening);
+  }
+
+  // Returns true for the frame that opens the stream on the peer
+  boolean claimFirstFrame() {
+    return opening.get() && opening.compareAndSet(true, false);
+  }
+
+  // Sends a message encoded with Session.HEADER_SIZE free bytes in front of it
+  void writeFramed(ByteBuffer message, MessagePriority priority) throws IOException, ConnectionCloseException {
+    checkWritable();
+    session.sendFramed(this, message, priority, false);
+  }
+
+  void writeFramedAndClose(ByteBuffer message) throws IOException, ConnectionCloseException {
+    closeEnd();
+    session.sendFramed(this, message, MessagePriority.NORMAL, true);
+  }
+
+  @Override
+  protected void sendMessage(Object message) throws IOException, ConnectionCloseException {
+    session.send(this, message, MessagePriority.NORMAL, false);
+  }
+
+  @Override
+  protected void sendMessage(Object message, MessagePriority priority) throws IOException, ConnectionCloseException {
+    session.send(this, message, priority, false);
+  }
+
+  @Override
+  protected void sendMessageAndClose(Object message, boolean closed) throws IOException, ConnectionCloseException {
+    session.send(this, message, MessagePriority.NORMAL, true);
+  }
+
+  @Override
+  protected void sendClose(boolean closed) throws IOException {
+    session.sendClose(this, closed);
+  }
+}
@@ -0,0 +1,57 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import Waterloo.MultiSocket.ShmRing;
+
+/*
+ * A connection carried by the channel of a ShmLink, as a MultiSocket carries
+ * its connections. Sending writes a frame to the link's ring, and the poller
+ * of ShmTransport delivers the frames of the peer.
+ */
+class ShmConnection extends QueuedConnection {
+
+  private final ShmLink link;
+  private final int channelNumber;
+
+  ShmConnection(ShmLink link, int channelNumber) {
+    this.link = link;
+    this.channelNumber = channelNumber;
+  }
+
+  int getChannelNumber() {
+    return channelNumber;
+  }
+
+  @Override
+  protected void sendMessage(Object message) throws IOException {
+    ByteBuffer payload = message instanceof String ? StandardCharsets.UTF_8.encode((String) message)
+        : (ByteBuffer) message;
+    link.writeFrame(ShmRing.DATA, channelNumber, payload);
+  }
+
+  @Override
+  protected void sendClose(boolean closed) throws IOException {
+    if (closed) {
+      link.removeConnection(this);
+    }
+    link.writeFrame(ShmRing.CLOSE, channelNumber, null);
+  }
+}
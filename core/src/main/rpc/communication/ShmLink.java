@@ -0,0 +1,173 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.ShmRing;
+import Waterloo.MultiSocket.exception.DataTooBigException;
+import Waterloo.MultiSocket.exception.InvalidMagicNumException;
+import Waterloo.MultiSocket.exception.UnexpectedDataException;
+
+/*
+ * A pair of rings between a client process and a server process, which
+ * carries the connections of the client to the server in channels, as a
+ * MultiSocket does. The client opens the channels, and the server hands each
+ * of them to its connection handler.
+ *
+ * Each process holds a lock on a file while it is alive, so that the other one
+ * can tell when it is gone and close the connections.
+ */
+class ShmLink {
+  private static final int maxFramesPerPoll = 64; // Lets the other links have their turn
+
+  private final String serverKey;
+  private final ShmRing in;
+  private final ShmRing out;
+  private final ConnectionHandler handler; // Null on the client side
+  private final File peerLockFile;
+  private final File lockFile; // Locked by this process, null on the server side
+  private final FileChannel lockChannel;
+  private final ConcurrentHashMap<Integer, ShmConnection> connections;
+  private final AtomicInteger nextChannel = new AtomicInteger(0);
+  private volatile boolean valid = true;
+
+  ShmLink(String serverKey, ShmRing in, ShmRing out, ConnectionHandler handler, File peerLockFile, File lockFile,
+      FileChannel lockChannel) {
+    this.serverKey = serverKey;
+    this.in = in;
+    this.out = out;
+    this.handler = handler;
+    this.peerLockFile = peerLockFile;
+    this.lockFile = lockFile;
+    this.lockChannel = lockChannel;
+    this.connections = new ConcurrentHashMap<Integer, ShmConnection>();
+  }
+
+  String getServerKey() {
+    return serverKey;
+  }
+
+  File getPeerLockFile() {
+    return peerLockFile;
+  }
+
+  File getLockFile() {
+    return lockFile;
+  }
+
+  boolean isValid() {
+    return valid;
+  }
+
+  // Client side
+  ShmConnection openConnection() throws IOException {
+    ShmConnection connection = new ShmConnection(this, nextChannel.getAndIncrement());
+    connections.put(connection.getChannelNumber(), connection);
+    try {
+      writeFrame(ShmRing.CREATE, connection.getChannelNumber(), null);
+    } catch (IOException e) {
+      connections.remove(connection.getChannelNumber());
+      throw e;
+    }
+    return connection;
+  }
+
+  void writeFrame(int type, int channel, ByteBuffer payload) throws IOException {
+    out.writeFrame(type, channel, payload);
+  }
+
+  void removeConnection(ShmConnection connection) {
+    connections.remove(connection.getChannelNumber(), connection);
+  }
+
+  // Delivers the frames written by the peer so far. Returns true if there
+  // were any. Only called by the poller.
+  boolean poll() throws InvalidMagicNumException, DataTooBigException, UnexpectedDataException {
+    int frames = 0;
+    ByteBuffer payload;
+    while (frames < maxFramesPerPoll && (payload = in.readFrame()) != null) {
+      frames++;
+      int channel = in.getFrameChannel();
+      ShmConnection connection = connections.get(channel);
+      switch (in.getFrameType()) {
+      case ShmRing.CREATE:
+        accept(channel);
+        break;
+      case ShmRing.DATA:
+        if (connection != null) {
+          connection.deliverMessage(payload);
+        }
+        break;
+      case ShmRing.CLOSE:
+        if (connection != null && connection.remoteClose()) {
+          connections.remove(channel, connection);
+        }
+        break;
+      default:
+        break;
+      }
+    }
+    return frames > 0;
+  }
+
+  private void accept(int channel) {
+    if (handler == null) {
+      return; // Only the client opens channels
+    }
+    ShmConnection connection = new ShmConnection(this, channel);
+    connections.put(channel, connection);
+    try {
+      handler.handle(connection);
+    } catch (RejectedExecutionException e) {
+      // The server is shutting down
+      try {
+        connection.close();
+      } catch (Exception ce) {
+        // The link is going away as well
+      }
+    }
+  }
+
+  // Closes the connections, as a failed socket does, and releases the lock of
+  // this process.
+  void close() {
+    valid = false;
+    in.close();
+    out.close();
+    for (ShmConnection connection : connections.values()) {
+      connection.forceClose();
+    }
+    connections.clear();
+    if (lockChannel != null) {
+      lockFile.delete();
+      try {
+        lockChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      peerLockFile.delete(); // Left behind by a client that is gone
+    }
+  }
+}
@@ -0,0 +1,395 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.ShmRing;
+import Waterloo.MultiSocket.exception.DataTooBigException;
+import Waterloo.MultiSocket.exception.InvalidMagicNumException;
+import Waterloo.MultiSocket.exception.UnexpectedDataException;
+import rpc.config.Constants;
+import specrpc.common.Location;
+import specrpc.common.RpcConfig;
+
+/*
+ * Connects the processes of one host through rings in memory-mapped files,
+ * such as under /dev/shm, instead of loopback TCP. A client process opens one
+ * ShmLink to each server it reaches this way, and carries its connections to
+ * the server in the channels of the link.
+ *
+ * A bound server holds a lock on the file server.lock in the directory of its
+ * location. A client creates the rings of a new link and its own lock file in
+ * that directory, and then a <link>.ready file, which the server picks up.
+ *
+ * One poller thread delivers the frames of all the links of the process, and
+ * picks up the new links of the servers. It spins while there are frames, and
+ * then backs off to parking. It stops once the process has neither links nor
+ * bound servers, and starts again with the next of them.
+ */
+public class ShmTransport implements Transport {
+
+  private static final String SERVER_LOCK_FILE = "server.lock";
+  private static final String READY_SUFFIX = ".ready";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String CLIENT_TO_SERVER_SUFFIX = ".c2s";
+  private static final String SERVER_TO_CLIENT_SUFFIX = ".s2c";
+  private static final String ANY_LOCATION = "*";
+
+  private static final int idleSpins = 100; // Yields before parking
+  private static final long maxParkNanos = 100 * 1000;
+  private static final long acceptIntervalNanos = 1000 * 1000;
+  private static final long peerCheckIntervalNanos = 100 * 1000 * 1000;
+
+  private static ShmTransport instance = null;
+
+  private final File directory;
+  private final int ringSize;
+  private final Set<String> locations; // Reached by the clients, null for all
+  private final ConcurrentHashMap<String, Server> servers;
+  private final ConcurrentHashMap<String, ShmLink> clientLinks;
+  private final CopyOnWriteArrayList<ShmLink> links; // Polled ones
+  private Thread poller = null; // Guarded by this
+
+  private static class Server {
+    final File directory;
+    final ConnectionHandler handler;
+    final FileChannel lockChannel;
+
+    Server(File directory, ConnectionHandler handler, FileChannel lockChannel) {
+      this.directory = directory;
+      this.handler = handler;
+      this.lockChannel = lockChannel;
+    }
+  }
+
+  private ShmTransport(File directory, int ringSize, Set<String> locations) {
+    this.directory = directory;
+    this.ringSize = ringSize;
+    this.locations = locations;
+    this.servers = new ConcurrentHashMap<String, Server>();
+    this.clientLinks = new ConcurrentHashMap<String, ShmLink>();
+    this.links = new CopyOnWriteArrayList<ShmLink>();
+  }
+
+  // The first config sets up the transport of the process
+  public static synchronized ShmTransport getInstance(RpcConfig config) {
+    if (instance == null) {
+      Set<String> locations = new HashSet<String>();
+      for (String location : config.get(Constants.RPC_CLIENT_TRANSPORT_SHM_LOCATIONS_PROPERTY,
+          Constants.DEFAULT_RPC_CLIENT_TRANSPORT_SHM_LOCATIONS).split(",")) {
+        if (!location.trim().isEmpty()) {
+          locations.add(location.trim());
+        }
+      }
+      instance = new ShmTransport(
+          new File(config.get(Constants.RPC_TRANSPORT_SHM_DIR_PROPERTY, Constants.DEFAULT_RPC_TRANSPORT_SHM_DIR)),
+          Integer.parseInt(config.get(Constants.RPC_TRANSPORT_SHM_RING_SIZE_PROPERTY,
+              Constants.DEFAULT_RPC_TRANSPORT_SHM_RING_SIZE)),
+          locations.contains(ANY_LOCATION) ? null : locations);
+    }
+    return instance;
+  }
+
+  // Returns true if the clients are configured to reach some server this way
+  public boolean hasLocations() {
+    return locations == null || !locations.isEmpty();
+  }
+
+  private File locationDirectory(Location location) {
+    return new File(directory, location.toString().replaceAll("[^A-Za-z0-9._-]", "_"));
+  }
+
+  @Override
+  public IConnection connect(Location serverLocation) throws IOException {
+    String key = serverLocation.toString();
+    if (locations != null && !locations.contains(key)) {
+      return null;
+    }
+    ShmLink link = clientLinks.get(key);
+    if (link == null || !link.isValid()) {
+      link = openLink(serverLocation);
+      if (link == null) {
+        return null;
+      }
+    }
+    return link.openConnection();
+  }
+
+  private synchronized ShmLink openLink(Location serverLocation) throws IOException {
+    String key = serverLocation.toString();
+    ShmLink link = clientLinks.get(key);
+    if (link != null && link.isValid()) {
+      return link;
+    }
+    File dir = locationDirectory(serverLocation);
+    File serverLock = new File(dir, SERVER_LOCK_FILE);
+    if (!servers.containsKey(key) && !isLocked(serverLock)) {
+      return null; // No server of this host takes connections this way
+    }
+
+    String id = UUID.randomUUID().toString();
+    File lockFile = new File(dir, id + LOCK_SUFFIX);
+    FileChannel lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+    boolean done = false;
+    try {
+      lockChannel.lock();
+      ShmRing out = ShmRing.create(new File(dir, id + CLIENT_TO_SERVER_SUFFIX), ringSize);
+      ShmRing in = ShmRing.create(new File(dir, id + SERVER_TO_CLIENT_SUFFIX), ringSize);
+      link = new ShmLink(key, in, out, null, serverLock, lockFile, lockChannel);
+      if (!new File(dir, id + READY_SUFFIX).createNewFile()) {
+        throw new IOException("Link " + id + " already exists in " + dir);
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        lockChannel.close();
+        lockFile.delete();
+      }
+    }
+    clientLinks.put(key, link);
+    addLink(link);
+    return link;
+  }
+
+  // Returns true if another process holds a lock on the file
+  private static boolean isLocked(File file) {
+    if (!file.exists()) {
+      return false;
+    }
+    try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        return true;
+      }
+      lock.release();
+      return false;
+    } catch (OverlappingFileLockException e) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public synchronized void bind(Location serverLocation, ConnectionHandler handler) throws IOException {
+    String key = serverLocation.toString();
+    Server server = servers.get(key);
+    if (server != null && server.handler == handler) {
+      return;
+    }
+    File dir = locationDirectory(serverLocation);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can not create " + dir);
+    }
+    FileChannel lockChannel = new RandomAccessFile(new File(dir, SERVER_LOCK_FILE), "rw").getChannel();
+    if (lockChannel.tryLock() == null) {
+      lockChannel.close();
+      throw new IOException(serverLocation + " is bound by another process");
+    }
+    servers.put(key, new Server(dir, handler, lockChannel));
+    startPoller();
+  }
+
+  @Override
+  public synchronized void unbind(Location serverLocation, ConnectionHandler handler) {
+    String key = serverLocation.toString();
+    Server server = servers.get(key);
+    if (server == null || server.handler != handler) {
+      return;
+    }
+    servers.remove(key);
+    for (ShmLink link : links) {
+      if (link.getServerKey().equals(key) && !clientLinks.containsValue(link)) {
+        removeLink(link);
+      }
+    }
+    new File(server.directory, SERVER_LOCK_FILE).delete();
+    server.directory.delete(); // Once the clients are gone as well
+    try {
+      server.lockChannel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (ShmLink link : clientLinks.values()) {
+      removeLink(link);
+    }
+    clientLinks.clear();
+  }
+
+  private void addLink(ShmLink link) {
+    links.add(link);
+    startPoller();
+  }
+
+  private void removeLink(ShmLink link) {
+    links.remove(link);
+    clientLinks.remove(link.getServerKey(), link);
+    link.close();
+  }
+
+  private synchronized void startPoller() {
+    if (poller != null) {
+      return;
+    }
+    poller = new Thread(new Runnable() {
+      public void run() {
+        poll();
+      }
+    }, "ShmTransport-poller");
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  private void poll() {
+    int idle = 0;
+    long nextAccept = System.nanoTime();
+    long nextPeerCheck = nextAccept + peerCheckIntervalNanos;
+    while (true) {
+      boolean busy = false;
+      for (ShmLink link : links) {
+        try {
+          busy |= link.poll();
+        } catch (InvalidMagicNumException | DataTooBigException | UnexpectedDataException e) {
+          e.printStackTrace();
+          synchronized (this) {
+            removeLink(link);
+          }
+        }
+      }
+
+      long now = System.nanoTime();
+      if (now - nextAccept >= 0) {
+        busy |= acceptLinks();
+        nextAccept = now + acceptIntervalNanos;
+      }
+      if (now - nextPeerCheck >= 0) {
+        checkPeers();
+        nextPeerCheck = now + peerCheckIntervalNanos;
+      }
+
+      if (busy) {
+        idle = 0;
+      } else if (links.isEmpty() && servers.isEmpty() && stopPoller()) {
+        return;
+      } else if (++idle < idleSpins) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(Math.min(maxParkNanos, 1000L << Math.min(idle - idleSpins, 7)));
+      }
+    }
+  }
+
+  // Called by the poller when there is nothing to poll. The links and servers
+  // are added with the lock held, and then start the poller if it stopped.
+  private synchronized boolean stopPoller() {
+    if (!links.isEmpty() || !servers.isEmpty()) {
+      return false;
+    }
+    poller = null;
+    return true;
+  }
+
+  // Picks up the links that clients opened to the bound servers
+  private boolean acceptLinks() {
+    boolean accepted = false;
+    for (String key : servers.keySet()) {
+      Server server = servers.get(key);
+      if (server == null) {
+        continue;
+      }
+      String[] ready = server.directory.list(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.endsWith(READY_SUFFIX);
+        }
+      });
+      if (ready == null) {
+        continue;
+      }
+      for (String name : ready) {
+        String id = name.substring(0, name.length() - READY_SUFFIX.length());
+        File in = new File(server.directory, id + CLIENT_TO_SERVER_SUFFIX);
+        File out = new File(server.directory, id + SERVER_TO_CLIENT_SUFFIX);
+        try {
+          ShmLink link = new ShmLink(key, ShmRing.open(in), ShmRing.open(out), server.handler,
+              new File(server.directory, id + LOCK_SUFFIX), null, null);
+          synchronized (this) {
+            if (servers.get(key) != server) {
+              link.close();
+              continue;
+            }
+            links.add(link);
+          }
+          accepted = true;
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          // The mappings stay valid once the files are gone
+          new File(server.directory, name).delete();
+          in.delete();
+          out.delete();
+        }
+      }
+    }
+    return accepted;
+  }
+
+  // Closes the links to the processes that are gone
+  private void checkPeers() {
+    for (ShmLink link : links) {
+      if (!isPeerAlive(link)) {
+        synchronized (this) {
+          removeLink(link);
+        }
+      }
+    }
+  }
+
+  private boolean isPeerAlive(ShmLink link) {
+    // The peer may be in this process, whose locks can not be tested without
+    // releasing them.
+    if (clientLinks.containsValue(link)) {
+      if (servers.containsKey(link.getServerKey())) {
+        return true;
+      }
+    } else {
+      for (ShmLink clientLink : clientLinks.values()) {
+        if (link.getPeerLockFile().equals(clientLink.getLockFile())) {
+          return true;
+        }
+      }
+    }
+    return isLocked(link.getPeerLockFile());
+  }
+}
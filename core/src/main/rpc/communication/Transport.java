@@ -0,0 +1,42 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package rpc.communication;
+
+import java.io.IOException;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import specrpc.common.Location;
+
+/*
+ * A way for the clients to reach an RPC server other than the MultiSocket
+ * client. Communication.connectTo() tries the added transports in order, and
+ * connects over TCP if none of them reaches the server. The servers bind
+ * their location to the transports they also accept connections from.
+ */
+public interface Transport {
+  // Returns a connection to the server, or null if this transport cannot reach it
+  public IConnection connect(Location serverLocation) throws IOException;
+
+  // Hands the connections made to the server's location to its handler
+  public void bind(Location serverLocation, ConnectionHandler handler) throws IOException;
+
+  // Only unbinds the location if it is still bound to the handler
+  public void unbind(Location serverLocation, ConnectionHandler handler);
+
+  // Closes the connections made by connect()
+  public void close() throws IOException;
+}
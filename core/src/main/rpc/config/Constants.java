@@ -52,13 +52,59 @@ public class Constants {
   public static final String RPC_HOST_IP_PROPERTY = "rpc.host.ip";
   public static final String RPC_HOST_PORT_PROPERTY = "rpc.host.port";
   public static final String RPC_HOST_THREADPOOL_SIZE_PROPERTY = "rpc.host.threadpool.size";
+  // Threads of the pool (platform or virtual)
+  public static final String RPC_HOST_THREADPOOL_TYPE_PROPERTY = "rpc.host.threadpool.type";
   // Max number of connections but OS implementation specific
   public static final String RPC_HOST_MAX_CONNECTION_PROPERTY = "rpc.host.connection.max";
   public static final String RPC_HOST_SIGNATURE_FILE_PROPERTY = "rpc.host.signatures"; // file location for rpc
                                                                                        // signatures
+  // Number of selector threads doing network I/O
+  public static final String RPC_HOST_REACTOR_NUM_PROPERTY = "rpc.host.reactor.num";
+  public static final String RPC_CLIENT_REACTOR_NUM_PROPERTY = "rpc.client.reactor.num";
+  // Number of sockets to each server, and how to spread RPCs across them (round_robin or least_loaded)
+  public static final String RPC_CLIENT_SOCKET_STRIPE_NUM_PROPERTY = "rpc.client.socket.stripes";
+  public static final String RPC_CLIENT_SOCKET_STRIPE_POLICY_PROPERTY = "rpc.client.socket.stripe.policy";
+  // Whether the clients reach the servers of their own JVM without sockets
+  public static final String RPC_CLIENT_TRANSPORT_LOOPBACK_PROPERTY = "rpc.client.transport.loopback";
+  // Whether the RPCs to a server share one long-lived connection, or each makes its own
+  public static final String RPC_CLIENT_SESSION_ENABLED_PROPERTY = "rpc.client.session.enabled";
+  // Servers the clients reach through rings in shared memory, as host:port separated by commas, or * for all
+  public static final String RPC_CLIENT_TRANSPORT_SHM_LOCATIONS_PROPERTY = "rpc.client.transport.shm.locations";
+  // Whether the servers also accept connections through rings in shared memory
+  public static final String RPC_HOST_TRANSPORT_SHM_PROPERTY = "rpc.host.transport.shm";
+  // Directory of the ring files, and size in bytes of a ring (a power of two)
+  public static final String RPC_TRANSPORT_SHM_DIR_PROPERTY = "rpc.transport.shm.dir";
+  public static final String RPC_TRANSPORT_SHM_RING_SIZE_PROPERTY = "rpc.transport.shm.ring.size";
+  // Max size in bytes of an RPC message, 0 for no limit
+  public static final String RPC_MESSAGE_MAX_SIZE_PROPERTY = "rpc.message.max.size";
+  // Microseconds to hold back a message so that messages sent meanwhile are written together, 0 to disable
+  public static final String RPC_WRITE_COALESCING_WINDOW_PROPERTY = "rpc.write.coalescing.window.us";
+  // Bytes of unread messages a connection and a socket take before the sender waits, 0 for no limit
+  public static final String RPC_FLOW_CHANNEL_WINDOW_PROPERTY = "rpc.flow.channel.window";
+  public static final String RPC_FLOW_SOCKET_WINDOW_PROPERTY = "rpc.flow.socket.window";
+  // What a sender does when it runs out of credit (block, fail or async_notify)
+  public static final String RPC_FLOW_CREDIT_POLICY_PROPERTY = "rpc.flow.credit.policy";
+  // How the selector threads and readers wait for messages (block, spin_then_block or spin), and how many
+  // microseconds they poll before blocking
+  public static final String RPC_POLL_POLICY_PROPERTY = "rpc.poll.policy";
+  public static final String RPC_POLL_SPIN_PROPERTY = "rpc.poll.spin.us";
+  // Min size in bytes of a message sent deflated, 0 to disable, and the Deflater level (1 to 9)
+  public static final String RPC_COMPRESSION_THRESHOLD_PROPERTY = "rpc.compression.threshold";
+  public static final String RPC_COMPRESSION_LEVEL_PROPERTY = "rpc.compression.level";
+  // Codec the clients send requests in (binary or json). The servers answer in the
+  // codec of the request, or in json to a codec they do not take, after which the
+  // clients send their requests to that server in json
+  public static final String RPC_CLIENT_REQUEST_CODEC_PROPERTY = "rpc.client.request.codec";
+  // Codecs the servers take requests in, separated by commas. json is always taken
+  public static final String RPC_HOST_REQUEST_CODECS_PROPERTY = "rpc.host.request.codecs";
 
   // SpecRPC client configurations
   public static final String SPECRPC_CLIENT_THREADPOOL_SIZE_PROPERTY = "specrpc.client.threadpool.size";
+  public static final String SPECRPC_CLIENT_THREADPOOL_TYPE_PROPERTY = "specrpc.client.threadpool.type";
+
+  // TradRPC client configurations, of the pool completing the asynchronous calls
+  public static final String TRADRPC_CLIENT_THREADPOOL_SIZE_PROPERTY = "tradrpc.client.threadpool.size";
+  public static final String TRADRPC_CLIENT_THREADPOOL_TYPE_PROPERTY = "tradrpc.client.threadpool.type";
 
   // SpecRPC statistics configurations
   public static final String SPECRPC_STATISTICS_ENABLED_PROPERTY = "specrpc.statistics.enabled";
@@ -69,10 +115,35 @@ public class Constants {
   public static final String DEFAULT_RPC_HOST_IP = "localhost";
   public static final String DEFAULT_RPC_HOST_PORT = "0"; // dynamic port
   public static final String DEFAULT_RPC_HOST_THREADPOOL_SIZE = "0"; // dynamic-size threadpool
+  public static final String DEFAULT_RPC_HOST_THREADPOOL_TYPE = "platform";
   public static final String DEFAULT_RPC_HOST_MAX_CONNECTION = "1024";// OS implementation specific
   public static final String DEFAULT_RPC_HOST_SIGNATURE_FILE = (RPC_HOME == null ? ("$" + RPC_HOME_CONF) : RPC_HOME)
       + "/conf/rpc.signature";
+  public static final String DEFAULT_RPC_HOST_REACTOR_NUM = "1";
+  public static final String DEFAULT_RPC_CLIENT_REACTOR_NUM = "1";
+  public static final String DEFAULT_RPC_CLIENT_SOCKET_STRIPE_NUM = "1";
+  public static final String DEFAULT_RPC_CLIENT_SOCKET_STRIPE_POLICY = "round_robin";
+  public static final String DEFAULT_RPC_CLIENT_TRANSPORT_LOOPBACK = "false";
+  public static final String DEFAULT_RPC_CLIENT_SESSION_ENABLED = "false";
+  public static final String DEFAULT_RPC_CLIENT_TRANSPORT_SHM_LOCATIONS = "";
+  public static final String DEFAULT_RPC_HOST_TRANSPORT_SHM = "false";
+  public static final String DEFAULT_RPC_TRANSPORT_SHM_DIR = "/dev/shm/specrpc";
+  public static final String DEFAULT_RPC_TRANSPORT_SHM_RING_SIZE = "1048576";
+  public static final String DEFAULT_RPC_MESSAGE_MAX_SIZE = "0";
+  public static final String DEFAULT_RPC_WRITE_COALESCING_WINDOW = "0";
+  public static final String DEFAULT_RPC_FLOW_CHANNEL_WINDOW = "0";
+  public static final String DEFAULT_RPC_FLOW_SOCKET_WINDOW = "0";
+  public static final String DEFAULT_RPC_FLOW_CREDIT_POLICY = "block";
+  public static final String DEFAULT_RPC_POLL_POLICY = "block";
+  public static final String DEFAULT_RPC_POLL_SPIN = "50";
+  public static final String DEFAULT_RPC_COMPRESSION_THRESHOLD = "0";
+  public static final String DEFAULT_RPC_COMPRESSION_LEVEL = "1";
+  public static final String DEFAULT_RPC_CLIENT_REQUEST_CODEC = "binary";
+  public static final String DEFAULT_RPC_HOST_REQUEST_CODECS = "binary,json";
   public static final String DEFAULT_SPECRPC_CLIENT_THREADPOOL_SIZE = "0";
+  public static final String DEFAULT_SPECRPC_CLIENT_THREADPOOL_TYPE = "platform";
+  public static final String DEFAULT_TRADRPC_CLIENT_THREADPOOL_SIZE = "0";
+  public static final String DEFAULT_TRADRPC_CLIENT_THREADPOOL_TYPE = "platform";
   public static final String DEFAULT_SPECRPC_STATISTICS_ENABLE = "false";
   public static final String DEFAULT_SPECRPC_STATISTICS_INCORRECT_PREDICTION_COUNTING = "false";
 
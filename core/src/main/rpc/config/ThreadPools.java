@@ -0,0 +1,71 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Makes the thread pools of the clients, the servers and the applications,
+ * either of platform threads or of virtual threads (a thread per task). The
+ * source level predates virtual threads, so their executor is looked up at
+ * run time, and a platform pool stands in on JVMs older than Java 21.
+ */
+public class ThreadPools {
+
+  private static final Logger logger = LoggerFactory.getLogger(Constants.LOGGER_TYPE);
+
+  public static enum Type {
+    PLATFORM, VIRTUAL
+  }
+
+  // Parses the type of a pool, such as the value of a *.threadpool.type property
+  public static Type parseType(String type) {
+    return Type.valueOf(type.trim().toUpperCase());
+  }
+
+  // A fixed pool of the given size or a cached pool if the size is not
+  // positive. Virtual threads are not pooled, so the size does not apply.
+  public static ExecutorService newThreadPool(String type, int size) {
+    return newThreadPool(parseType(type), size);
+  }
+
+  public static ExecutorService newThreadPool(Type type, int size) {
+    if (type == Type.VIRTUAL) {
+      ExecutorService pool = newVirtualThreadPool();
+      if (pool != null) {
+        return pool;
+      }
+      logger.warn("Virtual threads need Java 21 or later, using platform threads instead");
+    }
+    return size > 0 ? Executors.newFixedThreadPool(size) : Executors.newCachedThreadPool();
+  }
+
+  // Returns null if the JVM has no virtual threads
+  private static ExecutorService newVirtualThreadPool() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -26,6 +26,10 @@ public class MethodNotRegisteredException extends RpcException {
     super("Method with signature '" + signature + "' is not registered.");
   }
 
+  public MethodNotRegisteredException(long methodKey) {
+    super("Method with key " + Long.toHexString(methodKey) + " is not registered. The server may have restarted.");
+  }
+
   public MethodNotRegisteredException(String serverIdentity, RpcSignature signature) {
     super(
         "Method with signature '" + signature + "' is not registered at the specified server: " + serverIdentity + ".");
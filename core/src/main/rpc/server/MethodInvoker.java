@@ -0,0 +1,183 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+import rpc.communication.MessageReader;
+import rpc.server.api.RpcDispatcher;
+import rpc.server.api.RpcHost;
+import rpc.server.api.RpcHostObjectFactory;
+import specrpc.common.RpcSignature;
+
+/*
+ * A registered RPC method, resolved into a MethodHandle once instead of a
+ * getMethod() and a Method.invoke() for every request. The handle takes the
+ * host object and the argument array, and spreads the array into the
+ * arguments.
+ *
+ * The method is resolved on the host class the factory names when it is
+ * registered. A factory may make objects of another class, such as a
+ * subclass, so the handle is kept together with the class it was resolved
+ * on, and is resolved again if a host object has another class.
+ *
+ * A host object that is an RpcDispatcher, such as a generated skeleton, is
+ * called with the index of the method instead, and reads the arguments of a
+ * request itself (see readCall()).
+ *
+ * The arguments are checked against the signature before the call, so that a
+ * failure to adapt them throws an IllegalArgumentException, as Method.invoke()
+ * does, and only what the method itself throws is wrapped.
+ */
+public class MethodInvoker {
+
+  /*
+   * The call of the method on a host object with the arguments of a request,
+   * which throws as invoke() does.
+   */
+  public interface Call {
+    public Object invoke() throws NoSuchMethodException, IllegalAccessException, InvocationTargetException;
+  }
+
+  private static class Binding {
+    final Class<?> hostClass;
+    final MethodHandle handle; // (Object host, Object[] args)Object, or null to dispatch
+    final int methodIndex;
+
+    Binding(Class<?> hostClass, MethodHandle handle, int methodIndex) {
+      this.hostClass = hostClass;
+      this.handle = handle;
+      this.methodIndex = methodIndex;
+    }
+  }
+
+  public final RpcSignature signature;
+  private final RpcHostObjectFactory factory;
+  // The argument types of the signature, with primitives boxed
+  private final Class<?>[] argClasses;
+  private volatile Binding binding = null;
+
+  public MethodInvoker(RpcSignature signature, RpcHostObjectFactory factory) {
+    this.signature = signature;
+    this.factory = factory;
+    this.argClasses = MethodType.methodType(void.class, signature.argTypes).wrap().parameterArray();
+    try {
+      this.binding = bind(Class.forName(signature.hostClass, false, factory.getClass().getClassLoader()));
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+      // Resolved on the class of the first host object instead
+    }
+  }
+
+  public RpcHost newHostObject() {
+    return this.factory.getRpcHostObject();
+  }
+
+  // Throws the exception of the method wrapped in an InvocationTargetException,
+  // and an IllegalArgumentException if the method cannot take the arguments, as
+  // Method.invoke() does.
+  public Object invoke(RpcHost hostObject, Object[] args)
+      throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    checkArgs(args);
+    Binding current = getBinding(hostObject);
+    try {
+      if (current.handle == null) {
+        return ((RpcDispatcher) hostObject).dispatch(current.methodIndex, args);
+      }
+      return (Object) current.handle.invokeExact((Object) hostObject, args);
+    } catch (WrongMethodTypeException e) {
+      throw new IllegalArgumentException(e);
+    } catch (Throwable e) {
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  // Reads the arguments of a request for the host object, into the call of the
+  // method with them. A dispatcher reads each argument in its own type; the
+  // arguments of other host objects are read as values of the signature's types.
+  public Call readCall(RpcHost hostObject, MessageReader reader) throws NoSuchMethodException, IllegalAccessException {
+    Binding current = getBinding(hostObject);
+    if (current.handle == null) {
+      Callable<Object> call = ((RpcDispatcher) hostObject).readCall(current.methodIndex, reader);
+      return () -> {
+        try {
+          return call.call();
+        } catch (Throwable e) {
+          throw new InvocationTargetException(e);
+        }
+      };
+    }
+    Object[] args = reader.readValues(this.signature.argTypes);
+    return () -> invoke(hostObject, args);
+  }
+
+  private Binding getBinding(RpcHost hostObject) throws NoSuchMethodException, IllegalAccessException {
+    Binding current = this.binding;
+    if (current == null || current.hostClass != hostObject.getClass()) {
+      current = bind(hostObject);
+      this.binding = current;
+    }
+    return current;
+  }
+
+  // The casts of the handle would otherwise throw a ClassCastException or a
+  // NullPointerException that looks like the method's own
+  private void checkArgs(Object[] args) {
+    int argNum = args == null ? 0 : args.length;
+    if (argNum != this.argClasses.length) {
+      throw new IllegalArgumentException(
+          "wrong number of arguments: " + argNum + ", expected " + this.argClasses.length + " for " + this.signature);
+    }
+    for (int i = 0; i < argNum; i++) {
+      Object arg = args[i];
+      if (arg == null ? this.signature.argTypes[i].isPrimitive() : !this.argClasses[i].isInstance(arg)) {
+        throw new IllegalArgumentException("argument type mismatch: argument " + i + " is "
+            + (arg == null ? "null" : arg.getClass().getName()) + ", expected " + this.signature.argTypes[i].getName());
+      }
+    }
+  }
+
+  private Binding bind(RpcHost hostObject) throws NoSuchMethodException, IllegalAccessException {
+    if (hostObject instanceof RpcDispatcher) {
+      int methodIndex = ((RpcDispatcher) hostObject).getMethodIndex(this.signature);
+      if (methodIndex >= 0) {
+        return new Binding(hostObject.getClass(), null, methodIndex);
+      }
+    }
+    return bind(hostObject.getClass());
+  }
+
+  private Binding bind(Class<?> hostClass) throws NoSuchMethodException, IllegalAccessException {
+    Method method = hostClass.getMethod(this.signature.methodName, this.signature.argTypes);
+    MethodHandle handle;
+    try {
+      handle = MethodHandles.publicLookup().unreflect(method);
+    } catch (IllegalAccessException e) {
+      // A public method of a class that is not public, as Method.invoke() allows
+      method.setAccessible(true);
+      handle = MethodHandles.lookup().unreflect(method);
+    }
+    int argNum = this.signature.argTypes.length;
+    handle = handle.asType(MethodType.genericMethodType(argNum + 1)).asSpreader(Object[].class, argNum);
+    return new Binding(hostClass, handle, -1);
+  }
+}
@@ -0,0 +1,53 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.server.api;
+
+import java.util.concurrent.Callable;
+
+import rpc.communication.MessageReader;
+import specrpc.common.RpcSignature;
+
+/*
+ * A host object that calls its RPC methods itself instead of through
+ * reflection, such as the skeletons generated from an RpcService interface.
+ * The index of a method is looked up once per host class, and every request
+ * is then dispatched with it.
+ *
+ * The servers read the arguments of a request with readCall(), so that each
+ * one is read in its own type rather than boxed into an array. dispatch()
+ * calls a method with arguments that were already read.
+ */
+public interface RpcDispatcher {
+
+  /**
+   * @return The index of the method with the signature, or -1 if the host
+   *         object does not dispatch it
+   */
+  public int getMethodIndex(RpcSignature signature);
+
+  /**
+   * Calls the method of the index, throwing any exception the method throws.
+   */
+  public Object dispatch(int methodIndex, Object[] args) throws Exception;
+
+  /**
+   * Reads the arguments of the method of the index, their count first (see
+   * MessageReader.readCount()), and returns the call of the method with them.
+   * The call throws any exception the method throws.
+   */
+  public Callable<Object> readCall(int methodIndex, MessageReader reader);
+}
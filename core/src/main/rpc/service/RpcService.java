@@ -0,0 +1,50 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.service;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+ * Marks an interface as an RPC service. For an interface Foo, the
+ * RpcServiceProcessor generates in the same package:
+ *
+ * FooRpc: the RpcSignature of every method, with HOST_CLASS as the host class,
+ * and register() methods to register them all on an RpcServer.
+ * FooSpecRpcSkeleton and FooTradRpcSkeleton: abstract host classes to extend,
+ * which read the arguments of requests and dispatch them to the methods
+ * without reflection.
+ * FooSpecRpcStub and FooTradRpcStub: typed client stubs.
+ *
+ * The stubs write, and the skeletons read, each argument of a primitive type
+ * with the MessageWriter and MessageReader methods of the type, and strings as
+ * strings, so none is boxed. Other objects go as values of their class.
+ *
+ * The same interface is used for both SpecRPC and TradRPC hosts. Methods may
+ * not be generic, as a signature is made from the erased types.
+ *
+ * The processor is not registered as a service, so it only runs when named,
+ * with -processor rpc.service.processor.RpcServiceProcessor.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface RpcService {
+}
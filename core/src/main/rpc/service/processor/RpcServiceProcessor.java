@@ -0,0 +1,569 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.service.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import rpc.service.RpcService;
+
+/*
+ * Generates the signatures, skeletons and stubs of the interfaces annotated
+ * with RpcService (see RpcService for the generated classes).
+ *
+ * The generated code names every type by its qualified name, so that it needs
+ * no imports that may clash with the names in the interface's package.
+ */
+@SupportedAnnotationTypes("rpc.service.RpcService")
+public class RpcServiceProcessor extends AbstractProcessor {
+
+  private static class Method {
+    ExecutableElement element;
+    String name;
+    String constant; // Name of its RpcSignature constant
+    String returnType;
+    String boxedReturnType; // java.lang.Void for void
+    String returnClass; // Class literal of the erased return type
+    List<String> argTypes = new ArrayList<String>();
+    List<String> argClasses = new ArrayList<String>();
+    List<String> argNames = new ArrayList<String>();
+  }
+
+  private static class Service {
+    String packageName;
+    String interfaceName; // Qualified name, for the source
+    String hostClass; // Binary name, for the signatures
+    String prefix; // Simple name of the generated classes before their suffix
+    List<Method> methods = new ArrayList<Method>();
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(RpcService.class)) {
+      if (element.getKind() != ElementKind.INTERFACE) {
+        error(element, "@RpcService can only annotate an interface");
+        continue;
+      }
+      Service service = readService((TypeElement) element);
+      if (service == null) {
+        continue;
+      }
+      try {
+        write(element, service, "Rpc", generateSignatures(service));
+        write(element, service, "SpecRpcSkeleton", generateSkeleton(service, true));
+        write(element, service, "TradRpcSkeleton", generateSkeleton(service, false));
+        write(element, service, "SpecRpcStub", generateSpecRpcStub(service));
+        write(element, service, "TradRpcStub", generateTradRpcStub(service));
+      } catch (IOException e) {
+        error(element, "Failed to generate the RPC classes: " + e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  private void error(Element element, String message) {
+    this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  private void write(Element element, Service service, String suffix, String source) throws IOException {
+    String name = service.prefix + suffix;
+    if (!service.packageName.isEmpty()) {
+      name = service.packageName + "." + name;
+    }
+    Writer writer = this.processingEnv.getFiler().createSourceFile(name, element).openWriter();
+    try {
+      writer.write(source);
+    } finally {
+      writer.close();
+    }
+  }
+
+  // Returns null after reporting an error if the interface cannot be a service
+  private Service readService(TypeElement type) {
+    if (!type.getTypeParameters().isEmpty()) {
+      error(type, "An @RpcService interface cannot be generic");
+      return null;
+    }
+    Service service = new Service();
+    PackageElement packageElement = this.processingEnv.getElementUtils().getPackageOf(type);
+    service.packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+    service.interfaceName = type.getQualifiedName().toString();
+    service.hostClass = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+    // Outer.Inner becomes OuterInner
+    service.prefix = service.interfaceName.substring(service.packageName.isEmpty() ? 0
+        : service.packageName.length() + 1).replace(".", "");
+
+    List<ExecutableElement> elements = new ArrayList<ExecutableElement>();
+    collectMethods(type, elements, new HashSet<String>());
+    Set<String> constants = new HashSet<String>();
+    constants.add("HOST_CLASS");
+    constants.add("SIGNATURES");
+    boolean valid = true;
+    for (ExecutableElement element : elements) {
+      Method method = readMethod(element);
+      if (method == null) {
+        valid = false;
+        continue;
+      }
+      method.constant = unique(toConstantName(method.name), constants);
+      service.methods.add(method);
+    }
+    return valid ? service : null;
+  }
+
+  // Collects the abstract methods of the interface and the interfaces it extends
+  private void collectMethods(TypeElement type, List<ExecutableElement> methods, Set<String> signatures) {
+    for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+      if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+        continue;
+      }
+      StringBuilder signature = new StringBuilder(method.getSimpleName());
+      for (VariableElement parameter : method.getParameters()) {
+        signature.append(';').append(erasure(parameter.asType()));
+      }
+      if (signatures.add(signature.toString())) {
+        methods.add(method);
+      }
+    }
+    for (TypeMirror superInterface : type.getInterfaces()) {
+      collectMethods((TypeElement) this.processingEnv.getTypeUtils().asElement(superInterface), methods,
+          signatures);
+    }
+  }
+
+  private Method readMethod(ExecutableElement element) {
+    if (!element.getTypeParameters().isEmpty()) {
+      error(element, "An @RpcService method cannot be generic");
+      return null;
+    }
+    Method method = new Method();
+    method.element = element;
+    method.name = element.getSimpleName().toString();
+    TypeMirror returnType = element.getReturnType();
+    if (returnType.getKind() == TypeKind.TYPEVAR) {
+      error(element, "An @RpcService method cannot return a type variable");
+      return null;
+    }
+    method.returnType = returnType.toString();
+    method.returnClass = erasure(returnType) + ".class";
+    if (returnType.getKind() == TypeKind.VOID) {
+      method.boxedReturnType = "java.lang.Void";
+    } else if (returnType.getKind().isPrimitive()) {
+      method.boxedReturnType = this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) returnType)
+          .getQualifiedName().toString();
+    } else {
+      method.boxedReturnType = method.returnType;
+    }
+    for (VariableElement parameter : element.getParameters()) {
+      TypeMirror type = parameter.asType();
+      if (type.getKind() == TypeKind.TYPEVAR) {
+        error(element, "An @RpcService method cannot take a type variable");
+        return null;
+      }
+      method.argTypes.add(type.toString());
+      method.argClasses.add(erasure(type) + ".class");
+      method.argNames.add(parameter.getSimpleName().toString());
+    }
+    return method;
+  }
+
+  private String erasure(TypeMirror type) {
+    return this.processingEnv.getTypeUtils().erasure(type).toString();
+  }
+
+  // Returns the box of a primitive type, as args hold the arguments
+  private String boxed(Method method, int i) {
+    TypeMirror type = method.element.getParameters().get(i).asType();
+    if (type.getKind().isPrimitive()) {
+      return this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+    }
+    return method.argTypes.get(i);
+  }
+
+  // The type part of the MessageWriter and MessageReader methods of an
+  // argument, such as Int for writeInt(), or null for writeValue()
+  private static String valueMethod(Method method, int i) {
+    switch (method.element.getParameters().get(i).asType().getKind()) {
+    case BOOLEAN:
+      return "Boolean";
+    case BYTE:
+      return "Byte";
+    case SHORT:
+      return "Short";
+    case CHAR:
+      return "Char";
+    case INT:
+      return "Int";
+    case LONG:
+      return "Long";
+    case FLOAT:
+      return "Float";
+    case DOUBLE:
+      return "Double";
+    default:
+      return null;
+    }
+  }
+
+  // Writes each argument with the writer method of its type, so that none is boxed
+  private static String argumentWriter(Method method, String writer, String indent) {
+    StringBuilder lambda = new StringBuilder(writer).append(" -> {\n");
+    lambda.append(indent).append("  ").append(writer).append(".writeCount(").append(method.argNames.size())
+        .append(");\n");
+    for (int i = 0; i < method.argNames.size(); i++) {
+      String type = valueMethod(method, i);
+      lambda.append(indent).append("  ").append(writer).append(".write").append(type == null ? "Value" : type)
+          .append('(').append(method.argNames.get(i)).append(");\n");
+    }
+    return lambda.append(indent).append('}').toString();
+  }
+
+  // Reads an argument with the reader method of its type. The other objects
+  // than strings can only be read as values of their class.
+  private String argumentReader(Method method, int i) {
+    String type = valueMethod(method, i);
+    if (type != null) {
+      return "reader.read" + type + "()";
+    }
+    if (method.argTypes.get(i).equals("java.lang.String")) {
+      return "reader.readStringValue()";
+    }
+    return "(" + method.argTypes.get(i) + ") reader.readValue(" + method.argClasses.get(i) + ")";
+  }
+
+  // readValue -> READ_VALUE
+  private static String toConstantName(String methodName) {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < methodName.length(); i++) {
+      char c = methodName.charAt(i);
+      if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(methodName.charAt(i - 1))) {
+        name.append('_');
+      }
+      name.append(Character.toUpperCase(c));
+    }
+    return name.toString();
+  }
+
+  // Appends _2, _3... to a name that is already used, such as of an overloaded method
+  private static String unique(String name, Set<String> used) {
+    String unique = name;
+    for (int i = 2; !used.add(unique); i++) {
+      unique = name + "_" + i;
+    }
+    return unique;
+  }
+
+  private static void header(StringBuilder source, Service service) {
+    if (!service.packageName.isEmpty()) {
+      source.append("package ").append(service.packageName).append(";\n\n");
+    }
+    source.append("// Generated by ").append(RpcServiceProcessor.class.getName()).append(" from ")
+        .append(service.interfaceName).append(". Do not edit.\n\n");
+  }
+
+  private static String join(List<String> items, String prefix) {
+    StringBuilder joined = new StringBuilder();
+    for (String item : items) {
+      joined.append(prefix).append(item);
+    }
+    return joined.toString();
+  }
+
+  private static String parameters(Method method) {
+    StringBuilder parameters = new StringBuilder();
+    for (int i = 0; i < method.argNames.size(); i++) {
+      parameters.append(i == 0 ? "" : ", ").append(method.argTypes.get(i)).append(' ')
+          .append(method.argNames.get(i));
+    }
+    return parameters.toString();
+  }
+
+  private String generateSignatures(Service service) {
+    String name = service.prefix + "Rpc";
+    StringBuilder s = new StringBuilder();
+    header(s, service);
+    s.append("public final class ").append(name).append(" {\n\n");
+    s.append("  public static final java.lang.String HOST_CLASS = \"").append(service.hostClass).append("\";\n\n");
+    for (Method method : service.methods) {
+      s.append("  public static final specrpc.common.RpcSignature ").append(method.constant)
+          .append(" = new specrpc.common.RpcSignature(\n      HOST_CLASS, \"").append(method.name).append("\", ")
+          .append(method.returnClass).append(join(method.argClasses, ", ")).append(");\n\n");
+    }
+    s.append("  // In the order of the method indexes of the skeletons\n");
+    s.append("  static final specrpc.common.RpcSignature[] SIGNATURES = {");
+    for (int i = 0; i < service.methods.size(); i++) {
+      s.append(i == 0 ? " " : ", ").append(service.methods.get(i).constant);
+    }
+    s.append(" };\n\n");
+    s.append("  private ").append(name).append("() {\n  }\n\n");
+    s.append("  public static java.util.List<specrpc.common.RpcSignature> getSignatures() {\n");
+    s.append("    return java.util.Collections.unmodifiableList(java.util.Arrays.asList(SIGNATURES));\n");
+    s.append("  }\n\n");
+    s.append("  // Returns the index of the method with the signature, or -1\n");
+    s.append("  public static int indexOf(specrpc.common.RpcSignature signature) {\n");
+    s.append("    for (int i = 0; i < SIGNATURES.length; i++) {\n");
+    s.append("      if (SIGNATURES[i].equals(signature)) {\n");
+    s.append("        return i;\n");
+    s.append("      }\n");
+    s.append("    }\n");
+    s.append("    return -1;\n");
+    s.append("  }\n\n");
+    for (String register : new String[] { "register", "registerNotPersist" }) {
+      s.append("  // Registers every method of the service with the host objects of the factory\n");
+      s.append("  public static void ").append(register)
+          .append("(rpc.server.api.RpcServer server, rpc.server.api.RpcHostObjectFactory factory)\n");
+      s.append("      throws rpc.execption.UninitializationException {\n");
+      s.append("    checkFactory(factory);\n");
+      s.append("    for (specrpc.common.RpcSignature signature : SIGNATURES) {\n");
+      s.append("      server.").append(register)
+          .append("(signature.methodName, factory, signature.returnType, signature.argTypes);\n");
+      s.append("    }\n");
+      s.append("  }\n\n");
+    }
+    s.append("  private static void checkFactory(rpc.server.api.RpcHostObjectFactory factory) {\n");
+    s.append("    if (!HOST_CLASS.equals(factory.getRpcHostClassName())) {\n");
+    s.append("      throw new java.lang.IllegalArgumentException(\n");
+    s.append("          \"The factory hosts \" + factory.getRpcHostClassName() + \" instead of \" + HOST_CLASS);\n");
+    s.append("    }\n");
+    s.append("  }\n");
+    s.append("}\n");
+    return s.toString();
+  }
+
+  private String generateSkeleton(Service service, boolean isSpecRpc) {
+    String name = service.prefix + (isSpecRpc ? "SpecRpcSkeleton" : "TradRpcSkeleton");
+    String framework = isSpecRpc ? "specrpc.server.api.SpecRpcHost" : "tradrpc.server.api.TradRpcHost";
+    StringBuilder s = new StringBuilder();
+    header(s, service);
+    s.append("@java.lang.SuppressWarnings(\"unchecked\") // Casts of the arguments with type arguments\n");
+    s.append("public abstract class ").append(name).append(" extends ").append(framework).append("Object\n");
+    s.append("    implements ").append(service.interfaceName).append(", rpc.server.api.RpcDispatcher {\n\n");
+    s.append("  // Makes the host objects to register the service with\n");
+    s.append("  public static ").append(framework).append("Factory factory(\n");
+    s.append("      final java.util.function.Supplier<? extends ").append(name).append("> supplier) {\n");
+    s.append("    return new ").append(framework).append("Factory() {\n");
+    s.append("      @Override\n");
+    s.append("      public java.lang.String getRpcHostClassName() {\n");
+    s.append("        return ").append(service.prefix).append("Rpc.HOST_CLASS;\n");
+    s.append("      }\n\n");
+    s.append("      @Override\n");
+    s.append("      public ").append(framework).append(" getRpcHostObject() {\n");
+    s.append("        return supplier.get();\n");
+    s.append("      }\n");
+    s.append("    };\n");
+    s.append("  }\n\n");
+    s.append("  @Override\n");
+    s.append("  public int getMethodIndex(specrpc.common.RpcSignature signature) {\n");
+    s.append("    return ").append(service.prefix).append("Rpc.indexOf(signature);\n");
+    s.append("  }\n\n");
+    s.append("  @Override\n");
+    s.append("  public java.lang.Object dispatch(int methodIndex, java.lang.Object[] args)\n");
+    s.append("      throws java.lang.Exception {\n");
+    s.append("    switch (methodIndex) {\n");
+    for (int i = 0; i < service.methods.size(); i++) {
+      Method method = service.methods.get(i);
+      StringBuilder call = new StringBuilder(method.name).append('(');
+      for (int j = 0; j < method.argTypes.size(); j++) {
+        call.append(j == 0 ? "" : ", ").append('(').append(boxed(method, j)).append(") args[").append(j)
+            .append(']');
+      }
+      call.append(')');
+      s.append("    case ").append(i).append(":\n");
+      if (method.returnType.equals("void")) {
+        s.append("      ").append(call).append(";\n");
+        s.append("      return null;\n");
+      } else {
+        s.append("      return ").append(call).append(";\n");
+      }
+    }
+    s.append("    default:\n");
+    s.append("      throw new java.lang.IllegalArgumentException(\"No method \" + methodIndex + \" in \" + ")
+        .append(service.prefix).append("Rpc.HOST_CLASS);\n");
+    s.append("    }\n");
+    s.append("  }\n\n");
+    s.append("  @Override\n");
+    s.append("  public java.util.concurrent.Callable<java.lang.Object> readCall(int methodIndex,\n");
+    s.append("      rpc.communication.MessageReader reader) {\n");
+    s.append("    switch (methodIndex) {\n");
+    for (int i = 0; i < service.methods.size(); i++) {
+      Method method = service.methods.get(i);
+      s.append("    case ").append(i).append(": {\n");
+      s.append("      reader.readCount(").append(method.argTypes.size()).append(");\n");
+      StringBuilder call = new StringBuilder(method.name).append('(');
+      for (int j = 0; j < method.argTypes.size(); j++) {
+        s.append("      final ").append(method.argTypes.get(j)).append(" arg").append(j).append(" = ")
+            .append(argumentReader(method, j)).append(";\n");
+        call.append(j == 0 ? "" : ", ").append("arg").append(j);
+      }
+      call.append(')');
+      if (method.returnType.equals("void")) {
+        s.append("      return () -> {\n");
+        s.append("        ").append(call).append(";\n");
+        s.append("        return null;\n");
+        s.append("      };\n");
+      } else {
+        s.append("      return () -> ").append(call).append(";\n");
+      }
+      s.append("    }\n");
+    }
+    s.append("    default:\n");
+    s.append("      throw new java.lang.IllegalArgumentException(\"No method \" + methodIndex + \" in \" + ")
+        .append(service.prefix).append("Rpc.HOST_CLASS);\n");
+    s.append("    }\n");
+    s.append("  }\n");
+    s.append("}\n");
+    return s.toString();
+  }
+
+  private String generateSpecRpcStub(Service service) {
+    String name = service.prefix + "SpecRpcStub";
+    String signatures = service.prefix + "Rpc";
+    String exceptions = "rpc.execption.MethodNotRegisteredException, java.io.IOException,\n"
+        + "      specrpc.exception.SpeculationFailException";
+    StringBuilder s = new StringBuilder();
+    header(s, service);
+    s.append("public class ").append(name).append(" {\n\n");
+    s.append("  // Binds through the facade for the RPCs made in an RPC or a Callback, and is null otherwise\n");
+    s.append("  private final specrpc.common.api.SpecRpcFacade facade;\n");
+    s.append("  private final java.lang.String serverIdentity;\n");
+    s.append("  // Bound on the first call of each method\n");
+    s.append("  private final specrpc.client.api.SpecRpcClientStub[] stubs = new specrpc.client.api.SpecRpcClientStub[")
+        .append(service.methods.size()).append("];\n\n");
+    s.append("  public ").append(name).append("(java.lang.String serverIdentity) {\n");
+    s.append("    this(null, serverIdentity);\n");
+    s.append("  }\n\n");
+    s.append("  public ").append(name)
+        .append("(specrpc.common.api.SpecRpcFacade facade, java.lang.String serverIdentity) {\n");
+    s.append("    this.facade = facade;\n");
+    s.append("    this.serverIdentity = serverIdentity;\n");
+    s.append("  }\n\n");
+    s.append("  private specrpc.client.api.SpecRpcClientStub stub(int methodIndex) throws ").append(exceptions)
+        .append(" {\n");
+    s.append("    specrpc.client.api.SpecRpcClientStub stub = this.stubs[methodIndex];\n");
+    s.append("    if (stub == null) {\n");
+    s.append("      specrpc.common.RpcSignature signature = ").append(signatures)
+        .append(".SIGNATURES[methodIndex];\n");
+    s.append("      stub = this.facade == null\n");
+    s.append("          ? specrpc.client.api.SpecRpcClient.bind(this.serverIdentity, signature)\n");
+    s.append("          : this.facade.bind(this.serverIdentity, signature);\n");
+    s.append("      this.stubs[methodIndex] = stub;\n");
+    s.append("    }\n");
+    s.append("    return stub;\n");
+    s.append("  }\n");
+    for (int i = 0; i < service.methods.size(); i++) {
+      Method method = service.methods.get(i);
+      Set<String> names = new HashSet<String>(method.argNames);
+      String predictions = unique("predictions", names);
+      String factory = unique("factory", names);
+      String writer = unique("writer", names);
+      s.append("\n");
+      s.append("  public specrpc.client.api.SpecRpcTypedFuture<").append(method.boxedReturnType).append("> ")
+          .append(method.name).append("(").append(parameters(method)).append(")\n");
+      s.append("      throws ").append(exceptions).append(" {\n");
+      s.append("    return new specrpc.client.api.SpecRpcTypedFuture<").append(method.boxedReturnType)
+          .append(">(\n");
+      s.append("        stub(").append(i).append(").call(null, specrpc.client.api.ReturnValueCallbackFactory.INSTANCE,\n");
+      s.append("            ").append(argumentWriter(method, writer, "            ")).append("));\n");
+      s.append("  }\n\n");
+      s.append("  // Speculates with the predicted return values, the future giving the result of the Callback\n");
+      s.append("  public <T> specrpc.client.api.SpecRpcTypedFuture<T> ").append(method.name).append("(\n");
+      s.append("      java.util.List<").append(method.boxedReturnType).append("> ").append(predictions)
+          .append(", specrpc.client.api.SpecRpcCallbackFactory ").append(factory)
+          .append(method.argNames.isEmpty() ? "" : ", ").append(parameters(method)).append(")\n");
+      s.append("      throws ").append(exceptions).append(" {\n");
+      s.append("    return new specrpc.client.api.SpecRpcTypedFuture<T>(stub(").append(i).append(").call(\n");
+      s.append("        ").append(predictions).append(" == null ? null\n");
+      s.append("            : java.util.Collections.<java.lang.Object>unmodifiableList(").append(predictions)
+          .append("), ").append(factory).append(", ").append(argumentWriter(method, writer, "        "))
+          .append("));\n");
+      s.append("  }\n");
+    }
+    s.append("}\n");
+    return s.toString();
+  }
+
+  private String generateTradRpcStub(Service service) {
+    String name = service.prefix + "TradRpcStub";
+    String signatures = service.prefix + "Rpc";
+    String exceptions = "rpc.execption.MethodNotRegisteredException, java.io.IOException,\n"
+        + "      tradrpc.client.TradRpcUserException";
+    StringBuilder s = new StringBuilder();
+    header(s, service);
+    s.append("@java.lang.SuppressWarnings(\"unchecked\") // Casts of the return values with type arguments\n");
+    s.append("public class ").append(name).append(" {\n\n");
+    s.append("  private final java.lang.String serverIdentity;\n");
+    s.append("  // Bound on the first call of each method\n");
+    s.append("  private final tradrpc.client.api.TradRpcServerStub[] stubs = new tradrpc.client.api.TradRpcServerStub[")
+        .append(service.methods.size()).append("];\n\n");
+    s.append("  public ").append(name).append("(java.lang.String serverIdentity) {\n");
+    s.append("    this.serverIdentity = serverIdentity;\n");
+    s.append("  }\n\n");
+    s.append("  private tradrpc.client.api.TradRpcServerStub stub(int methodIndex)\n");
+    s.append("      throws rpc.execption.MethodNotRegisteredException, java.io.IOException {\n");
+    s.append("    tradrpc.client.api.TradRpcServerStub stub = this.stubs[methodIndex];\n");
+    s.append("    if (stub == null) {\n");
+    s.append("      stub = tradrpc.client.api.TradRpcClient.bind(this.serverIdentity, ").append(signatures)
+        .append(".SIGNATURES[methodIndex]);\n");
+    s.append("      this.stubs[methodIndex] = stub;\n");
+    s.append("    }\n");
+    s.append("    return stub;\n");
+    s.append("  }\n");
+    for (int i = 0; i < service.methods.size(); i++) {
+      Method method = service.methods.get(i);
+      String writer = unique("writer", new HashSet<String>(method.argNames));
+      String call = "stub(" + i + ").call(" + argumentWriter(method, writer, "    ") + ")";
+      s.append("\n");
+      s.append("  public ").append(method.returnType).append(' ').append(method.name).append('(')
+          .append(parameters(method)).append(")\n");
+      s.append("      throws ").append(exceptions).append(" {\n");
+      if (method.returnType.equals("void")) {
+        s.append("    ").append(call).append(";\n");
+      } else {
+        s.append("    return (").append(method.boxedReturnType).append(") ").append(call).append(";\n");
+      }
+      s.append("  }\n");
+    }
+    s.append("}\n");
+    return s.toString();
+  }
+}
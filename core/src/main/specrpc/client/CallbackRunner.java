@@ -16,12 +16,21 @@
 
 package specrpc.client;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
 import specrpc.client.api.SpecRpcCallback;
 import specrpc.common.SpecRpcFacadeObject;
 import specrpc.common.Status;
 import specrpc.common.Status.SpeculationStatus;
 import specrpc.exception.SpeculationFailException;
 
+/*
+ * The callback runs without holding any lock, and getResult() waits on a
+ * condition rather than the monitor, so that a virtual thread running or
+ * waiting for a callback does not pin its carrier thread.
+ */
 public class CallbackRunner implements Runnable {
 
   private SpecRpcCallback callback;
@@ -29,6 +38,14 @@ public class CallbackRunner implements Runnable {
   private Object rpcReturnValue;
   private Object callbackResult;
   private boolean isCallbackFinished;// flag indicating that whether this callback finished running
+  private boolean isRunFinished;// flag indicating that whether run() returned, after which the result is given
+
+  // Guards the flags, the result and its listener
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition runFinished = lock.newCondition();
+  // Gets the result once run() returns, for the ControlThread not to wait in
+  // getResult()
+  private Consumer<Object> resultListener;
 
   public CallbackRunner(SpecRpcCallback callback, Status callbackStatus, SpecRpcFacadeObject specRpcFacade,
       Object rpcReturnValue) {
@@ -38,13 +55,16 @@ public class CallbackRunner implements Runnable {
     this.rpcReturnValue = rpcReturnValue;
     this.callbackResult = null;
     this.isCallbackFinished = false;
+    this.isRunFinished = false;
+    this.resultListener = null;
   }
 
-  public synchronized void run() {
+  public void run() {
+    Object result = null;
+    boolean finished = false;
     try {
-      this.callbackResult = this.callback.run(this.rpcReturnValue);
-      this.isCallbackFinished = true;
-      notifyAll();
+      result = this.callback.run(this.rpcReturnValue);
+      finished = true;
     } catch (InterruptedException e) {
       e.printStackTrace();
     } catch (SpeculationFailException e) {
@@ -64,19 +84,56 @@ public class CallbackRunner implements Runnable {
         }
       }
     }
+
+    Consumer<Object> listener;
+    lock.lock();
+    try {
+      this.callbackResult = result;
+      this.isCallbackFinished = finished;
+      this.isRunFinished = true;
+      listener = this.resultListener;
+      runFinished.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (listener != null && finished) {
+      listener.accept(result);
+    }
+  }
+
+  // Passes the result to the listener when getResult() would return, which may
+  // be right away. A callback that does not finish never does, as in
+  // getResult().
+  public void onResult(Consumer<Object> listener) {
+    lock.lock();
+    try {
+      if (!this.isRunFinished) {
+        this.resultListener = listener;
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (this.isCallbackFinished) {
+      listener.accept(this.callbackResult);
+    }
   }
 
-  public synchronized Object getResult() throws InterruptedException {
-    while (isCallbackFinished == false) {
-      wait();
+  // Blocks until the callback finishes, and forever if it does not
+  public Object getResult() throws InterruptedException {
+    lock.lock();
+    try {
+      while (!(this.isRunFinished && this.isCallbackFinished)) {
+        runFinished.await();
+      }
+      return this.callbackResult;
+    } finally {
+      lock.unlock();
     }
-    return this.callbackResult;
   }
 
-  // setCallerStatus() & setCalleeStatus() should not be synchronized, because the
-  // thread running CallbackRunner owns the monitor until finishes running
-  // client-specified Callback that may block on SpecRPCFacade.specBlock()
-  // or waiting for next-level callback returns result (future.getResult())
+  // setCallerStatus() & setCalleeStatus() need no lock, as they only pass the
+  // status on to the SpecRPCFacade
   public void setCallerStatus(SpeculationStatus callerStatus) {
     this.specRpcFacade.setCallerStatus(callerStatus);
   }
@@ -85,8 +142,7 @@ public class CallbackRunner implements Runnable {
     this.specRpcFacade.setCalleeStatus(calleeStatus);
   }
 
-  // This method should not be synchronized because CallbackRunner (Thread) holds
-  // the monitor before it finishes the run() method.
+  // This method needs no lock, as the SpecRPCFacade keeps the status
   public SpeculationStatus getCallbackStatus() {
     return this.specRpcFacade.getCurrentRpcStatus();
   }
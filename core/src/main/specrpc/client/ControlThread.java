@@ -17,279 +17,390 @@
 package specrpc.client;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-
+import rpc.communication.ArgumentWriter;
+import rpc.communication.MessageCodecs;
+import rpc.communication.MessageReader;
+import rpc.execption.MethodNotRegisteredException;
 import rpc.execption.UserException;
 import specrpc.client.api.SpecRpcStatistics;
 import specrpc.common.StatusListener;
 import specrpc.common.Location;
+import specrpc.common.MethodKeys;
 import specrpc.common.RpcSignature;
 import specrpc.common.Status.SpeculationStatus;
 import specrpc.communication.CallerSpeculationSolvedMsg;
+import specrpc.communication.MethodKeyMsg;
 import specrpc.communication.RequestMsg;
 import specrpc.communication.ResponseExceptionMsg;
 import specrpc.communication.ResponseMsg;
 import specrpc.communication.ResponseValueMsg;
 import specrpc.communication.SpeculativeResponseValueMsg;
+import specrpc.communication.UnknownMethodKeyMsg;
 import specrpc.communication.CallerSpeculationSolvedMsg.Resolution;
 import specrpc.exception.UnexpectedResponseTypeException;
 
+/*
+ * ControlThread drives one RPC as a state machine, without holding a thread
+ * while the RPC is outstanding. run() connects and sends the request on a pool
+ * thread. After that, the RPC moves on events only: a response pushed by the
+ * connection, a change of the caller's status, and the correct callback
+ * finishing. The events are handled under the lock of the ControlThread, and
+ * none of them waits. The lock is not a monitor, which would pin the carrier of
+ * a virtual thread sending a message under it.
+ *
+ * If the server does not know the method key of the request, run() sends the
+ * request again with the signature, on a new connection, and in JSON if the
+ * server did not take the codec of the request. The events of the previous
+ * connection are dropped.
+ */
 public class ControlThread implements Runnable, StatusListener {
 
-  private final ExecutorService clientThreadPool;
   private final RpcSignature signature;
-  private final Object[] args;
+  private final ArgumentWriter arguments;
   private final Location serverLocation;
   private final CallbackManager callbacksManager;
   private final SpecRpcFutureObject future;
   private SpeculationStatus callerStatus;
+  // Pool that runs run(), again if the request is sent again
+  private final Executor executor;
+  // Key the request was sent with, 0 if sent with the signature
+  private long methodKey;
+  private RpcCommunication rpcCommThread;
+
+  // Flag for whether the request is sent, before which the events are only
+  // recorded
+  private boolean started;
 
   // Flag for whether the status of caller changed
   private boolean callerStatusChanged;
 
   // Flag for whether controlThread to listen on status change or more RPC
   // response
-  private boolean controlThreadTerminate;
+  private volatile boolean controlThreadTerminate;
+
+  // RPC response messages that arrived before the request was sent
+  private final Queue<MessageReader> messages;
+
+  // Flag for whether the final response (RETURN or EXCEPTION) was handled
+  private boolean responded;
 
-  // Flag for controlling RPCCommunicationThread deliver message
-  private boolean enableReadNextMessage;
+  // Flag for whether the server closed the connection, which is handled after
+  // the messages received before it
+  private boolean serverClosed;
 
-  // Flag for controlling reading RPC response message
-  private boolean nextMessageReady;
-  private String nextMessage;
+  private final ReentrantLock lock = new ReentrantLock();
 
-  public ControlThread(RpcSignature signature, Object[] args, Location serverLocation,
+  public ControlThread(RpcSignature signature, ArgumentWriter arguments, Location serverLocation,
       CallbackManager callbacksManager, SpecRpcFutureObject future, SpeculationStatus callerStatus,
-      ExecutorService threadPool) {
+      Executor executor) {
     this.signature = signature;
-    this.args = args;
+    this.arguments = arguments;
     this.serverLocation = serverLocation;
     this.callbacksManager = callbacksManager;
     this.future = future;
     this.callerStatus = callerStatus;
-    this.clientThreadPool = threadPool;
+    this.executor = executor;
+    this.rpcCommThread = null;
 
     // Initializes flags
+    this.started = false;
     this.callerStatusChanged = false;
     this.controlThreadTerminate = false;
-    this.enableReadNextMessage = false;
-    this.nextMessageReady = false;
-    this.nextMessage = null;
+    this.messages = new ArrayDeque<MessageReader>();
+    this.responded = false;
+    this.serverClosed = false;
   }
 
   @Override
-  public synchronized void run() {
-    /*
-     * Immediately aborts if the previous caller's status is FAILED. This is just a
-     * quick check so we don't waste a lot of time if we immediately know that the
-     * previous speculative was false. Save the value of the caller status and use
-     * that value until we serialize and send the RPC request.
-     */
-    if (this.callerStatus == SpeculationStatus.FAIL) {
-      // notify callbacks to abort
-      this.callbacksManager.callerStatusChanged(this.callerStatus);
-      // notify future to the callerStatus changed
-      this.future.callerStatusChanged(this.callerStatus);
-      return;
+  public void run() {
+    RequestMsg request;
+    lock.lock();
+    try {
+      /*
+       * Immediately aborts if the previous caller's status is FAILED. This is just
+       * a quick check so we don't waste a lot of time if we immediately know that
+       * the previous speculative was false. Save the value of the caller status and
+       * use that value until we serialize and send the RPC request.
+       */
+      if (this.callerStatus == SpeculationStatus.FAIL) {
+        this.controlThreadTerminate = true;
+        // notify callbacks to abort
+        this.callbacksManager.callerStatusChanged(this.callerStatus);
+        // notify future to the callerStatus changed
+        this.future.callerStatusChanged(this.callerStatus);
+        return;
+      }
+      methodKey = MethodKeys.get(this.serverLocation, this.signature);
+      request = new RequestMsg(this.callerStatus, methodKey, this.signature, this.arguments);
+    } finally {
+      lock.unlock();
     }
 
-    RpcCommunication rpcCommThread = null;
+    // Connects and invokes RPC, i.e., sending RPC request message, without the
+    // lock, so that the events meanwhile are recorded instead of waiting.
+    // Status changes are sent after the request.
+    RpcCommunication rpcComm = null;
     try {
-      // The actual thread of rpcCommThread is responsible for receiving messages
-      // The actual thread of ControlThread (this) is responsible for sending
-      // messages via calling the methods of rpcCommThread
-      // Communication connection is made in RPCCommunicationThread constructor
-      rpcCommThread = new RpcCommunication(this.serverLocation, this);
-      this.clientThreadPool.execute(rpcCommThread);// start the thread running rpcCommThread
-      // Invokes RPC, i.e., sending RPC request message.
-      rpcCommThread.send(new RequestMsg(this.callerStatus, this.signature, this.args));
-
-      // Enables rpcCommThread to read message
-      this.enableReadNextMessage = true;
-
-      // Parses RPC response messages
-      Gson gson = new Gson();
-      JsonParser parser = new JsonParser();
-
-      while (!controlThreadTerminate) {
-        // Handles speculation status change, only for SUCCEED & FAIL
-        if (callerStatusChanged) {
-          callerStatusChanged = false;
-
-          // CallbacksManager & Future do not automatically listen on the callerStatus.
-          // We need to notify them that the callerStatus changed.
-          this.callbacksManager.callerStatusChanged(this.callerStatus);
-          this.future.callerStatusChanged(this.callerStatus);
+      rpcComm = new RpcCommunication(this.serverLocation, this);
+      lock.lock();
+      try {
+        // Only the events of this connection are taken from now on
+        this.rpcCommThread = rpcComm;
+      } finally {
+        lock.unlock();
+      }
+      rpcComm.start();
+      rpcComm.send(request);
+    } catch (IOException | InterruptedException | MultiSocketValidException | ConnectionCloseException
+        | ExecutionException e) {
+      lock.lock();
+      try {
+        this.rpcCommThread = rpcComm;
+        this.handleException(e);
+      } finally {
+        lock.unlock();
+      }
+      return;
+    }
 
-          // Notifies RPC servers that speculation status changed and
-          // decides if we need to wait for more RPC response messages.
-          switch (this.callerStatus) {
-          case FAIL: {
-            rpcCommThread.send(new CallerSpeculationSolvedMsg(Resolution.ABORT));
-            controlThreadTerminate = true;
-            break;
-          }
-          case SUCCEED: {
-            rpcCommThread.send(new CallerSpeculationSolvedMsg(Resolution.COMMIT));
-            // Checks whether callee (i.e., RPC server) also commits.
-            if (this.callbacksManager.isCalleeSpecSolved()) {
-              // Delivers the result of correctCallBack to future.
-              // This may block until the correctCallbackRunner finishes running.
-              future.deliver(this.callbacksManager.getCorrectCallbackRunner().getResult());
-              controlThreadTerminate = true;
-            }
-            break;
-          }
-          default: {
-            // This should not happen
-            break;
-          }
-          }
-        } else if (nextMessageReady) {
-          // Handle a new RPC response message
-          // Consumes the message flag
-          nextMessageReady = false;
-          // Parses the received message
-          JsonArray array = parser.parse(nextMessage).getAsJsonArray();
-          ResponseMsg.ResponseType type = gson.fromJson(array.get(0), ResponseMsg.ResponseType.class);
-          switch (type) {
-          case RETURN: {
-            ResponseValueMsg valueMsg = new ResponseValueMsg(gson.fromJson(array.get(1), this.signature.returnType));
-            // When deciding the correct CallbackRunner,
-            // CallbacksManager will invalidate other CallbackRunners.
-            CallbackRunner correctCallbackRunner = this.callbacksManager
-                .determineCorrectCallbackRunner(valueMsg.returnValue);
-            // Checks whether caller also commits
-            if (correctCallbackRunner.getCallbackStatus() == SpeculationStatus.SUCCEED) {
-              this.future.deliver(correctCallbackRunner.getResult());
-              controlThreadTerminate = true;
-            }
-            break;
-          }
-          case SPEC_RETURN: {
-            SpeculativeResponseValueMsg specMsg = new SpeculativeResponseValueMsg(
-                gson.fromJson(array.get(1), this.signature.returnType));
-            // If there is no such a CallbackRunner running with this speculative value,
-            // starts such a CallbackRunner.
-            if (null == this.callbacksManager.getCallbackRunner(specMsg.returnValue)) {
-              this.callbacksManager.runCallback(specMsg.returnValue, SpeculationStatus.SPECULATIVE);
-              if (SpecRpcStatistics.isEnabled) {
-                SpecRpcStatistics.increaseTotalPredictionNumber();
-              }
-            }
-            break;
-          }
-          case EXCEPTION: {
-            ResponseExceptionMsg exceptionMsg = new ResponseExceptionMsg(gson.fromJson(array.get(1), String.class));
-            // Delivers the exception to future
-            this.future.deliverException(new UserException(exceptionMsg.getExceptionMsg()));
+    lock.lock();
+    try {
+      this.started = true;
+      if (this.callerStatusChanged) {
+        this.handleCallerStatusChange();
+      }
+      this.handleMessages();
+    } finally {
+      lock.unlock();
+    }
+  }
 
-            // Notifies all callbacks that the RPC failed
-            this.callbacksManager.invalidateAllCallbackRunners();
-            controlThreadTerminate = true;
-            break;
-          }
-          default: {
-            // Should not happen here
-            // TODO : needs a better fault handler, notifies future and callbacks, and
-            // terminates RPCCommThread
-            throw new UnexpectedResponseTypeException(type);
-          }
-          }
+  // Handles speculation status change, only for SUCCEED & FAIL
+  private void handleCallerStatusChange() {
+    callerStatusChanged = false;
 
-          // If not terminated, allows RPCCommThread to read the next message.
-          if (!controlThreadTerminate) {
-            this.enableReadNextMessage = true;
-          }
-        } else {
-          // ControlThread waits for status change or more messages.
-          // Notifies RPCCommThread to deliver message if any.
-          notifyAll();
-          // Waits for status change or new message.
-          wait();
-        }
+    // CallbacksManager & Future do not automatically listen on the callerStatus.
+    // We need to notify them that the callerStatus changed.
+    this.callbacksManager.callerStatusChanged(this.callerStatus);
+    this.future.callerStatusChanged(this.callerStatus);
 
-        // ControlThread is terminating
-        if (this.controlThreadTerminate == true) {
-          // Notifies RPCCommThread to run if it blocks on ControlThread's
-          // monitor.
-          notifyAll();
+    // Notifies RPC servers that speculation status changed and
+    // decides if we need to wait for more RPC response messages.
+    try {
+      switch (this.callerStatus) {
+      case FAIL: {
+        // Resolutions go first, so that the callee stops wasted work early
+        rpcCommThread.send(new CallerSpeculationSolvedMsg(Resolution.ABORT), MessagePriority.HIGH);
+        this.terminate();
+        break;
+      }
+      case SUCCEED: {
+        rpcCommThread.send(new CallerSpeculationSolvedMsg(Resolution.COMMIT), MessagePriority.HIGH);
+        // Checks whether callee (i.e., RPC server) also commits.
+        if (this.callbacksManager.isCalleeSpecSolved()) {
+          // Delivers the result of correctCallBack to future once it finishes.
+          this.callbacksManager.getCorrectCallbackRunner().onResult(this.future::deliver);
+          this.terminate();
         }
+        break;
+      }
+      default: {
+        // This should not happen
+        break;
       }
-    } catch (IOException | InterruptedException | UnexpectedResponseTypeException | MultiSocketValidException
-        | ConnectionCloseException | ExecutionException e) {
-      this.handleException(e);
-    } finally {
-      // Done. ContolThread terminates, closes the communication module on which the
-      // RPCCommThread blocks
-      if (rpcCommThread != null) {
-        rpcCommThread.closeCommModule();
       }
+    } catch (IOException | InterruptedException | MultiSocketValidException | ConnectionCloseException e) {
+      this.handleException(e);
     }
   }
 
-  private synchronized void handleException(Exception e) {
-    // Notifies callbacks that an exception happens.
-    this.callbacksManager.invalidateAllCallbackRunners();
-    // Notifies future that exception happens
-    this.future.deliverException(new UserException(e.getMessage()));
+  // Handles the RPC response messages until the ControlThread terminates
+  private void handleMessages() {
+    try {
+      while (!this.controlThreadTerminate && !messages.isEmpty()) {
+        this.handleMessage(messages.poll());
+      }
+    } catch (UnexpectedResponseTypeException e) {
+      this.handleException(e);
+    }
+    // The server is gone without a final response. After one, the server
+    // closing the connection is expected, and the RPC waits for its caller.
+    if (this.serverClosed && !this.responded && !this.controlThreadTerminate) {
+      this.callbacksManager.invalidateAllCallbackRunners();
+      this.future.deliverException(
+          new UserException(ConnectionCloseException.class.getName() + ": Connection closed by the server"));
+      this.terminate();
+    }
   }
 
-  // For RPCCommThread to check whether it is allowed to read message
-  public synchronized boolean isReadNextMessage() throws InterruptedException {
-    while (this.controlThreadTerminate == false && this.enableReadNextMessage == false) {
-      wait();
+  private void handleMessage(MessageReader nextMessage) throws UnexpectedResponseTypeException {
+    if (this.rpcCommThread.isCodecRejected()) {
+      // The server replied in JSON, the codec the requests to it go in now
+      MessageCodecs.fallBackToJson(this.serverLocation);
+      this.resend();
+      return;
+    }
+    // Parses the received message
+    ResponseMsg.ResponseType type = nextMessage.readEnum(ResponseMsg.ResponseType.class);
+    switch (type) {
+    case RETURN: {
+      this.responded = true;
+      ResponseValueMsg valueMsg = new ResponseValueMsg(nextMessage.readValue(this.signature.returnType));
+      // When deciding the correct CallbackRunner,
+      // CallbacksManager will invalidate other CallbackRunners.
+      CallbackRunner correctCallbackRunner = this.callbacksManager
+          .determineCorrectCallbackRunner(valueMsg.returnValue);
+      // Checks whether caller also commits
+      if (correctCallbackRunner.getCallbackStatus() == SpeculationStatus.SUCCEED) {
+        correctCallbackRunner.onResult(this.future::deliver);
+        this.terminate();
+      }
+      break;
+    }
+    case SPEC_RETURN: {
+      SpeculativeResponseValueMsg specMsg = new SpeculativeResponseValueMsg(
+          nextMessage.readValue(this.signature.returnType));
+      // If there is no such a CallbackRunner running with this speculative value,
+      // starts such a CallbackRunner.
+      if (null == this.callbacksManager.getCallbackRunner(specMsg.returnValue)) {
+        this.callbacksManager.runCallback(specMsg.returnValue, SpeculationStatus.SPECULATIVE);
+        if (SpecRpcStatistics.isEnabled) {
+          SpecRpcStatistics.increaseTotalPredictionNumber();
+        }
+      }
+      break;
+    }
+    case EXCEPTION: {
+      this.responded = true;
+      ResponseExceptionMsg exceptionMsg = new ResponseExceptionMsg(nextMessage.readString());
+      // Delivers the exception to future
+      this.future.deliverException(new UserException(exceptionMsg.getExceptionMsg()));
+
+      // Notifies all callbacks that the RPC failed
+      this.callbacksManager.invalidateAllCallbackRunners();
+      this.terminate();
+      break;
     }
+    case METHOD_KEY: {
+      MethodKeyMsg keyMsg = new MethodKeyMsg((Long) nextMessage.readValue(long.class));
+      MethodKeys.put(this.serverLocation, this.signature, keyMsg.methodKey);
+      break;
+    }
+    case UNKNOWN_METHOD_KEY: {
+      UnknownMethodKeyMsg keyMsg = new UnknownMethodKeyMsg((Long) nextMessage.readValue(long.class));
+      if (this.methodKey == 0) {
+        // Should not happen, as the request carried the signature
+        this.handleException(new MethodNotRegisteredException(keyMsg.methodKey));
+        break;
+      }
+      MethodKeys.remove(this.serverLocation, this.signature, this.methodKey);
+      this.resend();
+      break;
+    }
+    default: {
+      // Should not happen here
+      // TODO : needs a better fault handler, notifies future and callbacks
+      throw new UnexpectedResponseTypeException(type);
+    }
+    }
+  }
+
+  // Sends the request again from the pool, which never connects on the thread
+  // that delivered the response. The previous connection is no longer listened
+  // to before it is closed, and its pending messages are dropped.
+  private void resend() {
+    RpcCommunication previous = this.rpcCommThread;
+    this.rpcCommThread = null;
+    this.started = false;
+    this.messages.clear();
+    previous.closeCommModule();
+    this.executor.execute(this);
+  }
 
-    if (this.controlThreadTerminate == true) {
-      return false;
+  // Done. ContolThread terminates, and closes the communication module, after
+  // which the responses are dropped
+  private void terminate() {
+    this.controlThreadTerminate = true;
+    this.messages.clear();
+    if (this.rpcCommThread != null) {
+      this.rpcCommThread.closeCommModule();
     }
+  }
 
-    return this.enableReadNextMessage;// must be true
+  private void handleException(Exception e) {
+    // Notifies callbacks that an exception happens.
+    this.callbacksManager.invalidateAllCallbackRunners();
+    // Notifies future that exception happens
+    this.future.deliverException(new UserException(e.getMessage()));
+    this.terminate();
   }
 
   // Checks whether ControlThread terminates
-  public synchronized boolean isTerminated() {
+  public boolean isTerminated() {
     return this.controlThreadTerminate;
   }
 
-  // For RPCCommunicationThread to deliver message and wake up the ControlThread
-  public synchronized void deliverMessage(String message) throws InterruptedException {
-    nextMessageReady = true;
-    nextMessage = message;
-    this.enableReadNextMessage = false;
-    notifyAll();
+  // For RPCCommunication to push a response message, which is handled right
+  // away once the request is sent
+  public void pushMessage(RpcCommunication source, MessageReader message) {
+    lock.lock();
+    try {
+      if (this.controlThreadTerminate || source != this.rpcCommThread) {
+        return;
+      }
+      messages.add(message);
+      if (this.started) {
+        this.handleMessages();
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
-  // For RPCCommunicationThread to deliver unexpected exceptions and wakes up the
-  // ControlThread
-  // TODO: identify unexpected exceptions
-  public synchronized void deliverException(Exception e) throws InterruptedException {
-    nextMessageReady = true;
-    nextMessage = new ResponseExceptionMsg(e.toString()).serialize();
-    this.enableReadNextMessage = false;
-    notifyAll();
+  // For RPCCommunication to tell that the server closed the connection, after
+  // the messages it pushed before
+  public void pushClose(RpcCommunication source) {
+    lock.lock();
+    try {
+      if (this.controlThreadTerminate || source != this.rpcCommThread) {
+        return;
+      }
+      this.serverClosed = true;
+      if (this.started) {
+        this.handleMessages();
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   // Listens on callerStatus
   // When callerStatus changes, this method will be triggered
-  // and wakes up the blocking thread.
+  // and handles the change once the request is sent.
   @Override
-  public synchronized void statusChanged(SpeculationStatus status) {
-    if (status != SpeculationStatus.SPECULATIVE && this.callerStatus != status) {
-      this.callerStatus = status;
-      // Notifies that caller status changed
-      callerStatusChanged = true;
-      // Wakes up blocking thread
-      notifyAll();
+  public void statusChanged(SpeculationStatus status) {
+    lock.lock();
+    try {
+      if (status != SpeculationStatus.SPECULATIVE && this.callerStatus != status) {
+        this.callerStatus = status;
+        // Notifies that caller status changed
+        callerStatusChanged = true;
+        if (this.started && !this.controlThreadTerminate) {
+          this.handleCallerStatusChange();
+        }
+      }
+    } finally {
+      lock.unlock();
     }
   }
 }
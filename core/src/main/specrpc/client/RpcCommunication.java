@@ -18,20 +18,28 @@ package specrpc.client;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
 import rpc.communication.Communication;
 import rpc.communication.Message;
+import rpc.communication.MessageReader;
 import specrpc.common.Location;
 
 /*
- * RPCCommThread starts the RPC request, waits for RPC response,
- * and provides the function of sending more messages (if any).
+ * RPCCommThread starts the RPC request, and provides the function of sending
+ * more messages (if any).
+ *
+ * The responses are pushed to the ControlThread by the thread that receives
+ * them, so that the RPC does not hold a thread to wait for them.
  */
-public class RpcCommunication implements Runnable {
+public class RpcCommunication implements MessageListener {
   // RPC communication Model
   private final Communication commModule;
   private final ControlThread controlThread;
@@ -42,11 +50,28 @@ public class RpcCommunication implements Runnable {
     this.controlThread = controlThread;
   }
 
+  // Starts receiving the responses to the ControlThread, which never waits when
+  // handling them
+  public void start() {
+    commModule.setMessageListener(this, null);
+  }
+
   public void send(Message msg)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
     // Server provides a thread-safe send, so we don't need to make this
     // synchronized
-    commModule.send(msg.serialize());
+    commModule.send(msg);
+  }
+
+  public void send(Message msg, MessagePriority priority)
+      throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
+    commModule.send(msg, priority);
+  }
+
+  // Whether the server replied in JSON to a request in another codec, which it
+  // did not take
+  public boolean isCodecRejected() {
+    return commModule.isCodecRejected();
   }
 
   // ControlThread is responsible for closing the communication module
@@ -62,55 +87,21 @@ public class RpcCommunication implements Runnable {
     }
   }
 
-  public synchronized void run() {
-    try {
-      while (this.controlThread.isReadNextMessage()) {// block until ControlThread allow this to read
-        // Block on the communication module until:
-        // (1) read message from communication module;
-        // (2) controlThread closes communication module;
-        // (3) server side close communication module;
-        //
-        // In (2) & (3), there will be two situations:
-        // (a) getMessage() return null, because getMessage() is
-        // waken up soon after the communication close;
-        // (b) SocketException is thrown, because getMessage() is
-        // waken up long after the communication close,
-        // in which case the timeout of the socket expires.
-        // Two kinds of SocketException would happen:
-        // (i) socket closed; and (ii) socket connection reset.
-
-        String responseMsg = commModule.getMessage(); // null or SockeException
-
-        if (responseMsg != null) {
-          // Normal message
-          // Blocks on controlThread's monitor until be waken up
-          controlThread.deliverMessage(responseMsg);
-        } else {
-          // Null is read when communication module is closed or exception happens
-          // TODO: Distinguishes these two scenarios.
-          break;
-        }
-      }
-    } catch (InterruptedException | ConnectionCloseException e) {
-      this.handleException(e);
+  @Override
+  public void onMessage(IConnection connection, ByteBuffer message) {
+    if (!this.controlThread.isTerminated()) {
+      MessageReader responseMsg = commModule.getMessageReader(message);
+      controlThread.pushMessage(this, responseMsg);
     }
   }
 
-  private synchronized void handleException(Exception e) {
-    // Exception happens because of ControlThread closes socket or buffer
-    if (this.controlThread.isTerminated()) {
-      // Does nothing
-      ;
-    } else {
-      // Lets the ControlThread know exception happens and not wait on message
-      // TODO: we need a better way to deal with different types of exceptions
-      e.printStackTrace(); // Unknown exception happens
-      try {
-        // The exception is passed to controlThread as RpcUserException
-        this.controlThread.deliverException(e);
-      } catch (InterruptedException e1) {
-        e1.printStackTrace();
-      }
+  // The server closes the connection after its final response, which the
+  // ControlThread may not have handled yet, or may be waiting for the caller's
+  // status after. It only fails the RPC if no final response came before.
+  @Override
+  public void onClose(IConnection connection) {
+    if (!this.controlThread.isTerminated()) {
+      this.controlThread.pushClose(this);
     }
   }
 }
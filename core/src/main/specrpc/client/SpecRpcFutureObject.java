@@ -16,6 +16,13 @@
 
 package specrpc.client;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import rpc.execption.UserException;
 import specrpc.client.api.SpecRpcFuture;
 import specrpc.common.Status.SpeculationStatus;
@@ -26,6 +33,9 @@ import specrpc.exception.SpeculationFailException;
  * value (deliver), throw an exception (deliverException), or if the client
  * RPC that it is dependent on (in an iterative speculation) change its 
  * status to FAIL.
+ *
+ * The first of them also completes the stage of the future, in the executor,
+ * as the exceptions are delivered by the thread receiving them.
  */
 
 // Future listens on caller's Status not the status of current callback
@@ -38,49 +48,117 @@ public class SpecRpcFutureObject implements SpecRpcFuture {
   private UserException exception = null;
   private SpeculationStatus callerStatus;// This is not the status of current callbacks
 
-  public SpecRpcFutureObject(SpeculationStatus callerStatus) {
+  // Waiting on a condition rather than the monitor does not pin the carrier of
+  // a virtual thread
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition completed = lock.newCondition();
+
+  private final CompletableFuture<Object> stage;
+  private final Executor stageExecutor;
+  private boolean stageCompleted = false;
+
+  public SpecRpcFutureObject(SpeculationStatus callerStatus, Executor stageExecutor) {
     this.resultDelivered = false;
     this.callerStatus = callerStatus;
+    this.stage = new CompletableFuture<Object>();
+    this.stageExecutor = stageExecutor;
+    // The status changes to FAIL are not told to a future already failed
+    if (callerStatus == SpeculationStatus.FAIL) {
+      this.stageCompleted = true;
+      this.stage.completeExceptionally(new SpeculationFailException());
+    }
   }
 
   @Override
-  public synchronized Object getResult() throws InterruptedException, UserException, SpeculationFailException {
-    while (this.resultDelivered == false && this.exception == null && this.callerStatus != SpeculationStatus.FAIL) {
-      // Waits until there is a status change, or we can a result or exception.
-      this.wait();
-    }
+  public CompletionStage<Object> toCompletionStage() {
+    return this.stage;
+  }
 
-    // TODO: Need to check callback's status?
-    if (this.callerStatus == SpeculationStatus.FAIL) {
-      throw new SpeculationFailException();
+  // Completes the stage in the executor, so that the functions composed on it
+  // do not run in the caller, which may be an I/O thread or hold the lock
+  private void completeStage(Object result, Throwable exception) {
+    if (this.stageCompleted) {
+      return;
     }
-
-    if (this.exception != null) {
-      throw this.exception;
+    this.stageCompleted = true;
+    Runnable completion = () -> {
+      if (exception == null) {
+        stage.complete(result);
+      } else {
+        stage.completeExceptionally(exception);
+      }
+    };
+    try {
+      this.stageExecutor.execute(completion);
+    } catch (RejectedExecutionException e) {
+      // The client is shutting down, completes it here rather than never
+      completion.run();
     }
+  }
 
-    // Returns the actual result, which could be null.
-    return result;
+  @Override
+  public Object getResult() throws InterruptedException, UserException, SpeculationFailException {
+    lock.lock();
+    try {
+      while (this.resultDelivered == false && this.exception == null && this.callerStatus != SpeculationStatus.FAIL) {
+        // Waits until there is a status change, or we can a result or exception.
+        completed.await();
+      }
+
+      // TODO: Need to check callback's status?
+      if (this.callerStatus == SpeculationStatus.FAIL) {
+        throw new SpeculationFailException();
+      }
+
+      if (this.exception != null) {
+        throw this.exception;
+      }
+
+      // Returns the actual result, which could be null.
+      return result;
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void deliver(Object result) {
-    this.result = result;
-    this.resultDelivered = true;
-    this.notifyAll();
+  public void deliver(Object result) {
+    lock.lock();
+    try {
+      this.result = result;
+      this.resultDelivered = true;
+      completed.signalAll();
+      this.completeStage(result, null);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void deliverException(UserException exception) {
-    this.exception = exception;
-    this.notifyAll();
+  public void deliverException(UserException exception) {
+    lock.lock();
+    try {
+      this.exception = exception;
+      completed.signalAll();
+      this.completeStage(null, exception);
+    } finally {
+      lock.unlock();
+    }
   }
 
   // ControlThread is responsible for notifying Future that callerStatus changes
-  public synchronized void callerStatusChanged(SpeculationStatus callerStatus) {
-    if (this.callerStatus != callerStatus) {
-      this.callerStatus = callerStatus;
-      this.notifyAll();
+  public void callerStatusChanged(SpeculationStatus callerStatus) {
+    lock.lock();
+    try {
+      if (this.callerStatus != callerStatus) {
+        this.callerStatus = callerStatus;
+        completed.signalAll();
+        if (callerStatus == SpeculationStatus.FAIL) {
+          this.completeStage(null, new SpeculationFailException());
+        }
+      }
+    } finally {
+      lock.unlock();
     }
   }
 }
@@ -19,6 +19,7 @@ package specrpc.client;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+import rpc.communication.ArgumentWriter;
 import specrpc.client.api.SpecRpcCallbackFactory;
 import specrpc.client.api.SpecRpcFuture;
 import specrpc.client.api.SpecRpcClientStub;
@@ -59,6 +60,12 @@ public class SpecRpcServerStubObject implements SpecRpcClientStub {
   @Override
   public SpecRpcFuture call(List<Object> predictedValues, SpecRpcCallbackFactory factory, Object... args)
       throws SpeculationFailException {
+    return call(predictedValues, factory, writer -> writer.writeValues(args));
+  }
+
+  @Override
+  public SpecRpcFuture call(List<Object> predictedValues, SpecRpcCallbackFactory factory, ArgumentWriter arguments)
+      throws SpeculationFailException {
     // Future structure contains the result or exception of the correct callback
     SpecRpcFutureObject future = null;
     CallbackManager callbacksManager = null;
@@ -90,15 +97,15 @@ public class SpecRpcServerStubObject implements SpecRpcClientStub {
 
     // After getting the result or exception of callback puts the result or
     // exception into Future.
-    future = new SpecRpcFutureObject(initialCallerStatus);
+    future = new SpecRpcFutureObject(initialCallerStatus, this.clientThreadPool);
 
     // ControlThread will invoke RPC. ControlThread must consume the
     // initialCallerStatus instead of current callerStatus because some objects
     // under ControlThread only know the initialCallerStatus. If ControlThread
     // consume current callerStatus, these objects will not be notified the change,
     // and then deadlock will happen.
-    ControlThread controlThread = new ControlThread(this.signature, args, this.serverLocation, callbacksManager, future,
-        initialCallerStatus, this.clientThreadPool);
+    ControlThread controlThread = new ControlThread(this.signature, arguments, this.serverLocation, callbacksManager,
+        future, initialCallerStatus, this.clientThreadPool);
 
     // ControlThread listen on the callerStatus
     this.callerStatus.addListener(controlThread);
@@ -113,7 +120,8 @@ public class SpecRpcServerStubObject implements SpecRpcClientStub {
     // the statusChanged() competes with the run(),
     // which may delay the future return when run()
     // happens before statusChanged() since in run()
-    // there is blocking network connection
+    // there is blocking network connection.
+    // The pool thread is released once the request is sent.
     // TODO: checks if this invalids the correctness
     this.clientThreadPool.execute(controlThread);
 
@@ -0,0 +1,40 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.client.api;
+
+import specrpc.exception.SpeculationFailException;
+
+/*
+ * Makes Callbacks that return the RPC's return value, so that the future of an
+ * RPC gives its result.
+ */
+public class ReturnValueCallbackFactory implements SpecRpcCallbackFactory {
+
+  public static final ReturnValueCallbackFactory INSTANCE = new ReturnValueCallbackFactory();
+
+  private static class ReturnValueCallback extends SpecRpcCallbackObject {
+    @Override
+    public Object run(Object rpcReturnValue) throws SpeculationFailException, InterruptedException {
+      return rpcReturnValue;
+    }
+  }
+
+  @Override
+  public SpecRpcCallback createCallback() {
+    return new ReturnValueCallback();
+  }
+}
@@ -20,11 +20,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import rpc.communication.Communication;
 import rpc.config.Constants;
+import rpc.config.ThreadPools;
 import rpc.execption.MethodNotRegisteredException;
 import specrpc.client.SpecRpcServerStubObject;
 import specrpc.common.RpcConfig;
@@ -49,10 +49,11 @@ public class SpecRpcClient {
       return;
     }
 
+    RpcConfig config = new RpcConfig(configFile);
+
     // Initializes communication module
-    Communication.initClientCommunication();
+    Communication.initClientCommunication(config);
 
-    RpcConfig config = new RpcConfig(configFile);
     // Reads from the client properties file to determine the location
     // of the directory server (host:port)
     // NOTE: This might currently not be used.
@@ -72,8 +73,8 @@ public class SpecRpcClient {
     // deadlock
     int threadPoolSize = Integer.parseInt(config.get(Constants.SPECRPC_CLIENT_THREADPOOL_SIZE_PROPERTY,
         Constants.DEFAULT_SPECRPC_CLIENT_THREADPOOL_SIZE));
-    clientThreadPool = threadPoolSize > 0 ? Executors.newFixedThreadPool(threadPoolSize)
-        : Executors.newCachedThreadPool();
+    clientThreadPool = ThreadPools.newThreadPool(config.get(Constants.SPECRPC_CLIENT_THREADPOOL_TYPE_PROPERTY,
+        Constants.DEFAULT_SPECRPC_CLIENT_THREADPOOL_TYPE), threadPoolSize);
 
     SpecRpcStatistics.setIsEnabled(Boolean.parseBoolean(
         config.get(Constants.SPECRPC_STATISTICS_ENABLED_PROPERTY, Constants.DEFAULT_SPECRPC_STATISTICS_ENABLE)));
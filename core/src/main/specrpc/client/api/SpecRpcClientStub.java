@@ -18,10 +18,16 @@ package specrpc.client.api;
 
 import java.util.List;
 
+import rpc.communication.ArgumentWriter;
 import specrpc.exception.SpeculationFailException;
 
 public interface SpecRpcClientStub {
 
   SpecRpcFuture call(List<Object> predictedValue, SpecRpcCallbackFactory factory, Object... args)
       throws SpeculationFailException;
+
+  // The call with the arguments the writer writes, each in its own type, as the
+  // generated stubs make it so that no argument is boxed into an array
+  SpecRpcFuture call(List<Object> predictedValue, SpecRpcCallbackFactory factory, ArgumentWriter arguments)
+      throws SpeculationFailException;
 }
@@ -16,6 +16,8 @@
 
 package specrpc.client.api;
 
+import java.util.concurrent.CompletionStage;
+
 import rpc.execption.UserException;
 import specrpc.exception.SpeculationFailException;
 
@@ -27,4 +29,13 @@ public interface SpecRpcFuture {
 
   public void deliverException(UserException rpcUserException);
 
+  /*
+   * A stage that completes with the result, or exceptionally with the
+   * UserException or a SpeculationFailException when the caller's status is
+   * FAIL, whichever comes first. Composing on it needs no thread to wait, and
+   * the functions added before it completes run in the client thread pool,
+   * never in the threads doing network I/O.
+   */
+  public CompletionStage<Object> toCompletionStage();
+
 }
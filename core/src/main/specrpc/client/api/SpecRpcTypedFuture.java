@@ -0,0 +1,49 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.client.api;
+
+import java.util.concurrent.CompletionStage;
+
+import rpc.execption.UserException;
+import specrpc.exception.SpeculationFailException;
+
+/*
+ * A SpecRpcFuture whose result has a known type, as returned by the stubs
+ * generated from an RpcService interface.
+ */
+public class SpecRpcTypedFuture<T> {
+
+  private final SpecRpcFuture future;
+
+  public SpecRpcTypedFuture(SpecRpcFuture future) {
+    this.future = future;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T getResult() throws InterruptedException, UserException, SpeculationFailException {
+    return (T) this.future.getResult();
+  }
+
+  @SuppressWarnings("unchecked")
+  public CompletionStage<T> toCompletionStage() {
+    return this.future.toCompletionStage().thenApply(result -> (T) result);
+  }
+
+  public SpecRpcFuture getFuture() {
+    return this.future;
+  }
+}
@@ -17,6 +17,7 @@
 package specrpc.common;
 
 import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
@@ -42,71 +43,82 @@ public class CallbackClientStub implements SpecRpcServerStub {
   // wait() in this CallbackClientStub
   public SpecRpcFacadeObject specRpcFacade;
   private boolean isSpecRpcFacadeSet;
+  // Guards the callback status and the returns. Not a monitor, which would pin
+  // the carrier of a virtual thread while it writes to the network
+  private final ReentrantLock lock;
 
   public CallbackClientStub(SpecRpcServerStub clientStub, SpeculationStatus status) {
     this.clientStub = clientStub;
     this.callbackStatus = status;
     this.isSpecRpcFacadeSet = false;
+    this.lock = new ReentrantLock();
   }
 
   // This method is only called once and must be called after initialization
-  public synchronized void setSpecRPCFacade(SpecRpcFacadeObject specRPCFacade) {
-    if (this.isSpecRpcFacadeSet) {
-      return;
-    }
+  public void setSpecRPCFacade(SpecRpcFacadeObject specRPCFacade) {
+    this.lock.lock();
+    try {
+      if (this.isSpecRpcFacadeSet) {
+        return;
+      }
 
-    this.specRpcFacade = specRPCFacade;
-    this.isSpecRpcFacadeSet = true;
+      this.specRpcFacade = specRPCFacade;
+      this.isSpecRpcFacadeSet = true;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   private Object nonSpecReturnSentAsSpec;
   private boolean aNonSpecReturnWasSentAsSpec = false;
 
   @Override
-  public synchronized void sendNonSpecReturn(Object value) throws NoClientStubException, SpeculationFailException,
+  public void sendNonSpecReturn(Object value) throws NoClientStubException, SpeculationFailException,
       InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
     if (this.clientStub == null) {
       throw new NoClientStubException();
     }
 
-    switch (this.callbackStatus) {
-    case SPECULATIVE:
-      this.nonSpecReturnSentAsSpec = value;
-      this.aNonSpecReturnWasSentAsSpec = true;
-      this.clientStub.sendSpecReturn(value);
-      break;
-    case SUCCEED:
-      this.clientStub.sendNonSpecReturn(value);
-      break;
-    case FAIL:
-      throw new SpeculationFailException();
+    this.lock.lock();
+    try {
+      switch (this.callbackStatus) {
+      case SPECULATIVE:
+        this.nonSpecReturnSentAsSpec = value;
+        this.aNonSpecReturnWasSentAsSpec = true;
+        this.clientStub.sendSpecReturn(value);
+        break;
+      case SUCCEED:
+        this.clientStub.sendNonSpecReturn(value);
+        break;
+      case FAIL:
+        throw new SpeculationFailException();
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
 
   @Override
-  public synchronized void sendSpecReturn(Object value) throws NoClientStubException, SpeculationFailException,
+  public void sendSpecReturn(Object value) throws NoClientStubException, SpeculationFailException,
       InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
 
     if (this.clientStub == null) {
       throw new NoClientStubException();
     }
 
-    if (this.callbackStatus == SpeculationStatus.FAIL) {
-      throw new SpeculationFailException();
-    }
+    this.lock.lock();
     try {
+      if (this.callbackStatus == SpeculationStatus.FAIL) {
+        throw new SpeculationFailException();
+      }
       this.clientStub.sendSpecReturn(value);
-    } catch (IOException e) {
-      throw e;
-    } catch (MultiSocketValidException e) {
-      throw e;
-    } catch (ConnectionCloseException e) {
-      throw e;
+    } finally {
+      this.lock.unlock();
     }
   }
 
   @Override
-  // NOTE: do not use synchronized here to avoid deadlock between this and
+  // NOTE: do not hold the lock here to avoid deadlock between this and
   // statusChanged
   public void throwNonSpecException(String message) throws NoClientStubException, SpeculationFailException,
       InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
@@ -118,8 +130,8 @@ public class CallbackClientStub implements SpecRpcServerStub {
     this.specRpcFacade.specBlock();// notified by the status change of specRPCFacade but not by this object itself
 
     /*
-     * Can not wait on CallbackClientStub's monitor because deadlock happens on
-     * SpecRPCFacade's monitor
+     * Can not wait on CallbackClientStub's lock because deadlock happens on
+     * SpecRPCFacade's lock
      * 
      * while (this.callbackStatus == SpeculationStatus.SPECULATIVE) { wait(); }
      * 
@@ -132,23 +144,26 @@ public class CallbackClientStub implements SpecRpcServerStub {
   }
 
   // When callback's status change, this method is callbed by SpecRPCFacade
-  public synchronized void callbackStatusChanged(SpeculationStatus callbackStatus) {
-    if (this.callbackStatus != callbackStatus) {
-      this.callbackStatus = callbackStatus;
-      if (aNonSpecReturnWasSentAsSpec && this.callbackStatus == SpeculationStatus.SUCCEED) {
-        try {
-          // Debug Info
-          // System.out.println("Debug Info : " + nonSpecReturnSentAsSpec.toString() + "@
-          // callbackStatusChanged() in CallbackClientStub.java");
-          this.sendNonSpecReturn(nonSpecReturnSentAsSpec);
-        } catch (NoClientStubException | SpeculationFailException | InterruptedException | IOException
-            | MultiSocketValidException | ConnectionCloseException e) {
-          // TODO: Use a better way to handle exceptions
-          e.printStackTrace();
+  public void callbackStatusChanged(SpeculationStatus callbackStatus) {
+    this.lock.lock();
+    try {
+      if (this.callbackStatus != callbackStatus) {
+        this.callbackStatus = callbackStatus;
+        if (aNonSpecReturnWasSentAsSpec && this.callbackStatus == SpeculationStatus.SUCCEED) {
+          try {
+            // Debug Info
+            // System.out.println("Debug Info : " + nonSpecReturnSentAsSpec.toString() + "@
+            // callbackStatusChanged() in CallbackClientStub.java");
+            this.sendNonSpecReturn(nonSpecReturnSentAsSpec);
+          } catch (NoClientStubException | SpeculationFailException | InterruptedException | IOException
+              | MultiSocketValidException | ConnectionCloseException e) {
+            // TODO: Use a better way to handle exceptions
+            e.printStackTrace();
+          }
         }
       }
-      // TODO: Removes this since there should be nothing waiting on this object
-      notifyAll();
+    } finally {
+      this.lock.unlock();
     }
   }
 
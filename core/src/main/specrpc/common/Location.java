@@ -16,25 +16,70 @@
 
 package specrpc.common;
 
+/*
+ * Where a server listens, as hostname:port for TCP, or as unix:<path> for a
+ * Unix domain socket of this host.
+ */
 public class Location {
 
   public static final String SEPERATOR = ":";
+  public static final String UNIX_SCHEME = "unix:";
+  private static final String UNIX_HOSTNAME = "localhost";
 
   final public String hostname;
   final public int port;
+  final public String path; // Of the Unix domain socket, null for TCP
 
+  // A hostname of the form unix:<path> makes a Unix domain socket location,
+  // whose port is not used.
   public Location(String hostname, int port) {
-    this.hostname = hostname;
-    this.port = port;
+    if (hostname.startsWith(UNIX_SCHEME)) {
+      this.hostname = UNIX_HOSTNAME;
+      this.port = 0;
+      this.path = hostname.substring(UNIX_SCHEME.length());
+    } else {
+      this.hostname = hostname;
+      this.port = port;
+      this.path = null;
+    }
   }
 
   public Location(String str) {
-    String[] parts = str.split(SEPERATOR);
-    this.hostname = parts[0];
-    this.port = Integer.parseInt(parts[1]);
+    if (str.startsWith(UNIX_SCHEME)) {
+      this.hostname = UNIX_HOSTNAME;
+      this.port = 0;
+      this.path = str.substring(UNIX_SCHEME.length());
+    } else {
+      String[] parts = str.split(SEPERATOR);
+      this.hostname = parts[0];
+      this.port = Integer.parseInt(parts[1]);
+      this.path = null;
+    }
+  }
+
+  public boolean isUnix() {
+    return this.path != null;
   }
 
   public String toString() {
+    if (this.path != null) {
+      return UNIX_SCHEME + this.path;
+    }
     return this.hostname + SEPERATOR + this.port;
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Location)) {
+      return false;
+    }
+    Location location = (Location) obj;
+    return this.port == location.port && this.hostname.equals(location.hostname)
+        && (this.path == null ? location.path == null : this.path.equals(location.path));
+  }
+
+  @Override
+  public int hashCode() {
+    return this.path != null ? this.path.hashCode() : this.hostname.hashCode() * 31 + this.port;
+  }
 }
@@ -0,0 +1,62 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Keys of the methods the servers told the clients of this process, by server
+ * location. A request whose method has a key here carries the key instead of
+ * the signature. The key is forgotten once the server tells that it does not
+ * know the key, e.g. as it restarted with other keys.
+ */
+public class MethodKeys {
+
+  private static final ConcurrentHashMap<Location, Map<RpcSignature, Long>> keys =
+      new ConcurrentHashMap<Location, Map<RpcSignature, Long>>();
+
+  // Returns 0 if the server did not tell the key yet
+  public static long get(Location serverLocation, RpcSignature signature) {
+    Map<RpcSignature, Long> serverKeys = keys.get(serverLocation);
+    if (serverKeys == null) {
+      return 0;
+    }
+    Long key = serverKeys.get(signature);
+    return key == null ? 0 : key;
+  }
+
+  public static void put(Location serverLocation, RpcSignature signature, long key) {
+    Map<RpcSignature, Long> serverKeys = keys.get(serverLocation);
+    if (serverKeys == null) {
+      serverKeys = new ConcurrentHashMap<RpcSignature, Long>();
+      Map<RpcSignature, Long> existing = keys.putIfAbsent(serverLocation, serverKeys);
+      if (existing != null) {
+        serverKeys = existing;
+      }
+    }
+    serverKeys.put(signature, key);
+  }
+
+  // Keeps a newer key, which another call may have been told meanwhile
+  public static void remove(Location serverLocation, RpcSignature signature, long key) {
+    Map<RpcSignature, Long> serverKeys = keys.get(serverLocation);
+    if (serverKeys != null) {
+      serverKeys.remove(signature, key);
+    }
+  }
+}
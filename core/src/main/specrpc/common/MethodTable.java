@@ -0,0 +1,72 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.common;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Method IDs of the signatures registered on a server. A client that sends a
+ * request with the whole signature is told the key of the method, and then
+ * sends the key alone (see MethodKeys). A key is the epoch of the table,
+ * random for each server, followed by the ID, so that a key learned from an
+ * earlier server at the same location is not taken for another method.
+ */
+public class MethodTable {
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final long epoch;
+  private final Map<RpcSignature, Long> keys = new ConcurrentHashMap<RpcSignature, Long>();
+  private volatile RpcSignature[] signatures = new RpcSignature[1]; // By ID, from 1
+
+  public MethodTable() {
+    this.epoch = (random.nextInt() & 0xFFFFFFFFL) << 32;
+  }
+
+  // Returns the key of the signature, the same one if it is registered again
+  public synchronized long register(RpcSignature signature) {
+    Long key = this.keys.get(signature);
+    if (key != null) {
+      return key;
+    }
+    int id = this.signatures.length;
+    RpcSignature[] grown = Arrays.copyOf(this.signatures, id + 1);
+    grown[id] = signature;
+    this.signatures = grown;
+    this.keys.put(signature, this.epoch | id);
+    return this.epoch | id;
+  }
+
+  // Returns 0 if the signature is not registered
+  public long getKey(RpcSignature signature) {
+    Long key = this.keys.get(signature);
+    return key == null ? 0 : key;
+  }
+
+  // Returns null if the key is not one of this table
+  public RpcSignature getSignature(long key) {
+    long id = key & 0xFFFFFFFFL;
+    RpcSignature[] current = this.signatures;
+    if ((key & ~0xFFFFFFFFL) != this.epoch || id == 0 || id >= current.length) {
+      return null;
+    }
+    return current[(int) id];
+  }
+}
@@ -18,6 +18,8 @@ package specrpc.common;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
@@ -26,16 +28,29 @@ import com.google.gson.JsonSyntaxException;
 
 public class RpcSignature {
   private static final String SEPARATOR = ";";
+  // Classes of the received signatures by name, including the primitive types
+  private static final Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+  static {
+    for (Class<?> type : new Class<?>[] { boolean.class, byte.class, short.class, char.class, int.class, long.class,
+        float.class, double.class, void.class }) {
+      classes.put(type.getName(), type);
+    }
+  }
+
   public final String hostClass;
   public final String methodName;
   public final Class<?> returnType;
   public final Class<?>[] argTypes;
+  // Built once, as the signature is looked up by it for every request
+  private final String id;
 
   public RpcSignature(String hostClass, String methodName, Class<?> returnType, Class<?>... argTypes) {
     this.hostClass = hostClass;
     this.methodName = methodName;
     this.returnType = returnType;
     this.argTypes = argTypes;
+    this.id = buildId();
   }
 
   public RpcSignature(JsonElement jsonSign) throws JsonSyntaxException, ClassNotFoundException {
@@ -44,12 +59,23 @@ public class RpcSignature {
     JsonArray array = gson.fromJson(jsonSign, JsonArray.class);
     this.hostClass = gson.fromJson(array.get(0), String.class);
     this.methodName = gson.fromJson(array.get(1), String.class);
-    this.returnType = Class.forName(gson.fromJson(array.get(2), String.class));
+    this.returnType = classForName(gson.fromJson(array.get(2), String.class));
     JsonArray jsonArgTypes = gson.fromJson(array.get(3), JsonArray.class);
     this.argTypes = new Class<?>[jsonArgTypes.size()];
     for (int i = 0; i < this.argTypes.length; i++) {
-      this.argTypes[i] = Class.forName(gson.fromJson(jsonArgTypes.get(i), String.class));
+      this.argTypes[i] = classForName(gson.fromJson(jsonArgTypes.get(i), String.class));
     }
+    this.id = buildId();
+  }
+
+  // Class.forName(), which also knows the primitive types, looking each name up once
+  public static Class<?> classForName(String name) throws ClassNotFoundException {
+    Class<?> type = classes.get(name);
+    if (type == null) {
+      type = Class.forName(name);
+      classes.put(name, type);
+    }
+    return type;
   }
 
   public Object[] parseArgs(JsonElement jsonArgs) {
@@ -76,21 +102,26 @@ public class RpcSignature {
     return result;
   }
 
-  public String toString() {
-    String id = returnType.getName() + SEPARATOR + hostClass + ";" + methodName;
+  private String buildId() {
+    StringBuilder id = new StringBuilder();
+    id.append(returnType.getName()).append(SEPARATOR).append(hostClass).append(SEPARATOR).append(methodName);
     for (Class<?> type : this.argTypes) {
-      id += SEPARATOR + type.getName();
+      id.append(SEPARATOR).append(type.getName());
     }
-    return id;
+    return id.toString();
+  }
+
+  public String toString() {
+    return this.id;
   }
 
   @Override
   public boolean equals(Object signature2) {
-    return this.toString().equals(signature2.toString());
+    return this.id.equals(signature2.toString());
   }
 
   @Override
   public int hashCode() {
-    return this.toString().hashCode();
+    return this.id.hashCode();
   }
 }
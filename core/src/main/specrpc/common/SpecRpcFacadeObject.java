@@ -19,6 +19,8 @@ package specrpc.common;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
@@ -43,6 +45,10 @@ public class SpecRpcFacadeObject implements SpecRpcFacade {
   private SpecRpcRollback rollbackObj;
   private boolean isRollbackRegistered = false;
   private boolean isRollbackExecuted = true;
+  // Guards the facade. specBlock() waits on a condition rather than the
+  // monitor, which would pin the carrier of a virtual thread.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition statusSolved = lock.newCondition();
 
   public SpecRpcFacadeObject(SpecRpcServerStub clientStub, Status status, ExecutorService threadPool) {
     this.serverStub = clientStub;
@@ -51,40 +57,65 @@ public class SpecRpcFacadeObject implements SpecRpcFacade {
     this.isActualReturnMethodCalled = false;
   }
 
-  public synchronized ExecutorService getThreadPool() {
+  public ExecutorService getThreadPool() {
     return this.threadPool;
   }
 
   // Returns current RPC's status
-  public synchronized SpeculationStatus getCurrentRpcStatus() {
-    return this.status.getCurrentCallbackStatus();
+  public SpeculationStatus getCurrentRpcStatus() {
+    lock.lock();
+    try {
+      return this.status.getCurrentCallbackStatus();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized SpeculationStatus getCallerStatus() {
-    return this.status.getCallerStatus();
+  public SpeculationStatus getCallerStatus() {
+    lock.lock();
+    try {
+      return this.status.getCallerStatus();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized SpeculationStatus getCalleeStatus() {
-    return this.status.getCalleeStatus();
+  public SpeculationStatus getCalleeStatus() {
+    lock.lock();
+    try {
+      return this.status.getCalleeStatus();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void setCallerStatus(SpeculationStatus callerStatus) {
-    this.status.setCallerStatus(callerStatus);
-    if (this.status.getCurrentCallbackStatus() != SpeculationStatus.SPECULATIVE) {
-      // Wakes up specBlock()
-      notifyAll();
-      // Notifies CallbackClientStub
-      this.serverStub.callbackStatusChanged(this.status.getCurrentCallbackStatus());
+  public void setCallerStatus(SpeculationStatus callerStatus) {
+    lock.lock();
+    try {
+      this.status.setCallerStatus(callerStatus);
+      if (this.status.getCurrentCallbackStatus() != SpeculationStatus.SPECULATIVE) {
+        // Wakes up specBlock()
+        statusSolved.signalAll();
+        // Notifies CallbackClientStub
+        this.serverStub.callbackStatusChanged(this.status.getCurrentCallbackStatus());
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
-  public synchronized void setCalleeStatus(SpeculationStatus calleeStatus) {
-    this.status.setCalleeStatus(calleeStatus);
-    if (this.status.getCurrentCallbackStatus() != SpeculationStatus.SPECULATIVE) {
-      // Wakes up specBlock()
-      notifyAll();
-      // Notifies CallbackClientStub
-      this.serverStub.callbackStatusChanged(this.status.getCurrentCallbackStatus());
+  public void setCalleeStatus(SpeculationStatus calleeStatus) {
+    lock.lock();
+    try {
+      this.status.setCalleeStatus(calleeStatus);
+      if (this.status.getCurrentCallbackStatus() != SpeculationStatus.SPECULATIVE) {
+        // Wakes up specBlock()
+        statusSolved.signalAll();
+        // Notifies CallbackClientStub
+        this.serverStub.callbackStatusChanged(this.status.getCurrentCallbackStatus());
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -92,70 +123,95 @@ public class SpecRpcFacadeObject implements SpecRpcFacade {
   // is finished. If the speculation of previous call failed, throw
   // SpecFailException. Otherwise, just stop blocking.
   @Override
-  public synchronized void specBlock() throws SpeculationFailException, InterruptedException {
-    // Blocks until callerStatus changed
-    while (this.status.getCurrentCallbackStatus() == SpeculationStatus.SPECULATIVE) {
-      wait();
-    }
-    if (this.status.getCurrentCallbackStatus() == SpeculationStatus.FAIL) {
-      throw new SpeculationFailException();
+  public void specBlock() throws SpeculationFailException, InterruptedException {
+    lock.lock();
+    try {
+      // Blocks until callerStatus changed
+      while (this.status.getCurrentCallbackStatus() == SpeculationStatus.SPECULATIVE) {
+        statusSolved.await();
+      }
+      if (this.status.getCurrentCallbackStatus() == SpeculationStatus.FAIL) {
+        throw new SpeculationFailException();
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
-  public synchronized boolean isActualReturnMethodCalled() {
-    return this.isActualReturnMethodCalled;
+  public boolean isActualReturnMethodCalled() {
+    lock.lock();
+    try {
+      return this.isActualReturnMethodCalled;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void sendReturnToClient(Object rpcReturnValue) throws NoClientStubException,
+  public void sendReturnToClient(Object rpcReturnValue) throws NoClientStubException,
       SpeculationFailException, InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    if (this.serverStub == null) {
-      throw new NoClientStubException();
-    }
-    this.isActualReturnMethodCalled = true;
+    lock.lock();
     try {
-      this.serverStub.sendNonSpecReturn(rpcReturnValue);
-    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
-      // ClientStub.sendNonSpecReturn may firstly speculatively returns in chain
-      // pattern. When this spec return happens in a spec callback (iterative
-      // pattern), the actual callback may finish early and close the connection. The
-      // speculative callback will get I/O exception here (in specRPCFacade).
-      // Adding specBlock() here will make sure that I/O exception only happens in
-      // SUCCEED status.
-      // TODO: Avoids potential deadlock. Such a solution can not solve the problem of
-      // that when actual I/O exception happens in spec callback and there will be no
-      // SUCCEED change anymore. In this case, it will block here. Deadlock may
-      // happen.
-      this.specBlock();
-      throw e;
+      if (this.serverStub == null) {
+        throw new NoClientStubException();
+      }
+      this.isActualReturnMethodCalled = true;
+      try {
+        this.serverStub.sendNonSpecReturn(rpcReturnValue);
+      } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+        // ClientStub.sendNonSpecReturn may firstly speculatively returns in chain
+        // pattern. When this spec return happens in a spec callback (iterative
+        // pattern), the actual callback may finish early and close the connection. The
+        // speculative callback will get I/O exception here (in specRPCFacade).
+        // Adding specBlock() here will make sure that I/O exception only happens in
+        // SUCCEED status.
+        // TODO: Avoids potential deadlock. Such a solution can not solve the problem of
+        // that when actual I/O exception happens in spec callback and there will be no
+        // SUCCEED change anymore. In this case, it will block here. Deadlock may
+        // happen.
+        this.specBlock();
+        throw e;
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
-  public synchronized void throwNonSpecExceptionToClient(String message) throws NoClientStubException,
+  public void throwNonSpecExceptionToClient(String message) throws NoClientStubException,
       SpeculationFailException, InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    if (this.serverStub == null) {
-      throw new NoClientStubException();
-    }
-    this.isActualReturnMethodCalled = true;
+    lock.lock();
     try {
-      this.serverStub.throwNonSpecException(message);
-    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
-      this.specBlock();
-      throw e;
+      if (this.serverStub == null) {
+        throw new NoClientStubException();
+      }
+      this.isActualReturnMethodCalled = true;
+      try {
+        this.serverStub.throwNonSpecException(message);
+      } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+        this.specBlock();
+        throw e;
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
-  public synchronized void specReturn(Object rpcReturnValue) throws NoClientStubException,
+  public void specReturn(Object rpcReturnValue) throws NoClientStubException,
       SpeculationFailException, InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    if (this.serverStub == null) {
-      throw new NoClientStubException();
-    }
+    lock.lock();
     try {
-      this.serverStub.sendSpecReturn(rpcReturnValue);
-    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
-      this.specBlock();
-      throw e;
+      if (this.serverStub == null) {
+        throw new NoClientStubException();
+      }
+      try {
+        this.serverStub.sendSpecReturn(rpcReturnValue);
+      } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+        this.specBlock();
+        throw e;
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -177,25 +233,40 @@ public class SpecRpcFacadeObject implements SpecRpcFacade {
   }
 
   // Each RPC or Callback object should just register one rollback
-  public synchronized void registerRollback(SpecRpcRollback rollbackObj) {
-    this.rollbackObj = rollbackObj;
-    this.isRollbackRegistered = true;
-    this.isRollbackExecuted = false;
+  public void registerRollback(SpecRpcRollback rollbackObj) {
+    lock.lock();
+    try {
+      this.rollbackObj = rollbackObj;
+      this.isRollbackRegistered = true;
+      this.isRollbackExecuted = false;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized boolean isRollbackRegistered() {
-    return this.isRollbackRegistered;
+  public boolean isRollbackRegistered() {
+    lock.lock();
+    try {
+      return this.isRollbackRegistered;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void executeRollback() {
-    if (this.isRollbackExecuted) {
-      return;
-    }
+  public void executeRollback() {
+    lock.lock();
+    try {
+      if (this.isRollbackExecuted) {
+        return;
+      }
     
-    if (this.rollbackObj != null) {
-      this.rollbackObj.rollback();
-    }
+      if (this.rollbackObj != null) {
+        this.rollbackObj.rollback();
+      }
     
-    this.isRollbackExecuted = true;
+      this.isRollbackExecuted = true;
+    } finally {
+      lock.unlock();
+    }
   }
 }
\ No newline at end of file
@@ -17,8 +17,8 @@
 package specrpc.communication;
 
 import rpc.communication.Message;
-
-import com.google.gson.Gson;
+import rpc.communication.MessageReader;
+import rpc.communication.MessageWriter;
 
 public class CallerSpeculationSolvedMsg implements Message {
 
@@ -32,12 +32,12 @@ public class CallerSpeculationSolvedMsg implements Message {
     this.resolType = type;
   }
 
-  public CallerSpeculationSolvedMsg(String message) {
-    this.resolType = new Gson().fromJson(message, Resolution.class);
+  public CallerSpeculationSolvedMsg(MessageReader reader) {
+    this.resolType = reader.readEnum(Resolution.class);
   }
 
   @Override
-  public String serialize() {
-    return new Gson().toJson(resolType);
+  public void write(MessageWriter writer) {
+    writer.writeEnum(resolType);
   }
 }
@@ -0,0 +1,38 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.communication;
+
+import rpc.communication.MessageWriter;
+
+/*
+ * Tells the client the key of the method it called by signature, ahead of the
+ * other responses.
+ */
+public class MethodKeyMsg implements ResponseMsg {
+
+  public final long methodKey;
+
+  public MethodKeyMsg(long methodKey) {
+    this.methodKey = methodKey;
+  }
+
+  @Override
+  public void write(MessageWriter writer) {
+    writer.writeEnum(ResponseType.METHOD_KEY);
+    writer.writeValue(this.methodKey);
+  }
+}
@@ -16,58 +16,90 @@
 
 package specrpc.communication;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import rpc.communication.ArgumentReader;
+import rpc.communication.ArgumentWriter;
 import rpc.communication.Message;
+import rpc.communication.MessageReader;
+import rpc.communication.MessageWriter;
 import rpc.config.Constants;
+import rpc.execption.MethodNotRegisteredException;
+import specrpc.common.MethodTable;
 import specrpc.common.RpcSignature;
 import specrpc.common.Status.SpeculationStatus;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
-
 public class RequestMsg implements Message {
 
   protected static final Logger logger = LoggerFactory.getLogger(Constants.LOGGER_TYPE);
 
-  public final RpcSignature signature;
-  public final Object[] args;
-  public final SpeculationStatus callerStatus;
+  public final RpcSignature signature; // Null if the method key is not of the server
+  public final long methodKey; // 0 if the request carries the whole signature
+  public final Object[] args; // Null if written or read by the arguments' own writer or reader
+  private final ArgumentWriter arguments;
+  public final SpeculationStatus callerStatus; // Null if the signature is null
 
   public RequestMsg(SpeculationStatus callerStatus, RpcSignature signature, Object... args) {
+    this(callerStatus, 0, signature, args);
+  }
+
+  // The method key stands for the signature, if the codec carries keys
+  public RequestMsg(SpeculationStatus callerStatus, long methodKey, RpcSignature signature, Object[] args) {
     this.callerStatus = callerStatus;
+    this.methodKey = methodKey;
     this.signature = signature;
     this.args = args;
+    this.arguments = null;
+  }
+
+  public RequestMsg(SpeculationStatus callerStatus, long methodKey, RpcSignature signature,
+      ArgumentWriter arguments) {
+    this.callerStatus = callerStatus;
+    this.methodKey = methodKey;
+    this.signature = signature;
+    this.args = null;
+    this.arguments = arguments;
   }
 
-  public RequestMsg(String message) throws JsonSyntaxException, ClassNotFoundException {
-    JsonParser parser = new JsonParser();
-    JsonArray array = parser.parse(message).getAsJsonArray();
-    this.signature = new RpcSignature(array.get(0));
-    this.args = this.signature.parseArgs(array.get(1));
-    this.callerStatus = new Gson().fromJson(array.get(2), SpeculationStatus.class);
+  public RequestMsg(MessageReader reader, MethodTable methods) throws ClassNotFoundException {
+    this.methodKey = reader.readMethodKey();
+    this.signature = this.methodKey == 0 ? reader.readSignature() : methods.getSignature(this.methodKey);
+    this.args = this.signature == null ? null : reader.readValues(this.signature.argTypes);
+    this.arguments = null;
+    // The status follows the arguments, which cannot be read without the signature
+    this.callerStatus = this.signature == null ? null : reader.readEnum(SpeculationStatus.class);
+  }
+
+  // The arguments are read by the given reader, which keeps them
+  public RequestMsg(MessageReader reader, MethodTable methods, ArgumentReader arguments)
+      throws ClassNotFoundException, MethodNotRegisteredException, NoSuchMethodException, IllegalAccessException {
+    this.methodKey = reader.readMethodKey();
+    this.signature = this.methodKey == 0 ? reader.readSignature() : methods.getSignature(this.methodKey);
+    this.args = null;
+    this.arguments = null;
+    if (this.signature != null) {
+      arguments.readArguments(this.signature, reader);
+    }
+    this.callerStatus = this.signature == null ? null : reader.readEnum(SpeculationStatus.class);
   }
 
   @Override
-  public String serialize() {
+  public void write(MessageWriter writer) {
     if (callerStatus == SpeculationStatus.FAIL) {
       logger.error("Should not send a message under FAIL speculation status. Check errors!");
       assert (callerStatus != SpeculationStatus.FAIL);
     }
 
-    Collection<Object> msg = new ArrayList<Object>();
-
-    msg.add(signature.toArray());
-    msg.add(args);
-    msg.add(callerStatus);
-
-    return new Gson().toJson(msg);
+    if (!writer.writeMethodKey(methodKey) || methodKey == 0) {
+      writer.writeSignature(signature);
+    }
+    if (arguments != null) {
+      arguments.writeArguments(writer);
+    } else {
+      writer.writeValues(args);
+    }
+    writer.writeEnum(callerStatus);
   }
 
 }
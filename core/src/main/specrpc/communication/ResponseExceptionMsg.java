@@ -16,10 +16,7 @@
 
 package specrpc.communication;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
-import com.google.gson.Gson;
+import rpc.communication.MessageWriter;
 
 public class ResponseExceptionMsg implements ResponseMsg {
 
@@ -30,11 +27,9 @@ public class ResponseExceptionMsg implements ResponseMsg {
   }
 
   @Override
-  public String serialize() {
-    Collection<Object> msg = new ArrayList<Object>();
-    msg.add(ResponseType.EXCEPTION);
-    msg.add(this.exceptionMsg);
-    return new Gson().toJson(msg);
+  public void write(MessageWriter writer) {
+    writer.writeEnum(ResponseType.EXCEPTION);
+    writer.writeString(this.exceptionMsg);
   }
 
   public String getExceptionMsg() {
@@ -21,6 +21,6 @@ import rpc.communication.Message;
 public interface ResponseMsg extends Message {
 
   public enum ResponseType {
-    RETURN, SPEC_RETURN, EXCEPTION
+    RETURN, SPEC_RETURN, EXCEPTION, METHOD_KEY, UNKNOWN_METHOD_KEY
   }
 }
@@ -16,10 +16,7 @@
 
 package specrpc.communication;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
-import com.google.gson.Gson;
+import rpc.communication.MessageWriter;
 
 public class ResponseValueMsg implements ResponseMsg {
 
@@ -30,10 +27,8 @@ public class ResponseValueMsg implements ResponseMsg {
   }
 
   @Override
-  public String serialize() {
-    Collection<Object> msg = new ArrayList<Object>();
-    msg.add(ResponseType.RETURN);
-    msg.add(this.returnValue);
-    return new Gson().toJson(msg);
+  public void write(MessageWriter writer) {
+    writer.writeEnum(ResponseType.RETURN);
+    writer.writeValue(this.returnValue);
   }
 }
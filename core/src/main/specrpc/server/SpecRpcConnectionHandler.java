@@ -33,6 +33,7 @@ public class SpecRpcConnectionHandler implements ConnectionHandler {
 
   @Override
   public void handle(IConnection connection) {
-    serverThreadPool.execute(new SpecRpcHandler(connection, hostObjectMap, serverThreadPool));
+    // The requests of a session on the connection come back here, each on a connection of its own
+    serverThreadPool.execute(new SpecRpcHandler(connection, hostObjectMap, serverThreadPool, this));
   }
 }
@@ -18,37 +18,35 @@ package specrpc.server;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
 
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
 import rpc.execption.MethodNotRegisteredException;
 import rpc.execption.NoClientStubException;
-import specrpc.common.RpcSignature;
+import rpc.server.MethodInvoker;
 import specrpc.common.SpecRpcFacadeObject;
 import specrpc.exception.SpeculationFailException;
-import specrpc.server.api.SpecRpcHost;
 
 public class SpecRpcExecutor implements Runnable {
 
-  private final RpcSignature signature;
-  private final Object[] args;
-  private final SpecRpcHost hostObject;
+  private final MethodInvoker method;
+  // The call of the method on its host object, with the arguments of the request
+  private final MethodInvoker.Call call;
   private final SpecRpcFacadeObject specRpcFacade;
-  private boolean finished;
+  // Completes once the RPC method finishes, normally or not
+  private final CompletableFuture<Void> completion;
 
-  public SpecRpcExecutor(SpecRpcFacadeObject specRpcFacade, SpecRpcHost hostObject, RpcSignature signature,
-      Object[] args) {
-    this.hostObject = hostObject;
-    this.signature = signature;
-    this.args = args;
+  public SpecRpcExecutor(SpecRpcFacadeObject specRpcFacade, MethodInvoker method, MethodInvoker.Call call) {
+    this.method = method;
+    this.call = call;
     this.specRpcFacade = specRpcFacade;
-    this.finished = false;
+    this.completion = new CompletableFuture<Void>();
   }
 
   @Override
-  public synchronized void run() {
+  public void run() {
     try {
       // Executes the RPC method
       callMethod();
@@ -56,29 +54,23 @@ public class SpecRpcExecutor implements Runnable {
       // TODO: notifies the client that an exception happened
       e.printStackTrace();
     } finally {
-      finished = true;
-      notifyAll();
+      completion.complete(null);
     }
   }
 
-  public synchronized void join() throws InterruptedException {
-    while (finished == false) {
-      wait();
-    }
+  public CompletableFuture<Void> getCompletion() {
+    return this.completion;
   }
 
   private void callMethod() throws MethodNotRegisteredException, IllegalAccessException, InvocationTargetException {
-    Method method = null;
     try {
-      Class<? extends SpecRpcHost> hostObjClass = hostObject.getClass();
-      method = hostObjClass.getMethod(signature.methodName, signature.argTypes);
-      Object result = method.invoke(hostObject, args);
+      Object result = call.invoke();
       if (!this.specRpcFacade.isActualReturnMethodCalled()) {
         // Returns final RPC response
         this.specRpcFacade.sendReturnToClient(result);
       }
     } catch (NoSuchMethodException e) {
-      throw new MethodNotRegisteredException(signature);
+      throw new MethodNotRegisteredException(method.signature);
     } catch (InvocationTargetException e) {
       checkForFailSpecException(e);
     } catch (SpeculationFailException e) {
@@ -17,22 +17,35 @@
 package specrpc.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import Waterloo.MultiSocket.ConnectionHandler;
 import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
 import com.google.gson.JsonSyntaxException;
 
 import rpc.communication.Communication;
+import rpc.communication.MessageCodec;
+import rpc.communication.MessageCodecs;
+import rpc.communication.MessageReader;
 import rpc.execption.MethodNotRegisteredException;
 import rpc.execption.NoClientStubException;
+import rpc.server.MethodInvoker;
+import specrpc.common.RpcSignature;
 import specrpc.common.SpecRpcFacadeObject;
 import specrpc.common.Status;
 import specrpc.common.Status.SpeculationStatus;
 import specrpc.communication.CallerSpeculationSolvedMsg;
+import specrpc.communication.MethodKeyMsg;
 import specrpc.communication.RequestMsg;
+import specrpc.communication.UnknownMethodKeyMsg;
 import specrpc.communication.CallerSpeculationSolvedMsg.Resolution;
 import specrpc.exception.SpeculationFailException;
 import specrpc.server.api.SpecRpcHost;
@@ -43,33 +56,68 @@ public class SpecRpcHandler implements Runnable {
   // Mapping between RPC signature and its host object
   private final SpecRpcHostObjectMap rpcHostObjectDictionary;
   private final ExecutorService threadPool;
+  // Handles the requests if the client opens a session on the connection
+  private final ConnectionHandler sessionHandler;
   private SpecRpcFacadeObject specRpcFacade;
+  // The RPC method, its host object and its call, made as the request is read
+  private MethodInvoker method;
+  private SpecRpcHost hostObject;
+  private MethodInvoker.Call call;
+  // Whether the communication is closed, which happens only once
+  private final AtomicBoolean isDisconnected;
 
-  public SpecRpcHandler(IConnection connection, SpecRpcHostObjectMap localdir, ExecutorService threadPool) {
+  public SpecRpcHandler(IConnection connection, SpecRpcHostObjectMap localdir, ExecutorService threadPool,
+      ConnectionHandler sessionHandler) {
     this.clientConnection = connection;
     this.rpcHostObjectDictionary = localdir;
     this.threadPool = threadPool;
+    this.sessionHandler = sessionHandler;
     this.specRpcFacade = null;
+    this.isDisconnected = new AtomicBoolean(false);
   }
 
   @Override
   public void run() {
     Communication commModule = null;
-    SpecRpcServerStub clientStub = null;
+    SpecRpcHandlerClientStub clientStub = null;
+    // Whether the continuations close the communication
+    boolean isFinishedAsync = false;
     try {
       // Initializes communication module
-      commModule = new Communication(clientConnection);
+      commModule = Communication.accept(clientConnection, this.sessionHandler);
+      if (commModule == null) {
+        // A session, whose requests are handled on their own
+        return;
+      }
       clientStub = new SpecRpcHandlerClientStub(commModule);
 
       // Reads an RPC request message
-      String request = commModule.getMessage();
+      MessageReader request = commModule.getMessageReader();
+      // Replies in JSON to a codec the server does not take, which tells the
+      // client to send the request again in JSON
+      MessageCodec requestCodec = commModule.getCodec();
+      if (!MessageCodecs.isAccepted(requestCodec)) {
+        commModule.setCodec(MessageCodecs.JSON);
+        clientStub.throwNonSpecException("Requests in " + requestCodec.getName() + " are not taken");
+        return;
+      }
       // Parses the RPC request message
       // If the message is invalid, catch the exception and send an exception message
       // to the client.
-      RequestMsg requestMsg = new RequestMsg(request);
-
-      // Looks up the host object of the RPC method
-      SpecRpcHost hostObject = this.rpcHostObjectDictionary.getHostObject(requestMsg.signature);
+      RequestMsg requestMsg = new RequestMsg(request, this.rpcHostObjectDictionary.getMethodTable(),
+          this::readArguments);
+      // The client sends the request again with the signature
+      if (requestMsg.signature == null) {
+        commModule.send(new UnknownMethodKeyMsg(requestMsg.methodKey), MessagePriority.HIGH);
+        return;
+      }
+      // Tells the client the key to send next time, before any response
+      if (requestMsg.methodKey == 0 && request.takesMethodKeys()) {
+        long methodKey = this.rpcHostObjectDictionary.getMethodTable().getKey(requestMsg.signature);
+        if (methodKey != 0) {
+          commModule.send(new MethodKeyMsg(methodKey));
+        }
+      }
 
       // RPC caller's speculation status
       // The speculation status of RPC host object only depends on the RPC caller's
@@ -83,72 +131,83 @@ public class SpecRpcHandler implements Runnable {
       // Binds ISpecRPCFacade that controls speculation status and will send RPC
       // response back to client
       this.specRpcFacade = new SpecRpcFacadeObject(clientStub, rpcCallerStatus, this.threadPool);
-      hostObject.bind(this.specRpcFacade);
+      this.hostObject.bind(this.specRpcFacade);
 
-      // Executes RPC method
-      SpecRpcExecutor rpcExecutor = new SpecRpcExecutor(this.specRpcFacade, hostObject, requestMsg.signature,
-          requestMsg.args);
-      this.threadPool.execute(rpcExecutor);
+      // Executes RPC method on this thread, the only one the RPC holds. What
+      // follows it runs as continuations, on whichever thread completes them.
+      SpecRpcExecutor rpcExecutor = new SpecRpcExecutor(this.specRpcFacade, this.method, this.call);
 
-      // If RPC caller is speculative, waits for its notification about its
-      // speculation status change.
+      // If RPC caller is speculative, its notification about its speculation
+      // status change is pushed to a listener.
       // This notification may not arrive because of unexpected exceptions.
-      this.checkIfCallerSpecSolved(commModule);
+      CompletableFuture<Void> callerSpecSolved = this.whenCallerSpecSolved(commModule);
+
+      // Finishes once the RPC method instance finishes running and the caller's
+      // speculation is solved
+      final Communication rpcCommModule = commModule;
+      final SpecRpcHandlerClientStub rpcClientStub = clientStub;
+      // If the notification or the rollback fails, the RPC still closes its
+      // communication rather than leaking it
+      callerSpecSolved.runAfterBoth(rpcExecutor.getCompletion(), () -> this.finish(rpcCommModule, rpcClientStub))
+          .exceptionally(e -> {
+            e.printStackTrace();
+            this.disconnect(rpcCommModule);
+            return null;
+          });
+      isFinishedAsync = true;
 
-      // Blocks until the RPC method instance finishes running
-      rpcExecutor.join();
+      rpcExecutor.run();
+    } catch (IOException | JsonSyntaxException | ClassNotFoundException | SecurityException | IllegalArgumentException
+        | InterruptedException | MethodNotRegisteredException | NoSuchMethodException | IllegalAccessException
+        | NullPointerException | ConnectionCloseException | MultiSocketValidException e) {
+      handleException(clientStub, e);
+    } finally {
+      // Exception happens, so close the communication
+      if (!isFinishedAsync) {
+        this.disconnect(commModule);
+      }
+    }
+  }
+
+  // Looks up the RPC method, and makes its host object, which reads the arguments
+  private void readArguments(RpcSignature signature, MessageReader reader)
+      throws MethodNotRegisteredException, NoSuchMethodException, IllegalAccessException {
+    this.method = this.rpcHostObjectDictionary.getMethod(signature);
+    this.hostObject = (SpecRpcHost) this.method.newHostObject();
+    this.call = this.method.readCall(this.hostObject, reader);
+  }
 
-      /*
-       * When speculation fails, executes a rollback function that is registered by
-       * applications.
-       */
-      if (this.specRpcFacade.getCallerStatus() == SpeculationStatus.FAIL) {
+  private void finish(Communication commModule, SpecRpcHandlerClientStub clientStub) {
+    /*
+     * When speculation fails, executes a rollback function that is registered by
+     * applications.
+     */
+    if (this.specRpcFacade.getCallerStatus() == SpeculationStatus.FAIL) {
+      try {
         if (this.specRpcFacade.isRollbackRegistered()) {
           this.specRpcFacade.executeRollback();
         }
+      } finally {
+        this.disconnect(commModule);
       }
+      return;
+    }
 
-      // Before closing connection, makes sure that server returns the final response
-      // that may be returned later by a callback after the RPC method finishes.
-      // This only applies to the RPC caller that has SUCCEED speculation status
-      // Up to this stage, Caller's speculation status must be FAIL or SUCCEED
-      if (this.specRpcFacade.getCallerStatus() == SpeculationStatus.SUCCEED) {
-        // Wait until the actual result is sent back to client
-        ((SpecRpcHandlerClientStub) clientStub).waitUnitlSendActualReturn();
-      }
-      // else if (this.specRpcFacade.getCallerStatus() ==
-      // SpeculationStatus.SPECULATIVE) {
-      // logger.error("Caller's speculation status must be FAIL or SUCCEED. Should not
-      // execute up to here. Check the error!");
-      // }
-
-      /*
-       * Alternative Solution: Waits for client to close the connection This solution
-       * does not provide a good performance
-       */
-      // String unexpectedMsg = null;
-      // do {
-      // try {
-      // unexpectedMsg = commModule.getMessage();
-      // } catch (IOException e) {
-      // if(e instanceof java.net.SocketException) {
-      // unexpectedMsg = null;
-      // }
-      // }
-      // } while (unexpectedMsg != null);
-
-      // Everything is done now, close the communication in the "finally"
+    // Before closing connection, makes sure that server returns the final response
+    // that may be returned later by a callback after the RPC method finishes.
+    // This only applies to the RPC caller that has SUCCEED speculation status
+    // Up to this stage, Caller's speculation status must be FAIL or SUCCEED
+    clientStub.whenActualReturnSent().thenRun(() -> this.disconnect(commModule));
+  }
 
-    } catch (IOException | JsonSyntaxException | ClassNotFoundException | SecurityException | IllegalArgumentException
-        | InterruptedException | MethodNotRegisteredException | NullPointerException | ConnectionCloseException e) {
-      handleException(clientStub, e);
-    } finally {
-      try {
-        // Everything is done, or exception happens, so close the communication
+  // Everything is done, or exception happens, so close the communication
+  private void disconnect(Communication commModule) {
+    try {
+      if (commModule != null && this.isDisconnected.compareAndSet(false, true)) {
         commModule.disconnect();
-      } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
-        e.printStackTrace();
       }
+    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+      e.printStackTrace();
     }
   }
 
@@ -170,50 +229,54 @@ public class SpecRpcHandler implements Runnable {
   }
 
   /*
-   * If an RPC caller is speculative, waits for the caller's speculation status to
-   * become SUCCEED or FAIL
+   * If an RPC caller is speculative, completes once the caller's speculation
+   * status becomes SUCCEED or FAIL, without a thread waiting for it
    */
-  private void checkIfCallerSpecSolved(Communication commModule) throws IOException, InterruptedException {
-
+  private CompletableFuture<Void> whenCallerSpecSolved(Communication commModule) {
+    CompletableFuture<Void> callerSpecSolved = new CompletableFuture<Void>();
     if (this.specRpcFacade.getCurrentRpcStatus() != SpeculationStatus.SPECULATIVE) {
-      return;
+      callerSpecSolved.complete(null);
+      return callerSpecSolved;
     }
 
-    // Reads message
-    // The client may have already closed the communication. In this case, with
-    // using socket, null will be returned or exception will be thrown.
-    String jsonMessage = null;
-    try {
-      // If the client closed the communication, we will get either null or an
-      // exception.
-      jsonMessage = commModule.getMessage();
+    // The status change notifies the RPC method and its invoking RPCs, which runs
+    // on the pool rather than the thread that receives the message
+    commModule.setMessageListener(new MessageListener() {
+      @Override
+      public void onMessage(IConnection connection, ByteBuffer message) {
+        if (!callerSpecSolved.isDone()) {
+          try {
+            callerSpecSolved(commModule.getMessageReader(message));
+            callerSpecSolved.complete(null);
+          } catch (RuntimeException e) {
+            // A malformed notification still finishes the RPC
+            callerSpecSolved.completeExceptionally(e);
+          }
+        }
+      }
 
-      if (jsonMessage == null) {
-        // Notifies the RPC instance and any subsequent RPCs that is invoked through the
-        // RPC instance.
-        this.specRpcFacade.setCallerStatus(SpeculationStatus.FAIL);
-        return;
+      // The client may have already closed the communication.
+      @Override
+      public void onClose(IConnection connection) {
+        if (!callerSpecSolved.isDone()) {
+          // Notifies the RPC instance and any subsequent RPCs that is invoked through
+          // the RPC instance.
+          try {
+            specRpcFacade.setCallerStatus(SpeculationStatus.FAIL);
+          } catch (RuntimeException e) {
+            callerSpecSolved.completeExceptionally(e);
+          } finally {
+            callerSpecSolved.complete(null);
+          }
+        }
       }
-    } catch (ConnectionCloseException e) {
-      // When using the Multisocket package
-      // Notifies the RPC instance and any subsequent RPCs that is invoked through the
-      // RPC instance.
-      this.specRpcFacade.setCallerStatus(SpeculationStatus.FAIL);
-      return;
-    }
-    // catch (IOException e) {
-    // // When using the Java Socket
-    // // The exception should be SocketException.
-    // if (e instanceof java.net.SocketException) {
-    // // Notifies the RPC instance and any subsequent RPCs that is invoked through
-    // the RPC instance.
-    // this.specRpcFacade.setCallerStatus(SpeculationStatus.FAIL);
-    // return;
-    // }
-    // }
+    }, this.threadPool);
+    return callerSpecSolved;
+  }
 
+  private void callerSpecSolved(MessageReader message) {
     // Parses the message
-    CallerSpeculationSolvedMsg msg = new CallerSpeculationSolvedMsg(jsonMessage);
+    CallerSpeculationSolvedMsg msg = new CallerSpeculationSolvedMsg(message);
     // Notifies the RPC method and its invoking RPCs (that is invoked in the RPC
     // method)
     if (msg.resolType == Resolution.COMMIT) {
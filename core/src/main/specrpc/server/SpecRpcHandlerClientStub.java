@@ -17,7 +17,10 @@
 package specrpc.server;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 import rpc.communication.Communication;
@@ -29,46 +32,60 @@ import specrpc.communication.SpeculativeResponseValueMsg;
 public class SpecRpcHandlerClientStub implements SpecRpcServerStub {
 
   private final Communication communicationChannel;
-  private boolean isMsgActualReturned; // Will be updated only once, which then closes communication channel
+  // Completes only once, which then closes communication channel
+  private final CompletableFuture<Void> msgActualReturned;
+  // Orders the responses. Not a monitor, which would pin the carrier of a
+  // virtual thread while it writes to the network
+  private final ReentrantLock lock;
 
   public SpecRpcHandlerClientStub(Communication comChannel) {
     this.communicationChannel = comChannel;
-    this.isMsgActualReturned = false;
+    this.msgActualReturned = new CompletableFuture<Void>();
+    this.lock = new ReentrantLock();
   }
 
   @Override
-  public synchronized void sendNonSpecReturn(Object value)
+  public void sendNonSpecReturn(Object value)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    String msg = new ResponseValueMsg(value).serialize();
-    this.communicationChannel.send(msg);
-    this.isMsgActualReturned = true;
-    notifyAll();
+    this.lock.lock();
+    try {
+      this.communicationChannel.send(new ResponseValueMsg(value));
+      this.msgActualReturned.complete(null);
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void sendSpecReturn(Object value)
+  public void sendSpecReturn(Object value)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    String msg = new SpeculativeResponseValueMsg(value).serialize();
-    this.communicationChannel.send(msg);
+    this.lock.lock();
+    try {
+      this.communicationChannel.send(new SpeculativeResponseValueMsg(value));
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void throwNonSpecException(String message)
+  public void throwNonSpecException(String message)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    String msg = new ResponseExceptionMsg(message).serialize();
-    this.communicationChannel.send(msg);
-    this.isMsgActualReturned = true;
-    notifyAll();
+    this.lock.lock();
+    try {
+      this.communicationChannel.send(new ResponseExceptionMsg(message), MessagePriority.HIGH);
+      this.msgActualReturned.complete(null);
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void callbackStatusChanged(SpeculationStatus callbackStatus) {
+  public void callbackStatusChanged(SpeculationStatus callbackStatus) {
     // Does nothing
   }
 
-  public synchronized void waitUnitlSendActualReturn() throws InterruptedException {
-    while (this.isMsgActualReturned == false) {
-      wait();
-    }
+  // Completes once the actual return or exception is sent back to client
+  public CompletableFuture<Void> whenActualReturnSent() {
+    return this.msgActualReturned;
   }
 }
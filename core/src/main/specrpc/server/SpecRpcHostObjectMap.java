@@ -20,24 +20,39 @@ import java.util.HashMap;
 import java.util.Map;
 
 import rpc.execption.MethodNotRegisteredException;
+import rpc.server.MethodInvoker;
 import rpc.server.api.RpcHostObjectFactory;
+import specrpc.common.MethodTable;
 import specrpc.common.RpcSignature;
 import specrpc.server.api.SpecRpcHost;
 import specrpc.server.api.SpecRpcHostFactory;
 
 public class SpecRpcHostObjectMap {
 
-  private final Map<String, SpecRpcHostFactory> rpcSigToHostMap = new HashMap<String, SpecRpcHostFactory>();
+  private final Map<String, MethodInvoker> rpcSigToHostMap = new HashMap<String, MethodInvoker>();
+  // Keys the clients send instead of the signatures
+  private final MethodTable methods = new MethodTable();
 
   public void register(RpcSignature signature, RpcHostObjectFactory hostClassFactory) {
-    this.rpcSigToHostMap.put(signature.toString(), (SpecRpcHostFactory) hostClassFactory);
+    this.rpcSigToHostMap.put(signature.toString(),
+        new MethodInvoker(signature, (SpecRpcHostFactory) hostClassFactory));
+    this.methods.register(signature);
   }
 
   public SpecRpcHost getHostObject(RpcSignature signature) throws MethodNotRegisteredException {
-    SpecRpcHostFactory factory = this.rpcSigToHostMap.get(signature.toString());
-    if (factory == null) {
+    return (SpecRpcHost) getMethod(signature).newHostObject();
+  }
+
+  // The method resolved at registration, which makes its host objects
+  public MethodInvoker getMethod(RpcSignature signature) throws MethodNotRegisteredException {
+    MethodInvoker method = this.rpcSigToHostMap.get(signature.toString());
+    if (method == null) {
       throw new MethodNotRegisteredException(signature);
     }
-    return factory.getRpcHostObject();
+    return method;
+  }
+
+  public MethodTable getMethodTable() {
+    return this.methods;
   }
 }
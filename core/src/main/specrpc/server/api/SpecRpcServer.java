@@ -18,19 +18,27 @@ package specrpc.server.api;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.MultiSocketOptions;
 import Waterloo.MultiSocket.MultiSocketServer;
+import Waterloo.MultiSocket.ReactorStatistics;
 
+import rpc.communication.Communication;
+import rpc.communication.LoopbackTransport;
+import rpc.communication.ShmTransport;
+import rpc.communication.Transport;
 import rpc.config.Constants;
+import rpc.config.ThreadPools;
 import rpc.execption.UninitializationException;
 import rpc.server.api.RpcHostObjectFactory;
 import rpc.server.api.RpcServer;
@@ -55,10 +63,33 @@ public class SpecRpcServer implements RpcServer {
   private String serverIdentity;
   private ServerLocationDirectory serverLocationDir;
   private Location serverLocation;
+  private ConnectionHandler connectionHandler;
+  // Transports the server also accepts connections from
+  private List<Transport> transports = new ArrayList<Transport>();
   private SpecRpcHostObjectMap hostObjectDir;
 
   public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
       String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    initServer(id, ip, port, threadPoolSize, maxConnectionNum, Integer.parseInt(Constants.DEFAULT_RPC_HOST_REACTOR_NUM),
+        rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
+      int reactorNum, String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    MultiSocketOptions socketOptions = new MultiSocketOptions();
+    socketOptions.setReactorNum(reactorNum);
+    initServer(id, ip, port, threadPoolSize, maxConnectionNum, socketOptions, rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
+      MultiSocketOptions socketOptions, String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    initServer(id, ip, port, ThreadPools.parseType(Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE), threadPoolSize,
+        maxConnectionNum, socketOptions, rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, ThreadPools.Type threadPoolType,
+      int threadPoolSize, int maxConnectionNum, MultiSocketOptions socketOptions, String rpcSigaturesFile)
+      throws FileNotFoundException, IOException {
     if (initialized) {
       return;
     }
@@ -66,10 +97,12 @@ public class SpecRpcServer implements RpcServer {
     hostObjectDir = new SpecRpcHostObjectMap();
     serverIdentity = id;
     // Uses dynamic thread pool for testing
-    serverThreadPool = threadPoolSize > 0 ? Executors.newFixedThreadPool(threadPoolSize)
-        : Executors.newCachedThreadPool();
-    serverSocket = new MultiSocketServer(new SpecRpcConnectionHandler(serverThreadPool, hostObjectDir),
-        new InetSocketAddress(ip, port), maxConnectionNum);
+    serverThreadPool = ThreadPools.newThreadPool(threadPoolType, threadPoolSize);
+    connectionHandler = new SpecRpcConnectionHandler(serverThreadPool, hostObjectDir);
+    // ip may also be unix:<path> for a Unix domain socket
+    Location bindLocation = new Location(ip, port);
+    serverSocket = new MultiSocketServer(connectionHandler, Communication.getSocketAddress(bindLocation),
+        maxConnectionNum, socketOptions);
     /*
      * // Java Server Socket Implementation
      * 
@@ -77,9 +110,10 @@ public class SpecRpcServer implements RpcServer {
      * 
      * serverSocket.setReuseAddress(true);
      * 
-     * serverSocket.bind(new InetSocketAddress(ip, port), maxConnectionNum);
+     * serverSocket.bind(new InetSocketAddress(ip, port), maxConnectionNum, reactorNum);
      */
-    serverLocation = new Location(ip, serverSocket.getLocalPort());
+    serverLocation = bindLocation.isUnix() ? bindLocation : new Location(ip, serverSocket.getLocalPort());
+    bindTransport(LoopbackTransport.getInstance());
 
     initialized = true;
   }
@@ -100,7 +134,15 @@ public class SpecRpcServer implements RpcServer {
         .parseInt(config.get(Constants.RPC_HOST_MAX_CONNECTION_PROPERTY, Constants.DEFAULT_RPC_HOST_MAX_CONNECTION));
     String rpcSigaturesFile = config.get(Constants.RPC_HOST_SIGNATURE_FILE_PROPERTY,
         Constants.DEFAULT_RPC_HOST_SIGNATURE_FILE);
-    initServer(id, ip, port, threadPoolSize, maxConnectionNum, rpcSigaturesFile);
+    ThreadPools.Type threadPoolType = ThreadPools.parseType(
+        config.get(Constants.RPC_HOST_THREADPOOL_TYPE_PROPERTY, Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE));
+    initServer(id, ip, port, threadPoolType, threadPoolSize, maxConnectionNum,
+        Communication.getSocketOptions(config, true), rpcSigaturesFile);
+    Communication.initServerCodecs(config);
+    if (Boolean.parseBoolean(
+        config.get(Constants.RPC_HOST_TRANSPORT_SHM_PROPERTY, Constants.DEFAULT_RPC_HOST_TRANSPORT_SHM))) {
+      bindTransport(ShmTransport.getInstance(config));
+    }
   }
 
   public synchronized void initServer(String id, String ip, int port, String configFile) throws IOException {
@@ -111,7 +153,29 @@ public class SpecRpcServer implements RpcServer {
         .parseInt(config.get(Constants.RPC_HOST_MAX_CONNECTION_PROPERTY, Constants.DEFAULT_RPC_HOST_MAX_CONNECTION));
     String rpcSigaturesFile = config.get(Constants.RPC_HOST_SIGNATURE_FILE_PROPERTY,
         Constants.DEFAULT_RPC_HOST_SIGNATURE_FILE);
-    initServer(id, ip, port, threadPoolSize, maxConnectionNum, rpcSigaturesFile);
+    ThreadPools.Type threadPoolType = ThreadPools.parseType(
+        config.get(Constants.RPC_HOST_THREADPOOL_TYPE_PROPERTY, Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE));
+    initServer(id, ip, port, threadPoolType, threadPoolSize, maxConnectionNum,
+        Communication.getSocketOptions(config, true), rpcSigaturesFile);
+    Communication.initServerCodecs(config);
+    if (Boolean.parseBoolean(
+        config.get(Constants.RPC_HOST_TRANSPORT_SHM_PROPERTY, Constants.DEFAULT_RPC_HOST_TRANSPORT_SHM))) {
+      bindTransport(ShmTransport.getInstance(config));
+    }
+  }
+
+  private void bindTransport(Transport transport) throws IOException {
+    if (!transports.contains(transport)) {
+      transport.bind(serverLocation, connectionHandler);
+      transports.add(transport);
+    }
+  }
+
+  private void unbindTransports() {
+    for (Transport transport : transports) {
+      transport.unbind(serverLocation, connectionHandler);
+    }
+    transports.clear();
   }
 
   private RpcSignature doRegister(String methodName, RpcHostObjectFactory hostClassFactory, Class<?> returnType,
@@ -156,6 +220,14 @@ public class SpecRpcServer implements RpcServer {
     return this.serverLocationDir.getRpcSigLocation();
   }
 
+  // Counters of the selector threads doing the server's network I/O
+  public synchronized List<ReactorStatistics> getReactorStatistics() {
+    if (!initialized) {
+      return null;
+    }
+    return this.serverSocket.getReactorStatistics();
+  }
+
   public void execute() throws UninitializationException, InterruptedException, IOException {
     if (!initialized) {
       throw new UninitializationException("You should call initServer() before calling execute().");
@@ -178,6 +250,7 @@ public class SpecRpcServer implements RpcServer {
       }
     }
 
+    unbindTransports();
     serverThreadPool.shutdown();
     serverSocket.close();
 
@@ -198,6 +271,7 @@ public class SpecRpcServer implements RpcServer {
     }
     terminating = true;
     initialized = false;
+    unbindTransports();
     serverSocket.close();
   }
 }
@@ -17,18 +17,24 @@
 package tradrpc.client;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MessageListener;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-
+import rpc.communication.ArgumentWriter;
 import rpc.communication.Communication;
-import rpc.communication.Message;
+import rpc.communication.MessageCodecs;
+import rpc.communication.MessageReader;
+import rpc.execption.MethodNotRegisteredException;
 import specrpc.common.Location;
+import specrpc.common.MethodKeys;
 import specrpc.common.RpcSignature;
 import tradrpc.client.api.TradRpcServerStub;
 import tradrpc.communication.TradRpcRequestMsg;
@@ -38,33 +44,61 @@ public class TradRpcServerStubObject implements TradRpcServerStub {
 
   private final RpcSignature signature;
   private final Location serverLocation;
+  private final Executor clientThreadPool;
   private Communication comChannel;
 
-  public TradRpcServerStubObject(RpcSignature signature, Location serverLocation) {
+  public TradRpcServerStubObject(RpcSignature signature, Location serverLocation, Executor clientThreadPool) {
     this.signature = signature;
     this.serverLocation = serverLocation;
+    this.clientThreadPool = clientThreadPool;
   }
 
   @Override
   public Object call(Object... args) throws TradRpcUserException {
+    return call(writer -> writer.writeValues(args));
+  }
+
+  @Override
+  public Object call(ArgumentWriter arguments) throws TradRpcUserException {
     Object result = null;
     try {
 
-      this.comChannel = Communication.connectTo(serverLocation);
-      Message msg = new TradRpcRequestMsg(this.signature, args);
-      comChannel.send(msg.serialize());
-      String returnMsg = comChannel.getMessage();
+      long methodKey = MethodKeys.get(this.serverLocation, this.signature);
+      MessageReader returnMsg = this.request(methodKey, arguments);
+      if (this.comChannel.isCodecRejected()) {
+        // The server replied in JSON, the codec the requests to it go in now
+        MessageCodecs.fallBackToJson(this.serverLocation);
+        this.comChannel.disconnect();
+        this.comChannel = null;
+        returnMsg = this.request(methodKey, arguments);
+      }
 
-      Gson gson = new Gson();
-      JsonParser parser = new JsonParser();
-      JsonArray array = parser.parse(returnMsg).getAsJsonArray();
-      TradRpcResponseMsg.MessageType type = gson.fromJson(array.get(0), TradRpcResponseMsg.MessageType.class);
+      TradRpcResponseMsg.MessageType type = returnMsg.readEnum(TradRpcResponseMsg.MessageType.class);
+      if (type == TradRpcResponseMsg.MessageType.UNKNOWN_METHOD_KEY && methodKey != 0) {
+        // The server restarted since it told the key. Sends the request again
+        // with the signature.
+        MethodKeys.remove(this.serverLocation, this.signature, methodKey);
+        this.comChannel.disconnect();
+        this.comChannel = null;
+        returnMsg = this.request(0, arguments);
+        type = returnMsg.readEnum(TradRpcResponseMsg.MessageType.class);
+      }
+      if (type == TradRpcResponseMsg.MessageType.METHOD_KEY) {
+        MethodKeys.put(this.serverLocation, this.signature, (Long) returnMsg.readValue(long.class));
+        returnMsg = comChannel.getMessageReader();
+        type = returnMsg.readEnum(TradRpcResponseMsg.MessageType.class);
+      }
 
+      if (type == TradRpcResponseMsg.MessageType.UNKNOWN_METHOD_KEY) {
+        // Should not happen, as the request carried the signature
+        throw new TradRpcUserException(
+            new MethodNotRegisteredException((Long) returnMsg.readValue(long.class)).getMessage());
+      }
       if (type == TradRpcResponseMsg.MessageType.EXCEPTION) {
-        result = gson.fromJson(array.get(1), String.class);
+        result = returnMsg.readValue(String.class);
         throw new TradRpcUserException(result.toString());
       }
-      result = gson.fromJson(array.get(1), this.signature.returnType);
+      result = returnMsg.readValue(this.signature.returnType);
 
       // Socket connection is closed in "finally"
     } catch (IOException | InterruptedException | ExecutionException | MultiSocketValidException | ConnectionCloseException e) {
@@ -82,6 +116,132 @@ public class TradRpcServerStubObject implements TradRpcServerStub {
     return result;
   }
 
+  // Connects and sends the request, then reads the first response
+  private MessageReader request(long methodKey, ArgumentWriter arguments) throws IOException, InterruptedException,
+      ExecutionException, MultiSocketValidException, ConnectionCloseException {
+    this.comChannel = Communication.connectTo(serverLocation);
+    comChannel.send(new TradRpcRequestMsg(methodKey, this.signature, arguments));
+    return comChannel.getMessageReader();
+  }
+
+  @Override
+  public CompletionStage<Object> callAsync(Object... args) {
+    return callAsync(writer -> writer.writeValues(args));
+  }
+
+  @Override
+  public CompletionStage<Object> callAsync(ArgumentWriter arguments) {
+    CompletableFuture<Object> result = new CompletableFuture<Object>();
+    this.requestAsync(MethodKeys.get(this.serverLocation, this.signature), arguments, result);
+    return result;
+  }
+
+  // Connects and sends the request, whose responses complete the result
+  private void requestAsync(long methodKey, ArgumentWriter arguments, CompletableFuture<Object> result) {
+    Communication commModule = null;
+    try {
+      commModule = Communication.connectTo(serverLocation);
+      // The responses are read in the pool, which completes the result
+      commModule.setMessageListener(new ResponseListener(commModule, methodKey, arguments, result),
+          this.clientThreadPool);
+      commModule.send(new TradRpcRequestMsg(methodKey, this.signature, arguments));
+    } catch (IOException | InterruptedException | ExecutionException | MultiSocketValidException
+        | ConnectionCloseException e) {
+      if (commModule != null) {
+        disconnect(commModule);
+      }
+      result.completeExceptionally(e);
+    }
+  }
+
+  private static void disconnect(Communication commModule) {
+    try {
+      commModule.disconnect();
+    } catch (IOException | MultiSocketValidException | ConnectionCloseException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Completes the result of an asynchronous call from its responses, the
+  // method key of the signature (if any) then the return value or exception.
+  // If the server does not know the method key, or does not take the codec,
+  // the request is sent again with the signature or in JSON, from the pool, and
+  // this listener no longer completes the result.
+  private class ResponseListener implements MessageListener {
+    private final Communication commModule;
+    private final long methodKey;
+    private final ArgumentWriter arguments;
+    private final CompletableFuture<Object> result;
+    private volatile boolean resent;
+
+    ResponseListener(Communication commModule, long methodKey, ArgumentWriter arguments,
+        CompletableFuture<Object> result) {
+      this.commModule = commModule;
+      this.methodKey = methodKey;
+      this.arguments = arguments;
+      this.result = result;
+      this.resent = false;
+    }
+
+    @Override
+    public void onMessage(IConnection connection, ByteBuffer message) {
+      if (result.isDone() || resent) {
+        return;
+      }
+      try {
+        MessageReader returnMsg = commModule.getMessageReader(message);
+        if (commModule.isCodecRejected()) {
+          // The server replied in JSON, the codec the requests to it go in now
+          MessageCodecs.fallBackToJson(serverLocation);
+          resend(methodKey);
+          return;
+        }
+        TradRpcResponseMsg.MessageType type = returnMsg.readEnum(TradRpcResponseMsg.MessageType.class);
+        if (type == TradRpcResponseMsg.MessageType.METHOD_KEY) {
+          MethodKeys.put(serverLocation, signature, (Long) returnMsg.readValue(long.class));
+          // The return follows
+          return;
+        }
+        if (type == TradRpcResponseMsg.MessageType.UNKNOWN_METHOD_KEY && methodKey != 0) {
+          // The server restarted since it told the key
+          MethodKeys.remove(serverLocation, signature, methodKey);
+          resend(0);
+          return;
+        }
+        if (type == TradRpcResponseMsg.MessageType.UNKNOWN_METHOD_KEY) {
+          // Should not happen, as the request carried the signature
+          result.completeExceptionally(new TradRpcUserException(
+              new MethodNotRegisteredException((Long) returnMsg.readValue(long.class)).getMessage()));
+        } else if (type == TradRpcResponseMsg.MessageType.EXCEPTION) {
+          result.completeExceptionally(new TradRpcUserException((String) returnMsg.readValue(String.class)));
+        } else {
+          result.complete(returnMsg.readValue(signature.returnType));
+        }
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+      disconnect(commModule);
+    }
+
+    // Sends the request again, after which this listener no longer completes
+    // the result
+    private void resend(long requestKey) {
+      resent = true;
+      disconnect(commModule);
+      requestAsync(requestKey, arguments, result);
+    }
+
+    // The server closes the connection after the return, which completed the
+    // result before this. Otherwise the server is gone.
+    @Override
+    public void onClose(IConnection connection) {
+      if (result.isDone() || resent) {
+        return;
+      }
+      result.completeExceptionally(new ConnectionCloseException("Connection closed by the server"));
+    }
+  }
+
   @Override
   public Location getServerLocation() {
     return this.serverLocation;
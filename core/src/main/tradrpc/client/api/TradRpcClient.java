@@ -18,9 +18,12 @@ package tradrpc.client.api;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import rpc.communication.Communication;
 import rpc.config.Constants;
+import rpc.config.ThreadPools;
 import rpc.execption.MethodNotRegisteredException;
 import specrpc.common.RpcConfig;
 import specrpc.common.Location;
@@ -32,6 +35,8 @@ public class TradRpcClient {
 
   private static ServerLocationDirectory serverLocationDir;
   private static boolean terminated = true;
+  // Completes the asynchronous calls, off the threads doing network I/O
+  private static ExecutorService clientThreadPool;
 
   public synchronized static void initClient(String configFile) throws FileNotFoundException, IOException {
     if (terminated == false) {
@@ -39,10 +44,14 @@ public class TradRpcClient {
       return;
     }
 
-    Communication.initClientCommunication();
     RpcConfig config = new RpcConfig(configFile);
+    Communication.initClientCommunication(config);
     serverLocationDir = new ServerLocationDirectory(
         config.get(Constants.RPC_HOST_SIGNATURE_FILE_PROPERTY, Constants.DEFAULT_RPC_HOST_SIGNATURE_FILE));
+    int threadPoolSize = Integer.parseInt(config.get(Constants.TRADRPC_CLIENT_THREADPOOL_SIZE_PROPERTY,
+        Constants.DEFAULT_TRADRPC_CLIENT_THREADPOOL_SIZE));
+    clientThreadPool = ThreadPools.newThreadPool(config.get(Constants.TRADRPC_CLIENT_THREADPOOL_TYPE_PROPERTY,
+        Constants.DEFAULT_TRADRPC_CLIENT_THREADPOOL_TYPE), threadPoolSize);
     terminated = false;
   }
 
@@ -53,7 +62,7 @@ public class TradRpcClient {
     }
 
     Location serverLocation = lookup(serverIdentity, signature);
-    TradRpcServerStub serverStub = new TradRpcServerStubObject(signature, serverLocation);
+    TradRpcServerStub serverStub = new TradRpcServerStubObject(signature, serverLocation, clientThreadPool);
     return serverStub;
   }
 
@@ -78,5 +87,14 @@ public class TradRpcClient {
     }
     terminated = true;
     Communication.shutdown();
+
+    clientThreadPool.shutdown();
+    try {
+      if (!clientThreadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+        clientThreadPool.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
   }
 }
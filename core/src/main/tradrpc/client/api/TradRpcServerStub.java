@@ -16,6 +16,9 @@
 
 package tradrpc.client.api;
 
+import java.util.concurrent.CompletionStage;
+
+import rpc.communication.ArgumentWriter;
 import specrpc.common.Location;
 import tradrpc.client.TradRpcUserException;
 
@@ -23,5 +26,21 @@ public interface TradRpcServerStub {
 
   public Object call(Object... args) throws TradRpcUserException;
 
+  /*
+   * Makes the call without waiting for its return. The stage completes with the
+   * return value, or exceptionally with a TradRpcUserException or the failure
+   * of the communication, in the client thread pool rather than in the threads
+   * doing network I/O.
+   */
+  public CompletionStage<Object> callAsync(Object... args);
+
+  /*
+   * The calls with the arguments the writer writes, each in its own type, as
+   * the generated stubs make them so that no argument is boxed into an array.
+   */
+  public Object call(ArgumentWriter arguments) throws TradRpcUserException;
+
+  public CompletionStage<Object> callAsync(ArgumentWriter arguments);
+
   public Location getServerLocation();
 }
@@ -16,42 +16,70 @@
 
 package tradrpc.communication;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
-
+import rpc.communication.ArgumentReader;
+import rpc.communication.ArgumentWriter;
 import rpc.communication.Message;
+import rpc.communication.MessageReader;
+import rpc.communication.MessageWriter;
+import rpc.execption.MethodNotRegisteredException;
+import specrpc.common.MethodTable;
 import specrpc.common.RpcSignature;
 
 public class TradRpcRequestMsg implements Message {
 
-  public final RpcSignature signature;
-  public final Object[] args;
+  public final RpcSignature signature; // Null if the method key is not of the server
+  public final long methodKey; // 0 if the request carries the whole signature
+  public final Object[] args; // Null if written or read by the arguments' own writer or reader
+  private final ArgumentWriter arguments;
 
   public TradRpcRequestMsg(RpcSignature signature, Object... args) {
+    this(0, signature, args);
+  }
+
+  // The method key stands for the signature, if the codec carries keys
+  public TradRpcRequestMsg(long methodKey, RpcSignature signature, Object[] args) {
+    this.methodKey = methodKey;
     this.signature = signature;
     this.args = args;
+    this.arguments = null;
   }
 
-  public TradRpcRequestMsg(String message) throws JsonSyntaxException, ClassNotFoundException {
-    JsonParser parser = new JsonParser();
-    JsonArray array = parser.parse(message).getAsJsonArray();
-    this.signature = new RpcSignature(array.get(0));
-    this.args = this.signature.parseArgs(array.get(1));
+  public TradRpcRequestMsg(long methodKey, RpcSignature signature, ArgumentWriter arguments) {
+    this.methodKey = methodKey;
+    this.signature = signature;
+    this.args = null;
+    this.arguments = arguments;
   }
 
-  @Override
-  public String serialize() {
-    Collection<Object> msg = new ArrayList<Object>();
+  public TradRpcRequestMsg(MessageReader reader, MethodTable methods) throws ClassNotFoundException {
+    this.methodKey = reader.readMethodKey();
+    this.signature = this.methodKey == 0 ? reader.readSignature() : methods.getSignature(this.methodKey);
+    this.args = this.signature == null ? null : reader.readValues(this.signature.argTypes);
+    this.arguments = null;
+  }
 
-    msg.add(signature.toArray());
-    msg.add(args);
+  // The arguments are read by the given reader, which keeps them
+  public TradRpcRequestMsg(MessageReader reader, MethodTable methods, ArgumentReader arguments)
+      throws ClassNotFoundException, MethodNotRegisteredException, NoSuchMethodException, IllegalAccessException {
+    this.methodKey = reader.readMethodKey();
+    this.signature = this.methodKey == 0 ? reader.readSignature() : methods.getSignature(this.methodKey);
+    this.args = null;
+    this.arguments = null;
+    if (this.signature != null) {
+      arguments.readArguments(this.signature, reader);
+    }
+  }
 
-    return new Gson().toJson(msg);
+  @Override
+  public void write(MessageWriter writer) {
+    if (!writer.writeMethodKey(methodKey) || methodKey == 0) {
+      writer.writeSignature(signature);
+    }
+    if (arguments != null) {
+      arguments.writeArguments(writer);
+    } else {
+      writer.writeValues(args);
+    }
   }
 
 }
@@ -16,17 +16,13 @@
 
 package tradrpc.communication;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
-import com.google.gson.Gson;
-
 import rpc.communication.Message;
+import rpc.communication.MessageWriter;
 
 public class TradRpcResponseMsg implements Message {
 
   public enum MessageType {
-    RETURN, EXCEPTION
+    RETURN, EXCEPTION, METHOD_KEY, UNKNOWN_METHOD_KEY
   };
 
   private final MessageType messageType;
@@ -38,11 +34,9 @@ public class TradRpcResponseMsg implements Message {
   }
 
   @Override
-  public String serialize() {
-    Collection<Object> msg = new ArrayList<Object>();
-    msg.add(this.messageType);
-    msg.add(this.returnValue);
-    return new Gson().toJson(msg);
+  public void write(MessageWriter writer) {
+    writer.writeEnum(this.messageType);
+    writer.writeValue(this.returnValue);
   }
 
 }
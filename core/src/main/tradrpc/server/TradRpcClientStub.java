@@ -17,7 +17,9 @@
 package tradrpc.server;
 
 import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
 
+import Waterloo.MultiSocket.MessagePriority;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
@@ -28,25 +30,73 @@ public class TradRpcClientStub {
 
   private final Communication comChannel;
   private boolean isSentException = false;
+  // Not a monitor, which would pin the carrier of a virtual thread while it
+  // writes to the network
+  private final ReentrantLock lock = new ReentrantLock();
 
   public TradRpcClientStub(Communication comChannel) {
     this.comChannel = comChannel;
   }
 
-  protected synchronized void send(Object value)
+  protected void send(Object value)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    String msg = new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.RETURN, value).serialize();
-    this.comChannel.send(msg);
+    this.lock.lock();
+    try {
+      this.comChannel.send(new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.RETURN, value));
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void sendException(String exceptionMsg)
+  // Sends the return value and closes the connection, in one frame if possible
+  protected void sendAndDisconnect(Object value)
       throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
-    this.isSentException = true;
-    String msg = new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.EXCEPTION, exceptionMsg).serialize();
-    this.comChannel.send(msg);
+    this.lock.lock();
+    try {
+      this.comChannel.sendAndDisconnect(new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.RETURN, value));
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  protected synchronized boolean isSentException() {
-    return isSentException;
+  protected void sendMethodKey(long methodKey)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.lock.lock();
+    try {
+      this.comChannel.send(new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.METHOD_KEY, methodKey));
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  protected void sendUnknownMethodKey(long methodKey)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    this.lock.lock();
+    try {
+      this.comChannel.send(new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.UNKNOWN_METHOD_KEY, methodKey));
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  public void sendException(String exceptionMsg)
+      throws InterruptedException, IOException, MultiSocketValidException, ConnectionCloseException {
+    this.lock.lock();
+    try {
+      this.isSentException = true;
+      this.comChannel.send(new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.EXCEPTION, exceptionMsg),
+          MessagePriority.HIGH);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  protected boolean isSentException() {
+    this.lock.lock();
+    try {
+      return isSentException;
+    } finally {
+      this.lock.unlock();
+    }
   }
 }
@@ -33,7 +33,8 @@ public class TradRpcConnectionHandler implements ConnectionHandler {
 
   @Override
   public void handle(IConnection connection) {
-    serverThreadPool.execute(new TradRpcHandler(connection, localdir));
+    // The requests of a session on the connection come back here, each on a connection of its own
+    serverThreadPool.execute(new TradRpcHandler(connection, localdir, this));
   }
 
 }
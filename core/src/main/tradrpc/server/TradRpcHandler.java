@@ -18,8 +18,8 @@ package tradrpc.server;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
+import Waterloo.MultiSocket.ConnectionHandler;
 import Waterloo.MultiSocket.IConnection;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
@@ -27,7 +27,11 @@ import Waterloo.MultiSocket.exception.MultiSocketValidException;
 import com.google.gson.JsonSyntaxException;
 
 import rpc.communication.Communication;
+import rpc.communication.MessageCodec;
+import rpc.communication.MessageCodecs;
+import rpc.communication.MessageReader;
 import rpc.execption.MethodNotRegisteredException;
+import rpc.server.MethodInvoker;
 import specrpc.common.RpcSignature;
 import tradrpc.communication.TradRpcRequestMsg;
 import tradrpc.server.api.TradRpcHost;
@@ -37,39 +41,64 @@ public class TradRpcHandler implements Runnable {
   // private final Socket clientSocket;
   private final IConnection clientConnection;
   private final TradRpcHostObjectMap localDir;
+  // Handles the requests if the client opens a session on the connection
+  private final ConnectionHandler sessionHandler;
 
   private RpcSignature signature;
-  private Object[] args;
+  // The host object of the RPC method and its call, made as the request is read
   private TradRpcHost hostObject;
+  private MethodInvoker.Call call;
 
-  public TradRpcHandler(IConnection connection, TradRpcHostObjectMap localdir) {
+  public TradRpcHandler(IConnection connection, TradRpcHostObjectMap localdir, ConnectionHandler sessionHandler) {
     // this.clientSocket = socket;
     this.clientConnection = connection;
     this.localDir = localdir;
+    this.sessionHandler = sessionHandler;
   }
 
   @Override
   public void run() {
     Communication com = null;
+    boolean disconnected = false;
     try {
       // com = new Communication(clientSocket);
-      com = new Communication(this.clientConnection);
-
-      String request = com.getMessage();
+      com = Communication.accept(this.clientConnection, this.sessionHandler);
+      if (com == null) {
+        // A session, whose requests are handled on their own
+        return;
+      }
 
-      TradRpcRequestMsg requestMsg = new TradRpcRequestMsg(request);
-      this.signature = requestMsg.signature;
-      this.args = requestMsg.args;
-      this.hostObject = this.localDir.getHostObject(signature);
+      MessageReader request = com.getMessageReader();
       TradRpcClientStub clientStub = new TradRpcClientStub(com);
+      // Replies in JSON to a codec the server does not take, which tells the
+      // client to send the request again in JSON
+      MessageCodec requestCodec = com.getCodec();
+      if (!MessageCodecs.isAccepted(requestCodec)) {
+        com.setCodec(MessageCodecs.JSON);
+        clientStub.sendException("Requests in " + requestCodec.getName() + " are not taken");
+        return;
+      }
+      TradRpcRequestMsg requestMsg = new TradRpcRequestMsg(request, this.localDir.getMethodTable(),
+          this::readArguments);
+      // The client sends the request again with the signature
+      if (requestMsg.signature == null) {
+        clientStub.sendUnknownMethodKey(requestMsg.methodKey);
+        return;
+      }
+      // Tells the client the key to send next time, before the response
+      if (requestMsg.methodKey == 0 && request.takesMethodKeys()) {
+        long methodKey = this.localDir.getMethodTable().getKey(this.signature);
+        if (methodKey != 0) {
+          clientStub.sendMethodKey(methodKey);
+        }
+      }
       this.hostObject.bind(clientStub);
 
-      Class<? extends TradRpcHost> hostObjClass = this.hostObject.getClass();
-      Method method = hostObjClass.getMethod(this.signature.methodName, this.signature.argTypes);
-      Object result = method.invoke(this.hostObject, this.args);
+      Object result = this.call.invoke();
       try {
         if (!clientStub.isSentException()) {
-          clientStub.send(result);
+          clientStub.sendAndDisconnect(result);
+          disconnected = true;
         }
       } catch (IOException e) {
         e.printStackTrace();
@@ -96,10 +125,10 @@ public class TradRpcHandler implements Runnable {
 
     } catch (JsonSyntaxException | ClassNotFoundException | MethodNotRegisteredException | SecurityException
         | IllegalArgumentException | InterruptedException | IllegalAccessException | InvocationTargetException
-        | NoSuchMethodException | ConnectionCloseException e) {
+        | NoSuchMethodException | ConnectionCloseException | IOException | MultiSocketValidException e) {
       e.printStackTrace();
     } finally {
-      if (com != null) {
+      if (com != null && !disconnected) {
         try {
           // Closes the socket for avoiding socket exception: too many files
           com.disconnect();
@@ -110,4 +139,13 @@ public class TradRpcHandler implements Runnable {
     }
 
   }
+
+  // Looks up the RPC method, and makes its host object, which reads the arguments
+  private void readArguments(RpcSignature signature, MessageReader reader)
+      throws MethodNotRegisteredException, NoSuchMethodException, IllegalAccessException {
+    this.signature = signature;
+    MethodInvoker method = this.localDir.getMethod(signature);
+    this.hostObject = (TradRpcHost) method.newHostObject();
+    this.call = method.readCall(this.hostObject, reader);
+  }
 }
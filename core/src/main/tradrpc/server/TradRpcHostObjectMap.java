@@ -20,23 +20,37 @@ import java.util.HashMap;
 import java.util.Map;
 
 import rpc.execption.MethodNotRegisteredException;
+import rpc.server.MethodInvoker;
 import rpc.server.api.RpcHostObjectFactory;
+import specrpc.common.MethodTable;
 import specrpc.common.RpcSignature;
 import tradrpc.server.api.TradRpcHost;
 import tradrpc.server.api.TradRpcHostFactory;
 
 public class TradRpcHostObjectMap {
-  private final Map<String, TradRpcHostFactory> directory = new HashMap<String, TradRpcHostFactory>();
+  private final Map<String, MethodInvoker> directory = new HashMap<String, MethodInvoker>();
+  // Keys the clients send instead of the signatures
+  private final MethodTable methods = new MethodTable();
 
   public void register(RpcSignature signature, RpcHostObjectFactory hostClassFactory) {
-    directory.put(signature.toString(), (TradRpcHostFactory) hostClassFactory);
+    directory.put(signature.toString(), new MethodInvoker(signature, (TradRpcHostFactory) hostClassFactory));
+    this.methods.register(signature);
   }
 
   public TradRpcHost getHostObject(RpcSignature signature) throws MethodNotRegisteredException {
-    TradRpcHostFactory factory = directory.get(signature.toString());
-    if (factory == null) {
+    return (TradRpcHost) getMethod(signature).newHostObject();
+  }
+
+  // The method resolved at registration, which makes its host objects
+  public MethodInvoker getMethod(RpcSignature signature) throws MethodNotRegisteredException {
+    MethodInvoker method = directory.get(signature.toString());
+    if (method == null) {
       throw new MethodNotRegisteredException(signature);
     }
-    return factory.getRpcHostObject();
+    return method;
+  }
+
+  public MethodTable getMethodTable() {
+    return this.methods;
   }
 }
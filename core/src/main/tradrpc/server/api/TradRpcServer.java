@@ -18,16 +18,24 @@ package tradrpc.server.api;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.MultiSocketOptions;
 import Waterloo.MultiSocket.MultiSocketServer;
+import Waterloo.MultiSocket.ReactorStatistics;
 
+import rpc.communication.Communication;
+import rpc.communication.LoopbackTransport;
+import rpc.communication.ShmTransport;
+import rpc.communication.Transport;
 import rpc.config.Constants;
+import rpc.config.ThreadPools;
 import rpc.execption.UninitializationException;
 import rpc.server.api.RpcHostObjectFactory;
 import rpc.server.api.RpcServer;
@@ -48,22 +56,48 @@ public class TradRpcServer implements RpcServer {
 
   private ExecutorService serverThreadPool;
   private Location serverLocation;
+  private ConnectionHandler connectionHandler;
+  // Transports the server also accepts connections from
+  private List<Transport> transports = new ArrayList<Transport>();
   private String serverIdentity;
   private TradRpcHostObjectMap localdir;
 
   public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
       String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    initServer(id, ip, port, threadPoolSize, maxConnectionNum, Integer.parseInt(Constants.DEFAULT_RPC_HOST_REACTOR_NUM),
+        rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
+      int reactorNum, String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    MultiSocketOptions socketOptions = new MultiSocketOptions();
+    socketOptions.setReactorNum(reactorNum);
+    initServer(id, ip, port, threadPoolSize, maxConnectionNum, socketOptions, rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, int threadPoolSize, int maxConnectionNum,
+      MultiSocketOptions socketOptions, String rpcSigaturesFile) throws FileNotFoundException, IOException {
+    initServer(id, ip, port, ThreadPools.parseType(Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE), threadPoolSize,
+        maxConnectionNum, socketOptions, rpcSigaturesFile);
+  }
+
+  public synchronized void initServer(String id, String ip, int port, ThreadPools.Type threadPoolType,
+      int threadPoolSize, int maxConnectionNum, MultiSocketOptions socketOptions, String rpcSigaturesFile)
+      throws FileNotFoundException, IOException {
     if (initialized) {
       return;
     }
     directory = new ServerLocationDirectory(rpcSigaturesFile);
     localdir = new TradRpcHostObjectMap();
     serverIdentity = id;
-    serverThreadPool = threadPoolSize > 0 ? Executors.newFixedThreadPool(threadPoolSize)
-        : Executors.newCachedThreadPool();
-    serverSocket = new MultiSocketServer(new TradRpcConnectionHandler(serverThreadPool, localdir),
-        new InetSocketAddress(ip, port), maxConnectionNum);
-    serverLocation = new Location(ip, serverSocket.getLocalPort());
+    serverThreadPool = ThreadPools.newThreadPool(threadPoolType, threadPoolSize);
+    connectionHandler = new TradRpcConnectionHandler(serverThreadPool, localdir);
+    // ip may also be unix:<path> for a Unix domain socket
+    Location bindLocation = new Location(ip, port);
+    serverSocket = new MultiSocketServer(connectionHandler, Communication.getSocketAddress(bindLocation),
+        maxConnectionNum, socketOptions);
+    serverLocation = bindLocation.isUnix() ? bindLocation : new Location(ip, serverSocket.getLocalPort());
+    bindTransport(LoopbackTransport.getInstance());
 
     initialized = true;
   }
@@ -83,7 +117,15 @@ public class TradRpcServer implements RpcServer {
         .parseInt(config.get(Constants.RPC_HOST_MAX_CONNECTION_PROPERTY, Constants.DEFAULT_RPC_HOST_MAX_CONNECTION));
     String rpcSigaturesFile = config.get(Constants.RPC_HOST_SIGNATURE_FILE_PROPERTY,
         Constants.DEFAULT_RPC_HOST_SIGNATURE_FILE);
-    initServer(id, ip, port, threadPoolSize, maxConnectionNum, rpcSigaturesFile);
+    ThreadPools.Type threadPoolType = ThreadPools.parseType(
+        config.get(Constants.RPC_HOST_THREADPOOL_TYPE_PROPERTY, Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE));
+    initServer(id, ip, port, threadPoolType, threadPoolSize, maxConnectionNum,
+        Communication.getSocketOptions(config, true), rpcSigaturesFile);
+    Communication.initServerCodecs(config);
+    if (Boolean.parseBoolean(
+        config.get(Constants.RPC_HOST_TRANSPORT_SHM_PROPERTY, Constants.DEFAULT_RPC_HOST_TRANSPORT_SHM))) {
+      bindTransport(ShmTransport.getInstance(config));
+    }
   }
 
   public synchronized void initServer(String id, String ip, int port, String configFile) throws IOException {
@@ -94,7 +136,29 @@ public class TradRpcServer implements RpcServer {
         .parseInt(config.get(Constants.RPC_HOST_MAX_CONNECTION_PROPERTY, Constants.DEFAULT_RPC_HOST_MAX_CONNECTION));
     String rpcSigaturesFile = config.get(Constants.RPC_HOST_SIGNATURE_FILE_PROPERTY,
         Constants.DEFAULT_RPC_HOST_SIGNATURE_FILE);
-    initServer(id, ip, port, threadPoolSize, maxConnectionNum, rpcSigaturesFile);
+    ThreadPools.Type threadPoolType = ThreadPools.parseType(
+        config.get(Constants.RPC_HOST_THREADPOOL_TYPE_PROPERTY, Constants.DEFAULT_RPC_HOST_THREADPOOL_TYPE));
+    initServer(id, ip, port, threadPoolType, threadPoolSize, maxConnectionNum,
+        Communication.getSocketOptions(config, true), rpcSigaturesFile);
+    Communication.initServerCodecs(config);
+    if (Boolean.parseBoolean(
+        config.get(Constants.RPC_HOST_TRANSPORT_SHM_PROPERTY, Constants.DEFAULT_RPC_HOST_TRANSPORT_SHM))) {
+      bindTransport(ShmTransport.getInstance(config));
+    }
+  }
+
+  private void bindTransport(Transport transport) throws IOException {
+    if (!transports.contains(transport)) {
+      transport.bind(serverLocation, connectionHandler);
+      transports.add(transport);
+    }
+  }
+
+  private void unbindTransports() {
+    for (Transport transport : transports) {
+      transport.unbind(serverLocation, connectionHandler);
+    }
+    transports.clear();
   }
 
   private RpcSignature doRegister(String methodName, RpcHostObjectFactory hostClassFactory, Class<?> returnType,
@@ -130,6 +194,14 @@ public class TradRpcServer implements RpcServer {
     return this.directory.getRpcSigLocation();
   }
 
+  // Counters of the selector threads doing the server's network I/O
+  public synchronized List<ReactorStatistics> getReactorStatistics() {
+    if (!initialized) {
+      return null;
+    }
+    return this.serverSocket.getReactorStatistics();
+  }
+
   public void execute() throws UninitializationException, InterruptedException, IOException {
     if (!initialized) {
       throw new UninitializationException("ComServer: You should call initServer() before calling execute().");
@@ -152,6 +224,7 @@ public class TradRpcServer implements RpcServer {
       }
     }
 
+    unbindTransports();
     serverThreadPool.shutdown();
     serverSocket.close();
 
@@ -173,6 +246,7 @@ public class TradRpcServer implements RpcServer {
     }
     terminating = true;
     initialized = false;
+    unbindTransports();
     serverSocket.close();
   }
 }
@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+import specrpc.common.Location;
+
+/*
+ * LoopbackTransport hands in-memory connections to the servers bound in this
+ * JVM, with the ordering and close semantics of a MultiSocket connection.
+ */
+public class LoopbackTransportTest {
+
+  private static final LoopbackTransport transport = LoopbackTransport.getInstance();
+
+  @Test(timeout = 10000)
+  public void testMessagesBothWays() throws Exception {
+    Location location = new Location("loopback-test", 1);
+    BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+    ConnectionHandler handler = accepted::add;
+    transport.bind(location, handler);
+    try {
+      IConnection client = transport.connect(location);
+      assertNotNull(client);
+      IConnection server = accepted.take();
+
+      for (int i = 0; i < 100; i++) {
+        client.writeMessage("request " + i);
+      }
+      client.writeMessage(StandardCharsets.UTF_8.encode("buffer"));
+      for (int i = 0; i < 100; i++) {
+        assertEquals("request " + i, server.readMessage());
+      }
+      ByteBuffer buffer = server.readMessageBuffer();
+      assertTrue(buffer.isReadOnly());
+      assertEquals("buffer", StandardCharsets.UTF_8.decode(buffer).toString());
+
+      server.writeMessage("response");
+      assertEquals("response", StandardCharsets.UTF_8.decode(client.readMessageBuffer()).toString());
+    } finally {
+      transport.unbind(location, handler);
+    }
+  }
+
+  // The reader gets the messages sent before the peer closed, and then fails
+  @Test(timeout = 10000)
+  public void testClose() throws Exception {
+    Location location = new Location("loopback-test", 2);
+    BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+    ConnectionHandler handler = accepted::add;
+    transport.bind(location, handler);
+    try {
+      IConnection client = transport.connect(location);
+      IConnection server = accepted.take();
+      client.writeMessage("last");
+      client.close();
+      try {
+        client.writeMessage("after close");
+        fail("Wrote to a closed connection");
+      } catch (ConnectionCloseException e) {
+        // Expected
+      }
+
+      assertEquals("last", server.readMessage());
+      try {
+        server.readMessage();
+        fail("Read from a connection the peer closed");
+      } catch (ConnectionCloseException e) {
+        // Expected
+      }
+      server.close();
+    } finally {
+      transport.unbind(location, handler);
+    }
+  }
+
+  @Test
+  public void testUnbind() throws Exception {
+    Location location = new Location("loopback-test", 3);
+    ConnectionHandler handler = connection -> {
+    };
+    assertNull(transport.connect(location));
+    transport.bind(location, handler);
+    // Another handler does not unbind the location
+    transport.unbind(location, connection -> {
+    });
+    assertNotNull(transport.connect(location));
+    transport.unbind(location, handler);
+    assertNull(transport.connect(location));
+  }
+}
@@ -0,0 +1,314 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import specrpc.common.MethodTable;
+import specrpc.common.RpcSignature;
+import specrpc.common.Status.SpeculationStatus;
+import specrpc.communication.CallerSpeculationSolvedMsg;
+import specrpc.communication.CallerSpeculationSolvedMsg.Resolution;
+import specrpc.communication.MethodKeyMsg;
+import specrpc.communication.RequestMsg;
+import specrpc.communication.ResponseExceptionMsg;
+import specrpc.communication.ResponseMsg.ResponseType;
+import specrpc.communication.ResponseValueMsg;
+import specrpc.communication.SpeculativeResponseValueMsg;
+import tradrpc.communication.TradRpcRequestMsg;
+import tradrpc.communication.TradRpcResponseMsg;
+
+/*
+ * Every message type written by each codec and read back the way its receiver
+ * reads it. Both codecs must give the receiver the same fields.
+ */
+public class MessageCodecTest {
+  private static final List<MessageCodec> CODECS = Arrays.<MessageCodec>asList(MessageCodecs.BINARY,
+      MessageCodecs.JSON);
+
+  public enum Color {
+    RED, GREEN
+  }
+
+  // Sent as JSON by both codecs
+  public static class Point {
+    int x;
+    String label;
+
+    public Point() {
+    }
+
+    Point(int x, String label) {
+      this.x = x;
+      this.label = label;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Point && ((Point) o).x == this.x && this.label.equals(((Point) o).label);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.x;
+    }
+  }
+
+  private static final RpcSignature SIGNATURE = new RpcSignature("calc.Calc", "compute", String.class, int.class,
+      long.class, double.class, boolean.class, char.class, String.class, byte[].class, Color.class, Point.class,
+      Integer.class);
+  private static final Object[] ARGS = { -7, 1L << 40, 2.5, true, '\u4e2d', "caf\u00e9", new byte[] { 1, -2, 3 },
+      Color.GREEN, new Point(3, "p"), null };
+
+  private static MessageReader roundTrip(MessageCodec codec, Message message) {
+    ByteBuffer encoded = codec.encode(message);
+    assertSame(codec, MessageCodecs.forMessage(encoded));
+    return codec.newReader(encoded);
+  }
+
+  private static void assertArgs(Object[] args) {
+    assertEquals(ARGS.length, args.length);
+    for (int i = 0; i < ARGS.length; i++) {
+      if (ARGS[i] instanceof byte[]) {
+        assertArrayEquals((byte[]) ARGS[i], (byte[]) args[i]);
+      } else {
+        assertEquals("argument " + i, ARGS[i], args[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testRequestMsg() throws ClassNotFoundException {
+    for (MessageCodec codec : CODECS) {
+      MessageReader reader = roundTrip(codec,
+          new RequestMsg(SpeculationStatus.SPECULATIVE, SIGNATURE, ARGS));
+      RequestMsg request = new RequestMsg(reader, new MethodTable());
+      assertEquals(0, request.methodKey);
+      assertEquals(SIGNATURE, request.signature);
+      assertArgs(request.args);
+      assertEquals(SpeculationStatus.SPECULATIVE, request.callerStatus);
+    }
+  }
+
+  // The binary codec sends the key of a known method instead of its signature
+  @Test
+  public void testRequestMsgWithMethodKey() throws ClassNotFoundException {
+    MethodTable methods = new MethodTable();
+    long key = methods.register(SIGNATURE);
+    for (MessageCodec codec : CODECS) {
+      MessageReader reader = roundTrip(codec,
+          new RequestMsg(SpeculationStatus.SUCCEED, key, SIGNATURE, ARGS));
+      boolean takesKeys = reader.takesMethodKeys();
+      assertEquals(codec == MessageCodecs.BINARY, takesKeys);
+      RequestMsg request = new RequestMsg(reader, methods);
+      assertEquals(takesKeys ? key : 0, request.methodKey);
+      assertEquals(SIGNATURE, request.signature);
+      assertArgs(request.args);
+      assertEquals(SpeculationStatus.SUCCEED, request.callerStatus);
+    }
+  }
+
+  @Test
+  public void testTradRpcRequestMsg() throws ClassNotFoundException {
+    MethodTable methods = new MethodTable();
+    long key = methods.register(SIGNATURE);
+    for (MessageCodec codec : CODECS) {
+      TradRpcRequestMsg request = new TradRpcRequestMsg(roundTrip(codec, new TradRpcRequestMsg(SIGNATURE, ARGS)),
+          methods);
+      assertEquals(SIGNATURE, request.signature);
+      assertArgs(request.args);
+
+      request = new TradRpcRequestMsg(roundTrip(codec, new TradRpcRequestMsg(key, SIGNATURE, ARGS)), methods);
+      assertEquals(SIGNATURE, request.signature);
+      assertArgs(request.args);
+    }
+  }
+
+  // A method key the server does not know leaves the signature null
+  @Test
+  public void testUnknownMethodKey() throws ClassNotFoundException {
+    long key = new MethodTable().register(SIGNATURE);
+    MessageReader reader = roundTrip(MessageCodecs.BINARY,
+        new RequestMsg(SpeculationStatus.SUCCEED, key, SIGNATURE, ARGS));
+    RequestMsg request = new RequestMsg(reader, new MethodTable());
+    assertEquals(key, request.methodKey);
+    assertNull(request.signature);
+    assertNull(request.args);
+    assertNull(request.callerStatus);
+  }
+
+  @Test
+  public void testCallerSpeculationSolvedMsg() {
+    for (MessageCodec codec : CODECS) {
+      for (Resolution resolution : Resolution.values()) {
+        MessageReader reader = roundTrip(codec, new CallerSpeculationSolvedMsg(resolution));
+        assertEquals(resolution, new CallerSpeculationSolvedMsg(reader).resolType);
+      }
+    }
+  }
+
+  @Test
+  public void testResponseMsgs() {
+    for (MessageCodec codec : CODECS) {
+      MessageReader reader = roundTrip(codec, new ResponseValueMsg(new Point(1, "r")));
+      assertEquals(ResponseType.RETURN, reader.readEnum(ResponseType.class));
+      assertEquals(new Point(1, "r"), reader.readValue(Point.class));
+
+      reader = roundTrip(codec, new SpeculativeResponseValueMsg(42L));
+      assertEquals(ResponseType.SPEC_RETURN, reader.readEnum(ResponseType.class));
+      assertEquals(42L, reader.readValue(long.class));
+
+      reader = roundTrip(codec, new ResponseExceptionMsg("java.lang.IllegalStateException: \"bad\"\n"));
+      assertEquals(ResponseType.EXCEPTION, reader.readEnum(ResponseType.class));
+      assertEquals("java.lang.IllegalStateException: \"bad\"\n", reader.readString());
+
+      reader = roundTrip(codec, new MethodKeyMsg(Long.MIN_VALUE + 5));
+      assertEquals(ResponseType.METHOD_KEY, reader.readEnum(ResponseType.class));
+      assertEquals(Long.MIN_VALUE + 5, reader.readValue(long.class));
+
+      // The return of a void method
+      reader = roundTrip(codec, new ResponseValueMsg(null));
+      assertEquals(ResponseType.RETURN, reader.readEnum(ResponseType.class));
+      assertNull(reader.readValue(void.class));
+    }
+  }
+
+  @Test
+  public void testTradRpcResponseMsg() {
+    for (MessageCodec codec : CODECS) {
+      MessageReader reader = roundTrip(codec,
+          new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.RETURN, Arrays.asList("a", "b")));
+      assertEquals(TradRpcResponseMsg.MessageType.RETURN, reader.readEnum(TradRpcResponseMsg.MessageType.class));
+      assertEquals(Arrays.asList("a", "b"), reader.readValue(List.class));
+
+      reader = roundTrip(codec, new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.EXCEPTION, "failed"));
+      assertEquals(TradRpcResponseMsg.MessageType.EXCEPTION,
+          reader.readEnum(TradRpcResponseMsg.MessageType.class));
+      assertEquals("failed", reader.readValue(String.class));
+
+      reader = roundTrip(codec, new TradRpcResponseMsg(TradRpcResponseMsg.MessageType.METHOD_KEY, 9L));
+      assertEquals(TradRpcResponseMsg.MessageType.METHOD_KEY,
+          reader.readEnum(TradRpcResponseMsg.MessageType.class));
+      assertEquals(9L, reader.readValue(long.class));
+    }
+  }
+
+  // The primitives written by their own methods take the bytes of their boxes,
+  // and either are read back by the methods or as values
+  @Test
+  public void testTypedArguments() {
+    Object[] values = { true, (byte) -3, (short) 300, '\u4e2d', -7, 1L << 40, 1.5f, 2.5, "caf\u00e9", null };
+    ArgumentWriter typed = writer -> {
+      writer.writeCount(values.length);
+      writer.writeBoolean(true);
+      writer.writeByte((byte) -3);
+      writer.writeShort((short) 300);
+      writer.writeChar('\u4e2d');
+      writer.writeInt(-7);
+      writer.writeLong(1L << 40);
+      writer.writeFloat(1.5f);
+      writer.writeDouble(2.5);
+      writer.writeValue("caf\u00e9");
+      writer.writeValue(null);
+    };
+    for (MessageCodec codec : CODECS) {
+      Message typedMessage = writer -> {
+        typed.writeArguments(writer);
+        writer.writeEnum(Color.RED);
+      };
+      Message boxedMessage = writer -> {
+        writer.writeValues(values);
+        writer.writeEnum(Color.RED);
+      };
+      assertEquals(codec.encode(boxedMessage), codec.encode(typedMessage));
+
+      MessageReader reader = roundTrip(codec, boxedMessage);
+      reader.readCount(values.length);
+      assertTrue(reader.readBoolean());
+      assertEquals(-3, reader.readByte());
+      assertEquals(300, reader.readShort());
+      assertEquals('\u4e2d', reader.readChar());
+      assertEquals(-7, reader.readInt());
+      assertEquals(1L << 40, reader.readLong());
+      assertEquals(1.5f, reader.readFloat(), 0);
+      assertEquals(2.5, reader.readDouble(), 0);
+      assertEquals("caf\u00e9", reader.readStringValue());
+      assertNull(reader.readStringValue());
+      // The fields after the values
+      assertEquals(Color.RED, reader.readEnum(Color.class));
+
+      // A value of another type is converted, as readValue() converts it
+      reader = roundTrip(codec, writer -> {
+        writer.writeString("request");
+        writer.writeValues(new Object[] { 5L, 7 });
+      });
+      assertEquals("request", reader.readString());
+      reader.readCount(2);
+      assertEquals(5, reader.readInt());
+      assertEquals(7.0, reader.readDouble(), 0);
+    }
+  }
+
+  @Test
+  public void testTypedArgumentCount() {
+    for (MessageCodec codec : CODECS) {
+      MessageReader reader = roundTrip(codec, writer -> {
+        writer.writeString("request");
+        writer.writeValues(new Object[] { 1, 2 });
+      });
+      reader.readString();
+      try {
+        reader.readCount(3);
+        fail("2 values were written");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  // The headroom a session writes its header in does not change the message
+  @Test
+  public void testEncodeWithHeadroom() {
+    Message message = new RequestMsg(SpeculationStatus.SUCCEED, SIGNATURE, ARGS);
+    for (MessageCodec codec : CODECS) {
+      ByteBuffer encoded = codec.encode(message, Session.HEADER_SIZE);
+      assertTrue(encoded.position() >= Session.HEADER_SIZE);
+      assertEquals(codec.encode(message), encoded);
+      assertFalse(encoded.isReadOnly());
+    }
+  }
+
+  @Test
+  public void testCodecNames() {
+    for (MessageCodec codec : CODECS) {
+      assertSame(codec, MessageCodecs.forName(codec.getName().toUpperCase()));
+    }
+    assertNull(MessageCodecs.forName("xml"));
+  }
+}
@@ -0,0 +1,265 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+import specrpc.communication.CallerSpeculationSolvedMsg;
+import specrpc.communication.CallerSpeculationSolvedMsg.Resolution;
+import specrpc.communication.ResponseMsg.ResponseType;
+import specrpc.communication.ResponseValueMsg;
+
+/*
+ * Sessions over a loopback connection: the streams of many RPCs on one
+ * connection, told apart by their request IDs, each closed on its own.
+ */
+public class SessionTest {
+  private LoopbackConnection clientEnd;
+  private LoopbackConnection serverEnd;
+  private Session session;
+  // The streams the server's side of the session hands to the server
+  private LinkedBlockingQueue<IConnection> accepted;
+
+  @Before
+  public void setUp() {
+    clientEnd = new LoopbackConnection();
+    serverEnd = new LoopbackConnection();
+    clientEnd.setPeer(serverEnd);
+    serverEnd.setPeer(clientEnd);
+    session = Session.open(clientEnd);
+    accepted = new LinkedBlockingQueue<IConnection>();
+  }
+
+  // Lets the server take over its end once the client sent the first frame
+  private void acceptSession() throws InterruptedException, ConnectionCloseException {
+    assertNull(Communication.accept(serverEnd, accepted::add));
+  }
+
+  private IConnection nextStream() throws InterruptedException {
+    IConnection stream = accepted.poll(5, TimeUnit.SECONDS);
+    assertNotNull(stream);
+    return stream;
+  }
+
+  private static void assertClosed(IConnection stream) throws InterruptedException {
+    try {
+      stream.readMessage();
+      fail("The stream should be closed");
+    } catch (ConnectionCloseException e) {
+      // Expected
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testMultiplexedStreams() throws Exception {
+    int streamNum = 5;
+    Map<Long, IConnection> clientStreams = new HashMap<Long, IConnection>();
+    for (int i = 0; i < streamNum; i++) {
+      IConnection stream = session.openStream();
+      clientStreams.put(((SessionStream) stream).requestId, stream);
+      stream.writeMessage("request " + ((SessionStream) stream).requestId);
+    }
+    assertEquals(streamNum, clientStreams.size());
+    assertEquals(streamNum, session.getStreamNum());
+    acceptSession();
+
+    Map<Long, IConnection> serverStreams = new HashMap<Long, IConnection>();
+    for (int i = 0; i < streamNum; i++) {
+      IConnection stream = nextStream();
+      long requestId = ((SessionStream) stream).requestId;
+      assertTrue(clientStreams.containsKey(requestId));
+      assertEquals("request " + requestId, stream.readMessage());
+      serverStreams.put(requestId, stream);
+    }
+
+    // The later messages of a stream go to the stream the server already has
+    for (Map.Entry<Long, IConnection> entry : clientStreams.entrySet()) {
+      entry.getValue().writeMessage("more " + entry.getKey());
+    }
+    for (Map.Entry<Long, IConnection> entry : serverStreams.entrySet()) {
+      assertEquals("more " + entry.getKey(), entry.getValue().readMessage());
+      entry.getValue().writeMessageAndClose("response " + entry.getKey());
+    }
+    assertTrue(accepted.isEmpty());
+
+    for (Map.Entry<Long, IConnection> entry : clientStreams.entrySet()) {
+      assertEquals("response " + entry.getKey(), entry.getValue().readMessage());
+      assertClosed(entry.getValue());
+      entry.getValue().close();
+    }
+    assertEquals(0, session.getStreamNum());
+    assertTrue(session.isOpen());
+  }
+
+  @Test(timeout = 10000)
+  public void testClientHalfClose() throws Exception {
+    IConnection clientStream = session.openStream();
+    clientStream.writeMessage("request");
+    clientStream.close();
+    // The client forgets the stream once it closed its end
+    assertEquals(0, session.getStreamNum());
+    acceptSession();
+
+    IConnection serverStream = nextStream();
+    assertEquals("request", serverStream.readMessage());
+    assertClosed(serverStream);
+    // The server's end is still open, while its messages are dropped
+    serverStream.writeMessage("late");
+    serverStream.close();
+    assertClosed(clientStream);
+    assertTrue(accepted.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void testServerHalfClose() throws Exception {
+    IConnection clientStream = session.openStream();
+    clientStream.writeMessage("request");
+    acceptSession();
+
+    IConnection serverStream = nextStream();
+    assertEquals("request", serverStream.readMessage());
+    serverStream.writeMessageAndClose("response");
+    assertEquals("response", clientStream.readMessage());
+    assertClosed(clientStream);
+
+    // The client's end is still open, while the server forgot the stream, so
+    // the message neither reaches it nor opens another stream
+    clientStream.writeMessage("late");
+    clientStream.close();
+    assertEquals(0, session.getStreamNum());
+    assertTrue(accepted.isEmpty());
+    try {
+      serverStream.writeMessage("closed");
+      fail("The server's end is closed");
+    } catch (ConnectionCloseException e) {
+      // Expected
+    }
+  }
+
+  // A stream never written to is unknown to the server, so closing it sends no
+  // frame
+  @Test(timeout = 10000)
+  public void testUnusedStreamSendsNothing() throws Exception {
+    IConnection unused = session.openStream();
+    unused.close();
+    assertEquals(0, session.getStreamNum());
+
+    IConnection clientStream = session.openStream();
+    clientStream.writeMessage("request");
+    ByteBuffer firstFrame = serverEnd.readMessageBuffer();
+    assertTrue(Session.isSessionMessage(firstFrame));
+    assertEquals(((SessionStream) clientStream).requestId, firstFrame.getLong(firstFrame.position() + 2));
+    Session.accept(serverEnd, firstFrame, accepted::add);
+
+    IConnection serverStream = nextStream();
+    assertEquals("request", serverStream.readMessage());
+    assertTrue(accepted.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void testCloseSession() throws Exception {
+    IConnection first = session.openStream();
+    IConnection second = session.openStream();
+    first.writeMessage("first");
+    second.writeMessage("second");
+    acceptSession();
+    IConnection serverFirst = nextStream();
+    IConnection serverSecond = nextStream();
+
+    session.close();
+    assertFalse(session.isOpen());
+    assertEquals(0, session.getStreamNum());
+    assertNull(session.openStream());
+    assertClosed(first);
+    assertClosed(second);
+    try {
+      first.writeMessage("closed");
+      fail("The stream should be closed");
+    } catch (ConnectionCloseException e) {
+      // Expected
+    }
+
+    // The server's streams close with the connection, after their messages
+    assertEquals("first", serverFirst.readMessage());
+    assertClosed(serverFirst);
+    assertEquals("second", serverSecond.readMessage());
+    assertClosed(serverSecond);
+  }
+
+  // Messages encoded by Communication are framed in place, in the headroom the
+  // codec leaves in front of them
+  @Test(timeout = 10000)
+  public void testFramedMessages() throws Exception {
+    for (MessageCodec codec : new MessageCodec[] { MessageCodecs.BINARY, MessageCodecs.JSON }) {
+      MessageCodec requestCodec = MessageCodecs.getRequestCodec();
+      MessageCodecs.setRequestCodec(codec);
+      Communication client;
+      try {
+        client = new Communication(session.openStream());
+      } finally {
+        MessageCodecs.setRequestCodec(requestCodec);
+      }
+      assertTrue(client.isSessionStream());
+      client.send(new CallerSpeculationSolvedMsg(Resolution.COMMIT));
+      client.send(new CallerSpeculationSolvedMsg(Resolution.ABORT));
+      if (codec == MessageCodecs.BINARY) {
+        acceptSession();
+      }
+
+      Communication server = new Communication(nextStream());
+      assertTrue(server.isSessionStream());
+      assertEquals(Resolution.COMMIT, new CallerSpeculationSolvedMsg(server.getMessageReader()).resolType);
+      assertEquals(Resolution.ABORT, new CallerSpeculationSolvedMsg(server.getMessageReader()).resolType);
+      server.sendAndDisconnect(new ResponseValueMsg("done"));
+
+      MessageReader response = client.getMessageReader();
+      assertEquals(ResponseType.RETURN, response.readEnum(ResponseType.class));
+      assertEquals("done", response.readValue(String.class));
+      client.disconnect();
+    }
+    assertEquals(0, session.getStreamNum());
+  }
+
+  // A connection whose first message is a request rather than a frame is not a
+  // session
+  @Test(timeout = 10000)
+  public void testAcceptPlainConnection() throws Exception {
+    clientEnd.setMessageListener(null, null);
+    new Communication(clientEnd).send(new CallerSpeculationSolvedMsg(Resolution.COMMIT));
+    Communication server = Communication.accept(serverEnd, accepted::add);
+    assertNotNull(server);
+    assertFalse(server.isSessionStream());
+    assertEquals(Resolution.COMMIT, new CallerSpeculationSolvedMsg(server.getMessageReader()).resolType);
+    assertTrue(accepted.isEmpty());
+  }
+}
@@ -0,0 +1,101 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+/*
+ * The pools of each type, on the JVM the tests run on: virtual threads on Java
+ * 21 or later, and the platform pool standing in for them before.
+ */
+public class ThreadPoolsTest {
+
+  private static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    if (!hasVirtualThreads()) {
+      return false;
+    }
+    Method isVirtual = Thread.class.getMethod("isVirtual");
+    return (Boolean) isVirtual.invoke(thread);
+  }
+
+  // Returns the thread the pool runs a task on
+  private static Thread runOn(ExecutorService pool) throws Exception {
+    try {
+      return pool.submit(Thread::currentThread).get();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testParseType() {
+    assertEquals(ThreadPools.Type.PLATFORM, ThreadPools.parseType("platform"));
+    assertEquals(ThreadPools.Type.VIRTUAL, ThreadPools.parseType(" Virtual "));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseUnknownType() {
+    ThreadPools.parseType("green");
+  }
+
+  @Test(timeout = 10000)
+  public void testPlatformPool() throws Exception {
+    ExecutorService fixed = ThreadPools.newThreadPool("platform", 3);
+    assertTrue(fixed instanceof ThreadPoolExecutor);
+    assertEquals(3, ((ThreadPoolExecutor) fixed).getMaximumPoolSize());
+    assertFalse(isVirtual(runOn(fixed)));
+
+    ExecutorService cached = ThreadPools.newThreadPool(ThreadPools.Type.PLATFORM, 0);
+    assertTrue(cached instanceof ThreadPoolExecutor);
+    assertEquals(0, ((ThreadPoolExecutor) cached).getCorePoolSize());
+    assertEquals(Integer.MAX_VALUE, ((ThreadPoolExecutor) cached).getMaximumPoolSize());
+    assertFalse(isVirtual(runOn(cached)));
+  }
+
+  @Test(timeout = 10000)
+  public void testVirtualPool() throws Exception {
+    ExecutorService pool = ThreadPools.newThreadPool(ThreadPools.Type.VIRTUAL, 3);
+    if (hasVirtualThreads()) {
+      // A thread per task, whatever the size
+      assertFalse(pool instanceof ThreadPoolExecutor);
+      assertTrue(isVirtual(runOn(pool)));
+    } else {
+      // The platform pool of the size stands in
+      assertTrue(pool instanceof ThreadPoolExecutor);
+      assertEquals(3, ((ThreadPoolExecutor) pool).getMaximumPoolSize());
+      assertFalse(isVirtual(runOn(pool)));
+    }
+  }
+}
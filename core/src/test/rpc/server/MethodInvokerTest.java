@@ -0,0 +1,129 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+
+import rpc.server.api.RpcHost;
+import rpc.server.api.RpcHostObjectFactory;
+import specrpc.common.RpcSignature;
+
+/*
+ * MethodInvoker calls the registered method through a MethodHandle, the way
+ * Method.invoke() would.
+ */
+public class MethodInvokerTest {
+
+  public static class Calculator implements RpcHost {
+    public int add(int a, int b) {
+      return a + b;
+    }
+
+    public String echo(String message) {
+      return message;
+    }
+
+    public void fail(String message) {
+      throw new IllegalStateException(message);
+    }
+  }
+
+  public static class NegativeCalculator extends Calculator {
+    @Override
+    public int add(int a, int b) {
+      return -(a + b);
+    }
+  }
+
+  // Only its method is public, which Method.invoke() allows
+  static class HiddenCalculator implements RpcHost {
+    public int add(int a, int b) {
+      return a * 10 + b;
+    }
+  }
+
+  private static RpcHostObjectFactory factory(Class<?> hostClass, RpcHost host) {
+    return new RpcHostObjectFactory() {
+      public String getRpcHostClassName() {
+        return hostClass.getName();
+      }
+
+      public RpcHost getRpcHostObject() {
+        return host;
+      }
+    };
+  }
+
+  private static MethodInvoker invoker(RpcHostObjectFactory factory, String methodName, Class<?> returnType,
+      Class<?>... argTypes) {
+    return new MethodInvoker(new RpcSignature(factory.getRpcHostClassName(), methodName, returnType, argTypes),
+        factory);
+  }
+
+  @Test
+  public void testInvoke() throws Exception {
+    RpcHostObjectFactory factory = factory(Calculator.class, new Calculator());
+    MethodInvoker add = invoker(factory, "add", int.class, int.class, int.class);
+    assertEquals(5, add.invoke(add.newHostObject(), new Object[] { 2, 3 }));
+    MethodInvoker echo = invoker(factory, "echo", String.class, String.class);
+    assertEquals("hello", echo.invoke(echo.newHostObject(), new Object[] { "hello" }));
+    assertNull(echo.invoke(echo.newHostObject(), new Object[] { null }));
+  }
+
+  @Test
+  public void testMethodException() throws Exception {
+    RpcHostObjectFactory factory = factory(Calculator.class, new Calculator());
+    MethodInvoker method = invoker(factory, "fail", void.class, String.class);
+    try {
+      method.invoke(method.newHostObject(), new Object[] { "failed" });
+      fail("The exception of the method was not thrown");
+    } catch (InvocationTargetException e) {
+      assertSame(IllegalStateException.class, e.getCause().getClass());
+      assertEquals("failed", e.getCause().getMessage());
+    }
+  }
+
+  // The factory names Calculator, but makes a subclass
+  @Test
+  public void testHostSubclass() throws Exception {
+    RpcHostObjectFactory factory = factory(Calculator.class, new NegativeCalculator());
+    MethodInvoker add = invoker(factory, "add", int.class, int.class, int.class);
+    assertEquals(-5, add.invoke(add.newHostObject(), new Object[] { 2, 3 }));
+    assertEquals(5, add.invoke(new Calculator(), new Object[] { 2, 3 }));
+  }
+
+  @Test
+  public void testNonPublicHostClass() throws Exception {
+    RpcHostObjectFactory factory = factory(HiddenCalculator.class, new HiddenCalculator());
+    MethodInvoker add = invoker(factory, "add", int.class, int.class, int.class);
+    assertEquals(23, add.invoke(add.newHostObject(), new Object[] { 2, 3 }));
+  }
+
+  @Test(expected = NoSuchMethodException.class)
+  public void testUnknownMethod() throws Exception {
+    RpcHostObjectFactory factory = factory(Calculator.class, new Calculator());
+    MethodInvoker method = invoker(factory, "subtract", int.class, int.class, int.class);
+    method.invoke(method.newHostObject(), new Object[] { 2, 3 });
+  }
+}
@@ -0,0 +1,354 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package rpc.service.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import Waterloo.MultiSocket.IConnection;
+import rpc.communication.ArgumentWriter;
+import rpc.communication.BinaryCodec;
+import rpc.communication.JsonCodec;
+import rpc.communication.MessageCodec;
+import rpc.communication.MessageReader;
+import rpc.server.MethodInvoker;
+import rpc.server.api.RpcDispatcher;
+import rpc.server.api.RpcHost;
+import rpc.server.api.RpcHostObjectFactory;
+import specrpc.common.RpcSignature;
+
+/*
+ * Runs the processor on sample services with the system compiler, and checks
+ * the classes it generates.
+ */
+public class RpcServiceProcessorTest {
+  private static final String BASE = "package sample;\n"
+      + "public interface Base {\n"
+      + "  String echo(String text);\n"
+      + "}\n";
+  private static final String CALC = "package sample;\n"
+      + "import java.util.List;\n"
+      + "@rpc.service.RpcService\n"
+      + "public interface Calc extends Base {\n"
+      + "  int add(int a, int b);\n"
+      + "  long add(long a, long b);\n"
+      + "  void reset();\n"
+      + "  List<String> split(String text, char separator);\n"
+      + "}\n";
+  private static final String CALC_HOST = "package sample;\n"
+      + "import java.util.Arrays;\n"
+      + "import java.util.List;\n"
+      + "public class CalcHost extends CalcSpecRpcSkeleton {\n"
+      + "  public static int dispatched = 0;\n"
+      + "  public int add(int a, int b) { return a + b; }\n"
+      + "  public long add(long a, long b) { return a + b; }\n"
+      + "  public void reset() { }\n"
+      + "  public List<String> split(String text, char separator) {\n"
+      + "    return Arrays.asList(text.split(String.valueOf(separator)));\n"
+      + "  }\n"
+      + "  public String echo(String text) {\n"
+      + "    if (text.isEmpty()) { throw new IllegalStateException(\"empty\"); }\n"
+      + "    return text;\n"
+      + "  }\n"
+      + "  @Override\n"
+      + "  public Object dispatch(int methodIndex, Object[] args) throws Exception {\n"
+      + "    dispatched++;\n"
+      + "    return super.dispatch(methodIndex, args);\n"
+      + "  }\n"
+      + "}\n";
+
+  private Path dir;
+  private List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("rpcservice");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  private static String classPathOf(Class<?>... classes) throws Exception {
+    StringBuilder classPath = new StringBuilder();
+    for (Class<?> c : classes) {
+      classPath.append(classPath.length() == 0 ? "" : File.pathSeparator)
+          .append(new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+    }
+    return classPath.toString();
+  }
+
+  // Compiles the sources, named by their class, and returns whether it succeeded
+  private boolean compile(Map<String, String> sources) throws Exception {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeNotNull(compiler);
+    List<File> files = new ArrayList<File>();
+    for (Map.Entry<String, String> source : sources.entrySet()) {
+      Path file = dir.resolve("src").resolve(source.getKey().replace('.', '/') + ".java");
+      Files.createDirectories(file.getParent());
+      Files.write(file, source.getValue().getBytes(StandardCharsets.UTF_8));
+      files.add(file.toFile());
+    }
+    Files.createDirectories(dir.resolve("classes"));
+    Files.createDirectories(dir.resolve("generated"));
+
+    DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(collector, null,
+        StandardCharsets.UTF_8)) {
+      List<String> options = Arrays.asList("-d", dir.resolve("classes").toString(), "-s",
+          dir.resolve("generated").toString(), "-classpath",
+          classPathOf(RpcServiceProcessor.class, IConnection.class, Gson.class));
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, collector, options, null,
+          fileManager.getJavaFileObjectsFromFiles(files));
+      task.setProcessors(Arrays.asList(new RpcServiceProcessor()));
+      boolean success = task.call();
+      diagnostics = collector.getDiagnostics();
+      return success;
+    }
+  }
+
+  private Map<String, String> calcSources() {
+    Map<String, String> sources = new LinkedHashMap<String, String>();
+    sources.put("sample.Base", BASE);
+    sources.put("sample.Calc", CALC);
+    sources.put("sample.CalcHost", CALC_HOST);
+    return sources;
+  }
+
+  private String generated(String name) throws IOException {
+    return new String(Files.readAllBytes(dir.resolve("generated/sample/" + name + ".java")), StandardCharsets.UTF_8);
+  }
+
+  private static RpcSignature signature(String methodName, Class<?> returnType, Class<?>... argTypes) {
+    return new RpcSignature("sample.Calc", methodName, returnType, argTypes);
+  }
+
+  private static void assertError(List<Diagnostic<? extends JavaFileObject>> diagnostics, String message) {
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains(message)) {
+        return;
+      }
+    }
+    fail("No error \"" + message + "\" in " + diagnostics);
+  }
+
+  @Test(timeout = 60000)
+  public void testGeneratedSources() throws Exception {
+    assertTrue(diagnostics + "", compile(calcSources()));
+    for (String suffix : new String[] { "Rpc", "SpecRpcSkeleton", "TradRpcSkeleton", "SpecRpcStub", "TradRpcStub" }) {
+      assertTrue(suffix, Files.exists(dir.resolve("generated/sample/Calc" + suffix + ".java")));
+      assertTrue(suffix, Files.exists(dir.resolve("classes/sample/Calc" + suffix + ".class")));
+    }
+
+    String specStub = generated("CalcSpecRpcStub");
+    assertTrue(specStub.contains(
+        "public specrpc.client.api.SpecRpcTypedFuture<java.lang.Integer> add(int a, int b)"));
+    assertTrue(specStub.contains("public specrpc.client.api.SpecRpcTypedFuture<java.lang.Void> reset()"));
+    assertTrue(specStub.contains("public <T> specrpc.client.api.SpecRpcTypedFuture<T> split(\n"
+        + "      java.util.List<java.util.List<java.lang.String>> predictions, "
+        + "specrpc.client.api.SpecRpcCallbackFactory factory, java.lang.String text, char separator)"));
+    String tradStub = generated("CalcTradRpcStub");
+    assertTrue(tradStub.contains("public long add(long a, long b)"));
+    assertTrue(tradStub.contains("return (java.lang.Long) stub(1).call(writer -> {\n"
+        + "      writer.writeCount(2);\n      writer.writeLong(a);\n      writer.writeLong(b);\n    });"));
+    assertTrue(tradStub.contains("public void reset()"));
+    assertTrue(tradStub.contains(
+        "public java.util.List<java.lang.String> split(java.lang.String text, char separator)"));
+    String skeleton = generated("CalcSpecRpcSkeleton");
+    assertTrue(skeleton.contains("      final java.lang.String arg0 = reader.readStringValue();\n"
+        + "      final char arg1 = reader.readChar();\n      return () -> split(arg0, arg1);"));
+  }
+
+  @Test(timeout = 60000)
+  public void testSignatures() throws Exception {
+    assertTrue(diagnostics + "", compile(calcSources()));
+    try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.resolve("classes").toUri().toURL() },
+        getClass().getClassLoader())) {
+      Class<?> rpc = loader.loadClass("sample.CalcRpc");
+      assertEquals("sample.Calc", rpc.getField("HOST_CLASS").get(null));
+      // The methods of the interface, then of the ones it extends
+      List<RpcSignature> expected = Arrays.asList(signature("add", int.class, int.class, int.class),
+          signature("add", long.class, long.class, long.class), signature("reset", void.class),
+          signature("split", List.class, String.class, char.class), signature("echo", String.class, String.class));
+      assertEquals(expected.toString(), rpc.getMethod("getSignatures").invoke(null).toString());
+      assertEquals(expected.get(0), rpc.getField("ADD").get(null));
+      assertEquals(expected.get(1), rpc.getField("ADD_2").get(null));
+      assertEquals(expected.get(4), rpc.getField("ECHO").get(null));
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(i, rpc.getMethod("indexOf", RpcSignature.class).invoke(null, expected.get(i)));
+      }
+      assertEquals(-1, rpc.getMethod("indexOf", RpcSignature.class).invoke(null,
+          signature("add", double.class, double.class, double.class)));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testDispatch() throws Exception {
+    assertTrue(diagnostics + "", compile(calcSources()));
+    try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.resolve("classes").toUri().toURL() },
+        getClass().getClassLoader())) {
+      Class<?> hostClass = loader.loadClass("sample.CalcHost");
+      RpcDispatcher host = (RpcDispatcher) hostClass.newInstance();
+      int addLong = host.getMethodIndex(signature("add", long.class, long.class, long.class));
+      assertEquals(1, addLong);
+      assertEquals(5L, host.dispatch(addLong, new Object[] { 2L, 3L }));
+      assertNull(host.dispatch(host.getMethodIndex(signature("reset", void.class)), new Object[0]));
+      assertEquals(Arrays.asList("a", "b"), host.dispatch(
+          host.getMethodIndex(signature("split", List.class, String.class, char.class)), new Object[] { "a,b", ',' }));
+      try {
+        host.dispatch(5, new Object[0]);
+        fail("There are 5 methods");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+
+      // A MethodInvoker calls a dispatcher with the index of its method
+      RpcHostObjectFactory factory = factory(loader, hostClass);
+      assertEquals("sample.Calc", factory.getRpcHostClassName());
+      MethodInvoker invoker = new MethodInvoker(signature("echo", String.class, String.class), factory);
+      RpcHost hostObject = invoker.newHostObject();
+      int dispatched = hostClass.getField("dispatched").getInt(null);
+      assertEquals("hi", invoker.invoke(hostObject, new Object[] { "hi" }));
+      assertEquals(dispatched + 1, hostClass.getField("dispatched").getInt(null));
+      try {
+        invoker.invoke(hostObject, new Object[] { "" });
+        fail("The method throws");
+      } catch (InvocationTargetException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      try {
+        invoker.invoke(hostObject, new Object[] { 1 });
+        fail("The argument is not a String");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testReadCall() throws Exception {
+    assertTrue(diagnostics + "", compile(calcSources()));
+    try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.resolve("classes").toUri().toURL() },
+        getClass().getClassLoader())) {
+      Class<?> hostClass = loader.loadClass("sample.CalcHost");
+      RpcHostObjectFactory factory = factory(loader, hostClass);
+      MethodInvoker add = new MethodInvoker(signature("add", int.class, int.class, int.class), factory);
+      MethodInvoker split = new MethodInvoker(signature("split", List.class, String.class, char.class), factory);
+      int dispatched = hostClass.getField("dispatched").getInt(null);
+      for (MessageCodec codec : new MessageCodec[] { new BinaryCodec(), new JsonCodec() }) {
+        // Written in their own types, as the generated stubs write them
+        MessageReader reader = request(codec, writer -> {
+          writer.writeCount(2);
+          writer.writeInt(2);
+          writer.writeInt(3);
+        });
+        assertEquals(5, add.readCall(add.newHostObject(), reader).invoke());
+        // Or as values, as the other clients write them, and a long is read as an int
+        reader = request(codec, writer -> writer.writeValues(new Object[] { 2L, 3 }));
+        assertEquals(5, add.readCall(add.newHostObject(), reader).invoke());
+        reader = request(codec, writer -> writer.writeValues(new Object[] { "a,b", ',' }));
+        assertEquals(Arrays.asList("a", "b"), split.readCall(split.newHostObject(), reader).invoke());
+        try {
+          reader = request(codec, writer -> writer.writeValues(new Object[] { 2 }));
+          add.readCall(add.newHostObject(), reader);
+          fail("The method takes 2 arguments");
+        } catch (IllegalArgumentException e) {
+          // Expected
+        }
+      }
+      // The arguments were not boxed into an array to dispatch
+      assertEquals(dispatched, hostClass.getField("dispatched").getInt(null));
+    }
+  }
+
+  // A message of the arguments after another field, as in a request, and its
+  // reader at the arguments
+  private static MessageReader request(MessageCodec codec, ArgumentWriter arguments) {
+    MessageReader reader = codec.newReader(codec.encode(writer -> {
+      writer.writeString("request");
+      arguments.writeArguments(writer);
+    }));
+    assertEquals("request", reader.readString());
+    return reader;
+  }
+
+  private static RpcHostObjectFactory factory(ClassLoader loader, Class<?> hostClass) throws Exception {
+    Supplier<Object> supplier = () -> {
+      try {
+        return hostClass.newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    };
+    return (RpcHostObjectFactory) loader.loadClass("sample.CalcSpecRpcSkeleton").getMethod("factory", Supplier.class)
+        .invoke(null, supplier);
+  }
+
+  @Test(timeout = 60000)
+  public void testErrors() throws Exception {
+    Map<String, String> sources = new LinkedHashMap<String, String>();
+    sources.put("sample.NotInterface", "package sample;\n@rpc.service.RpcService\npublic class NotInterface {\n}\n");
+    sources.put("sample.GenericService", "package sample;\n@rpc.service.RpcService\n"
+        + "public interface GenericService<T> {\n  T get();\n}\n");
+    sources.put("sample.GenericMethod", "package sample;\n@rpc.service.RpcService\n"
+        + "public interface GenericMethod {\n  <T> T get(Class<T> type);\n}\n");
+    assertFalse(compile(sources));
+    assertError(diagnostics, "@RpcService can only annotate an interface");
+    assertError(diagnostics, "An @RpcService interface cannot be generic");
+    assertError(diagnostics, "An @RpcService method cannot be generic");
+    try (Stream<Path> generated = Files.list(dir.resolve("generated"))) {
+      assertEquals(0, generated.count());
+    }
+  }
+}
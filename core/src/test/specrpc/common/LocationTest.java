@@ -0,0 +1,56 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * Locations are hostname:port for TCP servers, or unix:<path> for servers on
+ * a Unix domain socket.
+ */
+public class LocationTest {
+
+  @Test
+  public void testTcpLocation() {
+    Location location = new Location("server1:4000");
+    assertFalse(location.isUnix());
+    assertEquals("server1", location.hostname);
+    assertEquals(4000, location.port);
+    assertNull(location.path);
+    assertEquals("server1:4000", location.toString());
+    assertEquals("server1:4000", new Location("server1", 4000).toString());
+  }
+
+  @Test
+  public void testUnixLocation() {
+    Location location = new Location("unix:/tmp/specrpc/server.sock");
+    assertTrue(location.isUnix());
+    assertEquals("/tmp/specrpc/server.sock", location.path);
+    assertEquals("unix:/tmp/specrpc/server.sock", location.toString());
+
+    // As a server ip, where the port is not used
+    Location server = new Location("unix:/tmp/specrpc/server.sock", 4000);
+    assertTrue(server.isUnix());
+    assertEquals(0, server.port);
+    assertEquals(location.toString(), server.toString());
+  }
+}
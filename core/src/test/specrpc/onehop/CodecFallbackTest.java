@@ -0,0 +1,107 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.onehop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rpc.communication.MessageCodec;
+import rpc.communication.MessageCodecs;
+import specrpc.client.api.SpecRpcClient;
+import specrpc.client.api.SpecRpcClientStub;
+import specrpc.common.Location;
+import specrpc.common.RpcSignature;
+import specrpc.server.api.SpecRpcServer;
+
+/*
+ * A client and a server that start with different codecs. The server replies
+ * in JSON to a request in a codec it does not take, and the client then sends
+ * the request again in JSON, as every later request to that server.
+ */
+public class CodecFallbackTest {
+  private static final String SERVER_IDENTITY = "CodecFallback-ID";
+  private static final RpcSignature SIGNATURE = new RpcSignature(OneHopServiceHost.class.getName(),
+      OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, String.class, String.class);
+
+  private SpecRpcServer server;
+  private OneHopClient client;
+  private MessageCodec requestCodec;
+
+  @Before
+  public void beforeEach() throws Exception {
+    server = new SpecRpcServer();
+    server.initServer(SERVER_IDENTITY, null);
+    server.register(OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, new OneHopServiceHostFactory(), String.class,
+        String.class);
+    new Thread(() -> {
+      try {
+        server.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    client = new OneHopClient();
+    requestCodec = MessageCodecs.getRequestCodec();
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    MessageCodecs.setRequestCodec(requestCodec);
+    MessageCodecs.setAcceptedCodecs(null);
+    server.terminate();
+    client.terminate();
+  }
+
+  private String call(String requestValue) throws Exception {
+    client.getCallbackFactory().setBarrier(1);
+    SpecRpcClientStub stub = SpecRpcClient.bind(SERVER_IDENTITY, SIGNATURE);
+    return (String) stub.call(new ArrayList<Object>(), client.getCallbackFactory(), requestValue).getResult();
+  }
+
+  private static String expected(String requestValue) {
+    return OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + requestValue;
+  }
+
+  @Test(timeout = 10000)
+  public void testBinaryClientJsonServer() throws Exception {
+    MessageCodecs.setRequestCodec(MessageCodecs.BINARY);
+    MessageCodecs.setAcceptedCodecs(Collections.singletonList(MessageCodecs.JSON));
+    Location serverLocation = SpecRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+    assertEquals(MessageCodecs.BINARY, MessageCodecs.getRequestCodec(serverLocation));
+
+    assertEquals(expected("first"), call("first"));
+    assertEquals(MessageCodecs.JSON, MessageCodecs.getRequestCodec(serverLocation));
+    assertEquals(expected("in json"), call("in json"));
+  }
+
+  @Test(timeout = 10000)
+  public void testJsonClientBinaryServer() throws Exception {
+    MessageCodecs.setRequestCodec(MessageCodecs.JSON);
+    MessageCodecs.setAcceptedCodecs(Collections.singletonList(MessageCodecs.BINARY));
+    Location serverLocation = SpecRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+
+    // Every server takes JSON
+    assertEquals(expected("first"), call("first"));
+    assertEquals(MessageCodecs.JSON, MessageCodecs.getRequestCodec(serverLocation));
+  }
+}
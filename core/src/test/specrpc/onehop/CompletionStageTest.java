@@ -0,0 +1,123 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.onehop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rpc.execption.UserException;
+import specrpc.client.api.SpecRpcClient;
+import specrpc.client.api.SpecRpcClientStub;
+import specrpc.common.RpcSignature;
+import specrpc.server.api.SpecRpcServer;
+
+/*
+ * The stage of a SpecRpcFuture completes with the correct callback's result,
+ * or with the RPC's exception, in the client thread pool.
+ */
+public class CompletionStageTest {
+  private static final String SERVER_IDENTITY = "CompletionStage-ID";
+
+  private SpecRpcServer server;
+  private OneHopClient client;
+
+  @Before
+  public void beforeEach() throws Exception {
+    server = new SpecRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", 0, null);
+    for (String method : new String[] { OneHopServiceHost.TEST_CORRECT_SPEC_RETURN,
+        OneHopServiceHost.TEST_EXCEPTION_RETURN }) {
+      server.register(method, new OneHopServiceHostFactory(), String.class, String.class);
+    }
+    final SpecRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    client = new OneHopClient();
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    server.terminate();
+    client.terminate();
+  }
+
+  private CompletableFuture<Object> call(String methodName, String requestValue) throws Exception {
+    client.getCallbackFactory().setBarrier(1);
+    SpecRpcClientStub stub = SpecRpcClient.bind(SERVER_IDENTITY,
+        new RpcSignature(OneHopServiceHost.class.getName(), methodName, String.class, String.class));
+    return stub.call(new ArrayList<Object>(), client.getCallbackFactory(), requestValue).toCompletionStage()
+        .toCompletableFuture();
+  }
+
+  @Test(timeout = 10000)
+  public void testResult() throws Exception {
+    String[] threadName = new String[1];
+    CompletableFuture<Object> result = call(OneHopServiceHost.TEST_CORRECT_SPEC_RETURN, "first")
+        .thenApply(value -> {
+          threadName[0] = Thread.currentThread().getName();
+          return value;
+        });
+    assertEquals(OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + "first",
+        result.get(5, TimeUnit.SECONDS));
+    assertFalse(threadName[0], threadName[0].startsWith("MultiSocket"));
+  }
+
+  // A call made from the result of another, without a thread waiting between
+  @Test(timeout = 10000)
+  public void testComposedCalls() throws Exception {
+    CompletableFuture<Object> result = call(OneHopServiceHost.TEST_CORRECT_SPEC_RETURN, "first")
+        .thenCompose(value -> {
+          try {
+            return call(OneHopServiceHost.TEST_CORRECT_SPEC_RETURN, (String) value);
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        });
+    String first = OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + "first";
+    assertEquals(OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + first,
+        result.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void testUserException() throws Exception {
+    CompletableFuture<Object> result = call(OneHopServiceHost.TEST_EXCEPTION_RETURN, "failed");
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("The RPC did not fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UserException);
+      assertTrue(e.getCause().getMessage(),
+          e.getCause().getMessage().contains(OneHopServiceHost.EXCEPTION_PREFIX + "failed"));
+    }
+  }
+}
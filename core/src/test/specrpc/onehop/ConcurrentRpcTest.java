@@ -0,0 +1,129 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.onehop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rpc.communication.Communication;
+import rpc.communication.LoopbackTransport;
+import rpc.communication.Session;
+import specrpc.client.api.SpecRpcCallbackFactory;
+import specrpc.client.api.SpecRpcCallbackObject;
+import specrpc.client.api.SpecRpcClient;
+import specrpc.client.api.SpecRpcClientStub;
+import specrpc.client.api.SpecRpcFuture;
+import specrpc.common.RpcSignature;
+import specrpc.server.api.SpecRpcServer;
+
+/*
+ * Many RPCs in flight from one client at a time, each driven by the events of
+ * its own responses. With sessions, they share one connection to the server,
+ * and their responses find them by request ID.
+ */
+public class ConcurrentRpcTest {
+  private static final String SERVER_IDENTITY = "ConcurrentRpc-ID";
+  private static final int RPC_NUM = 50;
+
+  private SpecRpcServer server;
+
+  // Returns the RPC's value, without waiting for the other callbacks
+  private static class EchoCallbackFactory implements SpecRpcCallbackFactory {
+    @Override
+    public SpecRpcCallbackObject createCallback() {
+      return new SpecRpcCallbackObject() {
+        @Override
+        public Object run(Object rpcReturnValue) {
+          return OneHopClientCallback.CALLBACK_VALUE_PREFIX + rpcReturnValue;
+        }
+      };
+    }
+  }
+
+  @Before
+  public void beforeEach() throws Exception {
+    server = new SpecRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", 0, null);
+    server.register(OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, new OneHopServiceHostFactory(), String.class,
+        String.class);
+    server.register(OneHopServiceHost.TEST_CORRECT_SPEC_RETURN, new OneHopServiceHostFactory(), String.class,
+        String.class);
+    server.register(OneHopServiceHost.TEST_INCORRECT_SPEC_RETURN, new OneHopServiceHostFactory(), String.class,
+        String.class);
+    final SpecRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    SpecRpcClient.initClient(null);
+    // Sessions are made over sockets, not over the in-JVM transport
+    Communication.removeTransport(LoopbackTransport.getInstance());
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    Communication.setSessionEnabled(false);
+    server.terminate();
+    SpecRpcClient.shutdown();
+  }
+
+  @Test(timeout = 30000)
+  public void testConcurrentRpcs() throws Exception {
+    callAll();
+  }
+
+  @Test(timeout = 30000)
+  public void testConcurrentRpcsOverSession() throws Exception {
+    Communication.setSessionEnabled(true);
+    callAll();
+    List<Session> sessions = Communication.getSessions();
+    assertEquals(1, sessions.size());
+    // Every RPC closes its stream once it terminates, which may come after
+    // its future has the result
+    while (sessions.get(0).getStreamNum() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  // Starts all of the RPCs before it waits for any, taking turns among
+  // methods that return only a value, a correct speculative value, or an
+  // incorrect one
+  private static void callAll() throws Exception {
+    String[] methods = { OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, OneHopServiceHost.TEST_CORRECT_SPEC_RETURN,
+        OneHopServiceHost.TEST_INCORRECT_SPEC_RETURN };
+    List<SpecRpcFuture> futures = new ArrayList<SpecRpcFuture>();
+    for (int i = 0; i < RPC_NUM; i++) {
+      RpcSignature signature = new RpcSignature(OneHopServiceHost.class.getName(), methods[i % methods.length],
+          String.class, String.class);
+      SpecRpcClientStub stub = SpecRpcClient.bind(SERVER_IDENTITY, signature);
+      futures.add(stub.call(new ArrayList<Object>(), new EchoCallbackFactory(), "request " + i));
+    }
+    for (int i = 0; i < RPC_NUM; i++) {
+      assertEquals(OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + "request "
+          + i, futures.get(i).getResult());
+    }
+  }
+}
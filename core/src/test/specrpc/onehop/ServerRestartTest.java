@@ -0,0 +1,108 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.onehop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import specrpc.client.api.SpecRpcClient;
+import specrpc.client.api.SpecRpcClientStub;
+import specrpc.common.Location;
+import specrpc.common.MethodKeys;
+import specrpc.common.RpcSignature;
+import specrpc.server.api.SpecRpcServer;
+
+/*
+ * A server restarted at the same location no longer knows the method keys the
+ * client learned from the previous one. The client then sends the request
+ * again with the signature, which the caller does not notice.
+ */
+public class ServerRestartTest {
+  private static final String SERVER_IDENTITY = "ServerRestart-ID";
+  private static final RpcSignature SIGNATURE = new RpcSignature(OneHopServiceHost.class.getName(),
+      OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, String.class, String.class);
+
+  private SpecRpcServer server;
+  private Location serverLocation;
+  private OneHopClient client;
+
+  @Before
+  public void beforeEach() throws Exception {
+    startServer(0);
+    client = new OneHopClient();
+    serverLocation = SpecRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    server.terminate();
+    client.terminate();
+  }
+
+  private void startServer(int port) throws Exception {
+    server = new SpecRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", port, null);
+    server.register(OneHopServiceHost.TEST_ONLY_ACTUAL_RETURN, new OneHopServiceHostFactory(), String.class,
+        String.class);
+    final SpecRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+  }
+
+  private String call(String requestValue) throws Exception {
+    client.getCallbackFactory().setBarrier(1);
+    SpecRpcClientStub stub = SpecRpcClient.bind(SERVER_IDENTITY, SIGNATURE);
+    return (String) stub.call(new ArrayList<Object>(), client.getCallbackFactory(), requestValue).getResult();
+  }
+
+  private static String expected(String requestValue) {
+    return OneHopClientCallback.CALLBACK_VALUE_PREFIX + OneHopServiceHost.RESPONSE_VALUE_PREFIX + requestValue;
+  }
+
+  @Test(timeout = 10000)
+  public void testCallAfterRestart() throws Exception {
+    assertEquals(expected("first"), call("first"));
+    // The server told its key with the return
+    long firstKey = MethodKeys.get(serverLocation, SIGNATURE);
+    assertTrue(firstKey != 0);
+    assertEquals(expected("with key"), call("with key"));
+
+    // The sockets of a server that stopped in this process stay open, unlike
+    // those of a server process that exits, so the client opens new ones. It
+    // keeps the keys it learned.
+    server.terminate();
+    client.terminate();
+    startServer(serverLocation.port);
+    client = new OneHopClient();
+    assertEquals(expected("after restart"), call("after restart"));
+    // The request was sent again with the signature, and the new key learned
+    long secondKey = MethodKeys.get(serverLocation, SIGNATURE);
+    assertTrue(secondKey != 0 && secondKey != firstKey);
+    assertEquals(expected("with new key"), call("with new key"));
+  }
+}
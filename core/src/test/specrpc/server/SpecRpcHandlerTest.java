@@ -0,0 +1,220 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package specrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+import rpc.communication.Communication;
+import rpc.communication.LoopbackTransport;
+import rpc.communication.MessageReader;
+import specrpc.client.api.SpecRpcClient;
+import specrpc.common.Location;
+import specrpc.common.RpcSignature;
+import specrpc.common.Status.SpeculationStatus;
+import specrpc.communication.CallerSpeculationSolvedMsg;
+import specrpc.communication.CallerSpeculationSolvedMsg.Resolution;
+import specrpc.communication.RequestMsg;
+import specrpc.communication.ResponseMsg.ResponseType;
+import specrpc.server.api.SpecRpcHost;
+import specrpc.server.api.SpecRpcHostFactory;
+import specrpc.server.api.SpecRpcHostObject;
+import specrpc.server.api.SpecRpcServer;
+
+/*
+ * The steps SpecRpcHandler takes for a request after the RPC method returns:
+ * it waits for the caller's resolution without holding a thread, rolls the
+ * method back if the caller fails, and closes the connection once the RPC is
+ * done. The test plays the client on an in-JVM connection to a server.
+ */
+public class SpecRpcHandlerTest {
+  private static final String SERVER_IDENTITY = "SpecRpcHandler-ID";
+
+  // Returns a speculative value and then the actual one, with a rollback
+  public static class RollbackHost extends SpecRpcHostObject {
+    static final AtomicInteger rollbackNum = new AtomicInteger(0);
+    static volatile CountDownLatch rolledBack = new CountDownLatch(1);
+
+    public String work(String value) throws Exception {
+      this.specRPCFacade.registerRollback(() -> {
+        rollbackNum.incrementAndGet();
+        rolledBack.countDown();
+      });
+      this.specRPCFacade.specReturn("speculative " + value);
+      return "actual " + value;
+    }
+  }
+
+  public static class RollbackHostFactory implements SpecRpcHostFactory {
+    @Override
+    public String getRpcHostClassName() {
+      return RollbackHost.class.getName();
+    }
+
+    @Override
+    public SpecRpcHost getRpcHostObject() {
+      return new RollbackHost();
+    }
+  }
+
+  private static final RpcSignature SIGNATURE = new RpcSignature(RollbackHost.class.getName(), "work", String.class,
+      String.class);
+
+  private SpecRpcServer server;
+  private Location serverLocation;
+
+  @Before
+  public void beforeEach() throws Exception {
+    RollbackHost.rollbackNum.set(0);
+    RollbackHost.rolledBack = new CountDownLatch(1);
+    server = new SpecRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", 0, null);
+    server.register("work", new RollbackHostFactory(), String.class, String.class);
+    final SpecRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    SpecRpcClient.initClient(null);
+    serverLocation = SpecRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    server.terminate();
+    SpecRpcClient.shutdown();
+  }
+
+  // Sends the request, and reads the speculative and the actual return
+  private Communication call(SpeculationStatus callerStatus, String value) throws Exception {
+    IConnection connection = LoopbackTransport.getInstance().connect(serverLocation);
+    assertNotNull(connection);
+    Communication client = new Communication(connection);
+    client.send(new RequestMsg(callerStatus, SIGNATURE, value));
+    assertResponses(client, value);
+    return client;
+  }
+
+  private static void assertResponses(Communication client, String value) throws Exception {
+    assertResponse(client, ResponseType.SPEC_RETURN, "speculative " + value);
+    assertResponse(client, ResponseType.RETURN, "actual " + value);
+  }
+
+  private static void assertResponse(Communication client, ResponseType type, String value) throws Exception {
+    MessageReader response = client.getMessageReader();
+    ResponseType responseType = response.readEnum(ResponseType.class);
+    if (responseType == ResponseType.METHOD_KEY) {
+      // The key to send instead of the signature next time
+      response = client.getMessageReader();
+      responseType = response.readEnum(ResponseType.class);
+    }
+    assertEquals(type, responseType);
+    assertEquals(value, response.readValue(String.class));
+  }
+
+  private static void assertClosed(Communication client) throws InterruptedException {
+    try {
+      client.getMessageReader();
+      fail("The server did not close the connection");
+    } catch (ConnectionCloseException e) {
+      // Expected
+    }
+  }
+
+  // Nothing to wait for after the method returns
+  @Test(timeout = 10000)
+  public void testCallerNotSpeculative() throws Exception {
+    Communication client = call(SpeculationStatus.SUCCEED, "not speculative");
+    assertClosed(client);
+    client.disconnect();
+    assertEquals(0, RollbackHost.rollbackNum.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testCallerCommits() throws Exception {
+    Communication client = call(SpeculationStatus.SPECULATIVE, "commit");
+    client.send(new CallerSpeculationSolvedMsg(Resolution.COMMIT));
+    assertClosed(client);
+    client.disconnect();
+    assertEquals(0, RollbackHost.rollbackNum.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testCallerAborts() throws Exception {
+    Communication client = call(SpeculationStatus.SPECULATIVE, "abort");
+    client.send(new CallerSpeculationSolvedMsg(Resolution.ABORT));
+    assertTrue(RollbackHost.rolledBack.await(5, TimeUnit.SECONDS));
+    assertClosed(client);
+    client.disconnect();
+    assertEquals(1, RollbackHost.rollbackNum.get());
+  }
+
+  // A caller that goes away without a resolution counts as failed
+  @Test(timeout = 10000)
+  public void testCallerCloses() throws Exception {
+    Communication client = call(SpeculationStatus.SPECULATIVE, "close");
+    client.disconnect();
+    assertTrue(RollbackHost.rolledBack.await(5, TimeUnit.SECONDS));
+    assertEquals(1, RollbackHost.rollbackNum.get());
+  }
+
+  // The RPCs on the streams of one session are handled on their own, and each
+  // stream closes when its RPC is done
+  @Test(timeout = 10000)
+  public void testSessionStreams() throws Exception {
+    Communication.removeTransport(LoopbackTransport.getInstance());
+    Communication.setSessionEnabled(true);
+    try {
+      Communication first = Communication.connectTo(serverLocation);
+      Communication second = Communication.connectTo(serverLocation);
+      assertTrue(first.isSessionStream());
+      assertTrue(second.isSessionStream());
+      first.send(new RequestMsg(SpeculationStatus.SPECULATIVE, SIGNATURE, "first"));
+      second.send(new RequestMsg(SpeculationStatus.SPECULATIVE, SIGNATURE, "second"));
+      assertResponses(second, "second");
+      assertResponses(first, "first");
+
+      second.send(new CallerSpeculationSolvedMsg(Resolution.ABORT));
+      assertTrue(RollbackHost.rolledBack.await(5, TimeUnit.SECONDS));
+      assertClosed(second);
+      second.disconnect();
+      first.send(new CallerSpeculationSolvedMsg(Resolution.COMMIT));
+      assertClosed(first);
+      first.disconnect();
+      assertEquals(1, RollbackHost.rollbackNum.get());
+      assertEquals(1, Communication.getSessions().size());
+      assertEquals(0, Communication.getSessions().get(0).getStreamNum());
+    } finally {
+      Communication.setSessionEnabled(false);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package tradrpc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rpc.communication.MessageCodec;
+import rpc.communication.MessageCodecs;
+import specrpc.common.Location;
+import specrpc.common.RpcSignature;
+import tradrpc.client.api.TradRpcClient;
+import tradrpc.server.api.TradRpcServer;
+
+/*
+ * A client and a server that start with different codecs. The server replies
+ * in JSON to a request in a codec it does not take, and both the blocking and
+ * the asynchronous calls then send the request again in JSON.
+ */
+public class CodecFallbackTest {
+  private static final String SERVER_IDENTITY = "TradCodecFallback-ID";
+  private static final RpcSignature SIGNATURE = new RpcSignature(EchoHost.class.getName(), EchoHost.ECHO,
+      String.class, String.class);
+
+  private TradRpcServer server;
+  private Location serverLocation;
+  private MessageCodec requestCodec;
+
+  @Before
+  public void beforeEach() throws Exception {
+    server = new TradRpcServer();
+    server.initServer(SERVER_IDENTITY, null);
+    server.register(EchoHost.ECHO, new EchoHostFactory(), String.class, String.class);
+    new Thread(() -> {
+      try {
+        server.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    TradRpcClient.initClient(null);
+    serverLocation = TradRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+    requestCodec = MessageCodecs.getRequestCodec();
+    MessageCodecs.setRequestCodec(MessageCodecs.BINARY);
+    MessageCodecs.setAcceptedCodecs(Collections.singletonList(MessageCodecs.JSON));
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    MessageCodecs.setRequestCodec(requestCodec);
+    MessageCodecs.setAcceptedCodecs(null);
+    server.terminate();
+    TradRpcClient.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testCall() throws Exception {
+    assertEquals(MessageCodecs.BINARY, MessageCodecs.getRequestCodec(serverLocation));
+    assertEquals(EchoHost.ECHO_PREFIX + "first", TradRpcClient.bind(SERVER_IDENTITY, SIGNATURE).call("first"));
+    assertEquals(MessageCodecs.JSON, MessageCodecs.getRequestCodec(serverLocation));
+    assertEquals(EchoHost.ECHO_PREFIX + "in json", TradRpcClient.bind(SERVER_IDENTITY, SIGNATURE).call("in json"));
+  }
+
+  @Test(timeout = 10000)
+  public void testCallAsync() throws Exception {
+    assertEquals(MessageCodecs.BINARY, MessageCodecs.getRequestCodec(serverLocation));
+    assertEquals(EchoHost.ECHO_PREFIX + "first", TradRpcClient.bind(SERVER_IDENTITY, SIGNATURE).callAsync("first")
+        .toCompletableFuture().get(5, TimeUnit.SECONDS));
+    assertEquals(MessageCodecs.JSON, MessageCodecs.getRequestCodec(serverLocation));
+  }
+}
@@ -0,0 +1,137 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package tradrpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import specrpc.common.RpcSignature;
+import tradrpc.client.TradRpcUserException;
+import tradrpc.client.api.TradRpcClient;
+import tradrpc.server.api.TradRpcHost;
+import tradrpc.server.api.TradRpcHostFactory;
+import tradrpc.server.api.TradRpcHostObject;
+import tradrpc.server.api.TradRpcServer;
+
+/*
+ * callAsync() returns at once, and its stage completes with the return value
+ * or the user exception in the client thread pool.
+ */
+public class CompletionStageTest {
+  private static final String SERVER_IDENTITY = "TradCompletionStage-ID";
+  private static final int CALL_NUM = 20;
+
+  public static class AsyncHost extends TradRpcHostObject {
+    public String echo(String value) {
+      return "Echo " + value;
+    }
+
+    public String fail(String value) throws Exception {
+      this.clientStub.sendException("Failed " + value);
+      return null;
+    }
+  }
+
+  public static class AsyncHostFactory implements TradRpcHostFactory {
+    @Override
+    public String getRpcHostClassName() {
+      return AsyncHost.class.getName();
+    }
+
+    @Override
+    public TradRpcHost getRpcHostObject() {
+      return new AsyncHost();
+    }
+  }
+
+  private TradRpcServer server;
+
+  @Before
+  public void beforeEach() throws Exception {
+    server = new TradRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", 0, null);
+    server.register("echo", new AsyncHostFactory(), String.class, String.class);
+    server.register("fail", new AsyncHostFactory(), String.class, String.class);
+    final TradRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+    TradRpcClient.initClient(null);
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    server.terminate();
+    TradRpcClient.shutdown();
+  }
+
+  private static RpcSignature signature(String methodName) {
+    return new RpcSignature(AsyncHost.class.getName(), methodName, String.class, String.class);
+  }
+
+  // All of the calls are sent before any return is waited for
+  @Test(timeout = 10000)
+  public void testCallAsync() throws Exception {
+    List<CompletableFuture<Object>> returns = new ArrayList<CompletableFuture<Object>>();
+    List<String> threadNames = new ArrayList<String>();
+    for (int i = 0; i < CALL_NUM; i++) {
+      returns.add(TradRpcClient.bind(SERVER_IDENTITY, signature("echo")).callAsync("request " + i)
+          .whenComplete((value, exception) -> {
+            synchronized (threadNames) {
+              threadNames.add(Thread.currentThread().getName());
+            }
+          }).toCompletableFuture());
+    }
+    for (int i = 0; i < CALL_NUM; i++) {
+      assertEquals("Echo request " + i, returns.get(i).get(5, TimeUnit.SECONDS));
+    }
+    synchronized (threadNames) {
+      for (String threadName : threadNames) {
+        assertFalse(threadName, threadName.startsWith("MultiSocket"));
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testUserException() throws Exception {
+    CompletableFuture<Object> result = TradRpcClient.bind(SERVER_IDENTITY, signature("fail")).callAsync("request")
+        .toCompletableFuture();
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("The call did not fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TradRpcUserException);
+      assertEquals("Failed request", e.getCause().getMessage());
+    }
+  }
+}
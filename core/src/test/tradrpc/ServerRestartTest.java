@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package tradrpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import specrpc.common.Location;
+import specrpc.common.MethodKeys;
+import specrpc.common.RpcSignature;
+import tradrpc.client.api.TradRpcClient;
+import tradrpc.server.api.TradRpcServer;
+
+/*
+ * A server restarted at the same location no longer knows the method keys the
+ * client learned from the previous one. Both the blocking and the asynchronous
+ * calls then send the request again with the signature.
+ */
+public class ServerRestartTest {
+  private static final String SERVER_IDENTITY = "TradServerRestart-ID";
+  private static final RpcSignature SIGNATURE = new RpcSignature(EchoHost.class.getName(), EchoHost.ECHO,
+      String.class, String.class);
+
+  private TradRpcServer server;
+  private Location serverLocation;
+
+  @Before
+  public void beforeEach() throws Exception {
+    startServer(0);
+    TradRpcClient.initClient(null);
+    serverLocation = TradRpcClient.lookup(SERVER_IDENTITY, SIGNATURE);
+  }
+
+  @After
+  public void afterEach() throws Exception {
+    server.terminate();
+    TradRpcClient.shutdown();
+  }
+
+  private void startServer(int port) throws Exception {
+    server = new TradRpcServer();
+    server.initServer(SERVER_IDENTITY, "localhost", port, null);
+    server.register(EchoHost.ECHO, new EchoHostFactory(), String.class, String.class);
+    final TradRpcServer runningServer = server;
+    new Thread(() -> {
+      try {
+        runningServer.execute();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }).start();
+  }
+
+  // The sockets of a server that stopped in this process stay open, unlike
+  // those of a server process that exits, so the client opens new ones. It
+  // keeps the keys it learned.
+  private void restart() throws Exception {
+    server.terminate();
+    TradRpcClient.shutdown();
+    startServer(serverLocation.port);
+    TradRpcClient.initClient(null);
+  }
+
+  private static String call(String value) throws Exception {
+    return (String) TradRpcClient.bind(SERVER_IDENTITY, SIGNATURE).call(value);
+  }
+
+  private static String callAsync(String value) throws Exception {
+    return (String) TradRpcClient.bind(SERVER_IDENTITY, SIGNATURE).callAsync(value).toCompletableFuture()
+        .get(5, TimeUnit.SECONDS);
+  }
+
+  private long learnKey() throws Exception {
+    assertEquals(EchoHost.ECHO_PREFIX + "first", call("first"));
+    long key = MethodKeys.get(serverLocation, SIGNATURE);
+    assertTrue(key != 0);
+    assertEquals(EchoHost.ECHO_PREFIX + "with key", call("with key"));
+    return key;
+  }
+
+  @Test(timeout = 10000)
+  public void testCallAfterRestart() throws Exception {
+    long firstKey = learnKey();
+    restart();
+    assertEquals(EchoHost.ECHO_PREFIX + "after restart", call("after restart"));
+    long secondKey = MethodKeys.get(serverLocation, SIGNATURE);
+    assertTrue(secondKey != 0 && secondKey != firstKey);
+    assertEquals(EchoHost.ECHO_PREFIX + "with new key", call("with new key"));
+  }
+
+  @Test(timeout = 10000)
+  public void testCallAsyncAfterRestart() throws Exception {
+    long firstKey = learnKey();
+    restart();
+    assertEquals(EchoHost.ECHO_PREFIX + "after restart", callAsync("after restart"));
+    long secondKey = MethodKeys.get(serverLocation, SIGNATURE);
+    assertTrue(secondKey != 0 && secondKey != firstKey);
+    assertEquals(EchoHost.ECHO_PREFIX + "with new key", callAsync("with new key"));
+  }
+}
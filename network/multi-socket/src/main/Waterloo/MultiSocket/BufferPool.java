@@ -0,0 +1,116 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package Waterloo.MultiSocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A pool of direct buffers shared by all of the MultiSockets of a process.
+ * Sockets borrow their read and write buffers while they have I/O to do, and
+ * return them once idle, so that a mostly idle socket holds no buffer.
+ * Direct buffers are read and written by the channels without the copy
+ * through a temporary direct buffer that heap buffers take.
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE, and
+ * each class keeps at most a fixed number of bytes of free buffers. Bigger
+ * buffers are not pooled.
+ */
+public class BufferPool {
+
+  public static final int MIN_SIZE = 4 * 1024;
+  public static final int MAX_SIZE = 64 * 1024;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024; // Per size class
+
+  private static final BufferPool shared = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> freeBuffers; // By size class
+  private final AtomicInteger[] freeNumbers;
+  private final int[] maxFreeNumbers;
+  private final BufferPoolStatistics statistics;
+
+  public BufferPool(long maxPooledBytes) {
+    int classNumber = classOf(MAX_SIZE) + 1;
+    freeBuffers = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(classNumber);
+    freeNumbers = new AtomicInteger[classNumber];
+    maxFreeNumbers = new int[classNumber];
+    for (int i = 0; i < classNumber; i++) {
+      freeBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+      freeNumbers[i] = new AtomicInteger(0);
+      maxFreeNumbers[i] = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / (MIN_SIZE << i));
+    }
+    statistics = new BufferPoolStatistics();
+  }
+
+  // The pool of the sockets of this process
+  public static BufferPool getShared() {
+    return shared;
+  }
+
+  public BufferPoolStatistics getStatistics() {
+    return statistics;
+  }
+
+  // Returns the size class of a buffer of at least size bytes
+  private static int classOf(int size) {
+    if (size <= MIN_SIZE) {
+      return 0;
+    }
+    return Integer.numberOfLeadingZeros(MIN_SIZE - 1) - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  // Returns a cleared direct buffer of at least size bytes. Its capacity is
+  // the size of its class.
+  public ByteBuffer acquire(int size) {
+    if (size > MAX_SIZE) {
+      statistics.bufferAllocated(size);
+      statistics.bufferAcquired(size);
+      return ByteBuffer.allocateDirect(size);
+    }
+    int sizeClass = classOf(size);
+    ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+    if (buffer != null) {
+      freeNumbers[sizeClass].decrementAndGet();
+      statistics.bufferReused(buffer.capacity());
+      buffer.clear();
+    } else {
+      buffer = ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+      statistics.bufferAllocated(buffer.capacity());
+    }
+    statistics.bufferAcquired(buffer.capacity());
+    return buffer;
+  }
+
+  // Takes back a buffer from acquire(). The caller must not use it anymore.
+  public void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (capacity > MAX_SIZE || capacity != (MIN_SIZE << classOf(capacity))) {
+      statistics.bufferReleased(capacity, false);
+      return;
+    }
+    int sizeClass = classOf(capacity);
+    if (freeNumbers[sizeClass].incrementAndGet() > maxFreeNumbers[sizeClass]) {
+      freeNumbers[sizeClass].decrementAndGet();
+      statistics.bufferReleased(capacity, false); // Left to the garbage collector
+      return;
+    }
+    statistics.bufferReleased(capacity, true);
+    freeBuffers.get(sizeClass).add(buffer);
+  }
+}
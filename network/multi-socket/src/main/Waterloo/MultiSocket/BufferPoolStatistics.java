@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package Waterloo.MultiSocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Run-time counters of a BufferPool, used to check how well the pool serves
+ * the sockets and how much direct memory they hold.
+ */
+public class BufferPoolStatistics {
+
+  private final AtomicLong acquireNumber = new AtomicLong(0);
+  private final AtomicLong reuseNumber = new AtomicLong(0); // acquires served by a pooled buffer
+  private final AtomicLong allocationNumber = new AtomicLong(0);
+  private final AtomicLong allocatedBytes = new AtomicLong(0);
+  private final AtomicLong releaseNumber = new AtomicLong(0);
+  private final AtomicLong dropNumber = new AtomicLong(0); // releases not kept by the pool
+  private final AtomicLong borrowedBytes = new AtomicLong(0); // held by the sockets now
+  private final AtomicLong pooledBytes = new AtomicLong(0); // free in the pool now
+
+  void bufferAcquired(int capacity) {
+    acquireNumber.incrementAndGet();
+    borrowedBytes.addAndGet(capacity);
+  }
+
+  void bufferReused(int capacity) {
+    reuseNumber.incrementAndGet();
+    pooledBytes.addAndGet(-capacity);
+  }
+
+  void bufferAllocated(int capacity) {
+    allocationNumber.incrementAndGet();
+    allocatedBytes.addAndGet(capacity);
+  }
+
+  void bufferReleased(int capacity, boolean pooled) {
+    releaseNumber.incrementAndGet();
+    borrowedBytes.addAndGet(-capacity);
+    if (pooled) {
+      pooledBytes.addAndGet(capacity);
+    } else {
+      dropNumber.incrementAndGet();
+    }
+  }
+
+  public long getAcquireNumber() {
+    return acquireNumber.get();
+  }
+
+  public long getReuseNumber() {
+    return reuseNumber.get();
+  }
+
+  public double getHitRatio() {
+    long acquires = getAcquireNumber();
+    return acquires == 0 ? 0 : (double) getReuseNumber() / acquires;
+  }
+
+  public long getAllocationNumber() {
+    return allocationNumber.get();
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  public long getReleaseNumber() {
+    return releaseNumber.get();
+  }
+
+  public long getDropNumber() {
+    return dropNumber.get();
+  }
+
+  public long getBorrowedBytes() {
+    return borrowedBytes.get();
+  }
+
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  public String toString() {
+    return "BufferPool acquires=" + getAcquireNumber() + " reuses=" + getReuseNumber() + " allocations="
+        + getAllocationNumber() + " allocatedBytes=" + getAllocatedBytes() + " releases=" + getReleaseNumber()
+        + " drops=" + getDropNumber() + " borrowedBytes=" + getBorrowedBytes() + " pooledBytes=" + getPooledBytes();
+  }
+}
@@ -0,0 +1,48 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Flow control state of one Connection. See FlowControl.
+ */
+class ChannelCredit {
+  // Send side. Senders charge messages to sendCredit when they queue them,
+  // while the writer charges frames to wireCredit when it puts them on the
+  // wire. Both get the credit granted by the peer.
+  final AtomicLong sendCredit = new AtomicLong(0);
+  final AtomicLong wireCredit = new AtomicLong(0);
+  volatile CreditListener listener = null;
+  final AtomicBoolean listenerArmed = new AtomicBoolean(false); // A message went beyond the credit
+
+  // Receive side
+  final AtomicLong unacked = new AtomicLong(0); // Consumed bytes not yet granted back
+  final AtomicBoolean grantQueued = new AtomicBoolean(false);
+  boolean released = false; // Queued messages were granted on close. Guarded by the connection.
+
+  void add(long credit) {
+    sendCredit.addAndGet(credit);
+    wireCredit.addAndGet(credit);
+  }
+
+  // Returns the consumed bytes to grant in the next frame of the channel.
+  int takeGrant() {
+    return unacked.get() == 0 ? 0 : (int) unacked.getAndSet(0);
+  }
+}
@@ -16,16 +16,49 @@
 
 package Waterloo.MultiSocket;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 //Message abstraction for pending messages.
+//The payload is either a String, which is encoded straight into the socket's
+//write buffer, or a ByteBuffer, which is sent without any copy or transcoding.
+//A payload bigger than a frame is sent in fragments, and its position tracks
+//how much of it has been sent.
+//A DATA message may also carry the CREATE or the CLOSE of its connection.
 public class ChannelMessage {
+  private static final int CLOSE_NONE = 0;
+  private static final int CLOSE_ATTACHED = 1;
+  private static final int CLOSE_SEALED = 2; // The last frame is loaded, too late for the CLOSE
+  private static final AtomicIntegerFieldUpdater<ChannelMessage> closeUpdater = AtomicIntegerFieldUpdater
+      .newUpdater(ChannelMessage.class, "closeState");
+
   private final int channelNumber;
   private final int messageType;
   private final String message;
+  private final ByteBuffer payload;
+  private boolean fragmented = false; // Whether the first fragment has been sent
+  private ChannelCredit credit = null; // Flow control state of the connection
+  private boolean urgent = false; // HIGH priority
+  private boolean opensChannel = false; // The first frame also creates the channel on the peer
+  private int originalSize = -1; // Size before compression, -1 if not compressed
+  private volatile int closeState = CLOSE_NONE; // Set by the closing thread or the writer, whichever comes first
 
   public ChannelMessage(int channelNumber, int messageType, String message) {
     this.channelNumber = channelNumber;
     this.messageType = messageType;
     this.message = message;
+    this.payload = null;
+  }
+
+  public ChannelMessage(int channelNumber, int messageType, ByteBuffer payload) {
+    this.channelNumber = channelNumber;
+    this.messageType = messageType;
+    this.message = null;
+    this.payload = payload;
   }
 
   int getMessageType() {
@@ -39,4 +72,79 @@ public class ChannelMessage {
   String getMessage() {
     return message;
   }
+
+  ByteBuffer getPayload() {
+    return payload;
+  }
+
+  boolean isFragmented() {
+    return fragmented;
+  }
+
+  void setFragmented() {
+    fragmented = true;
+  }
+
+  boolean isUrgent() {
+    return urgent;
+  }
+
+  void setUrgent() {
+    urgent = true;
+  }
+
+  boolean isCompressed() {
+    return originalSize >= 0;
+  }
+
+  int getOriginalSize() {
+    return originalSize;
+  }
+
+  void setCompressed(int originalSize) {
+    this.originalSize = originalSize;
+  }
+
+  boolean opensChannel() {
+    return opensChannel;
+  }
+
+  void setOpensChannel() {
+    opensChannel = true;
+  }
+
+  // Returns true if the last frame will carry the CLOSE of the connection,
+  // false if it is already loaded.
+  boolean attachClose() {
+    return closeUpdater.compareAndSet(this, CLOSE_NONE, CLOSE_ATTACHED) || closeState == CLOSE_ATTACHED;
+  }
+
+  // Called by the writer when loading the last frame. Returns true if the
+  // frame carries the CLOSE.
+  boolean sealClose() {
+    return !closeUpdater.compareAndSet(this, CLOSE_NONE, CLOSE_SEALED);
+  }
+
+  ChannelCredit getCredit() {
+    return credit;
+  }
+
+  void setCredit(ChannelCredit credit) {
+    this.credit = credit;
+  }
+
+  // Puts the whole payload into the buffer, and returns the number of bytes put.
+  int encode(ByteBuffer buffer, CharsetEncoder encoder) {
+    int start = buffer.position();
+    if (payload != null) {
+      buffer.put(payload.duplicate());
+    } else if (message != null) {
+      encoder.reset();
+      CoderResult result = encoder.encode(CharBuffer.wrap(message), buffer, true);
+      if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+        throw new BufferOverflowException();
+      }
+    }
+    return buffer.position() - start;
+  }
 }
@@ -17,8 +17,8 @@
 package Waterloo.MultiSocket;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.Selector;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.concurrent.Future;
@@ -31,13 +31,20 @@ public class ClientMultiSocketImpl extends MultiSocket {
   // TODO: Let's not worry about running out of channel numbers for now.
   // This needs to be fixed later.
   private int nextFreeChannel = 0;
-  private final InetSocketAddress address;
+  private final SocketChannel socketChannel;
+  private final SocketAddress address;
+  private final int stripe; // Index among the sockets to the same address
+  private final MultiSocketClient client;
   private boolean connected = false;
   private LinkedList<BasicFuture<IConnection>> connectFutureList;
 
-  public ClientMultiSocketImpl(SocketChannel channel, Selector selector, InetSocketAddress address) {
-    super(channel, selector);
+  public ClientMultiSocketImpl(SocketChannel channel, Reactor reactor, SocketAddress address, int stripe,
+      MultiSocketClient client, MultiSocketOptions options) {
+    super(channel, reactor, options);
+    this.socketChannel = channel;
     this.address = address;
+    this.stripe = stripe;
+    this.client = client;
     connectFutureList = new LinkedList<BasicFuture<IConnection>>();
   }
 
@@ -47,18 +54,45 @@ public class ClientMultiSocketImpl extends MultiSocket {
     throw new ChannelUsedException("Client does not handle any new connection");
   }
 
-  public InetSocketAddress getAddress() {
+  public SocketAddress getAddress() {
     return address;
   }
 
+  public int getStripe() {
+    return stripe;
+  }
+
+  public String getName() {
+    return address + "#" + stripe;
+  }
+
+  // Includes the connections waiting for the socket to connect.
+  public synchronized int getConnectionNumber() {
+    return super.getConnectionNumber() + connectFutureList.size();
+  }
+
   private Connection createConnectionHelper() throws IOException, MultiSocketValidException, ConnectionCloseException {
     int channelNumber = nextFreeChannel++;
     Connection connection = new Connection(channelNumber, this);
-    connectionMap.put(channelNumber, connection);
-    writeMessage(connection, CREATE, null);
+    connection.setOpening(); // Opened by its first frame rather than a CREATE
+    registerConnection(connection);
     return connection;
   }
 
+  protected void finishConnect(SelectionKey key) throws Exception {
+    SocketChannel channel = (SocketChannel) key.channel();
+    assert (channel.isConnectionPending());
+    if (channel.finishConnect()) {
+      key.interestOps(SelectionKey.OP_READ);
+      setConnected();
+    }
+  }
+
+  protected void handleSocketClosed() {
+    connectFailed();
+    client.removeSocket(this);
+  }
+
   protected synchronized void connectFailed() {
     for (BasicFuture<IConnection> cf : connectFutureList) {
       cf.put(null);
@@ -66,8 +100,24 @@ public class ClientMultiSocketImpl extends MultiSocket {
     connectFutureList.clear();
   }
 
+  // A socket that connected right away is set connected once the reactor
+  // watches it.
+  protected synchronized void handleRegistered() throws IOException {
+    if (connected || !socketChannel.isConnected()) {
+      return;
+    }
+    try {
+      setConnected();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
   protected synchronized void setConnected() throws Exception {
     connected = true;
+    sendHello();
     for (BasicFuture<IConnection> cf : connectFutureList) {
       cf.put(createConnectionHelper());
     }
@@ -0,0 +1,108 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package Waterloo.MultiSocket;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Deflate compression of DATA messages. A compressed message starts with the
+ * size of the original message, followed by the deflated bytes. Each thread
+ * keeps its own Deflater and Inflater, as they hold native memory that is
+ * costly to set up for every message.
+ */
+class Compression {
+
+  private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_SPEED);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  private Compression() {
+  }
+
+  // Returns the compressed form of the remaining bytes of the payload, or null
+  // if it is not smaller. The payload is not changed.
+  static ByteBuffer compress(ByteBuffer payload, int level) {
+    int size = payload.remaining();
+    byte[] input;
+    int offset;
+    if (payload.hasArray()) {
+      input = payload.array();
+      offset = payload.arrayOffset() + payload.position();
+    } else {
+      input = new byte[size];
+      payload.duplicate().get(input);
+      offset = 0;
+    }
+    byte[] output = new byte[size]; // Only worth it if smaller than the payload
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setLevel(level);
+    deflater.setInput(input, offset, size);
+    deflater.finish();
+    int length = 4;
+    while (!deflater.finished()) {
+      if (length == output.length) {
+        return null;
+      }
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    ByteBuffer compressed = ByteBuffer.wrap(output, 0, length);
+    compressed.putInt(0, size);
+    return compressed;
+  }
+
+  // Returns the size of the original message of a compressed message
+  static int originalSize(ByteBuffer compressed) {
+    return compressed.getInt(compressed.position());
+  }
+
+  // Inflates a compressed message into the buffer, whose remaining bytes must
+  // be the original size. Both buffers must have an array.
+  static void decompress(ByteBuffer compressed, ByteBuffer message) throws DataFormatException {
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position() + 4,
+        compressed.remaining() - 4);
+    byte[] output = message.array();
+    int offset = message.arrayOffset() + message.position();
+    int length = 0;
+    while (length < message.remaining() && !inflater.finished()) {
+      int n = inflater.inflate(output, offset + length, message.remaining() - length);
+      if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        break; // Truncated
+      }
+      length += n;
+    }
+    if (!inflater.finished() && !inflater.needsInput()) {
+      length += inflater.inflate(new byte[1]); // Takes the checksum, and finds extra bytes if any
+    }
+    if (length != message.remaining() || !inflater.finished()) {
+      throw new DataFormatException("Compressed message inflates to " + length + " bytes instead of "
+          + message.remaining());
+    }
+  }
+}
@@ -17,7 +17,15 @@
 package Waterloo.MultiSocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import Waterloo.MultiSocket.MultiSocket.ConnectionState;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
@@ -25,33 +33,125 @@ import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
 public class Connection implements IConnection {
   private final int channelNumber;
-  private LinkedList<String> readQueue;
+  private LinkedList<ByteBuffer> readQueue;
   private ConnectionState state = ConnectionState.NORMAL;
   private MultiSocket socket;
+  // The message being received in fragments. Only used by the read path of
+  // the socket.
+  private ByteBuffer partialMessage = null;
+  private boolean partialCompressed = false;
+  private final ChannelCredit credit = new ChannelCredit();
+  // Guarded by the lock. The peer learns about a new connection from
+  // its first frame, and the CLOSE may ride on the last queued DATA message.
+  private boolean opening = false;
+  private ChannelMessage lastQueued = null;
+
+  private MessageListener listener = null;
+  private Executor listenerExecutor = null;
+  private boolean dispatching = false; // Whether a thread is calling the listener
+  private boolean closedByPeer = false; // The peer closed the connection or the socket failed
+  private boolean closeNotified = false;
+  private volatile int arrivals = 0; // Bumped when a message or the close arrives, so that readers can poll it
+  // Guards the connection in place of its monitor, so that a virtual thread
+  // waiting for a message or for credit does not pin its carrier thread. The
+  // socket also holds it to queue the messages of the connection atomically.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition(); // A message, the close or credit arrived
+  private final Runnable dispatchTask = new Runnable() {
+    public void run() {
+      dispatch();
+    }
+  };
 
   public Connection(int channelNumber, MultiSocket socket) {
-    readQueue = new LinkedList<String>();
+    readQueue = new LinkedList<ByteBuffer>();
     this.channelNumber = channelNumber;
     this.socket = socket;
   }
 
+  void lock() {
+    lock.lock();
+  }
+
+  void unlock() {
+    lock.unlock();
+  }
+
+  // Waits with the lock held until a message, the close or credit arrives
+  void awaitChange() throws InterruptedException {
+    changed.await();
+  }
+
   public int getChannelNumber() {
     return channelNumber;
   }
 
-  public synchronized ConnectionState getState() {
-    return state;
+  public ConnectionState getState() {
+    lock.lock();
+    try {
+      return state;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public String readMessage() throws InterruptedException, ConnectionCloseException {
+    ByteBuffer message = takeMessage();
+    return new String(message.array(), message.arrayOffset() + message.position(), message.remaining(),
+        StandardCharsets.UTF_8);
+  }
+
+  public ByteBuffer readMessageBuffer() throws InterruptedException, ConnectionCloseException {
+    return takeMessage().asReadOnlyBuffer();
+  }
+
+  private ByteBuffer takeMessage() throws InterruptedException, ConnectionCloseException {
+    long spinNanos = socket.getReaderSpinNanos();
+    if (spinNanos > 0) {
+      spinForMessage(spinNanos);
+    }
+    ByteBuffer message;
+    boolean drained;
+    boolean counted;
+    lock.lock();
+    try {
+      while (readQueue.isEmpty() && state == ConnectionState.NORMAL) {
+        changed.await(); // Block until there is something to read.
+      }
+      if (state != ConnectionState.NORMAL && readQueue.isEmpty()) {
+        // System.out.println("Not normal state in Connection");
+        throw new ConnectionCloseException("Connection closed, connection state is " + state);
+      }
+      message = readQueue.pop();
+      drained = readQueue.isEmpty();
+      counted = !credit.released;
+    } finally {
+      lock.unlock();
+    }
+    if (counted) {
+      socket.messageConsumed(this, message, drained);
+    }
+    return message;
   }
 
-  public synchronized String readMessage() throws InterruptedException, ConnectionCloseException {
-    while (readQueue.isEmpty() && state == ConnectionState.NORMAL) {
-      wait(); // Block until there is something to read.
+  // Polls for the next message for a while before the caller waits for it, so
+  // that a message arriving soon neither parks the reader nor makes the
+  // reactor unpark it.
+  private void spinForMessage(long spinNanos) {
+    int seen;
+    lock.lock();
+    try {
+      if (!readQueue.isEmpty() || state != ConnectionState.NORMAL) {
+        return;
+      }
+      seen = arrivals;
+    } finally {
+      lock.unlock();
     }
-    if (state != ConnectionState.NORMAL && readQueue.isEmpty()) {
-      // System.out.println("Not normal state in Connection");
-      throw new ConnectionCloseException("Connection closed, connection state is " + state);
+    long start = System.nanoTime();
+    while (arrivals == seen && System.nanoTime() - start < spinNanos) {
+      // Busy-waits
     }
-    return readQueue.pop();
   }
 
   public void writeMessage(String message) throws IOException, MultiSocketValidException, ConnectionCloseException {
@@ -59,45 +159,285 @@ public class Connection implements IConnection {
     socket.writeMessage(this, MultiSocket.DATA, message);
   }
 
+  public void writeMessage(ByteBuffer message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    socket.writeMessage(this, MultiSocket.DATA, message);
+  }
+
+  public void writeMessage(String message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    socket.writeMessage(this, MultiSocket.DATA, message, priority);
+  }
+
+  public void writeMessage(ByteBuffer message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    socket.writeMessage(this, MultiSocket.DATA, message, priority);
+  }
+
+  public void writeMessageAndClose(String message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    socket.writeMessageAndClose(this, message);
+  }
+
+  public void writeMessageAndClose(ByteBuffer message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    socket.writeMessageAndClose(this, message);
+  }
+
   public void close() throws IOException, MultiSocketValidException, ConnectionCloseException {
     socket.sendClose(this);
   }
 
+  // Marks a connection the peer does not know about yet
+  void setOpening() {
+    lock.lock();
+    try {
+      opening = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns true if the peer does not know about this connection yet. The
+  // caller tells the peer with its next frame.
+  boolean takeOpening() {
+    lock.lock();
+    try {
+      boolean wasOpening = opening;
+      opening = false;
+      return wasOpening;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void setLastQueued(ChannelMessage message) {
+    lock.lock();
+    try {
+      lastQueued = message;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  ChannelMessage takeLastQueued() {
+    lock.lock();
+    try {
+      ChannelMessage message = lastQueued;
+      lastQueued = null;
+      return message;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void setCreditListener(CreditListener listener) {
+    credit.listener = listener;
+  }
+
+  public boolean isWritable() {
+    return credit.sendCredit.get() > 0;
+  }
+
+  ChannelCredit getCredit() {
+    return credit;
+  }
+
+  // Called once the peer grants credit. Wakes up the senders waiting for
+  // credit, and tells the credit listener if a message went beyond the credit.
+  void creditAvailable() {
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    CreditListener l = credit.listener;
+    if (l != null && credit.sendCredit.get() > 0 && credit.listenerArmed.compareAndSet(true, false)) {
+      try {
+        l.onCreditAvailable(this);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // Returns the messages not read yet, which stop counting against the flow
+  // control windows. They can still be read.
+  List<ByteBuffer> releaseMessages() {
+    lock.lock();
+    try {
+      credit.released = true;
+      return new ArrayList<ByteBuffer>(readQueue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void setMessageListener(MessageListener listener, Executor executor) {
+    lock.lock();
+    try {
+      this.listener = listener;
+      this.listenerExecutor = executor;
+    } finally {
+      lock.unlock();
+    }
+    startDispatch();
+  }
+
+  // Starts calling the listener if there is something to tell it and no other
+  // thread is calling it.
+  private void startDispatch() {
+    Executor executor;
+    lock.lock();
+    try {
+      if (listener == null || dispatching || !hasListenerEvent()) {
+        return;
+      }
+      dispatching = true;
+      executor = listenerExecutor;
+    } finally {
+      lock.unlock();
+    }
+    if (executor != null) {
+      try {
+        executor.execute(dispatchTask);
+        return;
+      } catch (RejectedExecutionException e) {
+        // Falls back to the current thread rather than losing messages
+      }
+    }
+    dispatch();
+  }
+
+  private boolean hasListenerEvent() {
+    return !readQueue.isEmpty() || (closedByPeer && !closeNotified);
+  }
+
+  private void dispatch() {
+    while (true) {
+      MessageListener l;
+      ByteBuffer message = null;
+      boolean drained = false;
+      boolean counted = false;
+      lock.lock();
+      try {
+        if (!hasListenerEvent()) {
+          dispatching = false;
+          return;
+        }
+        l = listener;
+        if (!readQueue.isEmpty()) {
+          message = readQueue.pop();
+          drained = readQueue.isEmpty();
+          counted = !credit.released;
+        } else {
+          closeNotified = true;
+        }
+      } finally {
+        lock.unlock();
+      }
+      try {
+        if (message != null) {
+          l.onMessage(this, message.asReadOnlyBuffer());
+        } else {
+          l.onClose(this);
+        }
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+      if (counted) {
+        socket.messageConsumed(this, message, drained); // Grants credit once the listener is done with it
+      }
+    }
+  }
+
   // Returns true if this connection should be removed.
-  protected synchronized boolean remoteClose() {
-    if (state == ConnectionState.SENT_CLOSE) {
-      state = ConnectionState.CLOSED;
-    } else {
-      state = ConnectionState.RECVED_CLOSE;
+  protected boolean remoteClose() {
+    boolean closed;
+    lock.lock();
+    try {
+      if (state == ConnectionState.SENT_CLOSE) {
+        state = ConnectionState.CLOSED;
+      } else {
+        state = ConnectionState.RECVED_CLOSE;
+      }
+      closedByPeer = true;
+      arrivals++;
+      changed.signalAll(); // Make sure we wake up any readers
+      closed = state == ConnectionState.CLOSED;
+    } finally {
+      lock.unlock();
     }
-    notifyAll(); // Make sure we wake up any readers
-    return state == ConnectionState.CLOSED;
+    startDispatch();
+    return closed;
   }
 
   // return true if connection is closed
-  protected synchronized boolean closeHelper() {
-    if (state == ConnectionState.RECVED_CLOSE) {
-      state = ConnectionState.CLOSED;
-    } else {
-      state = ConnectionState.SENT_CLOSE;
+  // Only the peer closing the connection is told to the listener, as the
+  // local side knows when it closes.
+  protected boolean closeHelper() {
+    lock.lock();
+    try {
+      if (state == ConnectionState.RECVED_CLOSE) {
+        state = ConnectionState.CLOSED;
+      } else {
+        state = ConnectionState.SENT_CLOSE;
+      }
+      changed.signalAll(); // Make sure we wake up any readers.
+      return ConnectionState.CLOSED == state;
+    } finally {
+      lock.unlock();
     }
-    notifyAll(); // Make sure we wake up any readers.
-    return ConnectionState.CLOSED == state;
   }
 
-  protected synchronized boolean deliverMessage(String message) {
+  ByteBuffer getPartialMessage() {
+    return partialMessage;
+  }
+
+  void setPartialMessage(ByteBuffer message) {
+    partialMessage = message;
+  }
+
+  boolean isPartialCompressed() {
+    return partialCompressed;
+  }
+
+  void setPartialCompressed(boolean compressed) {
+    partialCompressed = compressed;
+  }
+
+  protected boolean deliverMessage(ByteBuffer message) {
     // System.out.println("deliverMessage");
-    if (state != ConnectionState.NORMAL) {
-      return false;
+    lock.lock();
+    try {
+      if (state != ConnectionState.NORMAL) {
+        return false;
+      }
+      readQueue.add(message);
+      arrivals++;
+      if (listener == null) {
+        changed.signalAll(); // Senders waiting for credit also wait on the connection
+        return true;
+      }
+    } finally {
+      lock.unlock();
     }
-    readQueue.add(message);
-    notify(); // Wakeup just one blocking thread.
+    startDispatch();
     return true;
   }
 
-  protected synchronized void forceClose() {
+  protected void forceClose() {
     // System.out.println("forceClose");
-    state = ConnectionState.CLOSED;
-    notifyAll();
+    lock.lock();
+    try {
+      state = ConnectionState.CLOSED;
+      closedByPeer = true;
+      arrivals++;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    startDispatch();
   }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Credit-based flow control of one MultiSocket. Each side advertises in a
+ * WINDOW frame how many bytes of DATA it takes per channel and per socket
+ * before its readers consume them. It then grants the consumed bytes back in
+ * the credit field of the frame header, either on its own frames of the
+ * channel or in CREDIT frames. A grant replenishes both the channel and the
+ * socket. Senders only put DATA frames on the wire within their credit, so a
+ * slow reader bounds the memory held on both sides.
+ *
+ * Until the WINDOW frame of the peer arrives, a sender may use
+ * INITIAL_CREDIT, which is also the smallest window. A window of 0 means no
+ * limit, which is represented by UNLIMITED credit.
+ */
+class FlowControl {
+  static final int INITIAL_CREDIT = 64 * 1024;
+  static final long UNLIMITED = 1L << 60;
+
+  final int channelWindow; // Receive windows, 0 for no limit
+  final int socketWindow;
+  final MultiSocketOptions.CreditPolicy policy;
+  private final boolean limited; // Whether the consumed bytes are granted back
+  private final int grantThreshold;
+
+  // Send side
+  private volatile long peerChannelWindow = INITIAL_CREDIT;
+  final AtomicLong socketCredit = new AtomicLong(INITIAL_CREDIT); // Credit left for frames put on the wire
+  final AtomicBoolean creditArrived = new AtomicBoolean(false); // Parked channels may send again
+
+  // Receive side. Bytes of closed connections are granted on no channel.
+  final AtomicLong released = new AtomicLong(0);
+  final AtomicBoolean releaseQueued = new AtomicBoolean(false);
+
+  FlowControl(MultiSocketOptions options) {
+    channelWindow = window(options.getChannelWindow());
+    socketWindow = window(options.getSocketWindow());
+    policy = options.getCreditPolicy();
+    limited = channelWindow > 0 || socketWindow > 0;
+    grantThreshold = (int) Math.min(Integer.MAX_VALUE, Math.min(credit(channelWindow), credit(socketWindow)) / 2);
+  }
+
+  private static int window(int size) {
+    return size <= 0 ? 0 : Math.max(size, INITIAL_CREDIT);
+  }
+
+  private static long credit(int window) {
+    return window == 0 ? UNLIMITED : window;
+  }
+
+  long getPeerChannelWindow() {
+    return peerChannelWindow;
+  }
+
+  // Gives a new channel the credit of the peer's channel window. Callers
+  // synchronize on this object, so that the channels created while the WINDOW
+  // frame arrives get the right credit.
+  void initChannel(ChannelCredit channelCredit) {
+    channelCredit.add(peerChannelWindow);
+  }
+
+  // Applies the peer's WINDOW frame, and returns the credit to add to the
+  // channels already created. Callers synchronize on this object.
+  long setPeerWindow(int channelWindow, int socketWindow) {
+    long delta = credit(channelWindow) - peerChannelWindow;
+    peerChannelWindow = credit(channelWindow);
+    socketCredit.addAndGet(credit(socketWindow) - INITIAL_CREDIT);
+    creditArrived.set(true);
+    return delta;
+  }
+
+  // Records that size bytes of the channel were consumed. Returns true if a
+  // CREDIT frame should be queued for the channel.
+  boolean consumed(ChannelCredit channelCredit, int size, boolean drained) {
+    if (!limited || size == 0) {
+      return false;
+    }
+    long unacked = channelCredit.unacked.addAndGet(size);
+    // Grants everything once the reader caught up, so that a sender waiting
+    // for credit for a big frame is never stuck.
+    return (unacked >= grantThreshold || drained) && channelCredit.grantQueued.compareAndSet(false, true);
+  }
+
+  // Records that size bytes of a closed channel will never be consumed.
+  // Returns true if a CREDIT frame should be queued.
+  boolean release(long size) {
+    if (!limited || size == 0) {
+      return false;
+    }
+    released.addAndGet(size);
+    return releaseQueued.compareAndSet(false, true);
+  }
+}
@@ -17,14 +17,57 @@
 package Waterloo.MultiSocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
 public interface IConnection {
+  // Decodes the next message as a UTF-8 String
   public String readMessage() throws InterruptedException, ConnectionCloseException;
 
+  // Returns the next message as a read-only buffer, which may share its
+  // backing memory with other received messages
+  public ByteBuffer readMessageBuffer() throws InterruptedException, ConnectionCloseException;
+
+  // Encodes the message as UTF-8
   public void writeMessage(String message) throws IOException, MultiSocketValidException, ConnectionCloseException;
 
+  // Sends the remaining bytes of the buffer. The buffer is not copied, so its
+  // content must not be modified after the call. Its position is not changed.
+  public void writeMessage(ByteBuffer message) throws IOException, MultiSocketValidException, ConnectionCloseException;
+
+  // Same as above, but HIGH messages go ahead of the NORMAL messages of the
+  // other connections of the socket
+  public void writeMessage(String message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException;
+
+  public void writeMessage(ByteBuffer message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException;
+
+  // Pushes the messages to the listener instead of queueing them for
+  // readMessage(), starting with the ones already queued. The listener runs on
+  // the executor, or on the reactor thread if the executor is null, in which
+  // case it must not block.
+  public void setMessageListener(MessageListener listener, Executor executor);
+
+  // Used with the ASYNC_NOTIFY credit policy. The listener is told once the
+  // connection has credit again after a message went beyond it.
+  public void setCreditListener(CreditListener listener);
+
+  // Returns true if the peer granted credit for more messages
+  public boolean isWritable();
+
+  // Sends the message as the last one of the connection and closes it. The
+  // message and the close may be sent in one frame.
+  public void writeMessageAndClose(String message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException;
+
+  public void writeMessageAndClose(ByteBuffer message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException;
+
+  // Once a side closes, the peer can no longer send, and its own close only
+  // releases the connection locally.
   public void close() throws IOException, MultiSocketValidException, ConnectionCloseException;
 }
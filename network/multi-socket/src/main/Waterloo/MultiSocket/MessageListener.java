@@ -0,0 +1,33 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Receives the messages of a connection as they arrive, instead of a thread
+ * blocking in IConnection.readMessage(). The calls for one connection never
+ * overlap and follow the order of the messages.
+ */
+public interface MessageListener {
+  // The message is a read-only buffer, as returned by readMessageBuffer().
+  public void onMessage(IConnection connection, ByteBuffer message);
+
+  // Called once after the last message, when the peer closes the connection
+  // or the socket fails.
+  public void onClose(IConnection connection);
+}
@@ -0,0 +1,26 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+/*
+ * Priority classes of the messages sent on a MultiSocket. The channels whose
+ * next message is HIGH send their frames before the NORMAL channels, and skip
+ * the coalescing window. The messages of one channel stay in order.
+ */
+public enum MessagePriority {
+  HIGH, NORMAL
+}
@@ -17,19 +17,26 @@
 package Waterloo.MultiSocket;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
 import Waterloo.MultiSocket.exception.ChannelUsedException;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.ConnectionNonExistException;
+import Waterloo.MultiSocket.exception.CreditExhaustedException;
 import Waterloo.MultiSocket.exception.DataTooBigException;
 import Waterloo.MultiSocket.exception.EndOfStreamException;
 import Waterloo.MultiSocket.exception.InvalidMagicNumException;
@@ -53,130 +60,781 @@ public abstract class MultiSocket {
   protected static final int CREATE = 0;
   public static final int DATA = 1;
   protected static final int CLOSE = 2;
+  private static final int CREDIT = 3; // Only carries credit in its header
+  private static final int WINDOW = 4; // Advertises the receive windows, see FlowControl
+  private static final int HELLO = 5; // Advertises the features the socket takes, the first frame of each side
+  private static final int NO_CHANNEL = -1; // Channel of the frames about the whole socket
 
-  private int magicNumber = 0xDEADBEEF;
+  // Flags in the upper bits of the message type. The first frame of a DATA
+  // message split into fragments carries FIRST_FRAGMENT, and its data starts
+  // with the total size of the message. The following frames of the channel
+  // carry the rest of the message until the total size is received.
+  // A client does not send CREATE, but sets OPENS_CHANNEL on the first frame
+  // of a new connection. CLOSES_CHANNEL on the last frame of a DATA message
+  // stands for a CLOSE following it.
+  private static final int TYPE_MASK = 0xFF;
+  static final int FIRST_FRAGMENT = 0x100;
+  private static final int OPENS_CHANNEL = 0x200;
+  private static final int CLOSES_CHANNEL = 0x400;
+  // Set on the first frame of a compressed DATA message, see Compression
+  private static final int COMPRESSED = 0x800;
+
+  // Features in HELLO frames
+  private static final int FEATURE_DEFLATE = 0x1; // Takes COMPRESSED messages
+
+  // Changes with the frame format, so that a peer of another version fails on
+  // the first frame instead of misreading it. 0xDEADBEEF was the format with a
+  // 16-byte header, before the credit field and the CREDIT, WINDOW and HELLO
+  // frames.
+  static final int magicNumber = 0xDEADBE02;
   private static final int bufferSize = 64 * 1024;
-  private static final int headerSize = 16;
+  static final int headerSize = 20; // magic, type, channel, credit, size
+  private static final int maxFrameDataSize = bufferSize - headerSize;
+  private static final int maxBytesPerChar = 3; // A Java char takes at most 3 bytes in UTF-8
+  private static final int maxWriteVectorSize = 64;
+  // Frames loaded at once. Frames queued later, such as HIGH ones, wait for
+  // the loaded ones to be written.
+  private static final int maxWriteVectorBytes = 4 * bufferSize;
+  private static final int gatherThreshold = 1024; // Bigger payloads are not copied into writeBuffer
+
+  // The read and write buffers are direct buffers borrowed from bufferPool
+  // while the socket has something to read or write. The read buffer starts
+  // small and grows up to bufferSize for big frames or bursts of frames.
+  private final BufferPool bufferPool;
+  private ReceiveArena receiveArena;
+  private ByteBuffer readBuffer = null; // Only kept while it holds part of a frame
+  private ByteBuffer writeBuffer = null; // Holds the headers and small payloads of the frames being written
+  private ByteBuffer[] writeVector; // Segments of the frames being written
+  private int writeVectorOffset = 0; // First segment not completely written
+  private int writeVectorCount = 0;
+  private int writeSegmentStart = 0; // Start of the part of writeBuffer not in writeVector
+  private int gatheredBytes = 0; // Bytes of the write vector not in writeBuffer
+  private CharsetEncoder encoder; // Encodes String messages into writeBuffer
 
-  private byte[] messageArray;
-  private ByteBuffer readBuffer;
-  private ByteBuffer writeBuffer;
+  // Messages are queued by the senders without locking, and then moved to
+  // writeScheduler by the thread holding the writing flag. writeScheduler, the
+  // write buffers, writeRegistered and flushScheduled are only used by that
+  // thread. The read path only locks this socket, so reads and writes do not
+  // block each other.
+  private ConcurrentLinkedQueue<ChannelMessage> outgoing;
+  private ConcurrentLinkedQueue<ChannelMessage> outgoingControl; // Go ahead of the channels
+  private final AtomicBoolean writing = new AtomicBoolean(false);
+  private WriteScheduler writeScheduler;
+  private final FlowControl flowControl;
+  protected ConcurrentHashMap<Integer, Connection> connectionMap;
+  // Channels below it that are not in connectionMap are closed. The frames
+  // the peer sent before learning about the close are dropped.
+  private volatile int channelBound = 0;
 
-  private LinkedList<ChannelMessage> writeQueue;
-  protected HashMap<Integer, Connection> connectionMap;
+  private final int maxMessageSize; // No limit if <= 0
+  private final int maxDirectEncodeLength; // Longer Strings may not fit in one frame
+  private final long coalescingWindowNanos;
+  private final long readerSpinNanos; // How long a reader polls before it waits
+  private final int compressionThreshold; // Disabled if <= 0
+  private final int compressionLevel;
+  private volatile int peerFeatures = 0; // Known once the HELLO of the peer arrives
 
   private SocketChannel channel;
-  private Selector selector;
-  private boolean valid = true;
+  private Reactor reactor;
+  private final SocketStatistics statistics;
+  private volatile boolean valid = true;
   private boolean writeRegistered = false;
+  private boolean flushScheduled = false; // Waiting for the coalescing window to close
 
-  public MultiSocket(SocketChannel channel, Selector selector) {
-    readBuffer = ByteBuffer.allocate(bufferSize);
-    writeBuffer = ByteBuffer.allocate(bufferSize);
-    writeBuffer.flip(); // Start the write buffer as empty.
+  public MultiSocket(SocketChannel channel, Reactor reactor, MultiSocketOptions options) {
+    bufferPool = BufferPool.getShared();
+    writeVector = new ByteBuffer[maxWriteVectorSize];
 
-    messageArray = new byte[bufferSize];
-    writeQueue = new LinkedList<ChannelMessage>();
-    connectionMap = new HashMap<Integer, Connection>();
+    receiveArena = new ReceiveArena(bufferSize);
+    encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    writeScheduler = new WriteScheduler();
+    outgoing = new ConcurrentLinkedQueue<ChannelMessage>();
+    outgoingControl = new ConcurrentLinkedQueue<ChannelMessage>();
+    flowControl = new FlowControl(options);
+    connectionMap = new ConcurrentHashMap<Integer, Connection>();
+    maxMessageSize = options.getMaxMessageSize();
+    maxDirectEncodeLength = (maxMessageSize > 0 ? Math.min(maxMessageSize, maxFrameDataSize) : maxFrameDataSize)
+        / maxBytesPerChar;
+    coalescingWindowNanos = options.getCoalescingWindowMicros() * 1000L;
+    compressionThreshold = options.getCompressionThreshold();
+    compressionLevel = options.getCompressionLevel();
+    readerSpinNanos = options.getPollPolicy() == MultiSocketOptions.PollPolicy.BLOCK ? 0
+        : options.getSpinMicros() * 1000L;
     this.channel = channel;
-    this.selector = selector;
+    this.reactor = reactor;
+    statistics = new SocketStatistics(this);
+  }
+
+  public Reactor getReactor() {
+    return reactor;
+  }
+
+  public SocketStatistics getStatistics() {
+    return statistics;
+  }
+
+  public String getName() {
+    try {
+      return String.valueOf(channel.getRemoteAddress());
+    } catch (IOException e) {
+      return "closed";
+    }
+  }
+
+  long getReaderSpinNanos() {
+    return readerSpinNanos;
+  }
+
+  public int getConnectionNumber() {
+    return connectionMap.size();
   }
 
   public void forceClose() throws IOException {
     channel.close();
   }
 
-  public synchronized void sendClose(Connection connection)
+  // Adds a new connection of this socket.
+  protected void registerConnection(Connection connection) {
+    synchronized (flowControl) {
+      flowControl.initChannel(connection.getCredit());
+      connectionMap.put(connection.getChannelNumber(), connection);
+      channelBound = Math.max(channelBound, connection.getChannelNumber() + 1);
+    }
+  }
+
+  // Removes a connection once it is closed on either side. Its messages that are not read
+  // yet stop holding the credit of the peer.
+  private void removeConnection(Connection connection) {
+    connectionMap.remove(connection.getChannelNumber());
+    long size = 0;
+    List<ByteBuffer> messages = connection.releaseMessages();
+    for (ByteBuffer message : messages) {
+      statistics.removeUndeliveredMessage(message.remaining());
+      size += creditOf(message);
+    }
+    if (flowControl.release(size)) {
+      queueControl(new ChannelMessage(NO_CHANNEL, CREDIT, (ByteBuffer) null));
+    }
+  }
+
+  // Advertises the features and the receive windows of this socket. Sent
+  // before any other frame.
+  protected void sendHello() throws IOException {
+    queueControl(new ChannelMessage(NO_CHANNEL, HELLO, (ByteBuffer) null));
+    queueControl(new ChannelMessage(NO_CHANNEL, WINDOW, (ByteBuffer) null));
+    writeQueued();
+  }
+
+  public void sendClose(Connection connection)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    closeConnection(connection, null);
+  }
+
+  public void writeMessageAndClose(Connection connection, String message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    closeConnection(connection, dataMessage(connection, message));
+  }
+
+  public void writeMessageAndClose(Connection connection, ByteBuffer message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    closeConnection(connection, dataMessage(connection, message));
+  }
+
+  // The side closing first tells the peer, and both sides forget the channel
+  // as soon as they send or receive the CLOSE, so the peer does not answer
+  // it. The CLOSE rides on the last DATA message of the connection if that is
+  // not loaded yet. The peer does not know about a connection that sent
+  // nothing, so closing it sends nothing either.
+  private void closeConnection(Connection connection, ChannelMessage lastMessage)
       throws IOException, MultiSocketValidException, ConnectionCloseException {
-    writeMessage(connection, CLOSE, null);
-    if (connection.closeHelper()) {
-      this.connectionMap.remove(connection.getChannelNumber());
+    if (!valid) {
+      throw new MultiSocketValidException("MultiSocket is not valid");
+    }
+    if (lastMessage != null) {
+      lastMessage = compress(lastMessage);
     }
+    connection.lock();
+    try {
+      checkOpen(connection);
+      if (lastMessage != null) {
+        queueMessage(connection, lastMessage);
+      }
+      if (connection.getState() == ConnectionState.NORMAL && !connection.takeOpening()) {
+        ChannelMessage last = connection.takeLastQueued();
+        if (last == null || !last.attachClose()) {
+          queueMessage(connection, new ChannelMessage(connection.getChannelNumber(), CLOSE, (ByteBuffer) null));
+        }
+      }
+      connection.takeLastQueued(); // Does not hold on to the payload
+      connection.closeHelper();
+      removeConnection(connection);
+    } finally {
+      connection.unlock();
+    }
+    writeQueued();
   }
 
-  public synchronized void writeMessage(Connection connection, int messageType, String message)
+  public void writeMessage(Connection connection, int messageType, String message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    writeMessage(connection, messageType, message, MessagePriority.NORMAL);
+  }
+
+  public void writeMessage(Connection connection, int messageType, String message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    if (message != null && message.length() > maxDirectEncodeLength) {
+      // Encodes it up front to learn its size, as it may need fragments.
+      writeMessage(connection, messageType, StandardCharsets.UTF_8.encode(message), priority);
+      return;
+    }
+    writeMessage(connection, new ChannelMessage(connection.getChannelNumber(), messageType, message), priority);
+  }
+
+  private ChannelMessage dataMessage(Connection connection, String message) throws IOException {
+    if (message != null && message.length() > maxDirectEncodeLength) {
+      return dataMessage(connection, StandardCharsets.UTF_8.encode(message));
+    }
+    return new ChannelMessage(connection.getChannelNumber(), DATA, message);
+  }
+
+  public void writeMessage(Connection connection, int messageType, ByteBuffer message)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    writeMessage(connection, messageType, message, MessagePriority.NORMAL);
+  }
+
+  // The remaining bytes of the message are sent without being copied, so the
+  // message must not be modified until it is written to the socket.
+  public void writeMessage(Connection connection, int messageType, ByteBuffer message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    checkMessageSize(message);
+    writeMessage(connection,
+        new ChannelMessage(connection.getChannelNumber(), messageType, message == null ? null : message.slice()),
+        priority);
+  }
+
+  private ChannelMessage dataMessage(Connection connection, ByteBuffer message) throws IOException {
+    checkMessageSize(message);
+    return new ChannelMessage(connection.getChannelNumber(), DATA, message == null ? null : message.slice());
+  }
+
+  private void checkMessageSize(ByteBuffer message) throws IOException {
+    if (message != null && maxMessageSize > 0 && message.remaining() > maxMessageSize) {
+      throw new IOException(
+          "Message size " + message.remaining() + " exceeds the max message size " + maxMessageSize);
+    }
+  }
+
+  private void writeMessage(Connection connection, ChannelMessage message, MessagePriority priority)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    message = compress(message);
+    if (priority == MessagePriority.HIGH) {
+      message.setUrgent();
+    }
+    queueMessage(connection, message);
+    writeQueued();
+  }
+
+  private void queueMessage(Connection connection, ChannelMessage message)
       throws IOException, MultiSocketValidException, ConnectionCloseException {
     if (!valid) {
       throw new MultiSocketValidException("MultiSocket is not valid");
     }
+    message.setCredit(connection.getCredit());
+    // Checks the state and queues the message atomically, so that no message
+    // of the connection is queued after its CLOSE.
+    connection.lock();
+    try {
+      checkOpen(connection);
+      if (message.getMessageType() == DATA) {
+        acquireCredit(connection, creditSize(message));
+        connection.setLastQueued(message);
+      }
+      if (connection.takeOpening()) {
+        message.setOpensChannel();
+      }
+      statistics.increasePendingWriteNumber();
+      outgoing.add(message);
+    } finally {
+      connection.unlock();
+    }
+  }
+
+  // Returns the message to send for a DATA message, which is compressed if it
+  // is big enough, the peer takes compressed messages, and it gets smaller.
+  // Compressing on the sender's thread keeps the reactors and the writing
+  // thread free of that work.
+  private ChannelMessage compress(ChannelMessage message) {
+    if (compressionThreshold <= 0 || message.getMessageType() != DATA || (peerFeatures & FEATURE_DEFLATE) == 0) {
+      return message;
+    }
+    ByteBuffer payload = message.getPayload();
+    if (payload == null) {
+      if (message.getMessage() == null || message.getMessage().length() < compressionThreshold) {
+        return message;
+      }
+      payload = StandardCharsets.UTF_8.encode(message.getMessage());
+    } else if (payload.remaining() < compressionThreshold) {
+      return message;
+    }
+    long start = System.nanoTime();
+    ByteBuffer compressed = Compression.compress(payload, compressionLevel);
+    statistics.addCompression(payload.remaining(), compressed == null ? -1 : compressed.remaining(),
+        System.nanoTime() - start);
+    if (compressed == null) {
+      return message;
+    }
+    ChannelMessage result = new ChannelMessage(message.getChannelNumber(), DATA, compressed);
+    result.setCompressed(payload.remaining());
+    return result;
+  }
+
+  // Returns the credit a compressed message holds on the receiver until it is
+  // consumed, which is its original size, or -1 if the receiver grants its
+  // frames as soon as they arrive, as for any message bigger than a frame.
+  private static int heldCredit(ChannelMessage msg) {
+    return msg.isCompressed() && msg.getOriginalSize() <= maxFrameDataSize ? msg.getOriginalSize() : -1;
+  }
+
+  private void checkOpen(Connection connection) throws ConnectionCloseException {
     ConnectionState state = connection.getState();
     if (state == ConnectionState.CLOSED || state == ConnectionState.SENT_CLOSE) {
       throw new ConnectionCloseException("connection is colsed, connection state is " + state);
     }
-    // Check if the writeBuffer and writeQueue is empty. If they are, try to write
-    // the message
-    // immediately instead of waiting for the select thread to write it.
-    if (writeBuffer.remaining() == 0 && writeQueue.isEmpty()) {
-      loadWriteBuffer(new ChannelMessage(connection.getChannelNumber(), messageType, message));
-      if (!flushBuffer()) {
-        return; // Done, no more to write. Don't need to add OP_WRITE to select.
+  }
+
+  // Returns the credit charged to the sender for a DATA message. A String is
+  // charged one byte per char, and the rest once it is encoded.
+  private int creditSize(ChannelMessage msg) {
+    if (heldCredit(msg) >= 0) {
+      return heldCredit(msg);
+    }
+    ByteBuffer payload = msg.getPayload();
+    if (payload == null) {
+      return msg.getMessage() == null ? 0 : msg.getMessage().length();
+    }
+    // The first fragment also carries the total size
+    return payload.remaining() > maxFrameDataSize ? payload.remaining() + 4 : payload.remaining();
+  }
+
+  // Charges a DATA message to the credit of the connection, which is locked by
+  // the caller. If the peer did not grant enough, the message is handled by
+  // the credit policy. The reactor threads never wait, as they deliver the
+  // credit.
+  private void acquireCredit(Connection connection, int size) throws IOException, ConnectionCloseException {
+    ChannelCredit credit = connection.getCredit();
+    // A message bigger than the window only waits for the whole window
+    long needed = Math.min(size, flowControl.getPeerChannelWindow());
+    if (credit.sendCredit.get() < needed) {
+      statistics.increaseCreditStallNumber();
+      if (flowControl.policy == MultiSocketOptions.CreditPolicy.FAIL) {
+        throw new CreditExhaustedException("Not enough credit on channel " + connection.getChannelNumber()
+            + " for a message of " + size + " bytes");
       }
-    } else {
-      writeQueue.add(new ChannelMessage(connection.getChannelNumber(), messageType, message));
+      if (flowControl.policy == MultiSocketOptions.CreditPolicy.BLOCK
+          && !(Thread.currentThread() instanceof Reactor)) {
+        while (credit.sendCredit.get() < needed) {
+          try {
+            connection.awaitChange();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for credit");
+          }
+          checkOpen(connection);
+        }
+      } else {
+        credit.listenerArmed.set(true);
+      }
+    }
+    credit.sendCredit.addAndGet(-size);
+    if (credit.listenerArmed.get() && credit.sendCredit.get() > 0) {
+      connection.creditAvailable(); // Credit arrived meanwhile
+    }
+  }
+
+  private void queueControl(ChannelMessage message) {
+    if (valid) {
+      outgoingControl.add(message);
+    }
+  }
+
+  private boolean hasQueued() {
+    return !outgoing.isEmpty() || !outgoingControl.isEmpty() || flowControl.creditArrived.get();
+  }
+
+  // Moves the queued messages to writeScheduler and writes them. Only the
+  // thread holding the writing flag writes. A thread that finds another one
+  // writing leaves its message to that thread, which checks the queue again
+  // after it clears the flag.
+  private void writeQueued() throws IOException {
+    while (hasQueued() && writing.compareAndSet(false, true)) {
+      try {
+        if (!valid) {
+          outgoing.clear();
+          outgoingControl.clear();
+          flowControl.creditArrived.set(false);
+          return;
+        }
+        takeQueued();
+        if (writeRegistered || (flushScheduled && !writeScheduler.hasUrgent())) {
+          continue; // Will be written together with the other pending frames
+        }
+        if (coalescingWindowNanos > 0 && !writeScheduler.hasUrgent()) {
+          // Lets the frames sent within the window leave together.
+          flushScheduled = true;
+          reactor.scheduleFlush(this, coalescingWindowNanos);
+          continue;
+        }
+        // Nothing else is waiting to be written, so try to write the message
+        // immediately instead of waiting for the select thread to write it.
+        if (writePending()) {
+          registerWrite();
+        }
+      } catch (IOException e) {
+        writeExceptionHandler();
+        throw e;
+      } finally {
+        writing.set(false);
+      }
+    }
+  }
+
+  private void takeQueued() {
+    ChannelMessage message;
+    while ((message = outgoingControl.poll()) != null) {
+      writeScheduler.addControl(message);
     }
-    if (!writeRegistered) {
-      channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-      writeRegistered = true; // Only register once
-      selector.wakeup();
+    while ((message = outgoing.poll()) != null) {
+      writeScheduler.add(message);
+    }
+    if (flowControl.creditArrived.getAndSet(false)) {
+      writeScheduler.unparkAll();
+    }
+  }
+
+  // Used by the reactor, which has to write even if a sender is writing at the
+  // moment. Senders only hold the flag for non-blocking writes.
+  private void acquireWriting() {
+    while (!writing.compareAndSet(false, true)) {
+      Thread.yield();
     }
   }
 
-  // Returns true if buffer is not empty after writing
+  private void registerWrite() {
+    channel.keyFor(reactor.getSelector()).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    writeRegistered = true; // Only register once
+    reactor.wakeup();
+  }
+
+  // Returns true if the write vector is not empty after writing
   private boolean flushBuffer() throws IOException {
-    if (writeBuffer.remaining() == 0) {
+    if (writeVectorOffset == writeVectorCount) {
       return false;
     }
-    channel.write(writeBuffer);
-    // Remaining > 0 if we can't write the entire buffer this time.
-    return writeBuffer.remaining() > 0;
+    long written;
+    if (writeVectorCount - writeVectorOffset == 1) {
+      written = channel.write(writeVector[writeVectorOffset]);
+    } else {
+      written = channel.write(writeVector, writeVectorOffset, writeVectorCount - writeVectorOffset);
+    }
+    reactor.getStatistics().increaseWriteCallNumber();
+    reactor.getStatistics().addBytesWritten(written);
+    statistics.increaseWriteCallNumber();
+    statistics.addBytesWritten(written);
+    while (writeVectorOffset < writeVectorCount && !writeVector[writeVectorOffset].hasRemaining()) {
+      writeVector[writeVectorOffset++] = null;
+    }
+    // Some segments are left if we can't write the entire vector this time.
+    return writeVectorOffset < writeVectorCount;
   }
 
-  private void loadWriteBuffer(ChannelMessage msg) {
+  // Packs as many pending frames as possible into the write vector, so that
+  // they are written with one system call. Small frames are copied into
+  // writeBuffer, while big payloads are written from their own buffers.
+  private void loadWriteVector() {
+    if (writeBuffer == null) {
+      writeBuffer = bufferPool.acquire(bufferSize);
+    }
     writeBuffer.clear();
+    writeVectorOffset = 0;
+    writeVectorCount = 0;
+    writeSegmentStart = 0;
+    gatheredBytes = 0;
+    int frameNumber = 0;
+    // A frame takes at most two segments
+    while (writeScheduler.hasReady() && writeVectorCount + 2 < writeVector.length
+        && writeBuffer.position() + gatheredBytes < maxWriteVectorBytes) {
+      ChannelMessage msg = writeScheduler.peek();
+      if (writeBuffer.remaining() < bufferedFrameSize(msg)) {
+        break; // writeBuffer is full
+      }
+      if (msg.getMessageType() == DATA) {
+        int size = maxFrameSize(msg);
+        if (flowControl.socketCredit.get() < size) {
+          statistics.increaseCreditStallNumber();
+          break; // Waits for the peer to grant credit to the socket
+        }
+        if (msg.getCredit().wireCredit.get() < size) {
+          statistics.increaseCreditStallNumber();
+          writeScheduler.park(); // The other channels may still send
+          continue;
+        }
+      }
+      boolean lastFrame = loadFrame(msg);
+      writeScheduler.frameLoaded(lastFrame);
+      if (lastFrame && !isControl(msg)) {
+        statistics.decreasePendingWriteNumber();
+      }
+      frameNumber++;
+    }
+    addBufferedSegment();
+    reactor.getStatistics().addFramesWritten(frameNumber);
+    statistics.addFramesWritten(frameNumber);
+  }
+
+  // Returns the size of the next frame of msg in writeBuffer.
+  private int bufferedFrameSize(ChannelMessage msg) {
+    if (msg.getMessageType() == WINDOW || msg.getMessageType() == HELLO) {
+      return headerSize + 4;
+    }
+    if (msg.getMessageType() != DATA) {
+      return headerSize;
+    }
+    ByteBuffer payload = msg.getPayload();
+    if (payload == null) {
+      return headerSize + (msg.getMessage() == null ? 0 : msg.getMessage().length() * maxBytesPerChar);
+    }
+    int dataSize = nextFragmentSize(msg, payload);
+    return headerSize + 4 + (dataSize > gatherThreshold ? 0 : dataSize);
+  }
+
+  // Returns an upper bound of the data size of the next frame of a DATA
+  // message, which is charged to the credit.
+  private int maxFrameSize(ChannelMessage msg) {
+    if (heldCredit(msg) >= 0) {
+      return heldCredit(msg);
+    }
+    ByteBuffer payload = msg.getPayload();
+    if (payload == null) {
+      return msg.getMessage() == null ? 0 : msg.getMessage().length() * maxBytesPerChar;
+    }
+    int dataSize = nextFragmentSize(msg, payload);
+    return !msg.isFragmented() && payload.remaining() > maxFrameDataSize ? dataSize + 4 : dataSize;
+  }
+
+  private static boolean isControl(ChannelMessage msg) {
+    return msg.getMessageType() == CREDIT || msg.getMessageType() == WINDOW || msg.getMessageType() == HELLO;
+  }
+
+  // Returns the size of the next frame's data taken from the payload.
+  private int nextFragmentSize(ChannelMessage msg, ByteBuffer payload) {
+    if (!msg.isFragmented() && payload.remaining() > maxFrameDataSize) {
+      return maxFrameDataSize - 4; // The first fragment starts with the total size
+    }
+    return Math.min(payload.remaining(), maxFrameDataSize);
+  }
+
+  // Adds the part of writeBuffer not yet in the write vector as a segment.
+  private void addBufferedSegment() {
+    if (writeBuffer.position() == writeSegmentStart) {
+      return;
+    }
+    ByteBuffer segment = writeBuffer.duplicate();
+    segment.position(writeSegmentStart);
+    segment.limit(writeBuffer.position());
+    writeVector[writeVectorCount++] = segment;
+    writeSegmentStart = writeBuffer.position();
+  }
+
+  // Loads the next frame of msg into the write vector. Returns true if it is
+  // the last frame of msg.
+  private boolean loadFrame(ChannelMessage msg) {
+    ByteBuffer payload = msg.getPayload();
+    boolean fragment = msg.getMessageType() == DATA && payload != null
+        && (msg.isFragmented() || payload.remaining() > maxFrameDataSize);
+    boolean lastFrame = true;
+
+    int frameStart = writeBuffer.position();
+    int type = msg.getMessageType();
+    if (!msg.isFragmented()) {
+      type |= (fragment ? FIRST_FRAGMENT : 0) | (msg.opensChannel() ? OPENS_CHANNEL : 0)
+          | (msg.isCompressed() ? COMPRESSED : 0);
+    }
     writeBuffer.putInt(magicNumber);
-    writeBuffer.putInt(msg.getMessageType());
+    writeBuffer.putInt(type);
     writeBuffer.putInt(msg.getChannelNumber());
+    writeBuffer.putInt(takeGrant(msg));
+    writeBuffer.putInt(0);
+    int size = 0;
+    if (fragment) {
+      size = loadFragment(msg, payload);
+      lastFrame = !payload.hasRemaining();
+    } else if (msg.getMessageType() == DATA) {
+      size = payload != null && payload.remaining() > gatherThreshold ? gatherPayload(payload, payload.remaining())
+          : msg.encode(writeBuffer, encoder);
+    } else if (msg.getMessageType() == WINDOW) {
+      writeBuffer.putInt(flowControl.channelWindow);
+      size = 4;
+    } else if (msg.getMessageType() == HELLO) {
+      writeBuffer.putInt(FEATURE_DEFLATE);
+      size = 4;
+    }
     if (msg.getMessageType() == DATA) {
-      writeBuffer.putInt(msg.getMessage().length());
-      writeBuffer.put(msg.getMessage().getBytes());
+      chargeFrame(msg, size);
+      if (lastFrame && msg.sealClose()) {
+        writeBuffer.putInt(frameStart + 4, type | CLOSES_CHANNEL);
+      }
+    }
+    // The message size is the number of bytes following the header, which is
+    // only known after encoding the message into the buffer.
+    writeBuffer.putInt(frameStart + headerSize - 4, size);
+    return lastFrame;
+  }
+
+  // Returns the credit field of the next frame of msg. Any frame of a channel
+  // grants the bytes consumed on the channel so far.
+  private int takeGrant(ChannelMessage msg) {
+    ChannelCredit credit = msg.getCredit();
+    if (msg.getMessageType() == WINDOW) {
+      return flowControl.socketWindow;
+    }
+    if (msg.getMessageType() == CREDIT) {
+      if (credit == null) {
+        flowControl.releaseQueued.set(false);
+        return (int) flowControl.released.getAndSet(0);
+      }
+      credit.grantQueued.set(false); // Consumers queue another CREDIT for later bytes
+    }
+    return credit == null ? 0 : credit.takeGrant();
+  }
+
+  private void chargeFrame(ChannelMessage msg, int size) {
+    if (heldCredit(msg) >= 0) {
+      size = heldCredit(msg); // Charged as the receiver grants it
+    }
+    ChannelCredit credit = msg.getCredit();
+    flowControl.socketCredit.addAndGet(-size);
+    credit.wireCredit.addAndGet(-size);
+    if (msg.getPayload() == null && msg.getMessage() != null) {
+      credit.sendCredit.addAndGet(msg.getMessage().length() - size); // Was charged one byte per char
+    }
+  }
+
+  // Returns the size of the frame's data.
+  private int loadFragment(ChannelMessage msg, ByteBuffer payload) {
+    int size = 0;
+    int length = nextFragmentSize(msg, payload);
+    if (!msg.isFragmented()) {
+      msg.setFragmented();
+      writeBuffer.putInt(payload.remaining()); // So the receiver allocates the message once
+      size = 4;
+    }
+    if (length > gatherThreshold) {
+      gatherPayload(payload, length);
     } else {
-      writeBuffer.putInt(0);
+      ByteBuffer fragment = payload.duplicate();
+      fragment.limit(fragment.position() + length);
+      writeBuffer.put(fragment);
     }
-    writeBuffer.flip(); // Get ready for writes.
+    payload.position(payload.position() + length);
+    return size + length;
   }
 
-  private void flushWritesHelper() throws IOException {
+  // Adds the next length bytes of the payload to the write vector without
+  // copying them. Returns length.
+  private int gatherPayload(ByteBuffer payload, int length) {
+    addBufferedSegment();
+    ByteBuffer segment = payload.duplicate();
+    segment.limit(segment.position() + length);
+    writeVector[writeVectorCount++] = segment;
+    gatheredBytes += length;
+    return length;
+  }
+
+  // Writes pending frames until the socket can't take more. Returns true if
+  // some are left.
+  private boolean writePending() throws IOException {
     if (flushBuffer()) {
-      return; // Can't write the entire buffer this time.
+      return true; // Can't write the entire vector this time.
     }
-    // System.out.println("Num write queue entries: " + writeQueue.size());
-    while (!writeQueue.isEmpty()) {
-      loadWriteBuffer(writeQueue.pop());
+    while (writeScheduler.hasReady()) {
+      loadWriteVector();
+      if (writeVectorCount == 0) {
+        break; // Waiting for credit
+      }
       if (flushBuffer()) {
-        return; // Can't write the entire buffer this time.
+        return true; // Can't write the entire vector this time.
       }
     }
-    // writeBuffer is empty and writeQueue is empty
-    channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+    releaseWriteBuffer(); // Everything is written
+    return false;
+  }
+
+  private void releaseWriteBuffer() {
+    while (writeVectorOffset < writeVectorCount) {
+      writeVector[writeVectorOffset++] = null;
+    }
+    if (writeBuffer != null) {
+      bufferPool.release(writeBuffer);
+      writeBuffer = null;
+    }
+  }
+
+  private void flushWritesHelper() throws IOException {
+    takeQueued();
+    if (writePending()) {
+      return;
+    }
+    // The write vector is empty, and writeScheduler is empty or waits for credit
+    channel.keyFor(reactor.getSelector()).interestOps(SelectionKey.OP_READ);
     // channel.register(selector, SelectionKey.OP_READ);
     writeRegistered = false;
   }
 
-  public synchronized void flushWrites() throws IOException {
+  public void flushWrites() throws IOException {
     // if (!valid) throw new Exception();
     if (!valid)
       return; // Does nothing
+    acquireWriting();
     try {
       flushWritesHelper();
     } catch (IOException e) {
-      // System.err.println("flushWrites exception");
-      valid = false;
-      for (Entry<Integer, Connection> cEntry : connectionMap.entrySet()) {
-        cEntry.getValue().forceClose();
-      }
-      channel.close(); // Cancels all of this channel's keys
+      writeExceptionHandler();
       throw e; // Set valid to false and rethrow the exception;
+    } finally {
+      writing.set(false);
     }
+    writeQueued(); // Messages queued while the reactor was writing
+  }
+
+  // Called by the reactor once the coalescing window is over.
+  void flushCoalescedWrites() throws IOException {
+    acquireWriting();
+    try {
+      flushScheduled = false;
+      if (!valid || writeRegistered) {
+        return; // Writes are flushed once the socket is writable
+      }
+      takeQueued();
+      if (writePending()) {
+        registerWrite();
+      }
+    } catch (IOException e) {
+      writeExceptionHandler();
+      throw e;
+    } finally {
+      writing.set(false);
+    }
+    writeQueued();
+  }
+
+  private void writeExceptionHandler() throws IOException {
+    // System.err.println("flushWrites exception");
+    valid = false;
+    releaseWriteBuffer();
+    for (Entry<Integer, Connection> cEntry : connectionMap.entrySet()) {
+      cEntry.getValue().forceClose();
+    }
+    channel.close(); // Cancels all of this channel's keys
   }
 
   protected abstract void handleNewConnection(int channelNumber) throws ChannelUsedException;
@@ -184,9 +842,27 @@ public abstract class MultiSocket {
   protected abstract Future<IConnection> createConnection()
       throws IOException, MultiSocketValidException, ConnectionCloseException;
 
+  // Called by the reactor when a pending connect is ready to complete.
+  protected void finishConnect(SelectionKey key) throws Exception {
+    // Only client sockets connect.
+    throw new MultiSocketValidException("MultiSocket does not connect");
+  }
+
+  // Called by the reactor after this socket is closed and removed from its
+  // selector.
+  protected void handleSocketClosed() {
+  }
+
+  // Called by the reactor once it watches the I/O events of this socket.
+  protected void handleRegistered() throws IOException {
+  }
+
   private void readMessagesHelper() throws IOException, EndOfStreamException, InvalidMagicNumException,
       DataTooBigException, ChannelUsedException, ConnectionNonExistException, UnexpectedDataException {
     while (true) {
+      if (readBuffer == null) {
+        readBuffer = bufferPool.acquire(BufferPool.MIN_SIZE);
+      }
       // First read as much as we can from the buffer.
       int numRead = -1;
       try {
@@ -203,6 +879,10 @@ public abstract class MultiSocket {
       }
       if (numRead == 0) {
         // System.out.println("empty");
+        if (readBuffer.position() == 0) {
+          bufferPool.release(readBuffer); // Idle until the next frame
+          readBuffer = null;
+        }
         return; // No more to read
       }
       if (numRead == -1) {
@@ -210,6 +890,11 @@ public abstract class MultiSocket {
         // caused by client-side selector close
         throw new EndOfStreamException("-1 on read, end of stream while reading buffer"); // Is this check necessary?
       }
+      reactor.getStatistics().addBytesRead(numRead);
+      statistics.addBytesRead(numRead);
+
+      // A full buffer may leave more frames in the socket
+      int neededSize = readBuffer.hasRemaining() ? 0 : 2 * readBuffer.capacity();
 
       // Begin reading the buffer by first flipping it (setting limit to
       // position and position to 0).
@@ -233,7 +918,10 @@ public abstract class MultiSocket {
           }
           // Read the remaining header information.
           int messageType = readBuffer.getInt();
+          int messageFlags = messageType & ~TYPE_MASK;
+          messageType &= TYPE_MASK;
           int channelNumber = readBuffer.getInt();
+          int credit = readBuffer.getInt();
           int messageSize = readBuffer.getInt();
 
           // System.out.println("Message size: " + messageSize);
@@ -247,19 +935,44 @@ public abstract class MultiSocket {
           if (readBuffer.remaining() < messageSize) {
             // Not enough data. Reset to where we marked.
             readBuffer.reset();
+            neededSize = Math.max(neededSize, headerSize + messageSize);
             break;
           }
-          // Read the message into the messageArray.
-          if (messageSize > 0) {
-            readBuffer.get(messageArray, 0, messageSize);
+          int messageEnd = readBuffer.position() + messageSize;
+          if (messageType == WINDOW) {
+            receiveWindow(credit, messageSize);
+            continue;
+          }
+          if (messageType == HELLO) {
+            receiveHello(messageSize);
+            continue;
+          }
+          if (credit != 0) {
+            receiveCredit(channelNumber, credit);
+          }
+          if (messageType == CREDIT) {
+            readBuffer.position(messageEnd);
+            continue;
           }
           // Check if it is a create connection message.
           if (messageType == CREATE) {
+            readBuffer.position(messageEnd);
             handleNewConnection(channelNumber);
             continue;
           }
+          if ((messageFlags & OPENS_CHANNEL) != 0) {
+            handleNewConnection(channelNumber);
+          }
           // Not a Create message. Get the connection.
           Connection c = connectionMap.get(channelNumber);
+          if (c == null && channelNumber >= 0 && channelNumber < channelBound) {
+            readBuffer.position(messageEnd);
+            if (messageType == DATA && flowControl.release(messageSize)) {
+              // Nobody consumes the data of a closed channel
+              queueControl(new ChannelMessage(NO_CHANNEL, CREDIT, (ByteBuffer) null));
+            }
+            continue;
+          }
           if (c == null) {
             System.err.println("NULL connection");
             throw new ConnectionNonExistException("Connection does not exist in the connection map"); // Bad state,
@@ -267,13 +980,16 @@ public abstract class MultiSocket {
                                                                                                       // socket.
           }
           if (messageType == CLOSE) {
+            readBuffer.position(messageEnd);
             if (c.remoteClose()) {
               // Done with this connection (sent and recved close)
-              connectionMap.remove(channelNumber);
+              removeConnection(c);
             }
           } else if (messageType == DATA) {
-            // TODO: Ignoring closed connections for now. Should log.
-            c.deliverMessage(new String(messageArray, 0, messageSize));
+            receiveData(c, messageFlags, messageSize);
+            if ((messageFlags & CLOSES_CHANNEL) != 0 && c.remoteClose()) {
+              removeConnection(c);
+            }
           } else {
             System.err.println("Unexpected data");
             throw new UnexpectedDataException("Unexpected Data with message type = " + messageType);
@@ -287,6 +1003,160 @@ public abstract class MultiSocket {
 
         // readBuffer.compact().position(readBuffer.limit()).limit(readBuffer.capacity());
       }
+      if (neededSize > readBuffer.capacity() && readBuffer.capacity() < bufferSize) {
+        growReadBuffer(Math.min(neededSize, bufferSize));
+      }
+      writeQueued(); // Grants credit, and sends what the received credit allows
+    }
+  }
+
+  // Moves the bytes read so far to a bigger buffer.
+  private void growReadBuffer(int size) {
+    ByteBuffer buffer = bufferPool.acquire(size);
+    readBuffer.flip();
+    buffer.put(readBuffer);
+    bufferPool.release(readBuffer);
+    readBuffer = buffer;
+  }
+
+  private void receiveHello(int size) throws UnexpectedDataException {
+    if (size != 4) {
+      throw new UnexpectedDataException("Unexpected hello of " + size + " bytes");
+    }
+    peerFeatures = readBuffer.getInt();
+  }
+
+  private void receiveWindow(int socketWindow, int size) throws UnexpectedDataException {
+    if (size != 4) {
+      throw new UnexpectedDataException("Unexpected window of " + size + " bytes");
+    }
+    int channelWindow = readBuffer.getInt();
+    synchronized (flowControl) {
+      long delta = flowControl.setPeerWindow(channelWindow, socketWindow);
+      for (Connection c : connectionMap.values()) {
+        c.getCredit().add(delta);
+      }
+    }
+    for (Connection c : connectionMap.values()) {
+      c.creditAvailable();
+    }
+  }
+
+  // A grant replenishes the socket, and the channel if it is still open.
+  private void receiveCredit(int channelNumber, int credit) {
+    flowControl.socketCredit.addAndGet(credit);
+    Connection c = channelNumber == NO_CHANNEL ? null : connectionMap.get(channelNumber);
+    if (c != null) {
+      c.getCredit().add(credit);
+      c.creditAvailable();
+    }
+    flowControl.creditArrived.set(true);
+  }
+
+  // Returns the bytes of the peer's credit that a received message holds
+  // until it is consumed. The fragments of a message are granted as soon as
+  // they are received, since the message may be bigger than the window.
+  private int creditOf(ByteBuffer message) {
+    return message.remaining() <= maxFrameDataSize ? message.remaining() : 0;
+  }
+
+  // Called by the connection once its reader took the message. drained tells
+  // whether the reader caught up with the received messages.
+  void messageConsumed(Connection connection, ByteBuffer message, boolean drained) {
+    if (!consumed(connection, message.remaining(), creditOf(message), drained)) {
+      return;
+    }
+    try {
+      writeQueued();
+    } catch (IOException e) {
+      // The socket failed, and its connections are closed.
+    }
+  }
+
+  // Returns true if a grant is queued.
+  private boolean consumed(Connection connection, int messageSize, int credit, boolean drained) {
+    if (messageSize >= 0) {
+      statistics.removeUndeliveredMessage(messageSize);
+    }
+    if (!flowControl.consumed(connection.getCredit(), credit, drained)) {
+      return false;
+    }
+    ChannelMessage grant = new ChannelMessage(connection.getChannelNumber(), CREDIT, (ByteBuffer) null);
+    grant.setCredit(connection.getCredit());
+    queueControl(grant);
+    return true;
+  }
+
+  // Reads the data of a DATA frame into the message being received on the
+  // connection, and hands the message over to the reader once complete.
+  private void receiveData(Connection c, int messageFlags, int size)
+      throws DataTooBigException, UnexpectedDataException {
+    ByteBuffer message = c.getPartialMessage();
+    int frameSize = size;
+    if (message == null) {
+      c.setPartialCompressed((messageFlags & COMPRESSED) != 0);
+    }
+    if ((messageFlags & FIRST_FRAGMENT) != 0) {
+      if (message != null || size < 4) {
+        throw new UnexpectedDataException("Unexpected first fragment on channel " + c.getChannelNumber());
+      }
+      int totalSize = readBuffer.getInt();
+      size -= 4;
+      checkMessageSize(totalSize);
+      message = receiveArena.allocate(totalSize);
+    } else if (message == null) {
+      checkMessageSize(size);
+      message = receiveArena.allocate(size);
+    }
+    if (message.remaining() < size) {
+      throw new UnexpectedDataException("Fragment exceeds the message size on channel " + c.getChannelNumber());
+    }
+    int limit = readBuffer.limit();
+    readBuffer.limit(readBuffer.position() + size);
+    message.put(readBuffer);
+    readBuffer.limit(limit);
+    if (message.limit() > maxFrameDataSize
+        || (c.isPartialCompressed() && message.position() >= 4 && message.getInt(0) > maxFrameDataSize)) {
+      consumed(c, -1, frameSize, true); // Fragments are granted once received
+    }
+    if (message.hasRemaining()) {
+      c.setPartialMessage(message); // Waits for more fragments
+      return;
+    }
+    c.setPartialMessage(null);
+    message.flip();
+    if (c.isPartialCompressed()) {
+      message = decompress(c, message);
+    }
+    statistics.increaseMessageReceivedNumber();
+    statistics.addUndeliveredMessage(message.remaining());
+    // TODO: Ignoring closed connections for now. Should log.
+    if (!c.deliverMessage(message)) {
+      consumed(c, message.remaining(), creditOf(message), true);
+    }
+  }
+
+  private ByteBuffer decompress(Connection c, ByteBuffer compressed) throws DataTooBigException, UnexpectedDataException {
+    if (compressed.remaining() < 4) {
+      throw new UnexpectedDataException("Truncated compressed message on channel " + c.getChannelNumber());
+    }
+    long start = System.nanoTime();
+    int size = Compression.originalSize(compressed);
+    checkMessageSize(size);
+    ByteBuffer message = receiveArena.allocate(size);
+    try {
+      Compression.decompress(compressed, message);
+    } catch (DataFormatException e) {
+      throw new UnexpectedDataException("Bad compressed message on channel " + c.getChannelNumber() + ": " + e);
+    }
+    statistics.addDecompression(System.nanoTime() - start);
+    return message;
+  }
+
+  private void checkMessageSize(int size) throws DataTooBigException {
+    if (size < 0 || (maxMessageSize > 0 && size > maxMessageSize)) {
+      System.err.println("Data too big");
+      throw new DataTooBigException("Msg data size " + size + " exceeds the max message size " + maxMessageSize);
     }
   }
 
@@ -323,6 +1193,10 @@ public abstract class MultiSocket {
 
   private void readMessageExceptionHandler() throws IOException {
     valid = false;
+    if (readBuffer != null) {
+      bufferPool.release(readBuffer);
+      readBuffer = null;
+    }
     for (Entry<Integer, Connection> cEntry : connectionMap.entrySet()) {
       cEntry.getValue().forceClose();
     }
@@ -17,183 +17,136 @@
 package Waterloo.MultiSocket;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.ClosedSelectorException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
 
-public class MultiSocketClient extends Thread {
-  private LinkedList<SocketChannel> registerList;
-  private HashMap<InetSocketAddress, ClientMultiSocketImpl> addressMap;
-  private HashMap<SocketChannel, ClientMultiSocketImpl> socketMap;
-  private Selector selector;
-  private boolean done = false;
-
-  public MultiSocketClient() throws IOException {
-    selector = Selector.open();
-    registerList = new LinkedList<SocketChannel>();
-    addressMap = new HashMap<InetSocketAddress, ClientMultiSocketImpl>();
-    socketMap = new HashMap<SocketChannel, ClientMultiSocketImpl>();
-    start();
-  }
-
-  public synchronized Future<IConnection> connect(InetSocketAddress address)
-      throws IOException, MultiSocketValidException, ConnectionCloseException {
-    ClientMultiSocketImpl socket = addressMap.get(address);
-    if (socket == null) {
-      SocketChannel client = SocketChannel.open();
-      client.socket().setTcpNoDelay(true);
-      client.configureBlocking(false);
-      client.connect(address);
-      socket = new ClientMultiSocketImpl(client, selector, address);
-      addressMap.put(address, socket);
-      socketMap.put(client, socket);
-      registerList.add(client);
-      selector.wakeup();
-      return socket.createConnection();
+/*
+ * The client side of MultiSocket. There are up to stripeNum
+ * ClientMultiSocketImpls for each server address, and new connections are
+ * spread across them. The sockets are spread across a group of reactors, each
+ * of which is a selector thread that performs the network I/O of its sockets.
+ */
+public class MultiSocketClient {
+  // The sockets to one server address
+  private static class Stripes {
+    final ClientMultiSocketImpl[] sockets;
+    int nextStripe = 0;
+
+    Stripes(int stripeNum) {
+      sockets = new ClientMultiSocketImpl[stripeNum];
     }
-    return socket.createConnection();
-  }
 
-  public void close() throws IOException {
-    setDone();
-    try {
-      selector.close();
-    } catch (IOException e) {
-      throw e;
+    // Returns the stripe for a new connection. A stripe without a socket
+    // counts as having no connections.
+    int choose(MultiSocketOptions.StripePolicy policy) {
+      if (policy == MultiSocketOptions.StripePolicy.LEAST_LOADED) {
+        int stripe = 0;
+        int minLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < sockets.length; i++) {
+          int load = sockets[i] == null ? 0 : sockets[i].getConnectionNumber();
+          if (load < minLoad) {
+            minLoad = load;
+            stripe = i;
+          }
+        }
+        return stripe;
+      }
+      int stripe = nextStripe;
+      nextStripe = (nextStripe + 1) % sockets.length;
+      return stripe;
     }
   }
 
-  private synchronized void setDone() {
-    done = true;
-  }
+  private HashMap<SocketAddress, Stripes> addressMap;
+  private final ReactorGroup reactorGroup;
+  private final MultiSocketOptions options;
 
-  private synchronized boolean isDone() {
-    return done;
+  public MultiSocketClient() throws IOException {
+    this(new MultiSocketOptions());
   }
 
-  private synchronized void removeSocket(SocketChannel client) {
-    ClientMultiSocketImpl sock = socketMap.get(client);
-    if (sock == null) {
-      assert (false);
-      return;
-    }
-    addressMap.remove(sock.getAddress());
-    socketMap.remove(client);
+  public MultiSocketClient(int reactorNum) throws IOException {
+    this(optionsWithReactorNum(reactorNum));
   }
 
-  private synchronized ClientMultiSocketImpl getSocket(SocketChannel client) {
-    return socketMap.get(client);
+  public MultiSocketClient(MultiSocketOptions options) throws IOException {
+    this.options = options;
+    addressMap = new HashMap<SocketAddress, Stripes>();
+    reactorGroup = new ReactorGroup("MultiSocketClient-Reactor", options, false);
   }
 
-  // Convenience function
-  private void fullyRemoveKey(SelectionKey key) {
-    key.cancel(); // Have to manually remove the key.
-    SocketChannel client = (SocketChannel) key.channel();
-    ClientMultiSocketImpl socket = getSocket(client);
-    assert (socket != null);
-    socket.connectFailed();
-    removeSocket(client);
+  private static MultiSocketOptions optionsWithReactorNum(int reactorNum) {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setReactorNum(reactorNum);
+    return options;
   }
 
-  private synchronized void registerKey() {
-    for (SocketChannel client : registerList) {
-      try {
-        // System.out.println("Registering connect");
-        client.register(selector, SelectionKey.OP_CONNECT);
-        // System.out.println("... finished");
-      } catch (ClosedChannelException e) {
-        fullyRemoveKey(client.keyFor(selector));
+  // Connects over TCP to an InetSocketAddress, and to a Unix domain socket for
+  // an address made by UnixDomainSockets.
+  public synchronized Future<IConnection> connect(SocketAddress address)
+      throws IOException, MultiSocketValidException, ConnectionCloseException {
+    Stripes stripes = addressMap.get(address);
+    if (stripes == null) {
+      stripes = new Stripes(Math.max(1, options.getStripeNum()));
+      addressMap.put(address, stripes);
+    }
+    int stripe = stripes.choose(options.getStripePolicy());
+    ClientMultiSocketImpl socket = stripes.sockets[stripe];
+    if (socket == null) {
+      SocketChannel client;
+      if (UnixDomainSockets.isUnixAddress(address)) {
+        client = UnixDomainSockets.openSocketChannel();
+      } else {
+        client = SocketChannel.open();
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
       }
+      client.configureBlocking(false);
+      // A Unix domain socket may connect right away, without an OP_CONNECT event
+      boolean connected = client.connect(address);
+      Reactor reactor = reactorGroup.next();
+      socket = new ClientMultiSocketImpl(client, reactor, address, stripe, this, options);
+      stripes.sockets[stripe] = socket;
+      reactor.register(client, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, socket);
     }
-    registerList.clear();
+    return socket.createConnection();
   }
 
-  // Should not directly access any fields except for selector.
-  public void run() {
-    while (!isDone()) {
-      /*
-       * System.out.println("Client Multi Socket addressMap size " +
-       * this.addressMap.size()); for (Entry<InetSocketAddress,ClientMultiSocketImpl>
-       * entry : this.addressMap.entrySet()) {
-       * System.out.println("Client Multi Socket connection Map Size " +
-       * entry.getValue().connectionMap.size()); }
-       * System.out.println("Client Multi Socket socketMap size " +
-       * this.socketMap.size()); for (Entry<SocketChannel,ClientMultiSocketImpl> entry
-       * : this.socketMap.entrySet()) {
-       * System.out.println("Client Multi Socket connection Map Size " +
-       * entry.getValue().connectionMap.size()); }
-       */
-      try {
-        try {
-          selector.select();
-        } catch (IOException e) {
-          setDone();
-          return; // Done with this thread
-        }
-        Set<SelectionKey> keys = selector.selectedKeys();
-        Iterator<SelectionKey> it = keys.iterator();
-
-        // Register new clients
-        registerKey();
-
-        while (it.hasNext()) {
-          // System.out.println("In client's hasNext");
-          SelectionKey key = it.next();
-          it.remove(); // Need to manually remove this key.
-          // Check what type of operation we are doing.
-          if (key.isConnectable()) {
-            SocketChannel client = (SocketChannel) key.channel();
-            assert (client.isConnectionPending());
-            try {
-              if (client.finishConnect()) {
-                // System.out.println("Finished connect");
-                key.interestOps(SelectionKey.OP_READ);
-                ClientMultiSocketImpl socket = getSocket(client);
-                assert (socket != null);
-                socket.setConnected();
-              }
-            } catch (Exception e) {
-              fullyRemoveKey(key);
-            }
-            continue; // Will never be connectable and readable/writable.
-          } else if (key.isReadable()) {
-            SocketChannel client = (SocketChannel) key.channel();
-            MultiSocket socket = getSocket(client);
-            assert (socket != null);
-            try {
-              socket.readMessages();
-            } catch (Exception e) {
-              removeSocket(client);
-              continue; // Channel should already be closed and cancelled
-            }
-          } else if (key.isWritable()) {
-            // System.out.println("In writable");
-            SocketChannel client = (SocketChannel) key.channel();
-            MultiSocket socket = getSocket(client);
-            assert (socket != null);
-            try {
-              socket.flushWrites();
-            } catch (Exception e) {
-              removeSocket(client);
-              continue; // Channel should already be closed and cancelled
-            }
-          }
+  public List<ReactorStatistics> getReactorStatistics() {
+    return reactorGroup.getStatistics();
+  }
+
+  // Returns the statistics of the open sockets, one for each stripe.
+  public synchronized List<SocketStatistics> getSocketStatistics() {
+    List<SocketStatistics> statistics = new ArrayList<SocketStatistics>();
+    for (Stripes stripes : addressMap.values()) {
+      for (ClientMultiSocketImpl socket : stripes.sockets) {
+        if (socket != null) {
+          statistics.add(socket.getStatistics());
         }
-      } catch (ClosedSelectorException e) {
-        assert (isDone());
-        return;
       }
     }
+    return statistics;
+  }
+
+  public void close() throws IOException {
+    reactorGroup.close();
+  }
+
+  // Called by the reactor of the socket once the socket is closed.
+  synchronized void removeSocket(ClientMultiSocketImpl socket) {
+    // A new socket may have been created for the same stripe.
+    Stripes stripes = addressMap.get(socket.getAddress());
+    if (stripes != null && stripes.sockets[socket.getStripe()] == socket) {
+      stripes.sockets[socket.getStripe()] = null;
+    }
   }
 }
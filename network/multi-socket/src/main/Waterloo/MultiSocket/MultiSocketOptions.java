@@ -0,0 +1,179 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.zip.Deflater;
+
+/*
+ * Tuning options of the sockets created by a MultiSocketServer or a
+ * MultiSocketClient.
+ */
+public class MultiSocketOptions {
+
+  public static final int UNLIMITED_MESSAGE_SIZE = 0;
+
+  // How a MultiSocketClient picks one of the sockets to a server for a new
+  // connection
+  public enum StripePolicy {
+    ROUND_ROBIN, LEAST_LOADED
+  }
+
+  // What writeMessage does when a message does not fit in the credit the
+  // receiver granted to the connection: wait for credit, throw
+  // CreditExhaustedException, or queue the message anyway and call the
+  // CreditListener of the connection once credit is available again.
+  public enum CreditPolicy {
+    BLOCK, FAIL, ASYNC_NOTIFY
+  }
+
+  // How the reactors wait for I/O: block in select(), poll the selector
+  // without blocking for the spin time before blocking, or poll without ever
+  // blocking. A polling reactor is not woken up by the senders, which saves a
+  // system call per message at the cost of a busy core per reactor. Readers of
+  // the connections poll for the spin time before they wait, unless BLOCK.
+  public enum PollPolicy {
+    BLOCK, SPIN_THEN_BLOCK, SPIN
+  }
+
+  private int reactorNum = ReactorGroup.DEFAULT_REACTOR_NUM;
+  private int maxMessageSize = UNLIMITED_MESSAGE_SIZE;
+  private long coalescingWindowMicros = 0;
+  private int stripeNum = 1;
+  private StripePolicy stripePolicy = StripePolicy.ROUND_ROBIN;
+  private int channelWindow = 0;
+  private int socketWindow = 0;
+  private CreditPolicy creditPolicy = CreditPolicy.BLOCK;
+  private PollPolicy pollPolicy = PollPolicy.BLOCK;
+  private int compressionThreshold = 0;
+  private int compressionLevel = Deflater.BEST_SPEED;
+  private long spinMicros = 50;
+
+  public int getReactorNum() {
+    return reactorNum;
+  }
+
+  public void setReactorNum(int reactorNum) {
+    this.reactorNum = reactorNum;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  // Messages bigger than maxMessageSize bytes are neither sent nor accepted.
+  // Zero or a negative size means no limit.
+  public void setMaxMessageSize(int maxMessageSize) {
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  public long getCoalescingWindowMicros() {
+    return coalescingWindowMicros;
+  }
+
+  // With a positive window, a message sent to an idle socket is held back for
+  // up to the window, so that the messages sent meanwhile are written with it
+  // in one system call. Zero, the default, writes messages right away.
+  public void setCoalescingWindowMicros(long coalescingWindowMicros) {
+    this.coalescingWindowMicros = coalescingWindowMicros;
+  }
+
+  public int getStripeNum() {
+    return stripeNum;
+  }
+
+  // Number of sockets a MultiSocketClient opens to each server. Connections
+  // are spread across them, so that one slow frame does not hold back all of
+  // the connections to the server.
+  public void setStripeNum(int stripeNum) {
+    this.stripeNum = stripeNum;
+  }
+
+  public StripePolicy getStripePolicy() {
+    return stripePolicy;
+  }
+
+  public void setStripePolicy(StripePolicy stripePolicy) {
+    this.stripePolicy = stripePolicy;
+  }
+
+  public int getChannelWindow() {
+    return channelWindow;
+  }
+
+  // Max bytes of received messages a connection holds before its reader
+  // consumes them. The sender stops once it has sent that much without
+  // getting credit back. Zero, the default, means no limit. Windows are at
+  // least 64KB.
+  public void setChannelWindow(int channelWindow) {
+    this.channelWindow = channelWindow;
+  }
+
+  public int getSocketWindow() {
+    return socketWindow;
+  }
+
+  // Same as the channel window, for all of the connections of a socket.
+  public void setSocketWindow(int socketWindow) {
+    this.socketWindow = socketWindow;
+  }
+
+  public CreditPolicy getCreditPolicy() {
+    return creditPolicy;
+  }
+
+  public void setCreditPolicy(CreditPolicy creditPolicy) {
+    this.creditPolicy = creditPolicy;
+  }
+
+  public PollPolicy getPollPolicy() {
+    return pollPolicy;
+  }
+
+  public void setPollPolicy(PollPolicy pollPolicy) {
+    this.pollPolicy = pollPolicy;
+  }
+
+  public long getSpinMicros() {
+    return spinMicros;
+  }
+
+  // Microseconds a reactor or a reader polls before it blocks, see PollPolicy
+  public void setSpinMicros(long spinMicros) {
+    this.spinMicros = spinMicros;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  // Messages of at least compressionThreshold bytes are sent deflated if that
+  // makes them smaller and the peer takes compressed messages. Zero, the
+  // default, sends every message as is. Received messages are decompressed
+  // either way.
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  // Deflater level, from 1 (BEST_SPEED, the default) to 9
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+}
@@ -16,30 +16,38 @@
 
 package Waterloo.MultiSocket;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 
 import Waterloo.MultiSocket.exception.ChannelUsedException;
 import Waterloo.MultiSocket.exception.ConnectionCloseException;
-import Waterloo.MultiSocket.exception.ConnectionNonExistException;
-import Waterloo.MultiSocket.exception.DataTooBigException;
-import Waterloo.MultiSocket.exception.EndOfStreamException;
-import Waterloo.MultiSocket.exception.InvalidMagicNumException;
 import Waterloo.MultiSocket.exception.MultiSocketValidException;
-import Waterloo.MultiSocket.exception.UnexpectedDataException;
 
+/*
+ * The server side of MultiSocket. The thread calling accept() is a dedicated
+ * acceptor, and the accepted sockets are spread across a group of reactors,
+ * each of which is a selector thread that performs the network I/O of its
+ * sockets.
+ *
+ * The server listens on TCP for an InetSocketAddress, and on a Unix domain
+ * socket for an address made by UnixDomainSockets.
+ */
 public class MultiSocketServer {
   public class ServerMultiSocketImpl extends MultiSocket {
-    public ServerMultiSocketImpl(SocketChannel channel, Selector selector) {
-      super(channel, selector);
+    public ServerMultiSocketImpl(SocketChannel channel, Reactor reactor) {
+      super(channel, reactor, options);
     }
 
     protected synchronized void handleNewConnection(int channelNumber) throws ChannelUsedException {
@@ -48,11 +56,15 @@ public class MultiSocketServer {
                                                                                               // used.
       }
       Connection connection = new Connection(channelNumber, this);
-      connectionMap.put(channelNumber, connection);
+      registerConnection(connection);
       // Presumably, the handler will create a thread to handle each connection.
       acceptHandler.handle(connection);
     }
 
+    protected void handleRegistered() throws IOException {
+      sendHello();
+    }
+
     protected Future<IConnection> createConnection()
         throws IOException, MultiSocketValidException, ConnectionCloseException {
       // Shouldn't allow new connections to be created.
@@ -62,41 +74,80 @@ public class MultiSocketServer {
   }
 
   private ConnectionHandler acceptHandler;
-  private HashMap<SocketChannel, MultiSocket> socketMap;
   private ServerSocketChannel server;
-  private Selector selector;
+  private String unixPath = null; // Socket file of a Unix domain server
+  private Selector selector; // Only used for accepting new sockets
+  private ReactorGroup reactorGroup;
+  private MultiSocketOptions options;
 
-  public MultiSocketServer(ConnectionHandler acceptHandler, InetSocketAddress addr) throws IOException {
-    init(acceptHandler, addr, -1);
+  public MultiSocketServer(ConnectionHandler acceptHandler, SocketAddress addr) throws IOException {
+    init(acceptHandler, addr, -1, new MultiSocketOptions());
   }
 
-  public MultiSocketServer(ConnectionHandler acceptHandler, InetSocketAddress addr, int backlog) throws IOException {
-    init(acceptHandler, addr, backlog);
+  public MultiSocketServer(ConnectionHandler acceptHandler, SocketAddress addr, int backlog) throws IOException {
+    init(acceptHandler, addr, backlog, new MultiSocketOptions());
   }
 
-  private void init(ConnectionHandler acceptHandler, InetSocketAddress addr, int backlog) throws IOException {
+  public MultiSocketServer(ConnectionHandler acceptHandler, SocketAddress addr, int backlog, int reactorNum)
+      throws IOException {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setReactorNum(reactorNum);
+    init(acceptHandler, addr, backlog, options);
+  }
+
+  public MultiSocketServer(ConnectionHandler acceptHandler, SocketAddress addr, int backlog,
+      MultiSocketOptions options) throws IOException {
+    init(acceptHandler, addr, backlog, options);
+  }
+
+  private void init(ConnectionHandler acceptHandler, SocketAddress addr, int backlog, MultiSocketOptions options)
+      throws IOException {
     this.acceptHandler = acceptHandler;
-    socketMap = new HashMap<SocketChannel, MultiSocket>();
-    server = ServerSocketChannel.open();
-    server.configureBlocking(false);
-    server.socket().setReuseAddress(true);
-    // dynamic port will be bound when the port in addr is 0
-    if (backlog > 0) {
-      server.socket().bind(addr, backlog);
+    this.options = options;
+    if (UnixDomainSockets.isUnixAddress(addr)) {
+      unixPath = UnixDomainSockets.getPath(addr);
+      removeStaleSocketFile(addr);
+      server = UnixDomainSockets.openServerSocketChannel();
     } else {
-      server.socket().bind(addr);// default backlog is 50
+      server = ServerSocketChannel.open();
+      server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
     }
+    server.configureBlocking(false);
+    // dynamic port will be bound when the port in addr is 0
+    server.bind(addr, Math.max(backlog, 0)); // default backlog is 50
     selector = Selector.open();
     server.register(selector, SelectionKey.OP_ACCEPT);
+    reactorGroup = new ReactorGroup("MultiSocketServer-Reactor", options, true);
   }
 
-  // when dynamic port is generated when binding server socket
-  public int getLocalPort() {
-    return this.server.socket().getLocalPort();
+  // Removes the socket file left behind by a server that did not close, but
+  // not the one of a running server.
+  private void removeStaleSocketFile(SocketAddress addr) throws IOException {
+    if (!new File(unixPath).exists()) {
+      return;
+    }
+    try (SocketChannel probe = UnixDomainSockets.openSocketChannel()) {
+      probe.connect(addr);
+    } catch (IOException e) {
+      new File(unixPath).delete();
+      return;
+    }
+    throw new BindException("Address already in use: " + unixPath);
+  }
+
+  // when dynamic port is generated when binding server socket, -1 for a Unix
+  // domain server
+  public int getLocalPort() throws IOException {
+    SocketAddress address = this.server.getLocalAddress();
+    return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getPort() : -1;
+  }
+
+  public List<ReactorStatistics> getReactorStatistics() {
+    return reactorGroup.getStatistics();
   }
 
-  // TODO: One minor optimization we can do is to perform multiple accepts on each
-  // select iteration
+  // Accepts new sockets and hands them over to the reactors. The I/O of the
+  // accepted sockets is done by the reactors.
   public void accept() throws IOException {
     while (true) {
       selector.select(); // Wait for events
@@ -107,55 +158,18 @@ public class MultiSocketServer {
         SelectionKey key = it.next();
         it.remove(); // Need to manually remove this key.
 
-        // Check what type of operation we are doing.
-        if (key.isAcceptable()) {
-          SocketChannel client = server.accept();
-          client.socket().setTcpNoDelay(true);
-          client.configureBlocking(false);
-          client.register(selector, SelectionKey.OP_READ);
-          socketMap.put(client, new ServerMultiSocketImpl(client, selector));
+        if (!key.isAcceptable()) {
           continue;
-        } else if (key.isReadable()) {
-          SocketChannel client = (SocketChannel) key.channel();
-          MultiSocket socket = socketMap.get(client);
-          assert (socket != null);
-          try {
-            socket.readMessages();
-          } catch (IOException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (EndOfStreamException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (InvalidMagicNumException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (DataTooBigException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (ChannelUsedException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (ConnectionNonExistException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          } catch (UnexpectedDataException e) {
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
-          }
-        } else if (key.isWritable()) {
-          SocketChannel client = (SocketChannel) key.channel();
-          MultiSocket socket = socketMap.get(client);
-          assert (socket != null);
-          try {
-            socket.flushWrites();
-          } catch (Exception e) {
-            if (!(e instanceof IOException)) {// TODO distinguish client close and other exceptions
-              e.printStackTrace();
-            }
-            socketMap.remove(client);
-            continue; // Channel should already be closed and cancelled
+        }
+        // Performs as many accepts as possible on each select iteration
+        SocketChannel client = null;
+        while ((client = server.accept()) != null) {
+          if (unixPath == null) {
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
           }
+          client.configureBlocking(false);
+          Reactor reactor = reactorGroup.next();
+          reactor.register(client, SelectionKey.OP_READ, new ServerMultiSocketImpl(client, reactor));
         }
       }
     }
@@ -164,5 +178,9 @@ public class MultiSocketServer {
   public void close() throws IOException {
     this.selector.close();
     this.server.close();
+    this.reactorGroup.close();
+    if (unixPath != null) {
+      new File(unixPath).delete();
+    }
   }
 }
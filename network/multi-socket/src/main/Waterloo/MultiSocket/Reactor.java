@@ -0,0 +1,324 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A Reactor is one selector thread that serves all of the MultiSockets assigned
+ * to it. Each MultiSocket is attached to its SelectionKey, so the reactor does
+ * not need any lookup table to dispatch I/O events.
+ *
+ * Channels are registered through register(), which can be called from any
+ * thread. The actual registration is done by the reactor thread itself because
+ * SocketChannel.register() blocks while the selector is selecting.
+ *
+ * The reactor also flushes the writes of the sockets that hold back their
+ * messages for a coalescing window, once the window is over.
+ *
+ * Unless its poll policy is BLOCK, the reactor polls the selector without
+ * blocking, and the other threads only wake it up once it blocks.
+ */
+public class Reactor extends Thread {
+
+  private class Registration {
+    final SocketChannel channel;
+    final int ops;
+    final MultiSocket socket;
+
+    Registration(SocketChannel channel, int ops, MultiSocket socket) {
+      this.channel = channel;
+      this.ops = ops;
+      this.socket = socket;
+    }
+  }
+
+  private class ScheduledFlush {
+    final MultiSocket socket;
+    final long deadline; // In System.nanoTime()
+
+    ScheduledFlush(MultiSocket socket, long deadline) {
+      this.socket = socket;
+      this.deadline = deadline;
+    }
+  }
+
+  private final Selector selector;
+  private final ReactorStatistics statistics;
+  private LinkedList<Registration> registerList;
+  private LinkedList<ScheduledFlush> flushList; // Ordered by deadline
+  private volatile boolean done = false;
+  private final MultiSocketOptions.PollPolicy pollPolicy;
+  private final long spinNanos;
+  private volatile boolean blocking = false; // Blocked in select(), or about to
+  private volatile boolean registrationPending = false;
+
+  public Reactor(String name) throws IOException {
+    this(name, MultiSocketOptions.PollPolicy.BLOCK, 0);
+  }
+
+  public Reactor(String name, MultiSocketOptions.PollPolicy pollPolicy, long spinMicros) throws IOException {
+    super(name);
+    this.pollPolicy = pollPolicy;
+    this.spinNanos = spinMicros * 1000L;
+    selector = Selector.open();
+    statistics = new ReactorStatistics(name);
+    registerList = new LinkedList<Registration>();
+    flushList = new LinkedList<ScheduledFlush>();
+  }
+
+  Selector getSelector() {
+    return selector;
+  }
+
+  public ReactorStatistics getStatistics() {
+    return statistics;
+  }
+
+  void wakeup() {
+    if (pollPolicy == MultiSocketOptions.PollPolicy.BLOCK || blocking) {
+      selector.wakeup();
+    }
+  }
+
+  // Assigns the channel to this reactor. The socket will be notified of the I/O
+  // events of the channel from now on.
+  void register(SocketChannel channel, int ops, MultiSocket socket) {
+    synchronized (this) {
+      registerList.add(new Registration(channel, ops, socket));
+      registrationPending = true;
+    }
+    statistics.increaseSocketNumber();
+    wakeup();
+  }
+
+  // Flushes the writes of the socket after the delay.
+  void scheduleFlush(MultiSocket socket, long delayNanos) {
+    ScheduledFlush flush = new ScheduledFlush(socket, System.nanoTime() + delayNanos);
+    boolean first;
+    synchronized (this) {
+      first = flushList.isEmpty();
+      ListIterator<ScheduledFlush> it = flushList.listIterator(flushList.size());
+      while (it.hasPrevious()) {
+        if (it.previous().deadline - flush.deadline <= 0) {
+          it.next();
+          break;
+        }
+      }
+      it.add(flush);
+    }
+    if (first) {
+      wakeup(); // So that the reactor selects with a timeout
+    }
+  }
+
+  public void close() throws IOException {
+    setDone();
+    selector.close();
+  }
+
+  private void setDone() {
+    done = true;
+  }
+
+  private boolean isDone() {
+    return done;
+  }
+
+  private synchronized LinkedList<Registration> takeRegisterList() {
+    if (registerList.isEmpty()) {
+      return null;
+    }
+    LinkedList<Registration> list = registerList;
+    registerList = new LinkedList<Registration>();
+    registrationPending = false;
+    return list;
+  }
+
+  private void registerChannels() {
+    LinkedList<Registration> list = takeRegisterList();
+    if (list == null) {
+      return;
+    }
+    for (Registration reg : list) {
+      try {
+        reg.channel.register(selector, reg.ops, reg.socket);
+        reg.socket.handleRegistered();
+      } catch (IOException e) {
+        socketClosed(reg.socket);
+      }
+    }
+  }
+
+  private synchronized LinkedList<MultiSocket> takeDueFlushes(long now) {
+    LinkedList<MultiSocket> sockets = null;
+    while (!flushList.isEmpty() && flushList.getFirst().deadline - now <= 0) {
+      if (sockets == null) {
+        sockets = new LinkedList<MultiSocket>();
+      }
+      sockets.add(flushList.removeFirst().socket);
+    }
+    return sockets;
+  }
+
+  private synchronized long nextFlushDelay(long now) {
+    return flushList.isEmpty() ? -1 : Math.max(0, flushList.getFirst().deadline - now);
+  }
+
+  // Returns the nanoseconds until the next scheduled flush, or -1 if there is
+  // none.
+  private long runScheduledFlushes() {
+    long now = System.nanoTime();
+    LinkedList<MultiSocket> sockets = takeDueFlushes(now);
+    if (sockets != null) {
+      for (MultiSocket socket : sockets) {
+        try {
+          socket.flushCoalescedWrites();
+        } catch (IOException e) {
+          socketClosed(socket);
+        }
+      }
+    }
+    return nextFlushDelay(now);
+  }
+
+  private void select() throws IOException {
+    long delay = runScheduledFlushes();
+    if (pollPolicy == MultiSocketOptions.PollPolicy.BLOCK) {
+      block(delay);
+      return;
+    }
+    if (poll()) {
+      return;
+    }
+    blocking = true;
+    try {
+      // The threads that saw the reactor polling did not wake it up
+      if (registrationPending || selector.selectNow() > 0) {
+        return;
+      }
+      block(runScheduledFlushes());
+    } finally {
+      blocking = false;
+    }
+  }
+
+  // Polls the selector without blocking for the spin time, or for good with
+  // SPIN. Returns true if there is something to do.
+  private boolean poll() throws IOException {
+    long start = System.nanoTime();
+    while (!isDone()) {
+      if (selector.selectNow() > 0 || registrationPending) {
+        return true;
+      }
+      runScheduledFlushes();
+      if (pollPolicy == MultiSocketOptions.PollPolicy.SPIN_THEN_BLOCK && System.nanoTime() - start >= spinNanos) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void block(long delay) throws IOException {
+    if (delay < 0) {
+      selector.select();
+    } else if (delay >= 1000000) {
+      selector.select(delay / 1000000);
+    } else if (selector.selectNow() == 0) {
+      LockSupport.parkNanos(delay); // select() can't wait for less than a millisecond
+    }
+  }
+
+  private void socketClosed(MultiSocket socket) {
+    statistics.decreaseActiveSocketNumber();
+    socket.handleSocketClosed();
+  }
+
+  // Should not directly access any fields of MultiSocket except through its
+  // event handlers.
+  public void run() {
+    while (!isDone()) {
+      try {
+        try {
+          select();
+        } catch (IOException e) {
+          setDone();
+          return; // Done with this thread
+        }
+        statistics.increaseSelectNumber();
+
+        // Register newly assigned channels
+        registerChannels();
+
+        Set<SelectionKey> keys = selector.selectedKeys();
+        Iterator<SelectionKey> it = keys.iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove(); // Need to manually remove this key.
+          MultiSocket socket = (MultiSocket) key.attachment();
+          assert (socket != null);
+          if (!key.isValid()) {
+            continue;
+          }
+          // Check what type of operation we are doing.
+          if (key.isConnectable()) {
+            try {
+              socket.finishConnect(key);
+            } catch (Exception e) {
+              key.cancel(); // Have to manually remove the key.
+              socketClosed(socket);
+            }
+            continue; // Will never be connectable and readable/writable.
+          }
+          if (key.isReadable()) {
+            statistics.increaseReadEventNumber();
+            try {
+              socket.readMessages();
+            } catch (Exception e) {
+              socketClosed(socket);
+              continue; // Channel should already be closed and cancelled
+            }
+          }
+          if (key.isValid() && key.isWritable()) {
+            statistics.increaseWriteEventNumber();
+            try {
+              socket.flushWrites();
+            } catch (Exception e) {
+              if (!(e instanceof IOException)) {// TODO distinguish remote close and other exceptions
+                e.printStackTrace();
+              }
+              socketClosed(socket);
+              continue; // Channel should already be closed and cancelled
+            }
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        assert (isDone());
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A fixed group of Reactors. Sockets are spread across the reactors in a
+ * round-robin manner, so that the network I/O of a MultiSocketServer or a
+ * MultiSocketClient is not bound to a single selector thread.
+ */
+public class ReactorGroup {
+
+  public static final int DEFAULT_REACTOR_NUM = 1;
+
+  private final Reactor[] reactors;
+  private int nextReactor = 0;
+
+  public ReactorGroup(String name, int reactorNum, boolean daemon) throws IOException {
+    this(name, reactorNum, daemon, MultiSocketOptions.PollPolicy.BLOCK, 0);
+  }
+
+  // Takes the number of reactors and the way they poll from the options
+  public ReactorGroup(String name, MultiSocketOptions options, boolean daemon) throws IOException {
+    this(name, options.getReactorNum(), daemon, options.getPollPolicy(), options.getSpinMicros());
+  }
+
+  private ReactorGroup(String name, int reactorNum, boolean daemon, MultiSocketOptions.PollPolicy pollPolicy,
+      long spinMicros) throws IOException {
+    if (reactorNum <= 0) {
+      reactorNum = DEFAULT_REACTOR_NUM;
+    }
+    reactors = new Reactor[reactorNum];
+    for (int i = 0; i < reactorNum; i++) {
+      reactors[i] = new Reactor(name + "-" + i, pollPolicy, spinMicros);
+      reactors[i].setDaemon(daemon);
+    }
+    for (Reactor reactor : reactors) {
+      reactor.start();
+    }
+  }
+
+  public int size() {
+    return reactors.length;
+  }
+
+  // Returns the reactor for a new socket.
+  public synchronized Reactor next() {
+    Reactor reactor = reactors[nextReactor];
+    nextReactor = (nextReactor + 1) % reactors.length;
+    return reactor;
+  }
+
+  public List<ReactorStatistics> getStatistics() {
+    List<ReactorStatistics> statistics = new ArrayList<ReactorStatistics>(reactors.length);
+    for (Reactor reactor : reactors) {
+      statistics.add(reactor.getStatistics());
+    }
+    return statistics;
+  }
+
+  public void close() throws IOException {
+    IOException exception = null;
+    for (Reactor reactor : reactors) {
+      try {
+        reactor.close();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+}
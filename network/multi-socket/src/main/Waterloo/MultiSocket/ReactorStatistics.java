@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Run-time counters of one Reactor, used to check how sockets and I/O load are
+ * distributed across a ReactorGroup.
+ */
+public class ReactorStatistics {
+
+  private final String reactorName;
+
+  private final AtomicLong registeredSocketNumber = new AtomicLong(0); // total sockets ever assigned
+  private final AtomicLong activeSocketNumber = new AtomicLong(0); // sockets currently assigned
+  private final AtomicLong selectNumber = new AtomicLong(0);
+  private final AtomicLong readEventNumber = new AtomicLong(0);
+  private final AtomicLong writeEventNumber = new AtomicLong(0);
+  private final AtomicLong bytesRead = new AtomicLong(0);
+  private final AtomicLong bytesWritten = new AtomicLong(0);
+  private final AtomicLong writeCallNumber = new AtomicLong(0); // write system calls
+  private final AtomicLong frameWrittenNumber = new AtomicLong(0);
+
+  public ReactorStatistics(String reactorName) {
+    this.reactorName = reactorName;
+  }
+
+  public String getReactorName() {
+    return reactorName;
+  }
+
+  void increaseSocketNumber() {
+    registeredSocketNumber.incrementAndGet();
+    activeSocketNumber.incrementAndGet();
+  }
+
+  void decreaseActiveSocketNumber() {
+    activeSocketNumber.decrementAndGet();
+  }
+
+  void increaseSelectNumber() {
+    selectNumber.incrementAndGet();
+  }
+
+  void increaseReadEventNumber() {
+    readEventNumber.incrementAndGet();
+  }
+
+  void increaseWriteEventNumber() {
+    writeEventNumber.incrementAndGet();
+  }
+
+  void addBytesRead(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  void addBytesWritten(long bytes) {
+    bytesWritten.addAndGet(bytes);
+  }
+
+  void increaseWriteCallNumber() {
+    writeCallNumber.incrementAndGet();
+  }
+
+  void addFramesWritten(long frames) {
+    frameWrittenNumber.addAndGet(frames);
+  }
+
+  public long getRegisteredSocketNumber() {
+    return registeredSocketNumber.get();
+  }
+
+  public long getActiveSocketNumber() {
+    return activeSocketNumber.get();
+  }
+
+  public long getSelectNumber() {
+    return selectNumber.get();
+  }
+
+  public long getReadEventNumber() {
+    return readEventNumber.get();
+  }
+
+  public long getWriteEventNumber() {
+    return writeEventNumber.get();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  public long getWriteCallNumber() {
+    return writeCallNumber.get();
+  }
+
+  public long getFrameWrittenNumber() {
+    return frameWrittenNumber.get();
+  }
+
+  public double getFramesPerWriteCall() {
+    long calls = getWriteCallNumber();
+    return calls == 0 ? 0 : (double) getFrameWrittenNumber() / calls;
+  }
+
+  public void reset() {
+    registeredSocketNumber.set(activeSocketNumber.get());
+    selectNumber.set(0);
+    readEventNumber.set(0);
+    writeEventNumber.set(0);
+    bytesRead.set(0);
+    bytesWritten.set(0);
+    writeCallNumber.set(0);
+    frameWrittenNumber.set(0);
+  }
+
+  public String toString() {
+    return reactorName + " sockets(active/total)=" + getActiveSocketNumber() + "/" + getRegisteredSocketNumber()
+        + " selects=" + getSelectNumber() + " reads=" + getReadEventNumber() + " writes=" + getWriteEventNumber()
+        + " bytesRead=" + getBytesRead() + " bytesWritten=" + getBytesWritten() + " writeCalls="
+        + getWriteCallNumber() + " framesWritten=" + getFrameWrittenNumber();
+  }
+}
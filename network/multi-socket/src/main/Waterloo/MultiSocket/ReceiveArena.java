@@ -0,0 +1,61 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Hands out buffers for received messages by carving them out of shared
+ * slabs, so that small messages do not each cost a separate allocation.
+ * A slab is released once all of the messages carved out of it are dropped
+ * by their readers. Messages bigger than a quarter of a slab get their own
+ * buffer to avoid wasting the tail of a slab.
+ *
+ * A received message is copied once, out of the socket's read buffer into the
+ * arena, and readers then get read-only slices of it without another copy.
+ * The slabs are heap buffers rather than buffers of the BufferPool: a reader
+ * keeps the buffer of a message after taking it, and a listener may keep it
+ * after onMessage() returns, such as a client queueing a response until its
+ * request is sent. So messageConsumed() does not tell when the memory is free
+ * again, and a pooled buffer released there could be reused under a reader.
+ * Heap slabs are freed by the garbage collector once no reader holds them.
+ *
+ * Not thread-safe. Each MultiSocket owns one and only uses it from its read
+ * path.
+ */
+class ReceiveArena {
+  private final int slabSize;
+  private ByteBuffer slab = null;
+
+  ReceiveArena(int slabSize) {
+    this.slabSize = slabSize;
+  }
+
+  // Returns a buffer with position 0 and limit size.
+  ByteBuffer allocate(int size) {
+    if (size > slabSize / 4) {
+      return ByteBuffer.allocate(size);
+    }
+    if (slab == null || slab.remaining() < size) {
+      slab = ByteBuffer.allocate(slabSize);
+    }
+    ByteBuffer buffer = slab.slice();
+    buffer.limit(size);
+    slab.position(slab.position() + size);
+    return buffer;
+  }
+}
@@ -0,0 +1,443 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package Waterloo.MultiSocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Waterloo.MultiSocket.exception.DataTooBigException;
+import Waterloo.MultiSocket.exception.InvalidMagicNumException;
+import Waterloo.MultiSocket.exception.UnexpectedDataException;
+
+/*
+ * A ring of bytes in a memory-mapped file, such as one under /dev/shm, that
+ * carries MultiSocket frames from one process of a host to another. The
+ * frames have the same header as on a socket, and are streamed through the
+ * ring. A frame holds at most the ring's size less its header, so a reader can
+ * tell a bad size from a good one. A bigger payload is split as on a socket:
+ * its first frame carries FIRST_FRAGMENT and starts with the payload's size,
+ * and the following frames carry the rest, which readFrame() puts back
+ * together. The credit field is not used, as the ring bounds the producer.
+ *
+ * The file starts with the positions of the producer and of the consumer, each
+ * on its own cache line. Positions only grow and wrap within the ring by
+ * masking, so the ring size is a power of two. Each side only writes its own
+ * position, after the bytes it covers. As the mapping is shared with another
+ * process, the positions are written with release and read with acquire
+ * semantics through Unsafe, which orders the plain accesses to the bytes they
+ * cover. The positions are in the native byte order. Unsafe is reached through
+ * method handles, as it is not part of the platform the sources target.
+ *
+ * There is one consumer thread, while the threads of the producer process take
+ * turns to write whole payloads. The one writing waits for room without holding
+ * the lock, and the others wait on a condition, so that none of them pins the
+ * carrier of a virtual thread.
+ */
+public class ShmRing {
+  // Frame types, as on a MultiSocket
+  public static final int CREATE = MultiSocket.CREATE;
+  public static final int DATA = MultiSocket.DATA;
+  public static final int CLOSE = MultiSocket.CLOSE;
+
+  private static final int TAIL = 0; // Bytes written by the producer
+  private static final int HEAD = 64; // Bytes read by the consumer
+  private static final int SIZE = 128;
+  private static final int DATA_OFFSET = 192;
+
+  private static final int magicNumber = MultiSocket.magicNumber;
+  private static final int headerSize = MultiSocket.headerSize;
+  private static final int FIRST_FRAGMENT = MultiSocket.FIRST_FRAGMENT;
+  private static final int arenaSlabSize = 64 * 1024;
+  private static final int spinLimit = 100; // Yields before parking while the ring is full
+  private static final long parkNanos = 10 * 1000;
+
+  // Unsafe's getLong(Object, long), getLongVolatile(Object, long) and
+  // putOrderedLong(Object, long, long), null if there is no Unsafe
+  private static final MethodHandle getLong;
+  private static final MethodHandle getLongVolatile;
+  private static final MethodHandle putOrderedLong;
+  private static final long addressOffset; // Of the address field of a direct buffer
+  private static final Throwable unsafeFailure;
+
+  static {
+    MethodHandle get = null;
+    MethodHandle getVolatile = null;
+    MethodHandle putOrdered = null;
+    long offset = 0;
+    Throwable failure = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType getType = MethodType.methodType(long.class, Object.class, long.class);
+      get = lookup.findVirtual(unsafeClass, "getLong", getType).bindTo(unsafe);
+      getVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile", getType).bindTo(unsafe);
+      putOrdered = lookup.findVirtual(unsafeClass, "putOrderedLong",
+          MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+      offset = (long) lookup.findVirtual(unsafeClass, "objectFieldOffset",
+          MethodType.methodType(long.class, Field.class)).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+    } catch (Throwable e) {
+      get = getVolatile = putOrdered = null;
+      failure = e;
+    }
+    getLong = get;
+    getLongVolatile = getVolatile;
+    putOrderedLong = putOrdered;
+    addressOffset = offset;
+    unsafeFailure = failure;
+  }
+
+  private final MappedByteBuffer map;
+  private final long address; // Of the mapping
+  private final int size;
+  private final int maxFrameDataSize;
+  private final int mask;
+  private volatile boolean valid = true;
+
+  // Producer side
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final Condition writerDone = writeLock.newCondition();
+  private boolean writing = false; // A producer is writing a payload, guarded by writeLock
+  private final ByteBuffer writeView;
+  private final ByteBuffer writeHeader;
+  private long tail;
+  private long publishedTail;
+  private long cachedHead;
+
+  // Consumer side
+  private final ByteBuffer readView;
+  private final ByteBuffer readHeader;
+  private final ReceiveArena receiveArena;
+  private ByteBuffer readPayload = null; // Payload of the frame being read
+  private ByteBuffer fragments = null; // The payload whose fragments are being read
+  private int frameFlags;
+  private int frameType;
+  private int frameChannel;
+  private long head;
+  private long publishedHead;
+  private long cachedTail;
+
+  private ShmRing(MappedByteBuffer map) {
+    this.map = map;
+    this.address = addressOf(map);
+    this.size = map.getInt(SIZE);
+    this.maxFrameDataSize = size - headerSize;
+    this.mask = size - 1;
+    this.writeView = map.duplicate();
+    this.writeHeader = ByteBuffer.allocate(headerSize + 4); // And the size of a fragmented payload
+    this.tail = readPosition(TAIL);
+    this.publishedTail = tail;
+    this.cachedHead = readPosition(HEAD);
+    this.readView = map.duplicate();
+    this.readHeader = ByteBuffer.allocate(headerSize);
+    this.receiveArena = new ReceiveArena(arenaSlabSize);
+    this.head = cachedHead;
+    this.publishedHead = head;
+    this.cachedTail = tail;
+  }
+
+  // Creates an empty ring in the file, replacing its content
+  public static ShmRing create(File file, int size) throws IOException {
+    if (size <= headerSize || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Ring size must be a power of two above " + headerSize + ", not " + size);
+    }
+    checkUnsafe();
+    MappedByteBuffer map = map(file, DATA_OFFSET + size);
+    map.putInt(SIZE, size);
+    long address = addressOf(map);
+    putPosition(address + TAIL, 0);
+    putPosition(address + HEAD, 0);
+    return new ShmRing(map);
+  }
+
+  // Maps a ring created by another process
+  public static ShmRing open(File file) throws IOException {
+    long length = file.length();
+    if (length <= DATA_OFFSET) {
+      throw new IOException("Not a ring: " + file);
+    }
+    checkUnsafe();
+    return new ShmRing(map(file, length));
+  }
+
+  private static void checkUnsafe() throws IOException {
+    if (getLong == null) {
+      throw new IOException("Shared memory rings need sun.misc.Unsafe", unsafeFailure);
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    } finally {
+      raf.close(); // The mapping stays valid
+    }
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public boolean isValid() {
+    return valid;
+  }
+
+  // Makes the producers fail instead of waiting for a consumer that is gone.
+  // The mapping itself is released once the ring is garbage collected.
+  public void close() {
+    valid = false;
+  }
+
+  // Writes the payload's remaining bytes in one frame, or in fragments if they
+  // do not fit, waiting for the consumer to make room. The payload's position
+  // is not changed.
+  public void writeFrame(int type, int channel, ByteBuffer payload) throws IOException {
+    writeLock.lock();
+    try {
+      while (writing) {
+        writerDone.awaitUninterruptibly();
+      }
+      writing = true;
+    } finally {
+      writeLock.unlock();
+    }
+    try {
+      writePayload(type, channel, payload);
+    } finally {
+      writeLock.lock();
+      try {
+        writing = false;
+        writerDone.signal();
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  private void writePayload(int type, int channel, ByteBuffer payload) throws IOException {
+    ByteBuffer data = payload == null ? null : payload.duplicate();
+    if (data != null && data.remaining() > maxFrameDataSize) {
+      ByteBuffer fragment = data.duplicate();
+      fragment.limit(fragment.position() + maxFrameDataSize - 4);
+      putFrame(type | FIRST_FRAGMENT, channel, data.remaining(), fragment);
+      data.position(fragment.limit());
+      while (data.remaining() > maxFrameDataSize) {
+        fragment = data.duplicate();
+        fragment.limit(fragment.position() + maxFrameDataSize);
+        putFrame(type, channel, -1, fragment);
+        data.position(fragment.limit());
+      }
+    }
+    putFrame(type, channel, -1, data);
+    publishTail();
+  }
+
+  // Writes a frame, starting its data with the total size of the payload if
+  // it is not negative
+  private void putFrame(int type, int channel, int totalSize, ByteBuffer data) throws IOException {
+    int dataSize = (data == null ? 0 : data.remaining()) + (totalSize < 0 ? 0 : 4);
+    writeHeader.clear();
+    writeHeader.putInt(magicNumber).putInt(type).putInt(channel).putInt(0).putInt(dataSize);
+    if (totalSize >= 0) {
+      writeHeader.putInt(totalSize);
+    }
+    writeHeader.flip();
+    put(writeHeader);
+    if (data != null) {
+      put(data);
+    }
+  }
+
+  private void put(ByteBuffer src) throws IOException {
+    int idle = 0;
+    while (src.hasRemaining()) {
+      long free = size - (tail - cachedHead);
+      if (free == 0) {
+        cachedHead = readPosition(HEAD);
+        free = size - (tail - cachedHead);
+      }
+      if (free == 0) {
+        publishTail(); // Lets the consumer take the part written so far
+        if (!valid) {
+          throw new ClosedChannelException();
+        }
+        if (++idle < spinLimit) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(parkNanos);
+        }
+        continue;
+      }
+      idle = 0;
+      int offset = (int) (tail & mask);
+      int n = (int) Math.min(Math.min(free, src.remaining()), size - offset);
+      ByteBuffer chunk = src.duplicate();
+      chunk.limit(chunk.position() + n);
+      writeView.position(DATA_OFFSET + offset);
+      writeView.put(chunk);
+      src.position(src.position() + n);
+      tail += n;
+    }
+  }
+
+  private void publishTail() {
+    if (tail != publishedTail) {
+      writePosition(TAIL, tail);
+      publishedTail = tail;
+    }
+  }
+
+  // Reads the position of the other side, with acquire semantics: the reads of
+  // the bytes it covers are not moved before it.
+  private long readPosition(int index) {
+    try {
+      return (long) getLongVolatile.invokeExact((Object) null, address + index);
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Writes the position of this side, with release semantics: the accesses to
+  // the bytes it covers are not moved after it.
+  private void writePosition(int index, long position) {
+    putPosition(address + index, position);
+  }
+
+  private static void putPosition(long positionAddress, long position) {
+    try {
+      putOrderedLong.invokeExact((Object) null, positionAddress, position);
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long addressOf(MappedByteBuffer map) {
+    try {
+      return (long) getLong.invokeExact((Object) map, addressOffset);
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Returns the payload of the next frame, or of the fragments of a payload,
+  // once all of it is in the ring, or null. The payload is positioned at its
+  // start. Only called by the consumer.
+  public ByteBuffer readFrame() throws InvalidMagicNumException, DataTooBigException, UnexpectedDataException {
+    while (true) {
+      if (readPayload == null) {
+        if (!take(readHeader)) {
+          return null;
+        }
+        readHeader.flip();
+        if (readHeader.getInt() != magicNumber) {
+          throw new InvalidMagicNumException("Invalid Magic Number"); // Wrong magic number
+        }
+        int type = readHeader.getInt();
+        frameFlags = type & FIRST_FRAGMENT;
+        frameType = type & ~FIRST_FRAGMENT;
+        frameChannel = readHeader.getInt();
+        readHeader.getInt(); // Credit is not used, the ring bounds the sender
+        int dataSize = readHeader.getInt();
+        readHeader.clear();
+        if (dataSize < 0 || dataSize > maxFrameDataSize) {
+          throw new DataTooBigException("Frame of " + dataSize + " bytes in a ring of " + size + " bytes");
+        }
+        readPayload = receiveArena.allocate(dataSize);
+      }
+      if (!take(readPayload)) {
+        return null;
+      }
+      ByteBuffer payload = readPayload;
+      payload.flip();
+      readPayload = null;
+      if (frameFlags != 0) {
+        if (fragments != null || payload.remaining() < 4) {
+          throw new UnexpectedDataException("Unexpected first fragment on channel " + frameChannel);
+        }
+        int totalSize = payload.getInt();
+        if (totalSize <= maxFrameDataSize) {
+          throw new UnexpectedDataException("Fragmented payload of " + totalSize + " bytes on channel " + frameChannel);
+        }
+        fragments = ByteBuffer.allocate(totalSize);
+      } else if (fragments == null) {
+        return payload;
+      }
+      if (fragments.remaining() < payload.remaining()) {
+        throw new UnexpectedDataException("Fragment exceeds the payload size on channel " + frameChannel);
+      }
+      fragments.put(payload);
+      if (!fragments.hasRemaining()) {
+        payload = fragments;
+        payload.flip();
+        fragments = null;
+        return payload;
+      }
+    }
+  }
+
+  // Type of the frame last returned by readFrame()
+  public int getFrameType() {
+    return frameType;
+  }
+
+  public int getFrameChannel() {
+    return frameChannel;
+  }
+
+  // Fills dst with the bytes written so far. Returns true once dst is full.
+  private boolean take(ByteBuffer dst) {
+    boolean full = true;
+    while (dst.hasRemaining()) {
+      long available = cachedTail - head;
+      if (available == 0) {
+        cachedTail = readPosition(TAIL);
+        available = cachedTail - head;
+        if (available == 0) {
+          full = false;
+          break;
+        }
+      }
+      int offset = (int) (head & mask);
+      int n = (int) Math.min(Math.min(available, dst.remaining()), size - offset);
+      readView.limit(DATA_OFFSET + offset + n);
+      readView.position(DATA_OFFSET + offset);
+      dst.put(readView);
+      readView.limit(readView.capacity());
+      head += n;
+    }
+    if (head != publishedHead) {
+      writePosition(HEAD, head);
+      publishedHead = head;
+    }
+    return full;
+  }
+}
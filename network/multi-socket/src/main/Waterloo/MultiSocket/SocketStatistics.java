@@ -0,0 +1,209 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Run-time counters of one MultiSocket, used to check how the load to a
+ * server is spread across the stripes of a MultiSocketClient.
+ */
+public class SocketStatistics {
+
+  private final MultiSocket socket;
+
+  private final AtomicLong bytesRead = new AtomicLong(0);
+  private final AtomicLong bytesWritten = new AtomicLong(0);
+  private final AtomicLong writeCallNumber = new AtomicLong(0); // write system calls
+  private final AtomicLong frameWrittenNumber = new AtomicLong(0);
+  private final AtomicLong messageReceivedNumber = new AtomicLong(0);
+  // Queue depths. Messages queued for writing, and received messages not yet
+  // taken by the readers.
+  private final AtomicLong pendingWriteNumber = new AtomicLong(0);
+  private final AtomicLong undeliveredMessageNumber = new AtomicLong(0);
+  private final AtomicLong undeliveredBytes = new AtomicLong(0);
+  private final AtomicLong creditStallNumber = new AtomicLong(0); // Times a sender ran out of credit
+  // Compression of the messages sent, and decompression of the ones received.
+  // The compression time includes the messages that did not get smaller.
+  private final AtomicLong compressedMessageNumber = new AtomicLong(0);
+  private final AtomicLong bytesBeforeCompression = new AtomicLong(0);
+  private final AtomicLong bytesAfterCompression = new AtomicLong(0);
+  private final AtomicLong compressNanos = new AtomicLong(0);
+  private final AtomicLong decompressedMessageNumber = new AtomicLong(0);
+  private final AtomicLong decompressNanos = new AtomicLong(0);
+
+  SocketStatistics(MultiSocket socket) {
+    this.socket = socket;
+  }
+
+  public String getSocketName() {
+    return socket.getName();
+  }
+
+  void addBytesRead(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  void addBytesWritten(long bytes) {
+    bytesWritten.addAndGet(bytes);
+  }
+
+  void increaseWriteCallNumber() {
+    writeCallNumber.incrementAndGet();
+  }
+
+  void addFramesWritten(long frames) {
+    frameWrittenNumber.addAndGet(frames);
+  }
+
+  void increaseMessageReceivedNumber() {
+    messageReceivedNumber.incrementAndGet();
+  }
+
+  void increasePendingWriteNumber() {
+    pendingWriteNumber.incrementAndGet();
+  }
+
+  void decreasePendingWriteNumber() {
+    pendingWriteNumber.decrementAndGet();
+  }
+
+  void addUndeliveredMessage(long bytes) {
+    undeliveredMessageNumber.incrementAndGet();
+    undeliveredBytes.addAndGet(bytes);
+  }
+
+  void removeUndeliveredMessage(long bytes) {
+    undeliveredMessageNumber.decrementAndGet();
+    undeliveredBytes.addAndGet(-bytes);
+  }
+
+  void increaseCreditStallNumber() {
+    creditStallNumber.incrementAndGet();
+  }
+
+  // compressedSize is negative if the message did not get smaller
+  void addCompression(long size, long compressedSize, long nanos) {
+    compressNanos.addAndGet(nanos);
+    if (compressedSize >= 0) {
+      compressedMessageNumber.incrementAndGet();
+      bytesBeforeCompression.addAndGet(size);
+      bytesAfterCompression.addAndGet(compressedSize);
+    }
+  }
+
+  void addDecompression(long nanos) {
+    decompressedMessageNumber.incrementAndGet();
+    decompressNanos.addAndGet(nanos);
+  }
+
+  // Number of connections currently open on the socket
+  public int getConnectionNumber() {
+    return socket.getConnectionNumber();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  public long getWriteCallNumber() {
+    return writeCallNumber.get();
+  }
+
+  public long getFrameWrittenNumber() {
+    return frameWrittenNumber.get();
+  }
+
+  public long getMessageReceivedNumber() {
+    return messageReceivedNumber.get();
+  }
+
+  public long getPendingWriteNumber() {
+    return pendingWriteNumber.get();
+  }
+
+  public long getUndeliveredMessageNumber() {
+    return undeliveredMessageNumber.get();
+  }
+
+  public long getUndeliveredBytes() {
+    return undeliveredBytes.get();
+  }
+
+  public long getCreditStallNumber() {
+    return creditStallNumber.get();
+  }
+
+  public long getCompressedMessageNumber() {
+    return compressedMessageNumber.get();
+  }
+
+  public long getBytesBeforeCompression() {
+    return bytesBeforeCompression.get();
+  }
+
+  public long getBytesAfterCompression() {
+    return bytesAfterCompression.get();
+  }
+
+  // Original size over compressed size of the compressed messages
+  public double getCompressionRatio() {
+    long after = getBytesAfterCompression();
+    return after == 0 ? 0 : (double) getBytesBeforeCompression() / after;
+  }
+
+  public long getCompressNanos() {
+    return compressNanos.get();
+  }
+
+  public long getDecompressedMessageNumber() {
+    return decompressedMessageNumber.get();
+  }
+
+  public long getDecompressNanos() {
+    return decompressNanos.get();
+  }
+
+  public void reset() {
+    bytesRead.set(0);
+    bytesWritten.set(0);
+    writeCallNumber.set(0);
+    frameWrittenNumber.set(0);
+    messageReceivedNumber.set(0);
+    creditStallNumber.set(0); // The queue depths are not counters
+    compressedMessageNumber.set(0);
+    bytesBeforeCompression.set(0);
+    bytesAfterCompression.set(0);
+    compressNanos.set(0);
+    decompressedMessageNumber.set(0);
+    decompressNanos.set(0);
+  }
+
+  public String toString() {
+    return getSocketName() + " connections=" + getConnectionNumber() + " bytesRead=" + getBytesRead() + " bytesWritten="
+        + getBytesWritten() + " writeCalls=" + getWriteCallNumber() + " framesWritten=" + getFrameWrittenNumber()
+        + " messagesReceived=" + getMessageReceivedNumber() + " pendingWrites=" + getPendingWriteNumber()
+        + " undeliveredMessages=" + getUndeliveredMessageNumber() + " undeliveredBytes=" + getUndeliveredBytes()
+        + " creditStalls=" + getCreditStallNumber() + " compressedMessages=" + getCompressedMessageNumber()
+        + String.format(" compressionRatio=%.2f", getCompressionRatio()) + " compressUs=" + getCompressNanos() / 1000
+        + " decompressedMessages=" + getDecompressedMessageNumber() + " decompressUs=" + getDecompressNanos() / 1000;
+  }
+}
@@ -0,0 +1,96 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package Waterloo.MultiSocket;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Unix domain sockets, which NIO supports from Java 16 on. They are reached
+ * through reflection, so that MultiSocket still builds for Java 8 and only
+ * needs a newer JVM when such an address is used.
+ */
+public class UnixDomainSockets {
+  private static final Class<?> addressClass = loadAddressClass();
+
+  private static Class<?> loadAddressClass() {
+    try {
+      return Class.forName("java.net.UnixDomainSocketAddress");
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  public static boolean isSupported() {
+    return addressClass != null;
+  }
+
+  public static boolean isUnixAddress(SocketAddress address) {
+    return addressClass != null && addressClass.isInstance(address);
+  }
+
+  public static SocketAddress address(String path) throws IOException {
+    return (SocketAddress) invoke(addressClass, "of", new Class<?>[] { String.class }, null, path);
+  }
+
+  public static String getPath(SocketAddress address) throws IOException {
+    return String.valueOf(invoke(addressClass, "getPath", new Class<?>[0], address));
+  }
+
+  static ServerSocketChannel openServerSocketChannel() throws IOException {
+    return (ServerSocketChannel) invoke(ServerSocketChannel.class, "open", new Class<?>[] { ProtocolFamily.class },
+        null, unixFamily());
+  }
+
+  static SocketChannel openSocketChannel() throws IOException {
+    return (SocketChannel) invoke(SocketChannel.class, "open", new Class<?>[] { ProtocolFamily.class }, null,
+        unixFamily());
+  }
+
+  private static ProtocolFamily unixFamily() throws IOException {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      throw unsupported();
+    }
+  }
+
+  private static Object invoke(Class<?> type, String method, Class<?>[] parameterTypes, Object target,
+      Object... args) throws IOException {
+    if (!isSupported()) {
+      throw unsupported();
+    }
+    try {
+      return type.getMethod(method, parameterTypes).invoke(target, args);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw unsupported();
+    }
+  }
+
+  private static IOException unsupported() {
+    return new IOException("Unix domain sockets need Java 16 or later, running " + System.getProperty("java.version"));
+  }
+}
@@ -0,0 +1,121 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/*
+ * Decides the order in which the pending messages of a MultiSocket are put on
+ * the wire. Messages of one channel are sent in order, while the channels take
+ * turns to send one frame each. A message that is split into many frames thus
+ * does not hold back the small messages of the other channels.
+ *
+ * Channels whose next message has HIGH priority take turns ahead of the
+ * other channels, and control messages, such as flow control credits, go
+ * ahead of all channels.
+ * A channel that runs out of credit is parked until credit arrives, without
+ * holding back the other channels.
+ *
+ * Not thread-safe. Only used by the thread writing to the MultiSocket.
+ */
+class WriteScheduler {
+  private final HashMap<Integer, LinkedList<ChannelMessage>> channelQueues;
+  private final LinkedList<LinkedList<ChannelMessage>> urgentQueues; // Channels whose next message is HIGH
+  private final LinkedList<LinkedList<ChannelMessage>> readyQueues; // Channels in round-robin order
+  private final LinkedList<LinkedList<ChannelMessage>> parkedQueues; // Channels waiting for credit
+  private final LinkedList<ChannelMessage> controlQueue;
+
+  WriteScheduler() {
+    channelQueues = new HashMap<Integer, LinkedList<ChannelMessage>>();
+    urgentQueues = new LinkedList<LinkedList<ChannelMessage>>();
+    readyQueues = new LinkedList<LinkedList<ChannelMessage>>();
+    parkedQueues = new LinkedList<LinkedList<ChannelMessage>>();
+    controlQueue = new LinkedList<ChannelMessage>();
+  }
+
+  // Returns true if some message can be sent now.
+  boolean hasReady() {
+    return !controlQueue.isEmpty() || !urgentQueues.isEmpty() || !readyQueues.isEmpty();
+  }
+
+  // Returns true if a HIGH message can be sent now.
+  boolean hasUrgent() {
+    return !urgentQueues.isEmpty();
+  }
+
+  private LinkedList<LinkedList<ChannelMessage>> nextLane() {
+    return urgentQueues.isEmpty() ? readyQueues : urgentQueues;
+  }
+
+  // Puts the channel at the back of the lane of its next message.
+  private void requeue(LinkedList<ChannelMessage> queue) {
+    (queue.getFirst().isUrgent() ? urgentQueues : readyQueues).addLast(queue);
+  }
+
+  void add(ChannelMessage message) {
+    LinkedList<ChannelMessage> queue = channelQueues.get(message.getChannelNumber());
+    if (queue == null) {
+      queue = new LinkedList<ChannelMessage>();
+      channelQueues.put(message.getChannelNumber(), queue);
+      queue.add(message);
+      requeue(queue);
+      return;
+    }
+    queue.add(message);
+  }
+
+  void addControl(ChannelMessage message) {
+    controlQueue.add(message);
+  }
+
+  // Returns the message that sends the next frame.
+  ChannelMessage peek() {
+    if (!controlQueue.isEmpty()) {
+      return controlQueue.getFirst();
+    }
+    return nextLane().getFirst().getFirst();
+  }
+
+  // Called after a frame of the peeked message is loaded. The channel of the
+  // message then goes to the back of the line.
+  void frameLoaded(boolean lastFrame) {
+    if (!controlQueue.isEmpty()) {
+      controlQueue.removeFirst(); // Control messages take one frame
+      return;
+    }
+    LinkedList<ChannelMessage> queue = nextLane().removeFirst();
+    ChannelMessage message = lastFrame ? queue.removeFirst() : queue.getFirst();
+    if (queue.isEmpty()) {
+      channelQueues.remove(message.getChannelNumber());
+    } else {
+      requeue(queue);
+    }
+  }
+
+  // Sets aside the channel of the peeked message until unparkAll().
+  void park() {
+    parkedQueues.add(nextLane().removeFirst());
+  }
+
+  void unparkAll() {
+    for (LinkedList<ChannelMessage> queue : parkedQueues) {
+      requeue(queue);
+    }
+    parkedQueues.clear();
+  }
+}
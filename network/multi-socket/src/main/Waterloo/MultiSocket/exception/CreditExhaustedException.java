@@ -0,0 +1,31 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket.exception;
+
+import java.io.IOException;
+
+// Thrown by the FAIL credit policy when a message does not fit in the credit
+// granted by the receiver. Extends IOException so that it goes through the
+// existing write methods.
+public class CreditExhaustedException extends IOException {
+
+  private static final long serialVersionUID = -4205538466723093402L;
+
+  public CreditExhaustedException(String msg) {
+    super(msg);
+  }
+}
@@ -0,0 +1,89 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/*
+ * BufferPool hands out direct buffers by size class, reuses the released ones,
+ * and keeps a bounded number of free buffers in each class.
+ */
+public class BufferPoolTest {
+
+  @Test
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+    ByteBuffer small = pool.acquire(1);
+    assertTrue(small.isDirect());
+    assertEquals(BufferPool.MIN_SIZE, small.capacity());
+    assertEquals(BufferPool.MIN_SIZE, small.remaining());
+    assertEquals(2 * BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE + 1).capacity());
+    assertEquals(BufferPool.MAX_SIZE, pool.acquire(BufferPool.MAX_SIZE).capacity());
+    // Bigger buffers have their exact size
+    assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).capacity());
+  }
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+    ByteBuffer buffer = pool.acquire(100);
+    buffer.putInt(1);
+    buffer.flip();
+    pool.release(buffer);
+    assertEquals(BufferPool.MIN_SIZE, pool.getStatistics().getPooledBytes());
+
+    ByteBuffer reused = pool.acquire(BufferPool.MIN_SIZE);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(reused.capacity(), reused.limit());
+    // Another size class is not taken from the free buffers
+    assertNotSame(buffer, pool.acquire(BufferPool.MIN_SIZE + 1));
+
+    BufferPoolStatistics statistics = pool.getStatistics();
+    assertEquals(3, statistics.getAcquireNumber());
+    assertEquals(1, statistics.getReuseNumber());
+    assertEquals(2, statistics.getAllocationNumber());
+    assertEquals(BufferPool.MIN_SIZE + 2 * BufferPool.MIN_SIZE, statistics.getBorrowedBytes());
+    assertEquals(0, statistics.getPooledBytes());
+  }
+
+  @Test
+  public void testPooledBytesBound() {
+    BufferPool pool = new BufferPool(2 * BufferPool.MIN_SIZE);
+    ByteBuffer[] buffers = new ByteBuffer[3];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.acquire(BufferPool.MIN_SIZE);
+    }
+    for (ByteBuffer buffer : buffers) {
+      pool.release(buffer);
+    }
+    pool.release(pool.acquire(BufferPool.MAX_SIZE + 1)); // Never pooled
+
+    BufferPoolStatistics statistics = pool.getStatistics();
+    assertEquals(4, statistics.getReleaseNumber());
+    assertEquals(2, statistics.getDropNumber());
+    assertEquals(2 * BufferPool.MIN_SIZE, statistics.getPooledBytes());
+    assertEquals(0, statistics.getBorrowedBytes());
+  }
+}
@@ -0,0 +1,72 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * Frames queued within the coalescing window leave the client together in
+ * gathering writes, and still arrive whole and in order.
+ */
+public class CoalescingTest {
+
+  private static final int messageNum = 200;
+
+  @Test(timeout = 20000)
+  public void testCoalescedMessagesInOrder() throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setCoalescingWindowMicros(20000);
+    ReactorStatistics statistics = sendMessages(options);
+    assertTrue(statistics.toString(), statistics.getFrameWrittenNumber() >= messageNum);
+    assertTrue(statistics.toString(), statistics.getWriteCallNumber() < statistics.getFrameWrittenNumber());
+    assertTrue(statistics.toString(), statistics.getFramesPerWriteCall() > 1);
+  }
+
+  @Test(timeout = 20000)
+  public void testWithoutWindow() throws Exception {
+    ReactorStatistics statistics = sendMessages(new MultiSocketOptions());
+    assertTrue(statistics.toString(), statistics.getFrameWrittenNumber() >= messageNum);
+    assertTrue(statistics.toString(), statistics.getWriteCallNumber() <= statistics.getFrameWrittenNumber());
+  }
+
+  // Sends small messages to a server, checks that they arrive
+  // in order, and returns the statistics of the client's reactor.
+  private static ReactorStatistics sendMessages(MultiSocketOptions options) throws Exception {
+    options.setReactorNum(1);
+    LocalServer server = new LocalServer(new MultiSocketOptions());
+    MultiSocketClient client = new MultiSocketClient(options);
+    try {
+      IConnection connection = client.connect(server.getAddress()).get();
+      for (int i = 0; i < messageNum; i++) {
+        connection.writeMessage("message " + i);
+      }
+      IConnection accepted = server.nextConnection();
+      assertNotNull(accepted);
+      for (int i = 0; i < messageNum; i++) {
+        assertEquals("message " + i, accepted.readMessage());
+      }
+      return client.getReactorStatistics().get(0);
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/*
+ * Deflate compression of DATA messages: the codec of a message on its own, and
+ * messages compressed by a socket and inflated by its peer.
+ */
+public class CompressionTest {
+  private static final int THRESHOLD = 1024;
+
+  // Text-like bytes, which deflate well
+  private static ByteBuffer compressible(int size) {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      buffer.put((byte) ('a' + (i / 16 + i % 7) % 26));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static ByteBuffer random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static ByteBuffer inflate(ByteBuffer compressed) throws DataFormatException {
+    ByteBuffer message = ByteBuffer.allocate(Compression.originalSize(compressed));
+    Compression.decompress(compressed, message);
+    return message;
+  }
+
+  @Test
+  public void testRoundTrip() throws DataFormatException {
+    ByteBuffer message = compressible(100 * 1024);
+    ByteBuffer compressed = Compression.compress(message, 1);
+    assertTrue(compressed.remaining() < message.remaining() / 4);
+    assertEquals(100 * 1024, Compression.originalSize(compressed));
+    assertEquals(compressible(100 * 1024), inflate(compressed));
+    // The payload is not changed
+    assertEquals(compressible(100 * 1024), message);
+  }
+
+  // A slice of a bigger array, and a direct buffer, which has no array
+  @Test
+  public void testRoundTripOfSlicesAndDirectBuffers() throws DataFormatException {
+    ByteBuffer whole = compressible(20 * 1024);
+    whole.position(3 * 1024);
+    ByteBuffer slice = whole.slice();
+    assertEquals(slice, inflate(Compression.compress(slice, 9)));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(8 * 1024);
+    direct.put(compressible(8 * 1024)).flip();
+    assertEquals(compressible(8 * 1024), inflate(Compression.compress(direct, 1)));
+  }
+
+  @Test
+  public void testIncompressibleMessage() {
+    assertNull(Compression.compress(random(8 * 1024), 1));
+  }
+
+  @Test
+  public void testCorruptMessages() {
+    ByteBuffer compressed = Compression.compress(compressible(8 * 1024), 1);
+    ByteBuffer truncated = compressed.duplicate();
+    truncated.limit(truncated.limit() - 8);
+    try {
+      inflate(truncated);
+      fail("A truncated message was inflated");
+    } catch (DataFormatException e) {
+      // Expected
+    }
+    try {
+      Compression.decompress(compressed.duplicate(), ByteBuffer.allocate(8 * 1024 + 1));
+      fail("A message inflated to another size than its original size");
+    } catch (DataFormatException e) {
+      // Expected
+    }
+  }
+
+  // Both sides compress the messages above the threshold once they know that
+  // the peer takes them, and inflate the ones they receive
+  @Test(timeout = 10000)
+  public void testMessagesOverSockets() throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setCompressionThreshold(THRESHOLD);
+    LocalServer server = new LocalServer(options);
+    MultiSocketClient client = new MultiSocketClient(options);
+    try {
+      IConnection c = client.connect(server.getAddress()).get();
+      // The HELLO of each side comes ahead of its messages
+      c.writeMessage("hello");
+      IConnection s = server.nextConnection();
+      assertEquals("hello", s.readMessage());
+      s.writeMessage("hello");
+      assertEquals("hello", c.readMessage());
+
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 4 * THRESHOLD) {
+        text.append("compressed ").append(text.length()).append(' ');
+      }
+      ByteBuffer[] messages = { compressible(THRESHOLD - 1), compressible(10 * 1024), compressible(300 * 1024),
+          random(10 * 1024) };
+      for (ByteBuffer message : messages) {
+        c.writeMessage(message.duplicate());
+      }
+      c.writeMessage(text.toString());
+      for (ByteBuffer message : messages) {
+        ByteBuffer received = s.readMessageBuffer();
+        assertEquals(message, received);
+        s.writeMessage(received);
+      }
+      assertEquals(text.toString(), s.readMessage());
+      for (ByteBuffer message : messages) {
+        assertEquals(message, c.readMessageBuffer());
+      }
+
+      SocketStatistics statistics = client.getSocketStatistics().get(0);
+      // The small and the random messages are sent as they are
+      assertEquals(3, statistics.getCompressedMessageNumber());
+      assertTrue(statistics.getBytesAfterCompression() < statistics.getBytesBeforeCompression() / 4);
+      assertEquals(2, statistics.getDecompressedMessageNumber());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+}
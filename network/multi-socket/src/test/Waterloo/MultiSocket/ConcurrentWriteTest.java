@@ -0,0 +1,88 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/*
+ * Many threads write to the connections of one socket at the same time. No
+ * message is lost, and the messages of every connection keep their order.
+ */
+public class ConcurrentWriteTest {
+
+  private static final int writerNum = 8;
+  private static final int messageNum = 1000;
+
+  @Test(timeout = 60000)
+  public void testConcurrentWriters() throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setReactorNum(1);
+    LocalServer server = new LocalServer(options);
+    MultiSocketClient client = new MultiSocketClient(options);
+    ExecutorService pool = Executors.newFixedThreadPool(2 * writerNum);
+    try {
+      List<Future<?>> writers = new ArrayList<Future<?>>();
+      for (int w = 0; w < writerNum; w++) {
+        IConnection connection = client.connect(server.getAddress()).get();
+        final int writer = w;
+        writers.add(pool.submit(() -> {
+          for (int i = 0; i < messageNum; i++) {
+            connection.writeMessage(writer + ":" + i);
+          }
+          return null;
+        }));
+      }
+
+      List<Future<?>> readers = new ArrayList<Future<?>>();
+      for (int w = 0; w < writerNum; w++) {
+        IConnection accepted = server.nextConnection();
+        assertNotNull(accepted);
+        readers.add(pool.submit(() -> {
+          String first = accepted.readMessage();
+          String writer = first.substring(0, first.indexOf(':') + 1);
+          assertEquals(writer + 0, first);
+          for (int i = 1; i < messageNum; i++) {
+            assertEquals(writer + i, accepted.readMessage());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> writer : writers) {
+        writer.get(); // Rethrows the failures of the writer
+      }
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+
+      // All the connections shared the client's only socket
+      assertEquals(1, client.getReactorStatistics().get(0).getRegisteredSocketNumber());
+    } finally {
+      pool.shutdownNow();
+      client.close();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Waterloo.MultiSocket.MultiSocketOptions.CreditPolicy;
+import Waterloo.MultiSocket.exception.CreditExhaustedException;
+
+/*
+ * What a sender does under each credit policy once a slow reader used up the
+ * window of the channel, and how the credit comes back as the reader consumes
+ * the messages.
+ */
+public class CreditPolicyTest {
+  private static final int WINDOW = 64 * 1024;
+  // Two messages go beyond the window, one fits in it
+  private static final int MESSAGE_SIZE = 40 * 1024;
+
+  private LocalServer server;
+  private MultiSocketClient client;
+
+  @Before
+  public void beforeEach() throws IOException {
+    MultiSocketOptions serverOptions = new MultiSocketOptions();
+    serverOptions.setChannelWindow(WINDOW);
+    this.server = new LocalServer(serverOptions);
+  }
+
+  @After
+  public void afterEach() throws IOException {
+    if (this.client != null) {
+      this.client.close();
+    }
+    this.server.close();
+  }
+
+  private IConnection connect(CreditPolicy policy) throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setCreditPolicy(policy);
+    this.client = new MultiSocketClient(options);
+    return this.client.connect(this.server.getAddress()).get();
+  }
+
+  private static ByteBuffer message(int seed) {
+    ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+    for (int i = 0; i < MESSAGE_SIZE; i++) {
+      buffer.put((byte) (i + seed));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private long getCreditStallNumber() {
+    return this.client.getSocketStatistics().get(0).getCreditStallNumber();
+  }
+
+  @Test(timeout = 10000)
+  public void testBlockWaitsForCredit() throws Exception {
+    final IConnection c = connect(CreditPolicy.BLOCK);
+    c.writeMessage(message(1));
+    IConnection s = this.server.nextConnection();
+
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> written = writer.submit(() -> {
+        c.writeMessage(message(2));
+        return null;
+      });
+      // Nothing was consumed, so the sender waits
+      Thread.sleep(300);
+      assertFalse(written.isDone());
+
+      assertEquals(message(1), s.readMessageBuffer());
+      written.get(5, TimeUnit.SECONDS);
+      assertEquals(message(2), s.readMessageBuffer());
+    } finally {
+      writer.shutdown();
+    }
+    assertTrue(getCreditStallNumber() >= 1);
+  }
+
+  @Test(timeout = 10000)
+  public void testFailThrowsWithoutSending() throws Exception {
+    IConnection c = connect(CreditPolicy.FAIL);
+    c.writeMessage(message(1));
+    IConnection s = this.server.nextConnection();
+    try {
+      c.writeMessage(message(2));
+      fail("A message beyond the credit was sent");
+    } catch (CreditExhaustedException e) {
+      // Expected
+    }
+    assertTrue(getCreditStallNumber() >= 1);
+
+    // The message is sent again once the reader gives the credit back
+    assertEquals(message(1), s.readMessageBuffer());
+    while (true) {
+      try {
+        c.writeMessage(message(3));
+        break;
+      } catch (CreditExhaustedException e) {
+        Thread.sleep(10); // The credit is on its way
+      }
+    }
+    assertEquals(message(3), s.readMessageBuffer());
+  }
+
+  @Test(timeout = 10000)
+  public void testAsyncNotifyQueuesAndCallsTheListener() throws Exception {
+    IConnection c = connect(CreditPolicy.ASYNC_NOTIFY);
+    final CountDownLatch creditAvailable = new CountDownLatch(1);
+    c.setCreditListener(connection -> creditAvailable.countDown());
+    c.writeMessage(message(1));
+    IConnection s = this.server.nextConnection();
+
+    // Returns at once, and the message waits for credit
+    c.writeMessage(message(2));
+    assertFalse(c.isWritable());
+    assertTrue(getCreditStallNumber() >= 1);
+    assertEquals(1, creditAvailable.getCount());
+
+    assertEquals(message(1), s.readMessageBuffer());
+    assertTrue(creditAvailable.await(5, TimeUnit.SECONDS));
+    assertEquals(message(2), s.readMessageBuffer());
+  }
+
+  // A message bigger than the window is sent once it has the whole window
+  @Test(timeout = 10000)
+  public void testMessageBiggerThanTheWindow() throws Exception {
+    IConnection c = connect(CreditPolicy.FAIL);
+    ByteBuffer big = ByteBuffer.allocate(3 * WINDOW);
+    c.writeMessage(big.duplicate());
+    IConnection s = this.server.nextConnection();
+    assertEquals(big, s.readMessageBuffer());
+  }
+}
@@ -0,0 +1,164 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Messages bigger than a frame are split into fragments by the sender and put
+ * back together by the receiver.
+ */
+public class FragmentationTest {
+  private LocalServer server;
+  private MultiSocketClient client;
+
+  @Before
+  public void beforeEach() throws IOException {
+    this.server = new LocalServer(new MultiSocketOptions());
+    this.client = new MultiSocketClient(1);
+  }
+
+  @After
+  public void afterEach() throws IOException {
+    this.client.close();
+    this.server.close();
+  }
+
+  // Bytes that differ from one offset to the next, so that a fragment out of
+  // place shows up
+  private static ByteBuffer pattern(int size, int seed) {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      buffer.put((byte) (i * 31 + i / 251 + seed));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private IConnection connect() throws Exception {
+    return this.client.connect(this.server.getAddress()).get();
+  }
+
+  @Test(timeout = 10000)
+  public void testMessageOfManyFrames() throws Exception {
+    IConnection c = connect();
+    c.writeMessage(pattern(1024 * 1024 + 17, 1));
+    IConnection s = this.server.nextConnection();
+    assertNotNull(s);
+
+    assertEquals(pattern(1024 * 1024 + 17, 1), s.readMessageBuffer());
+  }
+
+  @Test(timeout = 10000)
+  public void testSizesAroundTheFrameSize() throws Exception {
+    IConnection c = connect();
+    int[] sizes = { 64 * 1024 - 21, 64 * 1024 - 20, 64 * 1024 - 19, 64 * 1024, 128 * 1024 - 40, 128 * 1024 - 39, 0 };
+    for (int i = 0; i < sizes.length; i++) {
+      c.writeMessage(pattern(sizes[i], i));
+    }
+    IConnection s = this.server.nextConnection();
+    for (int i = 0; i < sizes.length; i++) {
+      assertEquals("message of " + sizes[i] + " bytes", pattern(sizes[i], i), s.readMessageBuffer());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testStringOfManyFrames() throws Exception {
+    // Chars of 1, 2 and 3 bytes in UTF-8, so the encoded size is not known ahead
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100 * 1024; i++) {
+      builder.append("a\u00e9\u4e2d".charAt(i % 3));
+    }
+    String message = builder.toString();
+    IConnection c = connect();
+    c.writeMessage(message);
+    c.writeMessage("after");
+
+    IConnection s = this.server.nextConnection();
+    assertEquals(message, s.readMessage());
+    assertEquals("after", s.readMessage());
+  }
+
+  // The fragments of a big message on a channel and the messages of another
+  // channel of the same socket do not mix
+  @Test(timeout = 20000)
+  public void testFragmentsOfConcurrentChannels() throws Exception {
+    // The server learns about a connection from its first message
+    final IConnection big = connect();
+    big.writeMessage("big");
+    IConnection bigServer = this.server.nextConnection();
+    assertEquals("big", bigServer.readMessage());
+    IConnection small = connect();
+    small.writeMessage("small");
+    IConnection smallServer = this.server.nextConnection();
+    assertEquals("small", smallServer.readMessage());
+
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> bigWritten = writer.submit(() -> {
+        for (int i = 0; i < 4; i++) {
+          big.writeMessage(pattern(512 * 1024, i));
+        }
+        return null;
+      });
+      for (int i = 0; i < 100; i++) {
+        small.writeMessage("small " + i);
+      }
+      for (int i = 0; i < 100; i++) {
+        assertEquals("small " + i, smallServer.readMessage());
+      }
+      for (int i = 0; i < 4; i++) {
+        assertEquals(pattern(512 * 1024, i), bigServer.readMessageBuffer());
+      }
+      bigWritten.get();
+    } finally {
+      writer.shutdown();
+    }
+  }
+
+  // A message that goes over the max message size is not sent at all
+  @Test(timeout = 10000)
+  public void testMaxMessageSize() throws Exception {
+    this.client.close();
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setMaxMessageSize(200 * 1024);
+    this.client = new MultiSocketClient(options);
+
+    IConnection c = connect();
+    try {
+      c.writeMessage(pattern(200 * 1024 + 1, 0));
+      fail("A message over the max message size was sent");
+    } catch (IOException e) {
+      // Expected
+    }
+    c.writeMessage(pattern(200 * 1024, 0));
+    IConnection s = this.server.nextConnection();
+    assertEquals(pattern(200 * 1024, 0), s.readMessageBuffer());
+  }
+}
@@ -0,0 +1,106 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Waterloo.MultiSocket.exception.ConnectionCloseException;
+
+/*
+ * A new connection opens its channel with its first DATA frame, and a message
+ * written with writeMessageAndClose closes the channel in the same frame. The
+ * tests count the frames the client writes, up to a marker message that
+ * arrives after any frame the client wrote before it.
+ */
+public class FusedFramesTest {
+
+  private LocalServer server;
+  private MultiSocketClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalServer(new MultiSocketOptions());
+    client = new MultiSocketClient(new MultiSocketOptions());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.close();
+  }
+
+  // A short RPC takes one frame each way
+  @Test(timeout = 10000)
+  public void testRequestResponse() throws Exception {
+    IConnection connection = client.connect(server.getAddress()).get();
+    long frames = sendMarker();
+    connection.writeMessage("request");
+    IConnection accepted = server.nextConnection();
+    assertNotNull(accepted);
+    assertEquals("request", accepted.readMessage());
+    accepted.writeMessageAndClose("response");
+    assertEquals("response", connection.readMessage());
+    assertClosed(connection);
+    connection.close(); // The server forgot the channel, so sends nothing
+    assertEquals(frames + 2, sendMarker());
+  }
+
+  @Test(timeout = 10000)
+  public void testWriteMessageAndClose() throws Exception {
+    IConnection connection = client.connect(server.getAddress()).get();
+    long frames = sendMarker();
+    connection.writeMessageAndClose("last");
+    IConnection accepted = server.nextConnection();
+    assertNotNull(accepted);
+    assertEquals("last", accepted.readMessage());
+    assertClosed(accepted);
+    assertEquals(frames + 2, sendMarker());
+  }
+
+  @Test(timeout = 10000)
+  public void testCloseUnusedConnection() throws Exception {
+    IConnection connection = client.connect(server.getAddress()).get();
+    long frames = sendMarker();
+    connection.close();
+    assertEquals(frames + 1, sendMarker());
+  }
+
+  // Sends a message on a new connection, and returns the number of frames the
+  // client wrote once the server has it
+  private long sendMarker() throws Exception {
+    client.connect(server.getAddress()).get().writeMessage("marker");
+    IConnection accepted = server.nextConnection();
+    assertNotNull(accepted);
+    assertEquals("marker", accepted.readMessage());
+    return client.getSocketStatistics().get(0).getFrameWrittenNumber();
+  }
+
+  private static void assertClosed(IConnection connection) throws InterruptedException {
+    try {
+      connection.readMessage();
+      fail("Read after the peer closed the connection");
+    } catch (ConnectionCloseException e) {
+      // Expected
+    }
+  }
+}
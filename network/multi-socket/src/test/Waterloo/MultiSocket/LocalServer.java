@@ -0,0 +1,62 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A MultiSocketServer on a free port of the loopback interface, for the tests
+ * of this package. The accepted connections are queued for the test to take.
+ */
+class LocalServer {
+
+  private final MultiSocketServer server;
+  private final InetSocketAddress address;
+  private final BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+
+  LocalServer(MultiSocketOptions options) throws IOException {
+    this.server = new MultiSocketServer(this.accepted::add, new InetSocketAddress("127.0.0.1", 0), -1, options);
+    this.address = new InetSocketAddress("127.0.0.1", this.server.getLocalPort());
+    Thread acceptor = new Thread(() -> {
+      try {
+        this.server.accept();
+      } catch (IOException | ClosedSelectorException e) {
+        // Closed by the test
+      }
+    }, "LocalServer-Acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  InetSocketAddress getAddress() {
+    return this.address;
+  }
+
+  // Returns the next connection a client opened, or null after 5 seconds
+  IConnection nextConnection() throws InterruptedException {
+    return this.accepted.poll(5, TimeUnit.SECONDS);
+  }
+
+  void close() throws IOException {
+    this.server.close();
+  }
+}
@@ -0,0 +1,133 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Messages sent and received as ByteBuffers, next to Strings, and the arena
+ * the received messages are copied into.
+ */
+public class MessageBufferTest {
+  private MultiSocketServer server;
+  private final BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+  private MultiSocketClient client;
+
+  @Before
+  public void beforeEach() throws IOException {
+    this.server = new MultiSocketServer(this.accepted::add, new InetSocketAddress("127.0.0.1", 0));
+    Thread acceptor = new Thread(() -> {
+      try {
+        this.server.accept();
+      } catch (IOException | ClosedSelectorException e) {
+        // Closed by the test
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    this.client = new MultiSocketClient();
+  }
+
+  @After
+  public void afterEach() throws IOException {
+    this.client.close();
+    this.server.close();
+  }
+
+  private IConnection connect() throws Exception {
+    return this.client.connect(new InetSocketAddress("127.0.0.1", this.server.getLocalPort())).get();
+  }
+
+  // The server learns about a connection from its first message
+  private IConnection nextConnection() throws InterruptedException {
+    IConnection connection = this.accepted.poll(5, TimeUnit.SECONDS);
+    assertNotNull(connection);
+    return connection;
+  }
+
+  @Test(timeout = 10000)
+  public void testBufferMessages() throws Exception {
+    IConnection c = connect();
+    ByteBuffer message = ByteBuffer.wrap(new byte[] { 9, 9, 1, 2, 3, 4 });
+    message.position(2);
+    c.writeMessage(message);
+    // Only the remaining bytes are sent, and the buffer is left as it was
+    assertEquals(2, message.position());
+    c.writeMessage(ByteBuffer.allocate(0));
+
+    IConnection s = nextConnection();
+    ByteBuffer received = s.readMessageBuffer();
+    assertTrue(received.isReadOnly());
+    assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), received);
+    assertEquals(0, s.readMessageBuffer().remaining());
+  }
+
+  // A String goes as its UTF-8 bytes, so either side may use either form
+  @Test(timeout = 10000)
+  public void testStringsAsBuffers() throws Exception {
+    String text = "a\u00e9\u4e2d";
+    IConnection c = connect();
+    c.writeMessage(text);
+    c.writeMessage(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+
+    IConnection s = nextConnection();
+    assertEquals(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), s.readMessageBuffer());
+    assertEquals(text, s.readMessage());
+  }
+
+  @Test
+  public void testArenaSlabs() {
+    ReceiveArena arena = new ReceiveArena(1024);
+    ByteBuffer first = arena.allocate(100);
+    ByteBuffer second = arena.allocate(200);
+    assertEquals(0, first.position());
+    assertEquals(100, first.limit());
+    assertEquals(200, second.limit());
+    // Carved out of the same slab, one after the other
+    assertSame(first.array(), second.array());
+    assertEquals(first.arrayOffset() + 100, second.arrayOffset());
+
+    // A message bigger than a quarter of a slab gets its own buffer
+    ByteBuffer big = arena.allocate(257);
+    assertEquals(257, big.capacity());
+    assertNotSame(first.array(), big.array());
+
+    // A new slab once the current one has no room left
+    arena.allocate(256);
+    arena.allocate(256);
+    ByteBuffer next = arena.allocate(256);
+    assertNotSame(first.array(), next.array());
+    assertEquals(0, next.arrayOffset());
+  }
+}
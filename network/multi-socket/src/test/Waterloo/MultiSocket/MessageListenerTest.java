@@ -0,0 +1,145 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*
+ * A MessageListener receives the messages of a connection in order, one call
+ * at a time, and then onClose once.
+ */
+public class MessageListenerTest {
+
+  private static final int messageNum = 500;
+
+  // Records the messages, and fails the test if the calls overlap or a
+  // message follows onClose
+  private static class RecordingListener implements MessageListener {
+    final List<String> messages = new ArrayList<String>();
+    final AtomicInteger activeCalls = new AtomicInteger(0);
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile boolean overlapped = false;
+    volatile int closeNumber = 0;
+    volatile int messagesAfterClose = 0;
+
+    @Override
+    public void onMessage(IConnection connection, ByteBuffer message) {
+      enter();
+      if (closeNumber > 0) {
+        messagesAfterClose++;
+      }
+      synchronized (messages) {
+        messages.add(StandardCharsets.UTF_8.decode(message).toString());
+      }
+      activeCalls.decrementAndGet();
+    }
+
+    @Override
+    public void onClose(IConnection connection) {
+      enter();
+      closeNumber++;
+      activeCalls.decrementAndGet();
+      closed.countDown();
+    }
+
+    private void enter() {
+      if (activeCalls.incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      Thread.yield(); // Gives other calls a chance to overlap
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testExecutorDelivery() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      checkDelivery(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testReactorDelivery() throws Exception {
+    checkDelivery(null);
+  }
+
+  // The current thread delivers the messages the executor does not take
+  @Test(timeout = 20000)
+  public void testRejectingExecutor() throws Exception {
+    checkDelivery(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException("Rejects every task");
+      }
+    });
+  }
+
+  // The messages queued before the listener is set are delivered first
+  private static void checkDelivery(Executor executor) throws Exception {
+    LocalServer server = new LocalServer(new MultiSocketOptions());
+    MultiSocketClient client = new MultiSocketClient(new MultiSocketOptions());
+    try {
+      IConnection connection = client.connect(server.getAddress()).get();
+      for (int i = 0; i < messageNum / 2; i++) {
+        connection.writeMessage("message " + i);
+      }
+      IConnection accepted = server.nextConnection();
+      assertNotNull(accepted);
+      assertEquals("message 0", accepted.readMessage());
+
+      RecordingListener listener = new RecordingListener();
+      accepted.setMessageListener(listener, executor);
+      for (int i = messageNum / 2; i < messageNum; i++) {
+        connection.writeMessage("message " + i);
+      }
+      connection.close();
+      assertTrue(listener.closed.await(10, TimeUnit.SECONDS));
+
+      synchronized (listener.messages) {
+        assertEquals(messageNum - 1, listener.messages.size());
+        for (int i = 1; i < messageNum; i++) {
+          assertEquals("message " + i, listener.messages.get(i - 1));
+        }
+      }
+      assertEquals(1, listener.closeNumber);
+      assertEquals(0, listener.messagesAfterClose);
+      assertFalse(listener.overlapped);
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import Waterloo.MultiSocket.MultiSocketOptions.PollPolicy;
+
+/*
+ * Messages flow both ways under every poll policy, including after the
+ * reactors and readers have spun for longer than the spin time and blocked.
+ */
+public class PollPolicyTest {
+
+  private static final int roundTripNum = 200;
+
+  @Test(timeout = 20000)
+  public void testBlock() throws Exception {
+    pingPong(PollPolicy.BLOCK);
+  }
+
+  @Test(timeout = 20000)
+  public void testSpinThenBlock() throws Exception {
+    pingPong(PollPolicy.SPIN_THEN_BLOCK);
+  }
+
+  @Test(timeout = 20000)
+  public void testSpin() throws Exception {
+    pingPong(PollPolicy.SPIN);
+  }
+
+  private static void pingPong(PollPolicy policy) throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setReactorNum(1);
+    options.setPollPolicy(policy);
+    options.setSpinMicros(1000);
+    LocalServer server = new LocalServer(options);
+    MultiSocketClient client = new MultiSocketClient(options);
+    try {
+      IConnection connection = client.connect(server.getAddress()).get();
+      connection.writeMessage("ping 0");
+      IConnection accepted = server.nextConnection();
+      assertNotNull(accepted);
+      for (int i = 0; i < roundTripNum; i++) {
+        assertEquals("ping " + i, accepted.readMessage());
+        accepted.writeMessage("pong " + i);
+        assertEquals("pong " + i, connection.readMessage());
+        if (i % 50 == 49) {
+          Thread.sleep(20); // Idle for longer than the spin time
+        }
+        connection.writeMessage("ping " + (i + 1));
+      }
+      assertEquals("ping " + roundTripNum, accepted.readMessage());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * The sockets of a server or a client are spread over the reactors of its
+ * group, round-robin.
+ */
+public class ReactorGroupTest {
+
+  @Test(timeout = 10000)
+  public void testRoundRobin() throws IOException {
+    ReactorGroup group = new ReactorGroup("Test-Reactor", 3, true);
+    try {
+      assertEquals(3, group.size());
+      Reactor first = group.next();
+      Reactor second = group.next();
+      Reactor third = group.next();
+      assertNotSame(first, second);
+      assertNotSame(second, third);
+      assertNotSame(first, third);
+      assertSame(first, group.next());
+
+      List<ReactorStatistics> statistics = group.getStatistics();
+      assertEquals(3, statistics.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("Test-Reactor-" + i, statistics.get(i).getReactorName());
+      }
+    } finally {
+      group.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testDefaultReactorNum() throws IOException {
+    ReactorGroup group = new ReactorGroup("Test-Reactor", 0, true);
+    try {
+      assertEquals(ReactorGroup.DEFAULT_REACTOR_NUM, group.size());
+    } finally {
+      group.close();
+    }
+  }
+
+  // Every client has its own socket to the server, and the server hands the
+  // sockets to its two reactors in turn
+  @Test(timeout = 10000)
+  public void testServerSocketsSpread() throws Exception {
+    BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+    MultiSocketServer server = new MultiSocketServer(accepted::add, new InetSocketAddress("127.0.0.1", 0), -1, 2);
+    Thread acceptor = new Thread(() -> {
+      try {
+        server.accept();
+      } catch (IOException | ClosedSelectorException e) {
+        // Closed by the test
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    List<MultiSocketClient> clients = new ArrayList<MultiSocketClient>();
+    try {
+      InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+      for (int i = 0; i < 4; i++) {
+        MultiSocketClient client = new MultiSocketClient(1);
+        clients.add(client);
+        client.connect(address).get().writeMessage("client " + i);
+        // The server learns about a connection from its first message
+        IConnection connection = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(connection);
+        assertEquals("client " + i, connection.readMessage());
+      }
+
+      List<ReactorStatistics> statistics = server.getReactorStatistics();
+      assertEquals(2, statistics.size());
+      for (ReactorStatistics reactor : statistics) {
+        assertEquals(reactor.toString(), 2, reactor.getRegisteredSocketNumber());
+        assertEquals(reactor.toString(), 2, reactor.getActiveSocketNumber());
+      }
+    } finally {
+      for (MultiSocketClient client : clients) {
+        client.close();
+      }
+      server.close();
+    }
+  }
+}
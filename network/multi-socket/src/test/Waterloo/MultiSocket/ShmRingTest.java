@@ -0,0 +1,239 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Frames streamed through a small ring, which they wrap around many times,
+ * from a producer mapping of the file to a consumer mapping, as two processes
+ * would map it.
+ */
+public class ShmRingTest {
+  private static final int RING_SIZE = 4096;
+  private static final int HEADER_SIZE = MultiSocket.headerSize;
+  private static final int DATA_OFFSET = 192; // Of the ring's bytes in the file
+
+  private File file;
+  private ExecutorService producer;
+
+  @Before
+  public void beforeEach() throws IOException {
+    this.file = File.createTempFile("ShmRingTest", ".ring");
+    this.producer = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void afterEach() {
+    this.producer.shutdownNow();
+    this.file.delete();
+  }
+
+  private static ByteBuffer pattern(int size, int seed) {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      buffer.put((byte) (i * 7 + seed));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  // Waits for the next frame, as the consumer of a link polls its ring
+  private static ByteBuffer nextFrame(ShmRing ring) throws Exception {
+    ByteBuffer frame;
+    while ((frame = ring.readFrame()) == null) {
+      Thread.yield();
+    }
+    return frame;
+  }
+
+  @Test(timeout = 20000)
+  public void testFramesWrapAroundTheRing() throws Exception {
+    final ShmRing out = ShmRing.create(this.file, RING_SIZE);
+    ShmRing in = ShmRing.open(this.file);
+    assertEquals(RING_SIZE, in.getSize());
+    final int frameNum = 2000;
+
+    // Sizes that do not divide the ring, so frames and headers are split at its end
+    Future<?> written = this.producer.submit(() -> {
+      for (int i = 0; i < frameNum; i++) {
+        out.writeFrame(ShmRing.DATA, i, pattern(i * 37 % 1500, i));
+      }
+      out.writeFrame(ShmRing.CLOSE, frameNum, null);
+      return null;
+    });
+    for (int i = 0; i < frameNum; i++) {
+      ByteBuffer frame = nextFrame(in);
+      assertEquals(ShmRing.DATA, in.getFrameType());
+      assertEquals(i, in.getFrameChannel());
+      assertEquals("frame " + i, pattern(i * 37 % 1500, i), frame);
+    }
+    assertEquals(0, nextFrame(in).remaining());
+    assertEquals(ShmRing.CLOSE, in.getFrameType());
+    assertEquals(frameNum, in.getFrameChannel());
+    written.get();
+    assertNull(in.readFrame());
+  }
+
+  @Test(timeout = 20000)
+  public void testPayloadsBiggerThanTheRing() throws Exception {
+    final ShmRing out = ShmRing.create(this.file, RING_SIZE);
+    ShmRing in = ShmRing.open(this.file);
+    // The biggest payload of one frame, the smallest of two, and one of many
+    final int[] sizes = { RING_SIZE - HEADER_SIZE, RING_SIZE - HEADER_SIZE + 1, 10 * RING_SIZE + 5, 3 };
+
+    Future<?> written = this.producer.submit(() -> {
+      for (int i = 0; i < sizes.length; i++) {
+        out.writeFrame(ShmRing.DATA, 1, pattern(sizes[i], i));
+      }
+      return null;
+    });
+    for (int i = 0; i < sizes.length; i++) {
+      assertEquals("payload of " + sizes[i] + " bytes", pattern(sizes[i], i), nextFrame(in));
+      assertEquals(ShmRing.DATA, in.getFrameType());
+      assertEquals(1, in.getFrameChannel());
+    }
+    written.get();
+  }
+
+  // The frames are MultiSocket frames, and a payload bigger than a frame is
+  // split as on a socket
+  @Test(timeout = 20000)
+  public void testSocketFrameFormat() throws Exception {
+    final ShmRing out = ShmRing.create(this.file, RING_SIZE);
+    ShmRing in = ShmRing.open(this.file);
+    out.writeFrame(ShmRing.DATA, 3, pattern(10, 0));
+    ByteBuffer header = readFile(DATA_OFFSET, HEADER_SIZE + 4);
+    assertEquals(MultiSocket.magicNumber, header.getInt());
+    assertEquals(ShmRing.DATA, header.getInt());
+    assertEquals(3, header.getInt());
+    header.getInt(); // Credit
+    assertEquals(10, header.getInt());
+    assertEquals(pattern(10, 0), nextFrame(in));
+
+    final int size = 2 * RING_SIZE;
+    Future<?> written = this.producer.submit(() -> {
+      out.writeFrame(ShmRing.DATA, 4, pattern(size, 1));
+      return null;
+    });
+    int start = DATA_OFFSET + HEADER_SIZE + 10;
+    while ((header = readFile(start, HEADER_SIZE + 4)).getInt(0) != MultiSocket.magicNumber) {
+      Thread.yield();
+    }
+    header.getInt();
+    assertEquals(ShmRing.DATA | MultiSocket.FIRST_FRAGMENT, header.getInt());
+    assertEquals(4, header.getInt());
+    header.getInt();
+    assertEquals(RING_SIZE - HEADER_SIZE, header.getInt());
+    assertEquals(size, header.getInt());
+    assertEquals(pattern(size, 1), nextFrame(in));
+    assertEquals(ShmRing.DATA, in.getFrameType());
+    written.get();
+  }
+
+  private ByteBuffer readFile(int offset, int length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+    try {
+      ByteBuffer bytes = ByteBuffer.allocate(length);
+      raf.getChannel().read(bytes, offset);
+      bytes.flip();
+      return bytes;
+    } finally {
+      raf.close();
+    }
+  }
+
+  // Producers take turns to write whole payloads, fragmented or not
+  @Test(timeout = 30000)
+  public void testConcurrentProducers() throws Exception {
+    final ShmRing out = ShmRing.create(this.file, RING_SIZE);
+    ShmRing in = ShmRing.open(this.file);
+    final int producerNum = 4;
+    final int payloadNum = 50;
+    ExecutorService producers = Executors.newFixedThreadPool(producerNum);
+    try {
+      for (int p = 0; p < producerNum; p++) {
+        final int channel = p;
+        producers.submit(() -> {
+          for (int i = 0; i < payloadNum; i++) {
+            out.writeFrame(ShmRing.DATA, channel, pattern((i * 613 + channel * 97) % (3 * RING_SIZE), i + channel));
+          }
+          return null;
+        });
+      }
+      int[] next = new int[producerNum];
+      for (int n = 0; n < producerNum * payloadNum; n++) {
+        ByteBuffer payload = nextFrame(in);
+        int channel = in.getFrameChannel();
+        int i = next[channel]++;
+        assertEquals("payload " + i + " of channel " + channel,
+            pattern((i * 613 + channel * 97) % (3 * RING_SIZE), i + channel), payload);
+      }
+      assertNull(in.readFrame());
+    } finally {
+      producers.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRingSize() throws IOException {
+    for (int size : new int[] { 1000, HEADER_SIZE, 16 }) {
+      try {
+        ShmRing.create(this.file, size);
+        fail("Created a ring of " + size + " bytes");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  // A producer waiting for room fails once its ring is closed
+  @Test(timeout = 10000)
+  public void testCloseStopsAWaitingProducer() throws Exception {
+    final ShmRing out = ShmRing.create(this.file, RING_SIZE);
+    Future<?> written = this.producer.submit(() -> {
+      out.writeFrame(ShmRing.DATA, 1, pattern(2 * RING_SIZE, 0));
+      return null;
+    });
+    Thread.sleep(100);
+    out.close();
+    try {
+      written.get(5, TimeUnit.SECONDS);
+      fail("Wrote to a ring that nobody reads");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+  }
+}
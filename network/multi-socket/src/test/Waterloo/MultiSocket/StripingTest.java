@@ -0,0 +1,116 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/*
+ * A client spreads its connections to one server over several sockets, by
+ * turns or to the socket with the fewest connections.
+ */
+public class StripingTest {
+
+  @Test(timeout = 20000)
+  public void testRoundRobin() throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setStripeNum(3);
+    LocalServer server = new LocalServer(new MultiSocketOptions());
+    MultiSocketClient client = new MultiSocketClient(options);
+    try {
+      for (int i = 0; i < 6; i++) {
+        client.connect(server.getAddress()).get().writeMessage("connection " + i);
+      }
+      Map<String, IConnection> accepted = acceptAll(server, 6);
+      for (int i = 0; i < 6; i++) {
+        assertNotNull(accepted.get("connection " + i));
+      }
+
+      List<SocketStatistics> statistics = client.getSocketStatistics();
+      assertEquals(3, statistics.size());
+      for (int i = 0; i < 3; i++) {
+        SocketStatistics stripe = statistics.get(i);
+        assertEquals(server.getAddress() + "#" + i, stripe.getSocketName());
+        assertEquals(2, stripe.getConnectionNumber());
+        assertTrue(stripe.getBytesWritten() > 0);
+      }
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  // After the connections of one stripe close, new connections go to that
+  // stripe until the stripes are even again
+  @Test(timeout = 20000)
+  public void testLeastLoaded() throws Exception {
+    MultiSocketOptions options = new MultiSocketOptions();
+    options.setStripeNum(2);
+    options.setStripePolicy(MultiSocketOptions.StripePolicy.LEAST_LOADED);
+    LocalServer server = new LocalServer(new MultiSocketOptions());
+    MultiSocketClient client = new MultiSocketClient(options);
+    try {
+      List<IConnection> connections = new ArrayList<IConnection>();
+      for (int i = 0; i < 4; i++) {
+        IConnection connection = client.connect(server.getAddress()).get();
+        connection.writeMessage("connection " + i);
+        connections.add(connection);
+      }
+      Map<String, IConnection> accepted = acceptAll(server, 4);
+      assertEquals(2, client.getSocketStatistics().get(0).getConnectionNumber());
+      assertEquals(2, client.getSocketStatistics().get(1).getConnectionNumber());
+
+      // Connections 1 and 3 are on the second stripe, and are gone once both
+      // sides close them
+      for (int i = 1; i < 4; i += 2) {
+        connections.get(i).close();
+        accepted.get("connection " + i).close();
+      }
+      SocketStatistics second = client.getSocketStatistics().get(1);
+      while (second.getConnectionNumber() > 0) {
+        Thread.sleep(10);
+      }
+
+      client.connect(server.getAddress()).get();
+      client.connect(server.getAddress()).get();
+      assertEquals(2, client.getSocketStatistics().get(0).getConnectionNumber());
+      assertEquals(2, second.getConnectionNumber());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  // Takes the connections the server accepted, by their first message
+  private static Map<String, IConnection> acceptAll(LocalServer server, int number) throws Exception {
+    Map<String, IConnection> accepted = new HashMap<String, IConnection>();
+    for (int i = 0; i < number; i++) {
+      IConnection connection = server.nextConnection();
+      assertNotNull(connection);
+      accepted.put(connection.readMessage(), connection);
+    }
+    return accepted;
+  }
+}
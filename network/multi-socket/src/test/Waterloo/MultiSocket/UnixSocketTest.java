@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * MultiSocket servers and clients over Unix domain sockets, which need Java 16
+ * or later. The tests are skipped on older JVMs.
+ */
+public class UnixSocketTest {
+
+  private File directory;
+  private File socketFile;
+  private final BlockingQueue<IConnection> accepted = new LinkedBlockingQueue<IConnection>();
+
+  @Before
+  public void setUp() throws IOException {
+    Assume.assumeTrue(UnixDomainSockets.isSupported());
+    directory = Files.createTempDirectory("multisocket").toFile();
+    socketFile = new File(directory, "server.sock");
+  }
+
+  @After
+  public void tearDown() {
+    if (directory != null) {
+      socketFile.delete();
+      directory.delete();
+    }
+  }
+
+  private MultiSocketServer startServer(SocketAddress address) throws IOException {
+    MultiSocketServer server = new MultiSocketServer(accepted::add, address);
+    Thread acceptor = new Thread(() -> {
+      try {
+        server.accept();
+      } catch (IOException | ClosedSelectorException e) {
+        // Closed by the test
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return server;
+  }
+
+  @Test(timeout = 10000)
+  public void testConnections() throws Exception {
+    SocketAddress address = UnixDomainSockets.address(socketFile.getPath());
+    MultiSocketServer server = startServer(address);
+    MultiSocketClient client = new MultiSocketClient();
+    try {
+      assertEquals(-1, server.getLocalPort());
+      // The connections share one socket, as over TCP
+      for (int i = 0; i < 2; i++) {
+        IConnection connection = client.connect(address).get();
+        connection.writeMessage("request " + i);
+        IConnection serverEnd = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(serverEnd);
+        assertEquals("request " + i, serverEnd.readMessage());
+        serverEnd.writeMessage("response " + i);
+        assertEquals("response " + i, connection.readMessage());
+      }
+    } finally {
+      client.close();
+      server.close();
+    }
+    assertFalse(socketFile.exists());
+  }
+
+  // A socket file left behind by a server that did not close is replaced
+  @Test(timeout = 10000)
+  public void testStaleSocketFile() throws Exception {
+    assertTrue(socketFile.createNewFile());
+    SocketAddress address = UnixDomainSockets.address(socketFile.getPath());
+    MultiSocketServer server = startServer(address);
+    MultiSocketClient client = new MultiSocketClient();
+    try {
+      client.connect(address).get().writeMessage("request");
+      IConnection serverEnd = accepted.poll(5, TimeUnit.SECONDS);
+      assertNotNull(serverEnd);
+      assertEquals("request", serverEnd.readMessage());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  // The socket file of a running server is left alone
+  @Test(timeout = 10000)
+  public void testAddressInUse() throws Exception {
+    SocketAddress address = UnixDomainSockets.address(socketFile.getPath());
+    MultiSocketServer server = startServer(address);
+    try {
+      new MultiSocketServer(accepted::add, address).close();
+      fail("Bound the address of a running server");
+    } catch (BindException e) {
+      // Expected
+    } finally {
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+
+package Waterloo.MultiSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * The order in which WriteScheduler hands out the frames of the pending
+ * messages: control messages, then the HIGH lane, then the other channels by
+ * turns, while the messages of one channel keep their order.
+ */
+public class WriteSchedulerTest {
+
+  private static ChannelMessage message(int channelNumber, String text) {
+    return new ChannelMessage(channelNumber, MultiSocket.DATA, text);
+  }
+
+  private static ChannelMessage urgent(int channelNumber, String text) {
+    ChannelMessage message = message(channelNumber, text);
+    message.setUrgent();
+    return message;
+  }
+
+  // Checks that the next frame comes from expected, and loads it
+  private static void assertNext(WriteScheduler scheduler, ChannelMessage expected, boolean lastFrame) {
+    assertTrue(scheduler.hasReady());
+    assertSame(expected, scheduler.peek());
+    scheduler.frameLoaded(lastFrame);
+  }
+
+  @Test
+  public void testChannelsTakeTurns() {
+    WriteScheduler scheduler = new WriteScheduler();
+    ChannelMessage big = message(1, "big");
+    ChannelMessage next = message(1, "next");
+    ChannelMessage small = message(2, "small");
+    scheduler.add(big);
+    scheduler.add(next);
+    scheduler.add(small);
+
+    // The big message takes two frames, and the small one goes in between
+    assertNext(scheduler, big, false);
+    assertNext(scheduler, small, true);
+    assertNext(scheduler, big, true);
+    assertNext(scheduler, next, true);
+    assertFalse(scheduler.hasReady());
+  }
+
+  @Test
+  public void testHighPriorityFirst() {
+    WriteScheduler scheduler = new WriteScheduler();
+    ChannelMessage normal = message(1, "normal");
+    ChannelMessage high = urgent(2, "high");
+    ChannelMessage other = message(3, "other");
+    scheduler.add(normal);
+    scheduler.add(high);
+    scheduler.add(other);
+    assertTrue(scheduler.hasUrgent());
+
+    assertNext(scheduler, high, true);
+    assertFalse(scheduler.hasUrgent());
+    assertNext(scheduler, normal, true);
+    assertNext(scheduler, other, true);
+    assertFalse(scheduler.hasReady());
+  }
+
+  // A HIGH message waits for the messages queued before it on its channel,
+  // and then moves its channel to the HIGH lane
+  @Test
+  public void testHighPriorityKeepsChannelOrder() {
+    WriteScheduler scheduler = new WriteScheduler();
+    ChannelMessage first = message(1, "first");
+    ChannelMessage high = urgent(1, "high");
+    ChannelMessage other = message(2, "other");
+    scheduler.add(first);
+    scheduler.add(high);
+    scheduler.add(other);
+    assertFalse(scheduler.hasUrgent());
+
+    assertNext(scheduler, first, true);
+    assertTrue(scheduler.hasUrgent());
+    assertNext(scheduler, high, true);
+    assertNext(scheduler, other, true);
+  }
+
+  @Test
+  public void testControlFirst() {
+    WriteScheduler scheduler = new WriteScheduler();
+    ChannelMessage high = urgent(1, "high");
+    ChannelMessage control = message(-1, "control");
+    scheduler.add(high);
+    scheduler.addControl(control);
+
+    assertNext(scheduler, control, false); // Control messages take one frame
+    assertNext(scheduler, high, true);
+    assertFalse(scheduler.hasReady());
+  }
+
+  @Test
+  public void testParkedChannel() {
+    WriteScheduler scheduler = new WriteScheduler();
+    ChannelMessage blocked = message(1, "blocked");
+    ChannelMessage other = message(2, "other");
+    scheduler.add(blocked);
+    scheduler.add(other);
+
+    assertSame(blocked, scheduler.peek());
+    scheduler.park();
+    assertNext(scheduler, other, true);
+    assertFalse(scheduler.hasReady());
+
+    scheduler.unparkAll();
+    assertNext(scheduler, blocked, true);
+    assertFalse(scheduler.hasReady());
+  }
+}
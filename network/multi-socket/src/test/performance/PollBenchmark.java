@@ -0,0 +1,144 @@
+/* 
+ * Copyright 2017 SpecRPC authors                                                                           
+ *                                                                                                                       
+ * Licensed under the Apache License, Version 2.0 (the "License");                                                      
+ * you may not use this file except in compliance with the License.                                                     
+ * You may obtain a copy of the License at                                                                              
+ *                                                                                                                      
+ *     http://www.apache.org/licenses/LICENSE-2.0                                                                       
+ *                                                                                                                      
+ * Unless required by applicable law or agreed to in writing, software                                                  
+ * distributed under the License is distributed on an "AS IS" BASIS,                                                    
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.                                             
+ * See the License for the specific language governing permissions and                                                  
+ * limitations under the License. 
+ */
+package performance;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.util.Arrays;
+
+import Waterloo.MultiSocket.ConnectionHandler;
+import Waterloo.MultiSocket.IConnection;
+import Waterloo.MultiSocket.MultiSocketClient;
+import Waterloo.MultiSocket.MultiSocketOptions;
+import Waterloo.MultiSocket.MultiSocketServer;
+
+/*
+ * Measures the round trip of a small message between a client and a server of
+ * the same host under each poll policy. Each policy runs a ping-pong over one
+ * connection, and RPC-like exchanges that open a connection per request.
+ *
+ * Usage: PollBenchmark [requestNum] [spinMicros] [policy...]
+ */
+public class PollBenchmark {
+
+  private static final int WARMUP_NUM = 10000;
+
+  public static void main(String args[]) throws Exception {
+    int requestNum = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    long spinMicros = args.length > 1 ? Long.parseLong(args[1]) : 50;
+    MultiSocketOptions.PollPolicy[] policies = MultiSocketOptions.PollPolicy.values();
+    if (args.length > 2) {
+      policies = new MultiSocketOptions.PollPolicy[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        policies[i - 2] = MultiSocketOptions.PollPolicy.valueOf(args[i].toUpperCase());
+      }
+    }
+    for (MultiSocketOptions.PollPolicy policy : policies) {
+      MultiSocketOptions options = new MultiSocketOptions();
+      options.setPollPolicy(policy);
+      options.setSpinMicros(spinMicros);
+      run(policy.toString(), options, requestNum);
+    }
+    System.exit(0); // The reactors of the client are not daemons
+  }
+
+  private static void run(String name, MultiSocketOptions options, int requestNum) throws Exception {
+    final MultiSocketServer server = new MultiSocketServer(new ConnectionHandler() {
+      public void handle(final IConnection connection) {
+        new Thread() {
+          public void run() {
+            echo(connection);
+          }
+        }.start();
+      }
+    }, new InetSocketAddress("127.0.0.1", 0), -1, options);
+    Thread acceptor = new Thread() {
+      public void run() {
+        try {
+          server.accept();
+        } catch (IOException | ClosedSelectorException e) {
+          // Closed
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    MultiSocketClient client = new MultiSocketClient(options);
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+
+    IConnection connection = client.connect(address).get();
+    pingPong(connection, Math.min(WARMUP_NUM, requestNum));
+    print(name + " ping-pong", pingPong(connection, requestNum));
+    connection.close();
+
+    int rpcNum = Math.max(1, requestNum / 10); // A thread per connection on the server
+    rpc(client, address, Math.min(WARMUP_NUM, requestNum) / 10);
+    print(name + " rpc", rpc(client, address, rpcNum));
+
+    client.close();
+    server.close();
+  }
+
+  private static void echo(IConnection connection) {
+    try {
+      while (true) {
+        String request = connection.readMessage();
+        if (request.equals("rpc")) {
+          connection.writeMessageAndClose(request);
+          return;
+        }
+        connection.writeMessage(request);
+      }
+    } catch (Exception e) {
+      // The client closed the connection
+    }
+  }
+
+  private static long[] pingPong(IConnection connection, int requestNum) throws Exception {
+    long[] latencies = new long[requestNum];
+    for (int i = 0; i < requestNum; i++) {
+      long start = System.nanoTime();
+      connection.writeMessage("ping");
+      connection.readMessage();
+      latencies[i] = System.nanoTime() - start;
+    }
+    return latencies;
+  }
+
+  private static long[] rpc(MultiSocketClient client, InetSocketAddress address, int requestNum) throws Exception {
+    long[] latencies = new long[requestNum];
+    for (int i = 0; i < requestNum; i++) {
+      long start = System.nanoTime();
+      IConnection connection = client.connect(address).get();
+      connection.writeMessage("rpc");
+      connection.readMessage();
+      connection.close();
+      latencies[i] = System.nanoTime() - start;
+    }
+    return latencies;
+  }
+
+  private static void print(String name, long[] latencies) {
+    Arrays.sort(latencies);
+    System.out.println(String.format("%-28s us: p50=%.1f p99=%.1f p99.9=%.1f", name, percentile(latencies, 0.5),
+        percentile(latencies, 0.99), percentile(latencies, 0.999)));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+  }
+}